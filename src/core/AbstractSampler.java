@@ -9,7 +9,12 @@ import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import main.GlobalConstants;
@@ -18,6 +23,7 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import util.IOUtils;
+import util.LogGammaTable;
 import util.MiscUtils;
 import util.RankingItem;
 
@@ -28,7 +34,6 @@ import util.RankingItem;
 public abstract class AbstractSampler implements Serializable {
 
     private static final long serialVersionUID = GlobalConstants.SerialVersionUID;
-    public static final int MAX_NUM_PARALLEL_THREADS = 5;
     public static final String IterPredictionFolder = "iter-predictions";
     public static final String TopWordFile = AbstractExperiment.TopWordFile;
     public static final String TopicCoherenceFile = AbstractExperiment.TopicCoherenceFile;
@@ -66,6 +71,9 @@ public abstract class AbstractSampler implements Serializable {
     protected static final NumberFormat formatter = new DecimalFormat("###.###");
     protected static Random rand = new Random(RAND_SEED);
     protected static long startTime;
+    // shared pool for running tasks (e.g., tests on multiple models) in parallel
+    private static int numWorkerThreads = Runtime.getRuntime().availableProcessors();
+    private static ForkJoinPool workerPool;
     // sampling configurations
     protected int BURN_IN = 5;          // burn-in
     protected int MAX_ITER = 100;       // maximum number of iterations
@@ -94,6 +102,10 @@ public abstract class AbstractSampler implements Serializable {
     protected boolean log = true;
     protected boolean report = false;
     protected boolean isReporting;
+    // background checkpointing
+    protected int checkpointQueueSize = 0;
+    protected CheckpointQueue.Policy checkpointPolicy = CheckpointQueue.Policy.BLOCK;
+    protected transient CheckpointQueue checkpointQueue;
     protected BufferedWriter logger;
     protected static CommandLineParser parser;
     protected static Options options;
@@ -219,6 +231,53 @@ public abstract class AbstractSampler implements Serializable {
         this.inputState(file.getAbsolutePath());
     }
 
+    /**
+     * Write checkpoints in a background thread.
+     *
+     * @param queueSize Maximum number of snapshots waiting to be written. If
+     * this is 0, checkpoints are written on the sampling thread.
+     * @param policy What to do with a new snapshot when the queue is full
+     */
+    public void setBackgroundCheckpointing(int queueSize, CheckpointQueue.Policy policy) {
+        this.checkpointQueueSize = queueSize;
+        this.checkpointPolicy = policy;
+    }
+
+    public boolean isBackgroundCheckpointing() {
+        return this.checkpointQueueSize > 0;
+    }
+
+    /**
+     * Output a checkpoint. With background checkpointing, the task should
+     * only use a snapshot of the state taken before this call, since sampling
+     * continues while it runs.
+     *
+     * @param task Task writing the checkpoint
+     * @param isFinal Whether this is the final state, which is always written
+     */
+    protected void outputCheckpoint(Runnable task, boolean isFinal) {
+        if (!isBackgroundCheckpointing()) {
+            task.run();
+            return;
+        }
+        if (checkpointQueue == null) {
+            checkpointQueue = new CheckpointQueue(checkpointQueueSize, checkpointPolicy);
+        }
+        if (!checkpointQueue.submit(task, isFinal) && verbose) {
+            logln("--- Writer is behind. Skipped checkpoint at iteration " + iter);
+        }
+    }
+
+    /**
+     * Wait until all background checkpoints are written.
+     */
+    protected void finishCheckpoints() {
+        if (checkpointQueue != null) {
+            checkpointQueue.close();
+            checkpointQueue = null;
+        }
+    }
+
     protected void outputZipFile(
             String filepath,
             String modelStr,
@@ -318,6 +377,7 @@ public abstract class AbstractSampler implements Serializable {
         initialize();
 
         iterate();
+        LogGammaTable.clear();
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
         logln("Total runtime: " + ellapsedSeconds + " seconds");
@@ -544,27 +604,85 @@ public abstract class AbstractSampler implements Serializable {
     }
 
     /**
-     * Run multiple threads in parallel.
+     * Set the number of worker threads of the shared pool used by runTasks.
      *
-     * @param threads
-     * @throws java.lang.Exception
+     * @param numThreads Number of threads. If this is not positive, the number
+     * of available processors is used.
      */
-    public static void runThreads(ArrayList<Thread> threads) throws Exception {
-        int c = 0;
-        for (int ii = 0; ii < threads.size() / MAX_NUM_PARALLEL_THREADS; ii++) {
-            for (int jj = 0; jj < MAX_NUM_PARALLEL_THREADS; jj++) {
-                threads.get(ii * MAX_NUM_PARALLEL_THREADS + jj).start();
-            }
-            for (int jj = 0; jj < MAX_NUM_PARALLEL_THREADS; jj++) {
-                threads.get(ii * MAX_NUM_PARALLEL_THREADS + jj).join();
-                c++;
+    public static synchronized void setNumWorkerThreads(int numThreads) {
+        if (numThreads <= 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
+        if (numThreads != numWorkerThreads) {
+            numWorkerThreads = numThreads;
+            if (workerPool != null) {
+                workerPool.shutdown();
+                workerPool = null;
             }
         }
-        for (int jj = c; jj < threads.size(); jj++) {
-            threads.get(jj).start();
+    }
+
+    public static synchronized int getNumWorkerThreads() {
+        return numWorkerThreads;
+    }
+
+    /**
+     * Return the shared work-stealing pool, creating it if needed.
+     */
+    public static synchronized ForkJoinPool getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = new ForkJoinPool(numWorkerThreads);
         }
-        for (int jj = c; jj < threads.size(); jj++) {
-            threads.get(jj).join();
+        return workerPool;
+    }
+
+    /**
+     * Run multiple tasks in parallel on the shared worker pool and wait until
+     * all of them finish. Idle workers take the next task as soon as they are
+     * done, so a slow task does not hold up the others. If a task fails, the
+     * tasks that have not started are cancelled and the first failure is
+     * rethrown.
+     *
+     * @param tasks The tasks
+     */
+    public static void runTasks(List<? extends Runnable> tasks) {
+        ForkJoinPool pool = getWorkerPool();
+        ArrayList<ForkJoinTask<?>> futures = new ArrayList<ForkJoinTask<?>>();
+        for (Runnable task : tasks) {
+            futures.add(pool.submit(task));
         }
+        Throwable failure = null;
+        for (ForkJoinTask<?> future : futures) {
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                // cancelled after an earlier failure
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                    for (ForkJoinTask<?> other : futures) {
+                        other.cancel(false);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while running parallel tasks");
+            }
+        }
+        if (failure != null) {
+            throw new RuntimeException("Exception while running parallel tasks", failure);
+        }
+    }
+
+    /**
+     * Run multiple threads in parallel. The threads are not started; their
+     * run methods are executed on the shared worker pool.
+     *
+     * @param threads
+     * @deprecated Use runTasks
+     */
+    @Deprecated
+    public static void runThreads(ArrayList<Thread> threads) throws Exception {
+        runTasks(threads);
     }
 }
@@ -0,0 +1,132 @@
+package core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded queue of checkpoint tasks run by a single background thread.
+ *
+ * A sampler takes a snapshot of its state (a copy of the assignments and
+ * counts, which is cheap compared to writing them) and submits a task that
+ * writes the snapshot, so that the sampling thread does not wait for the I/O.
+ * Tasks are run in the order they are submitted. When the writer falls behind
+ * and the queue is full, what happens to a new snapshot depends on the policy.
+ *
+ * @author vietan
+ */
+public class CheckpointQueue {
+
+    public static enum Policy {
+
+        BLOCK, // wait until there is room in the queue
+        SKIP, // drop the new snapshot
+        DROP_OLDEST // drop the oldest queued snapshot
+    }
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private final BlockingQueue<Runnable> queue;
+    private final Policy policy;
+    private final Thread thread;
+    private volatile Throwable failure;
+    private int numSkipped;
+
+    /**
+     * @param capacity Maximum number of snapshots waiting to be written
+     * @param policy What to do with a new snapshot when the queue is full
+     */
+    public CheckpointQueue(int capacity, Policy policy) {
+        this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+        this.policy = policy;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Runnable task = queue.take();
+                        if (task == STOP) {
+                            break;
+                        }
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            if (failure == null) {
+                                failure = t;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "checkpoint-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public Policy getPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * Return the number of snapshots dropped because the queue was full.
+     */
+    public int getNumSkipped() {
+        return this.numSkipped;
+    }
+
+    /**
+     * Submit a checkpoint task.
+     *
+     * @param task The task writing a snapshot
+     * @param force Whether the task has to be written regardless of the policy
+     * (e.g., the final state)
+     * @return Whether the task was queued
+     */
+    public boolean submit(Runnable task, boolean force) {
+        checkFailure();
+        try {
+            if (force || policy == Policy.BLOCK) {
+                queue.put(task);
+                return true;
+            }
+            if (queue.offer(task)) {
+                return true;
+            }
+            numSkipped++;
+            if (policy == Policy.SKIP) {
+                return false;
+            }
+            while (!queue.offer(task)) {
+                queue.poll();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queuing a checkpoint");
+        }
+    }
+
+    /**
+     * Wait until all queued checkpoints are written and stop the background
+     * thread.
+     */
+    public void close() {
+        try {
+            queue.put(STOP);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing checkpoints");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Exception while writing a checkpoint", failure);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import sampling.likelihood.DirMult;
+import util.IOUtils;
+
+/**
+ * Streaming reader of a binary sampler state written by {@link StateWriter}.
+ *
+ * @author vietan
+ */
+public class StateReader {
+
+    private final ZipFile zip;
+    private final DataInputStream in;
+
+    /**
+     * Open a binary state file and check the header.
+     *
+     * @param filepath The zip file
+     */
+    public StateReader(String filepath) throws IOException {
+        this.zip = new ZipFile(filepath);
+        ZipEntry entry = zip.getEntry(getEntryName(filepath));
+        if (entry == null) {
+            zip.close();
+            throw new RuntimeException(filepath + " is not a binary state file");
+        }
+        this.in = new DataInputStream(new BufferedInputStream(
+                zip.getInputStream(entry), 1 << 16));
+        if (in.readInt() != StateWriter.MAGIC) {
+            close();
+            throw new RuntimeException(filepath + " is not a binary state file");
+        }
+        int version = in.readInt();
+        if (version != StateWriter.VERSION) {
+            close();
+            throw new RuntimeException("Unsupported binary state version " + version
+                    + " in " + filepath);
+        }
+    }
+
+    private static String getEntryName(String filepath) {
+        return IOUtils.removeExtension(IOUtils.getFilename(filepath))
+                + StateWriter.StateFileExt;
+    }
+
+    /**
+     * Check whether a state file is in the binary format. States in the text
+     * format contain separate model and assignment entries instead.
+     *
+     * @param filepath The zip file
+     */
+    public static boolean isBinaryState(String filepath) {
+        try {
+            ZipFile zipFile = new ZipFile(filepath);
+            try {
+                return zipFile.getEntry(getEntryName(filepath)) != null;
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while opening " + filepath);
+        }
+    }
+
+    public int readInt() throws IOException {
+        int v = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new RuntimeException("Malformed variable-length integer");
+            }
+            b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public long readLong() throws IOException {
+        long v = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new RuntimeException("Malformed variable-length integer");
+            }
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public String readString() throws IOException {
+        return in.readUTF();
+    }
+
+    public int[] readInts() throws IOException {
+        int[] values = new int[readInt()];
+        for (int ii = 0; ii < values.length; ii++) {
+            values[ii] = readInt();
+        }
+        return values;
+    }
+
+    /**
+     * Read an int array into an existing array of the same length.
+     *
+     * @param values The array to be filled
+     */
+    public void readInts(int[] values) throws IOException {
+        int length = readInt();
+        if (length != values.length) {
+            throw new RuntimeException("Mismatched array length. "
+                    + values.length + " vs. " + length);
+        }
+        for (int ii = 0; ii < length; ii++) {
+            values[ii] = readInt();
+        }
+    }
+
+    public double[] readDoubles() throws IOException {
+        double[] values = new double[readInt()];
+        for (int ii = 0; ii < values.length; ii++) {
+            values[ii] = in.readDouble();
+        }
+        return values;
+    }
+
+    public DirMult readDirMult() throws IOException {
+        int dim = readInt();
+        double concentration = in.readDouble();
+        DirMult model;
+        if (in.readBoolean()) {
+            model = new DirMult(dim, concentration, in.readDouble());
+        } else {
+            model = new DirMult(dim, concentration, readDoubles());
+        }
+        int size = readInt();
+        for (int ii = 0; ii < size; ii++) {
+            int index = readInt();
+            model.changeCount(index, readInt());
+        }
+        return model;
+    }
+
+    public void close() throws IOException {
+        in.close();
+        zip.close();
+    }
+}
@@ -0,0 +1,143 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import sampling.likelihood.DirMult;
+import sampling.util.SparseCount;
+import util.IOUtils;
+
+/**
+ * Streaming writer of a binary sampler state.
+ *
+ * The state is written as a single entry (with extension StateFileExt) of a
+ * zip file, so state files keep their names and can be told apart from the
+ * text states by their entries. Values are written directly to the compressed
+ * stream as they are produced, without building the whole state in memory.
+ * Integers are written as variable-length (zig-zag) integers, which take one
+ * byte for small values such as topic assignments and counts, and count tables
+ * only store their non-zero entries.
+ *
+ * The layout of the values after the header is defined by each sampler and
+ * has to be read back in the same order using {@link StateReader}.
+ *
+ * @author vietan
+ */
+public class StateWriter {
+
+    public static final int MAGIC = 0x53475354; // "SGST"
+    public static final int VERSION = 1;
+    public static final String StateFileExt = ".state";
+    private final ZipOutputStream zip;
+    private final DataOutputStream out;
+    private int[] indices;
+
+    /**
+     * Open a state file and write the header.
+     *
+     * @param filepath The output zip file
+     */
+    public StateWriter(String filepath) throws IOException {
+        String filename = IOUtils.removeExtension(IOUtils.getFilename(filepath));
+        this.zip = new ZipOutputStream(new FileOutputStream(filepath));
+        // the varint-encoded values are already compact
+        this.zip.setLevel(Deflater.BEST_SPEED);
+        this.zip.putNextEntry(new ZipEntry(filename + StateFileExt));
+        this.out = new DataOutputStream(new BufferedOutputStream(zip, 1 << 16));
+        this.indices = new int[16];
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+    }
+
+    public void writeInt(int value) throws IOException {
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public void writeLong(long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        out.writeDouble(value);
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        out.writeBoolean(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        out.writeUTF(value);
+    }
+
+    /**
+     * Write an int array (e.g., the topic assignments of a document).
+     */
+    public void writeInts(int[] values) throws IOException {
+        writeInt(values.length);
+        for (int value : values) {
+            writeInt(value);
+        }
+    }
+
+    public void writeDoubles(double[] values) throws IOException {
+        writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Write the non-zero counts of a count table.
+     */
+    public void writeSparseCount(SparseCount counts) throws IOException {
+        int size = counts.size();
+        if (indices.length < size) {
+            indices = new int[Math.max(size, 2 * indices.length)];
+        }
+        counts.getIndices(indices);
+        writeInt(size);
+        for (int ii = 0; ii < size; ii++) {
+            writeInt(indices[ii]);
+            writeInt(counts.getCount(indices[ii]));
+        }
+    }
+
+    /**
+     * Write a Dirichlet-multinomial: its prior and its non-zero counts.
+     */
+    public void writeDirMult(DirMult model) throws IOException {
+        writeInt(model.getDimension());
+        out.writeDouble(model.getConcentration());
+        boolean symmetric = model.isShortRepresented();
+        out.writeBoolean(symmetric);
+        if (symmetric) {
+            out.writeDouble(model.getCenterElement(0));
+        } else {
+            writeDoubles(model.getCenterVector());
+        }
+        writeSparseCount(model.getSparseCounts());
+    }
+
+    /**
+     * Finish the entry and close the file.
+     */
+    public void close() throws IOException {
+        out.flush();
+        zip.closeEntry();
+        zip.close();
+    }
+}
@@ -0,0 +1,455 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary columnar storage of a formatted corpus.
+ *
+ * The file consists of a fixed-size header followed by a number of columns:
+ * <pre>
+ * header     : magic, version, #docs, has-sentences, #tokens, #sentences,
+ *              #sentence tokens
+ * docOffsets : long[#docs + 1], start of each document in the token column
+ * tokens     : int[#tokens]
+ * (only if there are sentences)
+ * docSentOffsets  : long[#docs + 1], start of each document in the sentence
+ *                   offset column
+ * sentOffsets     : long[#sentences + 1], start of each sentence in the
+ *                   sentence token column
+ * sentTokens      : int[#sentence tokens]
+ * </pre>
+ *
+ * A corpus is opened by memory-mapping the file (read-only), so opening is
+ * independent of the corpus size and processes on the same machine reading the
+ * same file share the page cache. Since a single mapping is limited to 2GB,
+ * each column is mapped in segments.
+ *
+ * @author vietan
+ */
+public class BinaryCorpus {
+
+    public static final int MAGIC = 0x53474243; // "SGBC"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4 * 4 + 3 * 8;
+    // number of bytes per mapped segment (a multiple of both 4 and 8)
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private final File file;
+    private final int numDocs;
+    private final boolean hasSentences;
+    private final long numTokens;
+    private final long numSentences;
+    private final long numSentTokens;
+    private final MappedColumn docOffsets;
+    private final MappedColumn tokens;
+    private MappedColumn docSentOffsets;
+    private MappedColumn sentOffsets;
+    private MappedColumn sentTokens;
+
+    private BinaryCorpus(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new RuntimeException(file + " is not a binary corpus file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new RuntimeException("Unsupported binary corpus version " + version
+                    + " in " + file);
+        }
+        this.numDocs = header.getInt();
+        this.hasSentences = header.getInt() != 0;
+        this.numTokens = header.getLong();
+        this.numSentences = header.getLong();
+        this.numSentTokens = header.getLong();
+
+        long position = HEADER_SIZE;
+        FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+        this.docOffsets = new MappedColumn(channel, mode, position, numDocs + 1, 8);
+        position += 8L * (numDocs + 1);
+        this.tokens = new MappedColumn(channel, mode, position, numTokens, 4);
+        position += 4L * numTokens;
+        if (hasSentences) {
+            this.docSentOffsets = new MappedColumn(channel, mode, position, numDocs + 1, 8);
+            position += 8L * (numDocs + 1);
+            this.sentOffsets = new MappedColumn(channel, mode, position, numSentences + 1, 8);
+            position += 8L * (numSentences + 1);
+            this.sentTokens = new MappedColumn(channel, mode, position, numSentTokens, 4);
+            position += 4L * numSentTokens;
+        }
+        if (position != channel.size()) {
+            throw new RuntimeException("Corrupted binary corpus file " + file
+                    + ". Expected " + position + " bytes. Found " + channel.size());
+        }
+    }
+
+    /**
+     * Open a binary corpus file.
+     *
+     * @param file The binary corpus file
+     * @return The memory-mapped corpus
+     */
+    public static BinaryCorpus open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // mappings stay valid after the channel is closed
+            return new BinaryCorpus(file, raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a corpus to a binary file.
+     *
+     * @param file The output file
+     * @param docWords Tokens of each document
+     * @param docSentWords (Optional) Tokens of each sentence in each document
+     */
+    public static void write(File file, int[][] docWords, int[][][] docSentWords)
+            throws IOException {
+        if (docSentWords != null && docSentWords.length != docWords.length) {
+            throw new RuntimeException("Mismatched number of documents. "
+                    + docWords.length + " vs. " + docSentWords.length);
+        }
+        Writer writer = new Writer(file, docSentWords != null);
+        try {
+            for (int d = 0; d < docWords.length; d++) {
+                writer.add(docWords[d], docSentWords == null ? null : docSentWords[d]);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writer of a binary corpus file, to which documents are added one at a
+     * time so that the corpus does not need to be held in memory. Since the
+     * offsets of all documents precede the tokens in the file, each column is
+     * first written to a temporary file in the folder of the output file, and
+     * the columns are concatenated when the writer is closed.
+     */
+    public static class Writer {
+
+        private static final int DOC_OFFSETS = 0;
+        private static final int TOKENS = 1;
+        private static final int DOC_SENT_OFFSETS = 2;
+        private static final int SENT_OFFSETS = 3;
+        private static final int SENT_TOKENS = 4;
+        private final File file;
+        private final boolean hasSentences;
+        private final File[] columnFiles;
+        private final DataOutputStream[] columns;
+        private int numDocs;
+        private long numTokens;
+        private long numSentences;
+        private long numSentTokens;
+
+        /**
+         * Create a writer.
+         *
+         * @param file The output file
+         * @param hasSentences Whether sentences are stored
+         */
+        public Writer(File file, boolean hasSentences) throws IOException {
+            this.file = file;
+            this.hasSentences = hasSentences;
+            int numColumns = hasSentences ? SENT_TOKENS + 1 : TOKENS + 1;
+            this.columnFiles = new File[numColumns];
+            this.columns = new DataOutputStream[numColumns];
+            File folder = file.getAbsoluteFile().getParentFile();
+            try {
+                for (int ii = 0; ii < numColumns; ii++) {
+                    columnFiles[ii] = File.createTempFile(file.getName() + "-", ".column", folder);
+                    columnFiles[ii].deleteOnExit();
+                    columns[ii] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(columnFiles[ii]), 1 << 16));
+                }
+                columns[DOC_OFFSETS].writeLong(0);
+                if (hasSentences) {
+                    columns[DOC_SENT_OFFSETS].writeLong(0);
+                    columns[SENT_OFFSETS].writeLong(0);
+                }
+            } catch (IOException e) {
+                deleteColumns();
+                throw e;
+            }
+        }
+
+        /**
+         * Add a document.
+         *
+         * @param docWords Tokens of the document
+         * @param docSentWords Tokens of each sentence of the document, ignored
+         * if sentences are not stored
+         */
+        public void add(int[] docWords, int[][] docSentWords) throws IOException {
+            if (hasSentences && docSentWords == null) {
+                throw new RuntimeException("Missing sentences of document " + numDocs);
+            }
+            for (int token : docWords) {
+                columns[TOKENS].writeInt(token);
+            }
+            numTokens += docWords.length;
+            columns[DOC_OFFSETS].writeLong(numTokens);
+            if (hasSentences) {
+                for (int[] sent : docSentWords) {
+                    for (int token : sent) {
+                        columns[SENT_TOKENS].writeInt(token);
+                    }
+                    numSentTokens += sent.length;
+                    columns[SENT_OFFSETS].writeLong(numSentTokens);
+                }
+                numSentences += docSentWords.length;
+                columns[DOC_SENT_OFFSETS].writeLong(numSentences);
+            }
+            numDocs++;
+        }
+
+        /**
+         * Write the header and the columns to the output file, and delete the
+         * temporary files.
+         */
+        public void close() throws IOException {
+            try {
+                for (DataOutputStream column : columns) {
+                    column.close();
+                }
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), 1 << 16));
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(numDocs);
+                    out.writeInt(hasSentences ? 1 : 0);
+                    out.writeLong(numTokens);
+                    out.writeLong(numSentences);
+                    out.writeLong(numSentTokens);
+                    byte[] buffer = new byte[1 << 16];
+                    for (File columnFile : columnFiles) {
+                        InputStream in = new FileInputStream(columnFile);
+                        try {
+                            int numRead;
+                            while ((numRead = in.read(buffer)) > 0) {
+                                out.write(buffer, 0, numRead);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                deleteColumns();
+            }
+        }
+
+        private void deleteColumns() {
+            for (int ii = 0; ii < columnFiles.length; ii++) {
+                try {
+                    if (columns[ii] != null) {
+                        columns[ii].close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                if (columnFiles[ii] != null) {
+                    columnFiles[ii].delete();
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int getNumDocuments() {
+        return this.numDocs;
+    }
+
+    public long getNumTokens() {
+        return this.numTokens;
+    }
+
+    public boolean hasSentences() {
+        return this.hasSentences;
+    }
+
+    public long getNumSentences() {
+        return this.numSentences;
+    }
+
+    public int getDocumentLength(int d) {
+        return (int) (docOffsets.getLong(d + 1) - docOffsets.getLong(d));
+    }
+
+    /**
+     * Return the start of a document in the token column.
+     *
+     * @param d Document index
+     */
+    public long getDocumentOffset(int d) {
+        return docOffsets.getLong(d);
+    }
+
+    /**
+     * Return a token directly from the mapped token column.
+     *
+     * @param index Position in the token column
+     */
+    public int getToken(long index) {
+        return tokens.getInt(index);
+    }
+
+    /**
+     * Copy the tokens of a document.
+     *
+     * @param d Document index
+     * @return The tokens
+     */
+    public int[] getDocument(int d) {
+        long start = docOffsets.getLong(d);
+        int[] doc = new int[(int) (docOffsets.getLong(d + 1) - start)];
+        tokens.copyInts(start, doc, 0, doc.length);
+        return doc;
+    }
+
+    /**
+     * Copy the tokens of a range of documents into a buffer.
+     *
+     * @param d First document index
+     * @param buffer Buffer whose length is at least the total number of tokens
+     * of the documents
+     * @param offset Start position in the buffer
+     * @param length Total number of tokens to copy
+     */
+    public void copyTokens(int d, int[] buffer, int offset, int length) {
+        tokens.copyInts(docOffsets.getLong(d), buffer, offset, length);
+    }
+
+    /**
+     * Copy the tokens of all documents.
+     */
+    public int[][] getWords() {
+        int[][] words = new int[numDocs][];
+        for (int d = 0; d < numDocs; d++) {
+            words[d] = getDocument(d);
+        }
+        return words;
+    }
+
+    /**
+     * Copy the tokens of each sentence of a document.
+     *
+     * @param d Document index
+     * @return The sentences
+     */
+    public int[][] getDocumentSentences(int d) {
+        if (!hasSentences) {
+            throw new RuntimeException("No sentence found in " + file);
+        }
+        long sentStart = docSentOffsets.getLong(d);
+        int[][] sents = new int[(int) (docSentOffsets.getLong(d + 1) - sentStart)][];
+        for (int s = 0; s < sents.length; s++) {
+            long start = sentOffsets.getLong(sentStart + s);
+            sents[s] = new int[(int) (sentOffsets.getLong(sentStart + s + 1) - start)];
+            sentTokens.copyInts(start, sents[s], 0, sents[s].length);
+        }
+        return sents;
+    }
+
+    /**
+     * Copy the tokens of each sentence of all documents.
+     */
+    public int[][][] getSentenceWords() {
+        int[][][] sentWords = new int[numDocs][][];
+        for (int d = 0; d < numDocs; d++) {
+            sentWords[d] = getDocumentSentences(d);
+        }
+        return sentWords;
+    }
+
+    /**
+     * A column of fixed-size elements mapped in segments of SEGMENT_SIZE
+     * bytes.
+     */
+    static class MappedColumn {
+
+        private final MappedByteBuffer[] segments;
+        private final int elementSize;
+        private final long elementsPerSegment;
+
+        MappedColumn(FileChannel channel, FileChannel.MapMode mode,
+                long position, long numElements, int elementSize) throws IOException {
+            this.elementSize = elementSize;
+            this.elementsPerSegment = SEGMENT_SIZE / elementSize;
+            long numBytes = numElements * elementSize;
+            int numSegments = (int) ((numBytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[numSegments];
+            for (int ii = 0; ii < numSegments; ii++) {
+                long start = ii * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, numBytes - start);
+                this.segments[ii] = channel.map(mode, position + start, size);
+            }
+        }
+
+        int getInt(long index) {
+            return segments[(int) (index / elementsPerSegment)]
+                    .getInt((int) (index % elementsPerSegment) * elementSize);
+        }
+
+        long getLong(long index) {
+            return segments[(int) (index / elementsPerSegment)]
+                    .getLong((int) (index % elementsPerSegment) * elementSize);
+        }
+
+        void copyInts(long index, int[] dest, int offset, int length) {
+            while (length > 0) {
+                int segment = (int) (index / elementsPerSegment);
+                int start = (int) (index % elementsPerSegment);
+                int count = (int) Math.min(length, elementsPerSegment - start);
+                IntBuffer buffer = segments[segment].duplicate().asIntBuffer();
+                buffer.position(start);
+                buffer.get(dest, offset, count);
+                index += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void putInts(long index, int[] src, int offset, int length) {
+            while (length > 0) {
+                int segment = (int) (index / elementsPerSegment);
+                int start = (int) (index % elementsPerSegment);
+                int count = (int) Math.min(length, elementsPerSegment - start);
+                IntBuffer buffer = segments[segment].duplicate().asIntBuffer();
+                buffer.position(start);
+                buffer.put(src, offset, count);
+                index += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Write changes of a read-write column to the file.
+         */
+        void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+    }
+}
@@ -1,8 +1,23 @@
 package data;
 
+import core.AbstractSampler;
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -11,7 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import main.GlobalConstants;
 import opennlp.tools.sentdetect.SentenceDetector;
@@ -30,12 +45,21 @@ import util.StopwordRemoval;
 /**
  * Process text data
  *
+ * Documents can be processed by multiple threads of the shared worker pool.
+ * Each thread takes blocks of documents, uses its own tokenizer, sentence
+ * detector and stemmer, and keeps its own frequency tables, which are merged
+ * after each pass. Tokenized documents are kept in temporary files between
+ * passes instead of in memory, and so are the processed documents, which are
+ * read back one at a time through {@link #openDocuments()}.
+ *
  * @author vietan
  */
 public class CorpusProcessor {
 
+    private static final int BLOCK_SIZE = 64; // # documents taken by a thread at a time
     private ChiSquareTest chiSquareTest;
     private boolean verbose = true;
+    private int numThreads = 1;
     // inputs
     private int D; // number of input documents
     private String[] rawTexts;
@@ -58,6 +82,8 @@ public class CorpusProcessor {
     // tools
     protected Tokenizer tokenizer;
     protected SentenceDetector sentenceDetector;
+    private TokenizerModel tokenizerModel;
+    private SentenceModel sentenceModel;
     private StopwordRemoval stopwordRemoval;
     private Stemmer stemmer;
     public HashMap<String, Integer> termFreq;
@@ -66,12 +92,16 @@ public class CorpusProcessor {
     protected HashMap<String, Integer> rightFreq;
     protected HashMap<String, Integer> bigramFreq;
     protected int totalBigram;
+    private String[][] rawSentences; // sentences of each document, if given instead of rawTexts
     // output data after processing
     private ArrayList<String> vocabulary;
-    private int[][] numericDocs;
-    private int[][][] numericSentences;
-    private String[][] rawSentences;
-    private final Pattern p = Pattern.compile("\\p{Punct}");
+    // processed documents, in temporary files of the workers that processed them
+    private TokenSpill[] numericSpills; // numeric sentences
+    private TokenSpill[] rawSentenceSpills; // sentences segmented from rawTexts
+    private int[] blockWorkers; // index of the worker that processed each block
+    // POSIX punctuation characters, i.e., \p{Punct}
+    private static final String PUNCTUATIONS = "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~";
+    private static final Pattern nonLetterPattern = Pattern.compile("[^A-Za-z]+");
 
     public CorpusProcessor(CorpusProcessor corp) {
         this(corp.unigramCountCutoff,
@@ -85,6 +115,7 @@ public class CorpusProcessor {
                 corp.docTypeCountCutoff,
                 corp.filterStopwords,
                 corp.lemmatization);
+        this.numThreads = corp.numThreads;
     }
 
     public CorpusProcessor(
@@ -165,12 +196,12 @@ public class CorpusProcessor {
 
             // initiate tokenizer
             InputStream tokenizeIn = new FileInputStream(GlobalConstants.TokenizerFilePath);
-            TokenizerModel tokenizeModel = new TokenizerModel(tokenizeIn);
-            this.tokenizer = new TokenizerME(tokenizeModel);
+            this.tokenizerModel = new TokenizerModel(tokenizeIn);
+            this.tokenizer = new TokenizerME(tokenizerModel);
             tokenizeIn.close();
 
             InputStream tokenizeSent = new FileInputStream(GlobalConstants.SentDetectorFilePath);
-            SentenceModel sentenceModel = new SentenceModel(tokenizeSent);
+            this.sentenceModel = new SentenceModel(tokenizeSent);
             this.sentenceDetector = new SentenceDetectorME(sentenceModel);
             tokenizeSent.close();
         } catch (IOException e) {
@@ -179,8 +210,21 @@ public class CorpusProcessor {
         }
     }
 
+    /**
+     * Return the raw sentences of all documents. If the sentences were
+     * segmented from the raw texts, this reads all of them into memory; use
+     * {@link #openDocuments()} to read them one document at a time.
+     */
     public String[][] getRawSentences() {
-        return this.rawSentences;
+        if (rawSentences != null || rawSentenceSpills == null) {
+            return this.rawSentences;
+        }
+        String[][] rawSents = new String[D][];
+        DocumentReader reader = openDocuments();
+        while (reader.next()) {
+            rawSents[reader.getDocumentIndex()] = reader.getRawSentences();
+        }
+        return rawSents;
     }
 
     public void setRawSentences(String[][] rawSents) {
@@ -216,6 +260,19 @@ public class CorpusProcessor {
         this.verbose = v;
     }
 
+    /**
+     * Set the number of threads used to process documents.
+     *
+     * @param numThreads Number of threads
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
     public void setMaxVocabSize(int vocsize) {
         this.maxVocabSize = vocsize;
     }
@@ -248,65 +305,125 @@ public class CorpusProcessor {
         }
     }
 
+    /**
+     * Return the numeric tokens of all processed documents. This reads all
+     * documents into memory; use {@link #openDocuments()} to read them one at
+     * a time.
+     */
     public int[][] getNumerics() {
-        return this.numericDocs;
+        if (numericSpills == null) {
+            return null;
+        }
+        int[][] numericDocs = new int[D][];
+        DocumentReader reader = openDocuments();
+        while (reader.next()) {
+            numericDocs[reader.getDocumentIndex()] = reader.getNumericDocument();
+        }
+        return numericDocs;
     }
 
+    /**
+     * Return the numeric tokens of each sentence of all processed documents.
+     * This reads all documents into memory; use {@link #openDocuments()} to
+     * read them one at a time.
+     */
     public int[][][] getNumericSentences() {
-        return this.numericSentences;
+        if (numericSpills == null) {
+            return null;
+        }
+        int[][][] numericSentences = new int[D][][];
+        DocumentReader reader = openDocuments();
+        while (reader.next()) {
+            numericSentences[reader.getDocumentIndex()] = reader.getNumericSentences();
+        }
+        return numericSentences;
     }
 
     /**
-     * Segment sentences
+     * Start reading the processed documents from the beginning. Only one
+     * reader can be used at a time.
      */
-    private String[][] segmentSentences(String[] rawDocuments) {
-        if (verbose) {
-            System.out.println("Segmenting sentences ...");
+    public DocumentReader openDocuments() {
+        if (numericSpills == null) {
+            throw new RuntimeException("No document has been processed");
         }
-        if (sentenceDetector == null) {
-            throw new RuntimeException("Sentence detector is not initialized.");
+        for (TokenSpill spill : numericSpills) {
+            spill.rewind();
         }
-        D = rawDocuments.length;
-        String[][] rawSents = new String[D][];
-        int step = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % step == 0) {
-                System.out.println("--- Segmenting sentences " + d + " / " + D);
+        if (rawSentenceSpills != null) {
+            for (TokenSpill spill : rawSentenceSpills) {
+                spill.rewind();
             }
-
-            rawSents[d] = sentenceDetector.sentDetect(rawDocuments[d]);
         }
-        return rawSents;
+        return new DocumentReader();
     }
 
     /**
-     * Tokenize sentences and filter tokens
-     *
-     * @param rawSentences
+     * Sequential reader of the processed documents, in input order. The
+     * documents of each block are read from the temporary files of the worker
+     * that processed the block, in which they were written in the same order.
      */
-    private String[][][] normalizeTokens(String[][] rawSentences) {
-        if (verbose) {
-            System.out.println("Normalizing tokens ...");
+    public class DocumentReader {
+
+        private int d = -1;
+        private int[][] numericSents;
+        private String[] rawSents;
+
+        /**
+         * Move to the next document.
+         *
+         * @return Whether there is a next document
+         */
+        public boolean next() {
+            if (d + 1 >= D) {
+                return false;
+            }
+            d++;
+            int worker = blockWorkers[d / BLOCK_SIZE];
+            numericSents = numericSpills[worker].read();
+            if (rawSentences != null) {
+                rawSents = rawSentences[d];
+            } else {
+                rawSents = rawSentenceSpills[worker].readStrings();
+            }
+            return true;
+        }
+
+        public int getDocumentIndex() {
+            return d;
+        }
+
+        /**
+         * Return the numeric tokens of each sentence of the current document.
+         */
+        public int[][] getNumericSentences() {
+            return numericSents;
         }
 
-        String[][][] normTexts = new String[D][][];
-        int step = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % step == 0) {
-                System.out.println("--- Normalizing tokens d = " + d + " / " + D);
+        /**
+         * Return the numeric tokens of the current document, which are those
+         * of its sentences in order.
+         */
+        public int[] getNumericDocument() {
+            int numTokens = 0;
+            for (int[] sent : numericSents) {
+                numTokens += sent.length;
             }
-            normTexts[d] = new String[rawSentences[d].length][];
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
-                }
+            int[] numericDoc = new int[numTokens];
+            int pos = 0;
+            for (int[] sent : numericSents) {
+                System.arraycopy(sent, 0, numericDoc, pos, sent.length);
+                pos += sent.length;
             }
+            return numericDoc;
         }
 
-        return normTexts;
+        /**
+         * Return the raw sentences of the current document.
+         */
+        public String[] getRawSentences() {
+            return rawSents;
+        }
     }
 
     /**
@@ -315,106 +432,97 @@ public class CorpusProcessor {
      * @param voc An existing vocabulary
      */
     public void process(ArrayList<String> voc) {
-        if (rawTexts == null && rawSentences == null) {
-            throw new RuntimeException("Both rawTexts and rawSentences have not "
-                    + "been initialized yet");
-        }
+        selectInput();
 
-        // tokenize and normalize texts
-        if (verbose) {
-            System.out.println("Tokenizing and counting ...");
-        }
-
-        // segment sentences if necessary
-        rawSentences = this.segmentSentences(this.rawTexts);
-        D = rawSentences.length;
-
-        // tokenize sentences and normalize tokens
-        String[][][] normTexts = this.normalizeTokens(rawSentences);
-
-        // keep only unigrams and bigrams in the given vocab
+        // tokenize sentences, normalize tokens and keep only unigrams and
+        // bigrams in the given vocab
         if (verbose) {
             System.out.println("Building numeric representations ...");
         }
-        int step = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % step == 0) {
-                System.out.println("--- Normalizing tokens d = " + d + " / " + D);
+        this.vocabulary = voc;
+        final Set<String> vocSet = new HashSet<String>(voc);
+        DocumentWorker[] workers = createWorkers();
+        try {
+            for (DocumentWorker worker : workers) {
+                worker.createOutputSpills();
             }
-            for (int s = 0; s < normTexts[d].length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normTexts[d][s].length; i++) {
-                    String curToken = normTexts[d][s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-
-                    // consider a bigram
-                    if (i + 1 < normTexts[d][s].length
-                            && !normTexts[d][s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normTexts[d][s][i],
-                                normTexts[d][s][i + 1]);
-
-                        // if the bigram is not in the vocab, add the current
-                        // unigram and move on
-                        if (!voc.contains(bigram)) {
-                            if (voc.contains(curToken)) {
-                                tokens.add(curToken);
+            runParallel(workers, "Normalizing tokens", false, new DocumentTask() {
+                @Override
+                public void process(int d, DocumentWorker worker) {
+                    String[][] normText = worker.normalizeTokens(worker.getSentences(d));
+                    for (int s = 0; s < normText.length; s++) {
+                        ArrayList<String> tokens = new ArrayList<String>();
+                        for (int i = 0; i < normText[s].length; i++) {
+                            String curToken = normText[s][i];
+                            if (curToken.isEmpty()) {
+                                continue;
                             }
-                            continue;
-                        }
 
-                        // if the bigram is in the vocab, add the bigram
-                        tokens.add(bigram);
-                        i++;
-                    } else {
-                        if (voc.contains(curToken)) {
-                            tokens.add(curToken);
+                            // consider a bigram
+                            if (i + 1 < normText[s].length
+                                    && !normText[s][i + 1].isEmpty()) {
+                                String bigram = getBigramString(normText[s][i],
+                                        normText[s][i + 1]);
+
+                                // if the bigram is not in the vocab, add the current
+                                // unigram and move on
+                                if (!vocSet.contains(bigram)) {
+                                    if (vocSet.contains(curToken)) {
+                                        tokens.add(curToken);
+                                    }
+                                    continue;
+                                }
+
+                                // if the bigram is in the vocab, add the bigram
+                                tokens.add(bigram);
+                                i++;
+                            } else {
+                                if (vocSet.contains(curToken)) {
+                                    tokens.add(curToken);
+                                }
+                            }
                         }
+                        normText[s] = tokens.toArray(new String[tokens.size()]);
                     }
+                    worker.numericSpill.write(numericize(normText));
                 }
-                normTexts[d][s] = tokens.toArray(new String[tokens.size()]);
+            });
+            keepOutput(workers);
+        } finally {
+            for (DocumentWorker worker : workers) {
+                worker.deleteSpills();
             }
         }
+    }
 
-        this.vocabulary = voc;
-        this.numericDocs = new int[D][];
-        this.numericSentences = new int[D][][];
-        for (int d = 0; d < D; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
-                        continue;
-                    }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
-                }
-
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
+    /**
+     * Convert the normalized tokens of a document into indices in the
+     * vocabulary.
+     *
+     * @param normText Normalized tokens of each sentence in the document
+     * @return Indices of the in-vocab tokens of each sentence
+     */
+    private int[][] numericize(String[][] normText) {
+        int[][] numericSents = new int[normText.length][];
+        for (int s = 0; s < normText.length; s++) { // for each sentence
+            TIntArrayList numericSent = new TIntArrayList();
+            for (String term : normText[s]) {
+                int numericTerm = Collections.binarySearch(this.vocabulary, term);
+                if (numericTerm < 0) { // this term is out-of-vocab
+                    continue;
                 }
+                numericSent.add(numericTerm);
             }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
-            }
+            numericSents[s] = numericSent.toArray();
         }
+        return numericSents;
     }
 
     /**
      * Process a set of documents
      */
     public void process() {
-        if (rawTexts == null && rawSentences == null) {
-            throw new RuntimeException("Both rawTexts and rawSentences have not "
-                    + "been initialized yet");
-        }
-
+        selectInput();
         if (vocabulary != null) {
             if (verbose) {
                 System.out.println("Using exisitng vocabulary ...");
@@ -427,52 +535,76 @@ public class CorpusProcessor {
         if (verbose) {
             System.out.println("Tokenizing and counting ...");
         }
-
-        // segment sentences if necessary
-        rawSentences = this.segmentSentences(this.rawTexts);
-        process(rawSentences);
+        processDocuments();
     }
 
+    /**
+     * Process a set of documents whose sentences have been segmented. The
+     * documents are tokenized once and go through three passes: the first
+     * pass counts unigrams and bigrams, the second pass merges bigrams and
+     * counts the final terms, and the third pass maps the terms to the
+     * vocabulary. Between passes, the term ids of each document are spilled
+     * to a temporary file of the worker that tokenized it, and so are the
+     * numeric documents after the last pass. The memory used while processing
+     * therefore does not grow with the number of documents, apart from the
+     * input and the counts of the distinct terms.
+     *
+     * @param rawSents Sentences of each document
+     */
     public void process(String[][] rawSents) {
-        // segment sentences if necessary
         rawSentences = rawSents;
         D = rawSentences.length;
-        String[][][] normTexts = new String[D][][];
-        int stepsize = MiscUtils.getRoundStepSize(D, 10);
-        for (int d = 0; d < D; d++) {
-            if (verbose && d % stepsize == 0) {
-                System.out.println("--- Tokenizing doc # " + d + " / " + D);
-            }
-
-            Set<String> uniqueDocTokens = new HashSet<String>();
-            normTexts[d] = new String[rawSentences[d].length][];
+        processDocuments();
+    }
 
-            for (int s = 0; s < rawSentences[d].length; s++) {
-                String[] sentTokens = tokenizer.tokenize(rawSentences[d][s].toLowerCase());
-                normTexts[d][s] = new String[sentTokens.length];
+    /**
+     * Use the raw texts as input if they are given, in which case their
+     * sentences are segmented while they are tokenized, or the given
+     * sentences otherwise.
+     */
+    private void selectInput() {
+        if (rawTexts == null && rawSentences == null) {
+            throw new RuntimeException("Both rawTexts and rawSentences have not "
+                    + "been initialized yet");
+        }
+        if (rawTexts != null) {
+            if (sentenceModel == null) {
+                throw new RuntimeException("Sentence detector is not initialized.");
+            }
+            rawSentences = null;
+            D = rawTexts.length;
+        } else {
+            D = rawSentences.length;
+        }
+    }
 
-                for (int t = 0; t < sentTokens.length; t++) {
-                    String normToken = normalize(sentTokens[t]);
-                    normTexts[d][s][t] = normToken;
-
-                    if (!normToken.isEmpty()) {
-                        MiscUtils.incrementMap(termFreq, normToken);
-                        uniqueDocTokens.add(normToken);
-
-                        if (t - 1 >= 0 && !normTexts[d][s][t - 1].isEmpty()) {
-                            String preToken = normTexts[d][s][t - 1];
-                            MiscUtils.incrementMap(leftFreq, preToken);
-                            MiscUtils.incrementMap(rightFreq, normToken);
-                            MiscUtils.incrementMap(bigramFreq, getBigramString(preToken, normToken));
-                            totalBigram++;
-                        }
-                    }
-                }
+    private void processDocuments() {
+        DocumentWorker[] workers = createWorkers();
+        try {
+            process(workers);
+            keepOutput(workers);
+        } finally {
+            for (DocumentWorker worker : workers) {
+                worker.deleteSpills();
             }
+        }
+    }
 
-            for (String uniToken : uniqueDocTokens) {
-                MiscUtils.incrementMap(docFreq, uniToken);
+    private void process(DocumentWorker[] workers) {
+        // tokenize and count unigrams and bigrams
+        for (DocumentWorker worker : workers) {
+            worker.tokenSpill = new TokenSpill();
+            worker.createOutputSpills();
+        }
+        runParallel(workers, "Tokenizing", false, new DocumentTask() {
+            @Override
+            public void process(int d, DocumentWorker worker) {
+                worker.tokenSpill.write(worker.countTokens(worker.getSentences(d)));
             }
+        });
+        for (DocumentWorker worker : workers) {
+            worker.tokenSpill.finishWriting();
+            worker.mergeRawCounts();
         }
 
         // debug
@@ -489,7 +621,7 @@ public class CorpusProcessor {
         if (verbose) {
             System.out.println("Scoring bigram ...");
         }
-        Set<String> vocab = new HashSet<String>();
+        final Set<String> vocab = new HashSet<String>();
         for (String bigram : bigramFreq.keySet()) {
             if (bigramFreq.get(bigram) < this.bigramCountCutoff) {
                 continue;
@@ -508,55 +640,27 @@ public class CorpusProcessor {
             System.out.println("--- # bigrams after being scored: " + vocab.size());
         }
 
-        // merge bigrams
+        // merge bigrams, each document by the worker that tokenized it
         if (verbose) {
             System.out.println("Merging unigrams to create bigram ...");
         }
+        for (DocumentWorker worker : workers) {
+            worker.termSpill = new TokenSpill();
+        }
+        runParallel(workers, "Merging", true, new DocumentTask() {
+            @Override
+            public void process(int d, DocumentWorker worker) {
+                worker.termSpill.write(worker.mergeBigrams(worker.tokenSpill.read(), vocab));
+            }
+        });
         HashMap<String, Integer> finalTermFreq = new HashMap<String, Integer>();
         HashMap<String, Integer> finalDocFreq = new HashMap<String, Integer>();
-
-        for (String[][] normText : normTexts) {
-            Set<String> docUniqueTerms = new HashSet<String>();
-            for (int s = 0; s < normText.length; s++) {
-                ArrayList<String> tokens = new ArrayList<String>();
-                for (int i = 0; i < normText[s].length; i++) {
-                    String curToken = normText[s][i];
-                    if (curToken.isEmpty()) {
-                        continue;
-                    }
-                    if (i + 1 < normText[s].length && !normText[s][i + 1].isEmpty()) {
-                        String bigram = getBigramString(normText[s][i], normText[s][i + 1]);
-                        if (!vocab.contains(bigram)) {
-                            // if the bigram is not in the vocab, add the current
-                            // unigram and move on to the next unigram
-                            if (termFreq.get(curToken) < this.unigramCountCutoff) {
-                                continue;
-                            }
-                            tokens.add(curToken);
-                            vocab.add(curToken);
-                            MiscUtils.incrementMap(finalTermFreq, curToken);
-                            continue;
-                        }
-                        tokens.add(bigram);
-                        MiscUtils.incrementMap(finalTermFreq, bigram);
-                        i++;
-                    } else {
-                        if (termFreq.get(curToken) < this.unigramCountCutoff) {
-                            continue;
-                        }
-                        tokens.add(curToken);
-                        vocab.add(curToken);
-                        MiscUtils.incrementMap(finalTermFreq, curToken);
-                    }
-                }
-                normText[s] = tokens.toArray(new String[tokens.size()]);
-                // union
-                docUniqueTerms.addAll(Arrays.asList(normText[s]));
-            }
-            // update document frequencies
-            for (String ut : docUniqueTerms) {
-                MiscUtils.incrementMap(finalDocFreq, ut);
-            }
+        for (DocumentWorker worker : workers) {
+            worker.tokenSpill.delete();
+            worker.tokenSpill = null;
+            worker.termSpill.finishWriting();
+            worker.mergeCounts(finalTermFreq, worker.finalTermFreq);
+            worker.mergeCounts(finalDocFreq, worker.finalDocFreq);
         }
 
         // finalize
@@ -590,34 +694,543 @@ public class CorpusProcessor {
         }
         Collections.sort(this.vocabulary);
 
-        this.numericDocs = new int[D][];
-        this.numericSentences = new int[D][][];
-        for (int d = 0; d < this.numericDocs.length; d++) { // for each document
-            ArrayList<Integer> numericDoc = new ArrayList<Integer>();
-            this.numericSentences[d] = new int[normTexts[d].length][];
-            for (int s = 0; s < normTexts[d].length; s++) { // for each sentence
-                ArrayList<Integer> numericSent = new ArrayList<Integer>();
-                for (String normText : normTexts[d][s]) {
-                    int numericTerm = Collections.binarySearch(this.vocabulary, normText);
-                    if (numericTerm < 0) { // this term is out-of-vocab
+        // map the terms of each worker to the vocab
+        final int[][] termIndices = new int[workers.length][];
+        for (DocumentWorker worker : workers) {
+            termIndices[worker.index] = new int[worker.terms.size()];
+            for (int ii = 0; ii < worker.terms.size(); ii++) {
+                termIndices[worker.index][ii] = Collections.binarySearch(
+                        this.vocabulary, worker.terms.get(ii));
+            }
+        }
+
+        runParallel(workers, "Numericizing", true, new DocumentTask() {
+            @Override
+            public void process(int d, DocumentWorker worker) {
+                worker.numericSpill.write(numericize(worker.termSpill.read(),
+                        termIndices[worker.index]));
+            }
+        });
+        for (DocumentWorker worker : workers) {
+            worker.termSpill.delete();
+            worker.termSpill = null;
+        }
+    }
+
+    /**
+     * Convert the term ids of a document into indices in the vocabulary.
+     *
+     * @param docTerms Ids of the terms of each sentence in the document
+     * @param termIndices Vocabulary index of each term id, negative for terms
+     * that are out-of-vocab
+     * @return Indices of the in-vocab terms of each sentence
+     */
+    private int[][] numericize(int[][] docTerms, int[] termIndices) {
+        int[][] numericSents = new int[docTerms.length][];
+        for (int s = 0; s < docTerms.length; s++) { // for each sentence
+            TIntArrayList numericSent = new TIntArrayList();
+            for (int term : docTerms[s]) {
+                int numericTerm = termIndices[term];
+                if (numericTerm < 0) { // this term is out-of-vocab
+                    continue;
+                }
+                numericSent.add(numericTerm);
+            }
+            numericSents[s] = numericSent.toArray();
+        }
+        return numericSents;
+    }
+
+    /**
+     * Keep the processed documents of the workers, replacing those of the
+     * previous run.
+     */
+    private void keepOutput(DocumentWorker[] workers) {
+        deleteOutput();
+        numericSpills = new TokenSpill[workers.length];
+        rawSentenceSpills = rawSentences == null ? new TokenSpill[workers.length] : null;
+        blockWorkers = new int[(D + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        for (DocumentWorker worker : workers) {
+            worker.numericSpill.finishWriting();
+            numericSpills[worker.index] = worker.numericSpill;
+            worker.numericSpill = null;
+            if (rawSentenceSpills != null) {
+                worker.rawSentenceSpill.finishWriting();
+                rawSentenceSpills[worker.index] = worker.rawSentenceSpill;
+                worker.rawSentenceSpill = null;
+            }
+            for (int ii = 0; ii < worker.blocks.size(); ii++) {
+                blockWorkers[worker.blocks.get(ii) / BLOCK_SIZE] = worker.index;
+            }
+        }
+    }
+
+    /**
+     * Delete the temporary files storing the processed documents.
+     */
+    private void deleteOutput() {
+        if (numericSpills != null) {
+            for (TokenSpill spill : numericSpills) {
+                spill.delete();
+            }
+            numericSpills = null;
+        }
+        if (rawSentenceSpills != null) {
+            for (TokenSpill spill : rawSentenceSpills) {
+                spill.delete();
+            }
+            rawSentenceSpills = null;
+        }
+        blockWorkers = null;
+    }
+
+    private DocumentWorker[] createWorkers() {
+        DocumentWorker[] workers = new DocumentWorker[Math.max(1, numThreads)];
+        for (int ii = 0; ii < workers.length; ii++) {
+            workers[ii] = new DocumentWorker(ii);
+        }
+        return workers;
+    }
+
+    /**
+     * Run a task on all documents. Each worker runs as one task on the shared
+     * worker pool, repeatedly takes the next block of documents and only uses
+     * its own tools and counts. The blocks taken by each worker are recorded,
+     * in order, so that a later task can be run on the same blocks by the
+     * same workers.
+     *
+     * @param workers Workers, one per thread
+     * @param name Name of the task for logging
+     * @param sameBlocks Whether each worker processes the blocks it took in
+     * the previous task
+     * @param task The task
+     */
+    private void runParallel(final DocumentWorker[] workers, final String name,
+            final boolean sameBlocks, final DocumentTask task) {
+        final AtomicInteger nextBlock = new AtomicInteger(0);
+        final int stepsize = MiscUtils.getRoundStepSize(D, 10);
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (final DocumentWorker worker : workers) {
+            if (!sameBlocks) {
+                worker.blocks.clear();
+            }
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    int numBlocks = 0;
+                    while (true) {
+                        int start;
+                        if (sameBlocks) {
+                            if (numBlocks == worker.blocks.size()) {
+                                break;
+                            }
+                            start = worker.blocks.get(numBlocks++);
+                        } else {
+                            start = nextBlock.getAndAdd(BLOCK_SIZE);
+                            if (start >= D) {
+                                break;
+                            }
+                            worker.blocks.add(start);
+                        }
+                        int end = Math.min(D, start + BLOCK_SIZE);
+                        for (int d = start; d < end; d++) {
+                            if (verbose && d % stepsize == 0) {
+                                System.out.println("--- " + name + " doc # " + d + " / " + D);
+                            }
+                            task.process(d, worker);
+                        }
+                    }
+                }
+            });
+        }
+
+        if (tasks.size() == 1) { // no need for the pool
+            tasks.get(0).run();
+        } else {
+            AbstractSampler.runTasks(tasks);
+        }
+    }
+
+    /**
+     * A task performed on each document.
+     */
+    private static interface DocumentTask {
+
+        public void process(int d, DocumentWorker worker);
+    }
+
+    /**
+     * Tools and counts owned by a single worker thread. Tokenizers, sentence
+     * detectors and stemmers are not thread-safe, so each worker has its own
+     * instances created from the shared models.
+     *
+     * Tokens are stored as ids of the terms seen by the worker, so that only
+     * one copy of each term string is kept, and counts are kept per id and
+     * merged into the global counts after each pass.
+     */
+    private class DocumentWorker {
+
+        final int index;
+        final Tokenizer workerTokenizer;
+        final SentenceDetector sentenceDetector;
+        final Stemmer workerStemmer;
+        final TIntArrayList blocks = new TIntArrayList(); // blocks taken in the last task
+        TokenSpill tokenSpill; // ids of the normalized tokens of each document
+        TokenSpill termSpill; // ids of the terms of each document after merging bigrams
+        TokenSpill numericSpill; // numeric sentences of each processed document
+        TokenSpill rawSentenceSpill; // sentences segmented from the raw texts
+        // terms seen by this worker, indexed by their local ids
+        final TObjectIntHashMap<String> termIds = new TObjectIntHashMap<String>(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        final ArrayList<String> terms = new ArrayList<String>();
+        // raw counts
+        TIntIntHashMap termFreq = new TIntIntHashMap();
+        TIntIntHashMap docFreq = new TIntIntHashMap();
+        TIntIntHashMap leftFreq = new TIntIntHashMap();
+        TIntIntHashMap rightFreq = new TIntIntHashMap();
+        TObjectIntHashMap<String> bigramFreq = new TObjectIntHashMap<String>();
+        int totalBigram = 0;
+        // counts after merging bigrams
+        final TIntIntHashMap finalTermFreq = new TIntIntHashMap();
+        final TIntIntHashMap finalDocFreq = new TIntIntHashMap();
+
+        DocumentWorker(int index) {
+            this.index = index;
+            if (index == 0) { // reuse the tools of the processor
+                this.workerTokenizer = tokenizer;
+                this.sentenceDetector = CorpusProcessor.this.sentenceDetector;
+                this.workerStemmer = stemmer;
+            } else {
+                this.workerTokenizer = new TokenizerME(tokenizerModel);
+                this.sentenceDetector = sentenceModel == null ? null
+                        : new SentenceDetectorME(sentenceModel);
+                this.workerStemmer = new Stemmer();
+            }
+        }
+
+        void createOutputSpills() {
+            numericSpill = new TokenSpill();
+            if (rawSentences == null) {
+                rawSentenceSpill = new TokenSpill();
+            }
+        }
+
+        /**
+         * Return the sentences of a document. If only the raw texts are
+         * given, the text is segmented and the sentences are written to the
+         * raw sentence spill.
+         *
+         * @param d Document index
+         */
+        String[] getSentences(int d) {
+            if (rawSentences != null) {
+                return rawSentences[d];
+            }
+            String[] sents = sentenceDetector.sentDetect(rawTexts[d]);
+            rawSentenceSpill.writeStrings(sents);
+            return sents;
+        }
+
+        String[][] normalizeTokens(String[] docRawSentences) {
+            String[][] normText = new String[docRawSentences.length][];
+            for (int s = 0; s < docRawSentences.length; s++) {
+                String[] sentTokens = workerTokenizer.tokenize(docRawSentences[s].toLowerCase());
+                normText[s] = new String[sentTokens.length];
+                for (int t = 0; t < sentTokens.length; t++) {
+                    normText[s][t] = normalize(sentTokens[t], workerStemmer);
+                }
+            }
+            return normText;
+        }
+
+        /**
+         * Tokenize a document and count unigrams and bigrams.
+         *
+         * @return Ids of the normalized tokens of each sentence, -1 for tokens
+         * that are filtered out
+         */
+        int[][] countTokens(String[] docRawSentences) {
+            String[][] normText = normalizeTokens(docRawSentences);
+            int[][] docTokens = new int[normText.length][];
+            TIntHashSet uniqueDocTokens = new TIntHashSet();
+            for (int s = 0; s < normText.length; s++) {
+                String[] sentTokens = normText[s];
+                docTokens[s] = new int[sentTokens.length];
+                for (int t = 0; t < sentTokens.length; t++) {
+                    String normToken = sentTokens[t];
+                    if (normToken.isEmpty()) {
+                        docTokens[s][t] = -1;
                         continue;
                     }
-                    numericDoc.add(numericTerm);
-                    numericSent.add(numericTerm);
+                    int id = getTermId(normToken);
+                    docTokens[s][t] = id;
+                    termFreq.adjustOrPutValue(id, 1, 1);
+                    uniqueDocTokens.add(id);
+
+                    if (t - 1 >= 0 && docTokens[s][t - 1] >= 0) {
+                        leftFreq.adjustOrPutValue(docTokens[s][t - 1], 1, 1);
+                        rightFreq.adjustOrPutValue(id, 1, 1);
+                        bigramFreq.adjustOrPutValue(getBigramString(sentTokens[t - 1], normToken), 1, 1);
+                        totalBigram++;
+                    }
                 }
+            }
+            TIntIterator iterator = uniqueDocTokens.iterator();
+            while (iterator.hasNext()) {
+                docFreq.adjustOrPutValue(iterator.next(), 1, 1);
+            }
+            return docTokens;
+        }
 
-                this.numericSentences[d][s] = new int[numericSent.size()];
-                for (int i = 0; i < numericSent.size(); i++) {
-                    this.numericSentences[d][s][i] = numericSent.get(i);
+        /**
+         * Merge bigrams in a tokenized document.
+         *
+         * @param docTokens Ids of the normalized tokens of each sentence
+         * @param vocab Set of bigrams to be merged
+         * @return Ids of the terms of each sentence
+         */
+        int[][] mergeBigrams(int[][] docTokens, Set<String> vocab) {
+            int[][] docTerms = new int[docTokens.length][];
+            TIntHashSet docUniqueTerms = new TIntHashSet();
+            for (int s = 0; s < docTokens.length; s++) {
+                int[] sentTokens = docTokens[s];
+                TIntArrayList tokens = new TIntArrayList();
+                for (int i = 0; i < sentTokens.length; i++) {
+                    if (sentTokens[i] < 0) {
+                        continue;
+                    }
+                    String curToken = terms.get(sentTokens[i]);
+                    if (i + 1 < sentTokens.length && sentTokens[i + 1] >= 0) {
+                        String bigram = getBigramString(curToken, terms.get(sentTokens[i + 1]));
+                        if (!vocab.contains(bigram)) {
+                            // if the bigram is not in the vocab, add the current
+                            // unigram and move on to the next unigram
+                            if (CorpusProcessor.this.termFreq.get(curToken) < unigramCountCutoff) {
+                                continue;
+                            }
+                            tokens.add(sentTokens[i]);
+                            continue;
+                        }
+                        tokens.add(getTermId(bigram));
+                        i++;
+                    } else {
+                        if (CorpusProcessor.this.termFreq.get(curToken) < unigramCountCutoff) {
+                            continue;
+                        }
+                        tokens.add(sentTokens[i]);
+                    }
                 }
+                docTerms[s] = tokens.toArray();
+                for (int ii = 0; ii < docTerms[s].length; ii++) {
+                    finalTermFreq.adjustOrPutValue(docTerms[s][ii], 1, 1);
+                }
+                // union
+                docUniqueTerms.addAll(docTerms[s]);
+            }
+            // update document frequencies
+            TIntIterator iterator = docUniqueTerms.iterator();
+            while (iterator.hasNext()) {
+                finalDocFreq.adjustOrPutValue(iterator.next(), 1, 1);
+            }
+            return docTerms;
+        }
+
+        void deleteSpills() {
+            if (tokenSpill != null) {
+                tokenSpill.delete();
+                tokenSpill = null;
+            }
+            if (termSpill != null) {
+                termSpill.delete();
+                termSpill = null;
+            }
+            if (numericSpill != null) {
+                numericSpill.delete();
+                numericSpill = null;
             }
-            this.numericDocs[d] = new int[numericDoc.size()];
-            for (int i = 0; i < numericDoc.size(); i++) {
-                this.numericDocs[d][i] = numericDoc.get(i);
+            if (rawSentenceSpill != null) {
+                rawSentenceSpill.delete();
+                rawSentenceSpill = null;
+            }
+        }
+
+        int getTermId(String term) {
+            int id = termIds.get(term);
+            if (id < 0) {
+                id = terms.size();
+                termIds.put(term, id);
+                terms.add(term);
+            }
+            return id;
+        }
+
+        /**
+         * Add the raw counts of this worker to the global counts, and release
+         * them.
+         */
+        void mergeRawCounts() {
+            mergeCounts(CorpusProcessor.this.termFreq, termFreq);
+            mergeCounts(CorpusProcessor.this.docFreq, docFreq);
+            mergeCounts(CorpusProcessor.this.leftFreq, leftFreq);
+            mergeCounts(CorpusProcessor.this.rightFreq, rightFreq);
+            TObjectIntIterator<String> iterator = bigramFreq.iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                Integer count = CorpusProcessor.this.bigramFreq.get(iterator.key());
+                CorpusProcessor.this.bigramFreq.put(iterator.key(),
+                        count == null ? iterator.value() : count + iterator.value());
+            }
+            CorpusProcessor.this.totalBigram += totalBigram;
+
+            termFreq = null;
+            docFreq = null;
+            leftFreq = null;
+            rightFreq = null;
+            bigramFreq = null;
+        }
+
+        /**
+         * Add counts of terms of this worker to the global counts.
+         */
+        void mergeCounts(HashMap<String, Integer> counts, TIntIntHashMap workerCounts) {
+            TIntIntIterator iterator = workerCounts.iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                String term = terms.get(iterator.key());
+                Integer count = counts.get(term);
+                counts.put(term, count == null ? iterator.value() : count + iterator.value());
             }
         }
     }
 
+    /**
+     * Temporary file storing the token ids, or the raw sentences, of the
+     * documents processed by a worker. Documents are written in the order they
+     * are processed and read back in the same order, since a worker processes
+     * the same blocks in the same order in every pass.
+     */
+    private static class TokenSpill {
+
+        private final File file;
+        private DataOutputStream writer;
+        private DataInputStream reader;
+
+        TokenSpill() {
+            try {
+                this.file = File.createTempFile("corpus-", ".tokens");
+                this.file.deleteOnExit();
+                this.writer = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while creating temporary token file");
+            }
+        }
+
+        void write(int[][] docTokens) {
+            try {
+                writer.writeInt(docTokens.length);
+                for (int[] sentTokens : docTokens) {
+                    writer.writeInt(sentTokens.length);
+                    for (int token : sentTokens) {
+                        writer.writeInt(token);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while writing to " + file);
+            }
+        }
+
+        void writeStrings(String[] strings) {
+            try {
+                writer.writeInt(strings.length);
+                for (String string : strings) {
+                    byte[] bytes = string.getBytes("UTF-8");
+                    writer.writeInt(bytes.length);
+                    writer.write(bytes);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while writing to " + file);
+            }
+        }
+
+        /**
+         * Finish writing. Documents can be read after this.
+         */
+        void finishWriting() {
+            try {
+                writer.close();
+                writer = null;
+                reader = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while closing " + file);
+            }
+        }
+
+        /**
+         * Read the documents again from the first one.
+         */
+        void rewind() {
+            try {
+                reader.close();
+                reader = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while reopening " + file);
+            }
+        }
+
+        String[] readStrings() {
+            try {
+                String[] strings = new String[reader.readInt()];
+                for (int ii = 0; ii < strings.length; ii++) {
+                    byte[] bytes = new byte[reader.readInt()];
+                    reader.readFully(bytes);
+                    strings[ii] = new String(bytes, "UTF-8");
+                }
+                return strings;
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while reading from " + file);
+            }
+        }
+
+        int[][] read() {
+            try {
+                int[][] docTokens = new int[reader.readInt()][];
+                for (int s = 0; s < docTokens.length; s++) {
+                    docTokens[s] = new int[reader.readInt()];
+                    for (int t = 0; t < docTokens[s].length; t++) {
+                        docTokens[s][t] = reader.readInt();
+                    }
+                }
+                return docTokens;
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while reading from " + file);
+            }
+        }
+
+        void delete() {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+        }
+    }
+
     protected double scoreBigram(String[] bigramTokens) {
         String left = bigramTokens[0];
         String right = bigramTokens[1];
@@ -678,7 +1291,9 @@ public class CorpusProcessor {
 
         HashMap<Integer, Integer> numericTermFreq = new HashMap<Integer, Integer>();
         HashMap<Integer, Integer> numericDocFreq = new HashMap<Integer, Integer>();
-        for (int[] numericDoc : this.numericDocs) {
+        DocumentReader reader = openDocuments();
+        while (reader.next()) {
+            int[] numericDoc = reader.getNumericDocument();
             Set<Integer> docTerms = new HashSet<Integer>();
             for (int i = 0; i < numericDoc.length; i++) {
                 int term = numericDoc[i];
@@ -704,7 +1319,7 @@ public class CorpusProcessor {
             int rawTf = numericTermFreq.get(ii);
             double tf = Math.log(rawTf + 1);
             int df = numericDocFreq.get(ii);
-            double idf = (Math.log(numericDocs.length) - Math.log(df));
+            double idf = (Math.log(D) - Math.log(df));
             double tfidf = tf * idf;
             rankItems.add(new RankingItem<Integer>(ii, tfidf));
         }
@@ -717,7 +1332,7 @@ public class CorpusProcessor {
             int rawTf = numericTermFreq.get(item.getObject());
             double tf = Math.log(rawTf + 1);
             int df = numericDocFreq.get(item.getObject());
-            double idf = (Math.log(numericDocs.length) - Math.log(df));
+            double idf = (Math.log(D) - Math.log(df));
             double tfidf = tf * idf;
             writer.write(vocabulary.get(item.getObject())
                     + "\t" + rawTf
@@ -747,21 +1362,25 @@ public class CorpusProcessor {
      * @return The normalize token
      */
     public String normalize(String token) {
+        return normalize(token, this.stemmer);
+    }
+
+    private String normalize(String token, Stemmer tokenStemmer) {
         StringBuilder normToken = new StringBuilder();
         token = token.toLowerCase();
         for (int i = 0; i < token.length(); i++) {
-            Matcher m = p.matcher(token.substring(i, i + 1));
-            if (!m.matches()) {
-                normToken.append(token.substring(i, i + 1));
+            char c = token.charAt(i);
+            if (PUNCTUATIONS.indexOf(c) < 0) {
+                normToken.append(c);
             }
         }
         String reduced = normToken.toString();
         if (lemmatization) {
-            reduced = this.stemmer.stem(reduced);
+            reduced = tokenStemmer.stem(reduced);
         }
 
         if (reduced.length() < minWordLength
-                || token.matches("[^A-Za-z]+")
+                || nonLetterPattern.matcher(token).matches()
                 || Character.isDigit(token.charAt(0))) {
             return "";
         }
@@ -112,7 +112,7 @@ public class LabelTextDataset extends TextDataset {
      * @param labVoc The given set of labels
      */
     public void filterLabels(ArrayList<String> labVoc) {
-        int D = words.length;
+        int D = getNumDocuments();
         this.labelVocab = labVoc;
 
         int[][] filterLabels = new int[D][];
@@ -141,7 +141,7 @@ public class LabelTextDataset extends TextDataset {
      * @param minLabelFreq Minimum frequency
      */
     public void filterLabelsByFrequency(int minLabelFreq) {
-        int D = words.length;
+        int D = getNumDocuments();
         int L = labelVocab.size();
         int[] labelFreqs = new int[L];
         for (int dd = 0; dd < D; dd++) {
@@ -474,7 +474,7 @@ public class LabelTextDataset extends TextDataset {
 
             // words
             SparseCount count = new SparseCount();
-            for (int w : words[dd]) {
+            for (int w : getDocumentWords(dd)) {
                 count.increment(w);
             }
             for (int idx : count.getIndices()) {
@@ -387,6 +387,7 @@ public class ResponseTextDataset extends TextDataset {
         }
         dataset.loadResponses(responseFile); // load response data
         dataset.setHasSentences(cmd.hasOption("sent"));
+        dataset.setBinaryFormat(cmd.hasOption("binary"));
         dataset.format(new File(dataset.getDatasetFolderPath(), formatFolder));
     }
 
@@ -32,13 +32,15 @@ public class TextDataset extends AbstractTokenizeDataset {
     protected ArrayList<Integer> processedDocIndices; // list of document ids after pre-processing
     protected ArrayList<String> wordVocab;
     protected String[] docIds;
-    protected int[][] words;
-    protected int[][][] sentWords;
+    protected int[][] words; // copied from binaryCorpus on first use if loaded from binary format
+    protected int[][][] sentWords; // same as words
     protected String[][] sentRawWords;
     protected MimnoTopicCoherence topicCoherence;
     protected double[] tfidfs;
     protected double[] idfs;
     protected boolean sent = false; // output/input sentences
+    protected boolean binary = false; // output numeric data in binary format
+    protected BinaryCorpus binaryCorpus; // non-null if loaded from binary format
 
     public TextDataset(String name) {
         super(name);
@@ -69,19 +71,64 @@ public class TextDataset extends AbstractTokenizeDataset {
         this.sent = sent;
     }
 
+    /**
+     * Set whether the numeric document and sentence data are output in the
+     * binary format (see {@link BinaryCorpus}) instead of the LDA-C format.
+     *
+     * @param binary
+     */
+    public void setBinaryFormat(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Return the memory-mapped corpus if the data were loaded from the binary
+     * format, or null otherwise. Samplers that read documents from the corpus
+     * directly (e.g., through a TokenStore) avoid copying it to the heap.
+     */
+    public BinaryCorpus getBinaryCorpus() {
+        return this.binaryCorpus;
+    }
+
+    /**
+     * Return the number of documents without copying the tokens of a binary
+     * corpus.
+     */
+    public int getNumDocuments() {
+        if (words == null && binaryCorpus != null) {
+            return binaryCorpus.getNumDocuments();
+        }
+        return words.length;
+    }
+
+    /**
+     * Return the tokens of a document. If the data were loaded from the binary
+     * format and getWords() has not been called, this reads the document from
+     * the mapped corpus.
+     *
+     * @param d Document index
+     */
+    public int[] getDocumentWords(int d) {
+        if (words == null && binaryCorpus != null) {
+            return binaryCorpus.getDocument(d);
+        }
+        return words[d];
+    }
+
     /**
      * Compute the TF-IDF score of each item in the vocabulary.
      */
     public void computeTFIDFs() {
         int V = this.wordVocab.size();
-        int D = this.words.length;
+        int D = getNumDocuments();
         SparseCount tfs = new SparseCount();
         SparseCount dfs = new SparseCount();
         for (int d = 0; d < D; d++) {
+            int[] docWords = getDocumentWords(d);
             Set<Integer> uniqueWords = new HashSet<Integer>();
-            for (int n = 0; n < words[d].length; n++) {
-                uniqueWords.add(words[d][n]);
-                tfs.increment(words[d][n]);
+            for (int n = 0; n < docWords.length; n++) {
+                uniqueWords.add(docWords[n]);
+                tfs.increment(docWords[n]);
             }
 
             for (int w : uniqueWords) {
@@ -120,7 +167,7 @@ public class TextDataset extends AbstractTokenizeDataset {
     }
 
     public void prepareTopicCoherence(int numTopWords) {
-        this.topicCoherence = new MimnoTopicCoherence(words, wordVocab.size(), numTopWords);
+        this.topicCoherence = new MimnoTopicCoherence(getWords(), wordVocab.size(), numTopWords);
         this.topicCoherence.prepare();
     }
 
@@ -128,7 +175,15 @@ public class TextDataset extends AbstractTokenizeDataset {
         return this.topicCoherence;
     }
 
+    /**
+     * Return the tokens of each sentence of all documents. If the data were
+     * loaded from the binary format, they are copied from the mapped corpus
+     * on the first call.
+     */
     public int[][][] getSentenceWords() {
+        if (sentWords == null && binaryCorpus != null && binaryCorpus.hasSentences()) {
+            sentWords = binaryCorpus.getSentenceWords();
+        }
         return this.sentWords;
     }
 
@@ -140,7 +195,11 @@ public class TextDataset extends AbstractTokenizeDataset {
         int[][][] revSentWords = new int[instances.size()][][];
         for (int i = 0; i < revSentWords.length; i++) {
             int idx = instances.get(i);
-            revSentWords[i] = this.sentWords[idx];
+            if (sentWords == null && binaryCorpus != null) {
+                revSentWords[i] = binaryCorpus.getDocumentSentences(idx);
+            } else {
+                revSentWords[i] = this.sentWords[idx];
+            }
         }
         return revSentWords;
     }
@@ -149,7 +208,7 @@ public class TextDataset extends AbstractTokenizeDataset {
         int[][] revWords = new int[instances.size()][];
         for (int i = 0; i < revWords.length; i++) {
             int idx = instances.get(i);
-            revWords[i] = this.words[idx];
+            revWords[i] = getDocumentWords(idx);
         }
         return revWords;
     }
@@ -280,9 +339,13 @@ public class TextDataset extends AbstractTokenizeDataset {
         corpProc.process();
 
         outputWordVocab(outputFolder);
-        outputTextData(outputFolder);
+        if (binary) {
+            outputBinaryData(outputFolder);
+        } else {
+            outputTextData(outputFolder);
+        }
         outputDocumentInfo(outputFolder);
-        if (sent) {
+        if (sent && !binary) {
             outputSentTextData(outputFolder);
         }
     }
@@ -315,18 +378,11 @@ public class TextDataset extends AbstractTokenizeDataset {
         }
 
         // output main numeric
-        int[][] numDocs = corpProc.getNumerics();
+        CorpusProcessor.DocumentReader reader = corpProc.openDocuments();
         BufferedWriter dataWriter = IOUtils.getBufferedWriter(outputFile);
-        for (int d = 0; d < numDocs.length; d++) {
-            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
-            for (int j = 0; j < numDocs[d].length; j++) {
-                Integer count = typeCounts.get(numDocs[d][j]);
-                if (count == null) {
-                    typeCounts.put(numDocs[d][j], 1);
-                } else {
-                    typeCounts.put(numDocs[d][j], count + 1);
-                }
-            }
+        while (reader.next()) {
+            int d = reader.getDocumentIndex();
+            HashMap<Integer, Integer> typeCounts = getTypeCounts(reader.getNumericDocument());
 
             // skip short documents
             if (typeCounts.size() < corpProc.docTypeCountCutoff) {
@@ -346,6 +402,111 @@ public class TextDataset extends AbstractTokenizeDataset {
         dataWriter.close();
     }
 
+    /**
+     * Output the formatted document data, and sentence data if needed, in the
+     * binary format. Tokens are stored in the same order as they would be
+     * after loading the LDA-C-formatted data, so that both formats give the
+     * same dataset.
+     *
+     * @param outputFolder Output folder
+     * @throws java.lang.Exception
+     */
+    protected void outputBinaryData(String outputFolder) throws Exception {
+        File outputFile = new File(outputFolder, formatFilename + binaryDataExt);
+        if (verbose) {
+            logln("--- Outputing binary data ... " + outputFile);
+        }
+
+        BinaryCorpus.Writer corpusWriter = new BinaryCorpus.Writer(outputFile, sent);
+        BufferedWriter rawSentWriter = null;
+        try {
+            if (sent) {
+                rawSentWriter = IOUtils.getBufferedWriter(
+                        new File(outputFolder, formatFilename + numSentDataExt + ".raw"));
+            }
+            CorpusProcessor.DocumentReader reader = corpProc.openDocuments();
+            while (reader.next()) {
+                int d = reader.getDocumentIndex();
+                HashMap<Integer, Integer> typeCounts = getTypeCounts(reader.getNumericDocument());
+
+                // skip short documents
+                if (typeCounts.size() < corpProc.docTypeCountCutoff) {
+                    continue;
+                }
+
+                int[][] docSentWords = null;
+                if (sent) {
+                    int[][] numSents = reader.getNumericSentences();
+                    String[] rawSents = reader.getRawSentences();
+                    ArrayList<int[]> docSents = new ArrayList<int[]>();
+                    ArrayList<String> docRawSents = new ArrayList<String>();
+                    for (int s = 0; s < numSents.length; s++) {
+                        HashMap<Integer, Integer> sentTypeCounts = getTypeCounts(numSents[s]);
+                        if (sentTypeCounts.size() > 0) {
+                            docSents.add(getGibbsString(sentTypeCounts));
+                            docRawSents.add(rawSents[s]);
+                        }
+                    }
+                    docSentWords = docSents.toArray(new int[docSents.size()][]);
+
+                    // write raw sentence
+                    rawSentWriter.write(docRawSents.size() + "\n");
+                    for (String docRawSent : docRawSents) {
+                        rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+                    }
+                }
+                corpusWriter.add(getGibbsString(typeCounts), docSentWords);
+
+                // save the doc id
+                this.processedDocIndices.add(d);
+            }
+        } finally {
+            if (rawSentWriter != null) {
+                rawSentWriter.close();
+            }
+            corpusWriter.close();
+        }
+    }
+
+    /**
+     * Count the number of tokens of each type.
+     *
+     * @param tokens List of tokens
+     */
+    protected static HashMap<Integer, Integer> getTypeCounts(int[] tokens) {
+        HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+        for (int token : tokens) {
+            Integer count = typeCounts.get(token);
+            if (count == null) {
+                typeCounts.put(token, 1);
+            } else {
+                typeCounts.put(token, count + 1);
+            }
+        }
+        return typeCounts;
+    }
+
+    /**
+     * Convert type counts into a Gibbs-formatted string.
+     *
+     * @param typeCounts Number of tokens of each type
+     */
+    protected static int[] getGibbsString(HashMap<Integer, Integer> typeCounts) {
+        int numTokens = 0;
+        for (int count : typeCounts.values()) {
+            numTokens += count;
+        }
+        int[] gibbsString = new int[numTokens];
+        int index = 0;
+        for (int type : typeCounts.keySet()) {
+            int count = typeCounts.get(type);
+            for (int jj = 0; jj < count; ++jj) {
+                gibbsString[index++] = type;
+            }
+        }
+        return gibbsString;
+    }
+
     /**
      * Output the formatted data.
      *
@@ -358,22 +519,27 @@ public class TextDataset extends AbstractTokenizeDataset {
             logln("--- Outputing sentence data ... " + outputFile);
         }
 
-        int[][][] numSents = corpProc.getNumericSentences();
-        String[][] rawSents = corpProc.getRawSentences();
+        CorpusProcessor.DocumentReader reader = corpProc.openDocuments();
         BufferedWriter rawSentWriter = IOUtils.getBufferedWriter(outputFile + ".raw");
         BufferedWriter sentWriter = IOUtils.getBufferedWriter(outputFile);
         for (int d : this.processedDocIndices) {
+            // processed documents are in increasing order of their indices
+            do {
+                reader.next();
+            } while (reader.getDocumentIndex() < d);
+            int[][] numSents = reader.getNumericSentences();
+            String[] rawSents = reader.getRawSentences();
             StringBuilder docStr = new StringBuilder();
             ArrayList<String> docRawSents = new ArrayList<String>();
 
-            for (int s = 0; s < numSents[d].length; s++) {
+            for (int s = 0; s < numSents.length; s++) {
                 HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
-                for (int w = 0; w < numSents[d][s].length; w++) {
-                    Integer count = sentTypeCounts.get(numSents[d][s][w]);
+                for (int w = 0; w < numSents[s].length; w++) {
+                    Integer count = sentTypeCounts.get(numSents[s][w]);
                     if (count == null) {
-                        sentTypeCounts.put(numSents[d][s][w], 1);
+                        sentTypeCounts.put(numSents[s][w], 1);
                     } else {
-                        sentTypeCounts.put(numSents[d][s][w], count + 1);
+                        sentTypeCounts.put(numSents[s][w], count + 1);
                     }
                 }
 
@@ -386,7 +552,7 @@ public class TextDataset extends AbstractTokenizeDataset {
                     docStr.append(str.toString().trim()).append("\t");
 
                     // store raw sentence
-                    docRawSents.add(rawSents[d][s]);
+                    docRawSents.add(rawSents[s]);
                 }
             }
             // write numeric sentence
@@ -419,7 +585,14 @@ public class TextDataset extends AbstractTokenizeDataset {
         return docIds;
     }
 
+    /**
+     * Return the tokens of all documents. If the data were loaded from the
+     * binary format, they are copied from the mapped corpus on the first call.
+     */
     public int[][] getWords() {
+        if (words == null && binaryCorpus != null) {
+            words = binaryCorpus.getWords();
+        }
         return this.words;
     }
 
@@ -431,6 +604,14 @@ public class TextDataset extends AbstractTokenizeDataset {
         if (verbose) {
             logln("--- Loading formatted data from " + fFolder);
         }
+        File binaryFile = new File(fFolder, formatFilename + binaryDataExt);
+        if (binaryFile.exists()) {
+            loadBinaryFormattedData(new File(fFolder, formatFilename + wordVocabExt),
+                    binaryFile,
+                    new File(fFolder, formatFilename + docInfoExt),
+                    new File(fFolder, formatFilename + numSentDataExt + ".raw"));
+            return;
+        }
         loadFormattedData(new File(fFolder, formatFilename + wordVocabExt),
                 new File(fFolder, formatFilename + numDocDataExt),
                 new File(fFolder, formatFilename + docInfoExt),
@@ -472,6 +653,59 @@ public class TextDataset extends AbstractTokenizeDataset {
         }
     }
 
+    /**
+     * Load data formatted in the binary format.
+     *
+     * @param wordVocabFile File contains the word vocabulary
+     * @param binaryFile Binary file contains document (and sentence) tokens
+     * @param docInfoFile File contains document info
+     * @param rawSentFile (Optional) File contains raw sentences
+     */
+    public void loadBinaryFormattedData(File wordVocabFile,
+            File binaryFile,
+            File docInfoFile,
+            File rawSentFile) {
+        if (verbose) {
+            logln("--- Loading binary formatted data ...");
+            logln("--- --- Binary file: " + binaryFile);
+            logln("--- --- Info file: " + docInfoFile);
+            logln("--- --- Word vocab file: " + wordVocabFile);
+        }
+
+        try {
+            inputWordVocab(wordVocabFile);
+            inputBinaryData(binaryFile);
+            inputDocumentInfo(docInfoFile);
+            if (binaryCorpus.hasSentences() && rawSentFile != null
+                    && rawSentFile.exists()) {
+                inputRawSentenceTextData(rawSentFile);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while loading binary formatted data");
+        }
+    }
+
+    protected void inputBinaryData(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading binary data from " + file);
+        }
+
+        // tokens stay in the mapped file until getWords() or
+        // getSentenceWords() is called
+        binaryCorpus = BinaryCorpus.open(file);
+        words = null;
+        sentWords = null;
+
+        if (verbose) {
+            logln("--- --- # docs: " + binaryCorpus.getNumDocuments());
+            logln("--- --- # tokens: " + binaryCorpus.getNumTokens());
+            if (binaryCorpus.hasSentences()) {
+                logln("--- --- # sents: " + binaryCorpus.getNumSentences());
+            }
+        }
+    }
+
     protected void inputWordVocab(File file) throws Exception {
         if (verbose) {
             logln("--- Loading word vocab from " + file);
@@ -646,38 +880,46 @@ public class TextDataset extends AbstractTokenizeDataset {
 
         File rawSentFile = new File(file + ".raw");
         if (rawSentFile.exists()) {
-            if (verbose) {
-                logln("--- Reading sentence raw text data from " + rawSentFile);
-            }
-            try {
-                sentRawWords = new String[sentWords.length][];
-                int count = 0;
-                BufferedReader rawSentReader = IOUtils.getBufferedReader(rawSentFile);
-                while ((line = rawSentReader.readLine()) != null) {
-                    int numSents = Integer.parseInt(line);
-                    String[] docRawSents = new String[numSents];
-                    for (int ii = 0; ii < numSents; ii++) {
-                        docRawSents[ii] = rawSentReader.readLine();
-                    }
-                    sentRawWords[count++] = docRawSents;
+            inputRawSentenceTextData(rawSentFile);
+        }
+    }
+
+    /**
+     * Load raw sentences.
+     *
+     * @param rawSentFile Raw sentence file
+     */
+    protected void inputRawSentenceTextData(File rawSentFile) {
+        if (verbose) {
+            logln("--- Reading sentence raw text data from " + rawSentFile);
+        }
+        try {
+            String line;
+            sentRawWords = new String[getNumDocuments()][];
+            int count = 0;
+            BufferedReader rawSentReader = IOUtils.getBufferedReader(rawSentFile);
+            while ((line = rawSentReader.readLine()) != null) {
+                int numSents = Integer.parseInt(line);
+                String[] docRawSents = new String[numSents];
+                for (int ii = 0; ii < numSents; ii++) {
+                    docRawSents[ii] = rawSentReader.readLine();
                 }
-                rawSentReader.close();
+                sentRawWords[count++] = docRawSents;
+            }
+            rawSentReader.close();
 
-                if (verbose) {
-                    logln("--- --- # docs: " + sentRawWords.length);
-                    int numSents = 0;
-                    for (String[] sentRawWord : sentRawWords) {
-                        numSents += sentRawWord.length;
-                    }
-                    logln("--- --- # sents: " + numSents);
+            if (verbose) {
+                logln("--- --- # docs: " + sentRawWords.length);
+                int numSents = 0;
+                for (String[] sentRawWord : sentRawWords) {
+                    numSents += sentRawWord.length;
                 }
-            } catch (IOException | NumberFormatException e) {
-                e.printStackTrace();
-                System.out.println("Exception while loading raw sentences from "
-                        + rawSentFile);
-            } finally {
-                return;
+                logln("--- --- # sents: " + numSents);
             }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            System.out.println("Exception while loading raw sentences from "
+                    + rawSentFile);
         }
     }
 
@@ -687,6 +929,8 @@ public class TextDataset extends AbstractTokenizeDataset {
      * @param minSentTokenCount Number of tokens that a sentence must have
      */
     public void filterShortSentences(int minSentTokenCount) {
+        getWords();
+        getSentenceWords();
         if (words == null) {
             throw new RuntimeException("Empty documents");
         }
@@ -877,7 +1121,9 @@ public class TextDataset extends AbstractTokenizeDataset {
         addOption("min-df", "Document frequency minimum cutoff");
         addOption("max-df", "Document frequency maximum cutoff");
         addOption("min-doc-length", "Document minimum length");
+        addOption("num-threads", "Number of threads used to process documents");
         options.addOption("sent", false, "Whether sentences are outputed");
+        options.addOption("binary", false, "Whether numeric data are outputed in binary format");
         options.addOption("s", false, "Whether stopwords are filtered");
         options.addOption("l", false, "Whether lemmatization is performed");
     }
@@ -908,6 +1154,7 @@ public class TextDataset extends AbstractTokenizeDataset {
                 docTypeCountCutoff,
                 stopwordFilter,
                 lemmatization);
+        corpProc.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
         // If the word vocab file is given, use it. This is usually for the case
         // where training data have been processed and now test data are processed
         // using the word vocab from the training data.
@@ -979,6 +1226,7 @@ public class TextDataset extends AbstractTokenizeDataset {
             throw new RuntimeException(textInputData + " is neither a file nor a folder");
         }
         dataset.setHasSentences(cmd.hasOption("sent"));
+        dataset.setBinaryFormat(cmd.hasOption("binary"));
         dataset.format(new File(dataset.getDatasetFolderPath(), formatFolder));
     }
 }
@@ -0,0 +1,273 @@
+package data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Out-of-core storage of the tokens of a corpus and their (topic) assignments.
+ *
+ * Word ids are read from a memory-mapped {@link BinaryCorpus} and assignments
+ * are stored in a separate memory-mapped file of one int per token, laid out in
+ * the same order as the token column of the corpus. The assignment file starts
+ * with a header (magic number, version, number of tokens, number of possible
+ * values) which is checked when the file is reopened. Neither is kept on heap;
+ * samplers iterate over documents in chunks, where only the tokens and
+ * assignments of the documents in the current chunk are copied into a
+ * {@link Chunk} and the updated assignments are written back afterward. The
+ * operating system pages the files in and out as needed.
+ *
+ * @author vietan
+ */
+public class TokenStore {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 22; // # tokens
+    public static final int MAGIC = 0x53475441; // "SGTA"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 3 * 4 + 8;
+    private final BinaryCorpus corpus;
+    private final File assignmentFile;
+    private final int numValues;
+    private final BinaryCorpus.MappedColumn assignments;
+    private final int chunkSize;
+
+    /**
+     * A range of consecutive documents whose tokens and assignments are on
+     * heap.
+     */
+    public static class Chunk {
+
+        private int docStart;
+        private int docEnd;
+        private int[] docOffsets; // [#docs + 1]: start of each doc in words/zs
+        private int[] words;
+        private int[] zs;
+
+        public Chunk() {
+            this.docOffsets = new int[0];
+            this.words = new int[0];
+            this.zs = new int[0];
+        }
+
+        /**
+         * Index of the first document in the chunk.
+         */
+        public int getDocumentStart() {
+            return this.docStart;
+        }
+
+        /**
+         * Index of the document right after the last one in the chunk.
+         */
+        public int getDocumentEnd() {
+            return this.docEnd;
+        }
+
+        /**
+         * Start of a document in the token arrays.
+         *
+         * @param d Document index (in the corpus)
+         */
+        public int getTokenStart(int d) {
+            return this.docOffsets[d - docStart];
+        }
+
+        /**
+         * End (exclusive) of a document in the token arrays.
+         *
+         * @param d Document index (in the corpus)
+         */
+        public int getTokenEnd(int d) {
+            return this.docOffsets[d - docStart + 1];
+        }
+
+        public int getNumTokens() {
+            return this.docOffsets[docEnd - docStart];
+        }
+
+        /**
+         * Word ids of all tokens in the chunk.
+         */
+        public int[] getWords() {
+            return this.words;
+        }
+
+        /**
+         * Assignments of all tokens in the chunk. Changes are only stored
+         * after the chunk is written back.
+         */
+        public int[] getAssignments() {
+            return this.zs;
+        }
+    }
+
+    private TokenStore(BinaryCorpus corpus, File assignmentFile, int numValues,
+            BinaryCorpus.MappedColumn assignments, int chunkSize) {
+        this.corpus = corpus;
+        this.assignmentFile = assignmentFile;
+        this.numValues = numValues;
+        this.assignments = assignments;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Open a token store. If the assignment file does not exist or is empty,
+     * it is created with all assignments set to 0. Otherwise, its header must
+     * match the corpus and the number of possible values.
+     *
+     * @param corpus The corpus
+     * @param assignmentFile File that stores the assignments
+     * @param numValues Number of possible values of an assignment (e.g., the
+     * number of topics)
+     * @param chunkSize Maximum number of tokens per chunk. A chunk always has
+     * at least one document.
+     */
+    public static TokenStore open(BinaryCorpus corpus, File assignmentFile,
+            int numValues, int chunkSize) throws IOException {
+        long numTokens = corpus.getNumTokens();
+        long numBytes = HEADER_SIZE + 4L * numTokens;
+        RandomAccessFile raf = new RandomAccessFile(assignmentFile, "rw");
+        try {
+            if (raf.length() == 0) {
+                raf.setLength(numBytes);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(numTokens);
+                raf.writeInt(numValues);
+            } else {
+                if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) {
+                    throw new RuntimeException(assignmentFile
+                            + " is not an assignment file");
+                }
+                int version = raf.readInt();
+                if (version != VERSION) {
+                    throw new RuntimeException("Unsupported assignment file version "
+                            + version + " in " + assignmentFile);
+                }
+                long fileNumTokens = raf.readLong();
+                int fileNumValues = raf.readInt();
+                if (fileNumTokens != numTokens) {
+                    throw new RuntimeException("Mismatch. " + assignmentFile
+                            + " has " + fileNumTokens + " tokens. Corpus "
+                            + corpus.getFile() + " has " + numTokens + " tokens");
+                }
+                if (fileNumValues != numValues) {
+                    throw new RuntimeException("Mismatch. " + assignmentFile
+                            + " has " + fileNumValues + " values. Expected "
+                            + numValues);
+                }
+                if (raf.length() != numBytes) {
+                    throw new RuntimeException("Corrupted assignment file "
+                            + assignmentFile + ". Expected " + numBytes
+                            + " bytes. Found " + raf.length());
+                }
+            }
+            BinaryCorpus.MappedColumn assignments = new BinaryCorpus.MappedColumn(
+                    raf.getChannel(), FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE, numTokens, 4);
+            return new TokenStore(corpus, assignmentFile, numValues, assignments,
+                    chunkSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static TokenStore open(BinaryCorpus corpus, File assignmentFile,
+            int numValues) throws IOException {
+        return open(corpus, assignmentFile, numValues, DEFAULT_CHUNK_SIZE);
+    }
+
+    public BinaryCorpus getCorpus() {
+        return this.corpus;
+    }
+
+    public File getAssignmentFile() {
+        return this.assignmentFile;
+    }
+
+    /**
+     * Number of possible values of an assignment.
+     */
+    public int getNumValues() {
+        return this.numValues;
+    }
+
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    public int getNumDocuments() {
+        return this.corpus.getNumDocuments();
+    }
+
+    public long getNumTokens() {
+        return this.corpus.getNumTokens();
+    }
+
+    /**
+     * Load the next chunk of documents, starting at a given document.
+     *
+     * @param docStart Index of the first document
+     * @param chunk Chunk to be filled. Its buffers are reused when possible.
+     * @return The same chunk
+     */
+    public Chunk readChunk(int docStart, Chunk chunk) {
+        int D = corpus.getNumDocuments();
+        int docEnd = docStart;
+        long numTokens = 0;
+        while (docEnd < D) {
+            int length = corpus.getDocumentLength(docEnd);
+            if (docEnd > docStart && numTokens + length > chunkSize) {
+                break;
+            }
+            numTokens += length;
+            docEnd++;
+        }
+        if (numTokens > Integer.MAX_VALUE) {
+            throw new RuntimeException("Document " + docStart + " is too long. "
+                    + numTokens + " tokens");
+        }
+
+        int numDocs = docEnd - docStart;
+        if (chunk.docOffsets.length < numDocs + 1) {
+            chunk.docOffsets = new int[numDocs + 1];
+        }
+        if (chunk.words.length < numTokens) {
+            chunk.words = new int[(int) numTokens];
+            chunk.zs = new int[(int) numTokens];
+        }
+        chunk.docStart = docStart;
+        chunk.docEnd = docEnd;
+        chunk.docOffsets[0] = 0;
+        for (int ii = 0; ii < numDocs; ii++) {
+            chunk.docOffsets[ii + 1] = chunk.docOffsets[ii]
+                    + corpus.getDocumentLength(docStart + ii);
+        }
+        if (numDocs > 0) {
+            corpus.copyTokens(docStart, chunk.words, 0, (int) numTokens);
+            assignments.copyInts(corpus.getDocumentOffset(docStart),
+                    chunk.zs, 0, (int) numTokens);
+        }
+        return chunk;
+    }
+
+    /**
+     * Store the assignments of a chunk.
+     *
+     * @param chunk The chunk
+     */
+    public void writeChunk(Chunk chunk) {
+        if (chunk.docEnd > chunk.docStart) {
+            assignments.putInts(corpus.getDocumentOffset(chunk.docStart),
+                    chunk.zs, 0, chunk.getNumTokens());
+        }
+    }
+
+    /**
+     * Flush the assignments to the file.
+     */
+    public void flush() {
+        assignments.force();
+    }
+}
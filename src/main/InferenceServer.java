@@ -0,0 +1,429 @@
+package main;
+
+import core.AbstractRunner;
+import core.AbstractSampler;
+import core.StateReader;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.Options;
+import sampling.likelihood.DirMult;
+import sampling.util.FrozenTopicWords;
+import util.CLIUtils;
+import util.IOUtils;
+import util.SamplerUtils;
+
+/**
+ * Long-lived server that infers the topic (or label) distributions of new
+ * documents using a trained LDA or LabeledLDA model.
+ *
+ * The model is loaded once from a state file and its topic-word
+ * probabilities are frozen. The server then reads one document per line from
+ * the standard input and writes its distribution on one line to the standard
+ * output. A document is a space-separated list of word indices, or of words
+ * if a vocabulary file is given (unknown words are ignored). The
+ * distribution is estimated by Gibbs sampling the topic assignments of the
+ * document for a given number of iterations and averaging the document-topic
+ * distributions after burn-in. The random number generator is reseeded for
+ * each document, so the same document always gets the same distribution.
+ *
+ * The line "#stats" returns the number of documents served and percentiles of
+ * the time spent on a document (parsing, sampling and formatting, in
+ * microseconds), which are also printed to the standard error at the end of
+ * the input.
+ *
+ * @author vietan
+ */
+public class InferenceServer extends AbstractRunner {
+
+    public static final String STATS_COMMAND = "#stats";
+    // number of most recent latencies used to compute the percentiles
+    public static final int NUM_RECORDED_LATENCIES = 1 << 16;
+    private final FrozenTopicWords phis;
+    private final int K;
+    private final int V;
+    private final double alpha;
+    private final int numIters;
+    private final int burnIn;
+    private final long seed;
+    private final Random rand;
+    private HashMap<String, Integer> wordIndices;
+    // buffers reused across documents
+    private int[] docWords;
+    private int[] z;
+    private final int[] docCounts;
+    private final double[] probs;
+    private final double[] distribution;
+    // latencies in nanoseconds
+    private final long[] latencies;
+    private long numDocuments;
+
+    /**
+     * @param topicWords Topic-word distributions of the trained model
+     * @param alpha Hyperparameter of the symmetric Dirichlet prior for topic
+     * distributions
+     * @param numIters Number of sampling iterations per document
+     * @param burnIn Number of iterations before the distribution is averaged
+     * @param seed Seed of the random number generator
+     */
+    public InferenceServer(DirMult[] topicWords, double alpha,
+            int numIters, int burnIn, long seed) {
+        this.phis = new FrozenTopicWords(topicWords);
+        this.K = phis.getNumTopics();
+        this.V = phis.getVocabSize();
+        this.alpha = alpha;
+        this.numIters = numIters;
+        this.burnIn = burnIn;
+        this.seed = seed;
+        this.rand = new Random(seed);
+        this.docWords = new int[64];
+        this.z = new int[64];
+        this.docCounts = new int[K];
+        this.probs = new double[K];
+        this.distribution = new double[K];
+        this.latencies = new long[NUM_RECORDED_LATENCIES];
+    }
+
+    /**
+     * Set the vocabulary used to map the words of input documents to indices.
+     *
+     * @param vocab The word vocabulary of the model
+     */
+    public void setWordVocab(ArrayList<String> vocab) {
+        if (vocab.size() != V) {
+            throw new RuntimeException("Vocabulary size mismatched. "
+                    + vocab.size() + " vs. " + V);
+        }
+        this.wordIndices = new HashMap<String, Integer>();
+        for (int v = 0; v < vocab.size(); v++) {
+            this.wordIndices.put(vocab.get(v), v);
+        }
+    }
+
+    public int getNumTopics() {
+        return this.K;
+    }
+
+    /**
+     * Load the topic-word distributions from a state file of LDA (in text or
+     * binary format) or LabeledLDA.
+     *
+     * @param stateFile The state file
+     */
+    public static DirMult[] inputTopicWords(String stateFile) {
+        try {
+            ArrayList<DirMult> topicWords = new ArrayList<DirMult>();
+            if (StateReader.isBinaryState(stateFile)) {
+                StateReader reader = new StateReader(stateFile);
+                try {
+                    int numTopics = reader.readInt();
+                    for (int k = 0; k < numTopics; k++) {
+                        topicWords.add(reader.readDirMult());
+                    }
+                } finally {
+                    reader.close();
+                }
+            } else {
+                String filename = IOUtils.removeExtension(IOUtils.getFilename(stateFile));
+                BufferedReader reader = IOUtils.getBufferedReader(stateFile,
+                        filename + AbstractSampler.ModelFileExt);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int topicIdx = Integer.parseInt(line);
+                    if (topicIdx != topicWords.size()) {
+                        throw new RuntimeException("Indices mismatch when loading model");
+                    }
+                    topicWords.add(DirMult.input(reader.readLine()));
+                }
+                reader.close();
+            }
+            return topicWords.toArray(new DirMult[topicWords.size()]);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while inputing model from "
+                    + stateFile);
+        }
+    }
+
+    /**
+     * Infer the topic distribution of a document.
+     *
+     * @param words Word indices of the document
+     * @param length Number of words
+     * @param dist Array of at least K elements to store the distribution
+     */
+    public void infer(int[] words, int length, double[] dist) {
+        if (z.length < length) {
+            z = new int[Math.max(length, 2 * z.length)];
+        }
+        rand.setSeed(seed);
+        Arrays.fill(docCounts, 0);
+        Arrays.fill(dist, 0, K, 0.0);
+
+        // initialize assignments
+        for (int n = 0; n < length; n++) {
+            z[n] = sample(words[n]);
+            docCounts[z[n]]++;
+        }
+
+        int numSamples = 0;
+        for (int iter = 0; iter < numIters; iter++) {
+            for (int n = 0; n < length; n++) {
+                docCounts[z[n]]--;
+                z[n] = sample(words[n]);
+                docCounts[z[n]]++;
+            }
+            if (iter >= burnIn) {
+                addDistribution(length, dist);
+                numSamples++;
+            }
+        }
+        if (numSamples == 0) { // use the last assignments
+            addDistribution(length, dist);
+            numSamples++;
+        }
+        for (int k = 0; k < K; k++) {
+            dist[k] /= numSamples;
+        }
+    }
+
+    /**
+     * Sample the topic of a token, storing the cumulative unnormalized
+     * probabilities in probs so that a single pass is needed before the draw.
+     */
+    private int sample(int w) {
+        phis.getProbabilities(w, probs);
+        double sum = 0.0;
+        for (int k = 0; k < K; k++) {
+            sum += probs[k] * (docCounts[k] + alpha);
+            probs[k] = sum;
+        }
+        double randValue = rand.nextDouble() * sum;
+        for (int k = 0; k < K - 1; k++) {
+            if (randValue < probs[k]) {
+                return k;
+            }
+        }
+        return K - 1;
+    }
+
+    private void addDistribution(int length, double[] dist) {
+        double denom = length + K * alpha;
+        for (int k = 0; k < K; k++) {
+            dist[k] += (docCounts[k] + alpha) / denom;
+        }
+    }
+
+    /**
+     * Parse a document, infer its distribution and format the response.
+     *
+     * @param line The document
+     * @param numTops Number of top topics to output. If this is not positive,
+     * the probabilities of all topics are output.
+     */
+    public String process(String line, int numTops) {
+        int length = parse(line);
+        infer(docWords, length, distribution);
+
+        StringBuilder str = new StringBuilder();
+        if (numTops <= 0) {
+            for (int k = 0; k < K; k++) {
+                if (k > 0) {
+                    str.append(' ');
+                }
+                str.append((float) distribution[k]);
+            }
+        } else {
+            Integer[] topics = new Integer[K];
+            for (int k = 0; k < K; k++) {
+                topics[k] = k;
+            }
+            Arrays.sort(topics, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer k1, Integer k2) {
+                    return Double.compare(distribution[k2], distribution[k1]);
+                }
+            });
+            for (int ii = 0; ii < Math.min(numTops, K); ii++) {
+                if (ii > 0) {
+                    str.append(' ');
+                }
+                str.append(topics[ii]).append(':').append((float) distribution[topics[ii]]);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Parse a line into word indices stored in docWords.
+     *
+     * @return The number of words
+     */
+    private int parse(String line) {
+        int length = 0;
+        int pos = 0;
+        while (pos < line.length()) {
+            while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            int start = pos;
+            while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) {
+                break;
+            }
+            int w;
+            if (wordIndices != null) {
+                Integer index = wordIndices.get(line.substring(start, pos));
+                if (index == null) { // unknown word
+                    continue;
+                }
+                w = index;
+            } else {
+                w = Integer.parseInt(line.substring(start, pos));
+                if (w < 0 || w >= V) {
+                    throw new RuntimeException("Word index out of range: " + w);
+                }
+            }
+            if (length == docWords.length) {
+                docWords = Arrays.copyOf(docWords, 2 * length);
+            }
+            docWords[length++] = w;
+        }
+        return length;
+    }
+
+    public void recordLatency(long nanos) {
+        latencies[(int) (numDocuments % NUM_RECORDED_LATENCIES)] = nanos;
+        numDocuments++;
+    }
+
+    /**
+     * Return a percentile of the recorded latencies in microseconds.
+     *
+     * @param sorted Recorded latencies, sorted
+     * @param p Percentile between 0 and 100
+     */
+    private static double getPercentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        index = Math.max(0, Math.min(sorted.length - 1, index));
+        return sorted[index] / 1000.0;
+    }
+
+    /**
+     * Return the number of documents served and the percentiles of the most
+     * recent latencies.
+     */
+    public String getLatencySummary() {
+        int numRecorded = (int) Math.min(numDocuments, NUM_RECORDED_LATENCIES);
+        long[] sorted = Arrays.copyOf(latencies, numRecorded);
+        Arrays.sort(sorted);
+        return "n=" + numDocuments
+                + " p50=" + getPercentile(sorted, 50)
+                + " p90=" + getPercentile(sorted, 90)
+                + " p99=" + getPercentile(sorted, 99)
+                + " p99.9=" + getPercentile(sorted, 99.9)
+                + " max=" + getPercentile(sorted, 100)
+                + " (us)";
+    }
+
+    /**
+     * Serve documents until the end of the input.
+     *
+     * @param in Input documents, one per line
+     * @param out Output distributions, one per line
+     * @param numTops Number of top topics to output per document
+     */
+    public void serve(BufferedReader in, PrintWriter out, int numTops) throws Exception {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().equals(STATS_COMMAND)) {
+                out.println(STATS_COMMAND + " " + getLatencySummary());
+                out.flush();
+                continue;
+            }
+            long sTime = System.nanoTime();
+            String response;
+            try {
+                response = process(line, numTops);
+            } catch (RuntimeException e) {
+                response = "ERROR " + e.getMessage();
+            }
+            recordLatency(System.nanoTime() - sTime);
+            out.println(response);
+            out.flush();
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            // create the command line parser
+            parser = new BasicParser();
+
+            // create the Options
+            options = new Options();
+
+            addOption("model", "State file (.zip) of a trained LDA or LabeledLDA model");
+            addOption("vocab", "Word vocabulary file. If given, documents are "
+                    + "words instead of word indices");
+            addOption("alpha", "Hyperparameter of the symmetric Dirichlet prior "
+                    + "for topic distributions. Default 0.1.");
+            addOption("iters", "Number of sampling iterations per document. Default 20.");
+            addOption("burn-in", "Number of burn-in iterations per document. "
+                    + "Default half of the iterations.");
+            addOption("top", "Number of top topics to output per document. "
+                    + "Default 0 (all topics).");
+            addOption("seed", "Random seed");
+            options.addOption("help", false, "Help");
+
+            cmd = parser.parse(options, args);
+            if (cmd.hasOption("help") || !cmd.hasOption("model")) {
+                CLIUtils.printHelp("java -cp 'dist/segan.jar:dist/lib/*' "
+                        + "main.InferenceServer -help", options);
+                return;
+            }
+
+            serve();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void serve() throws Exception {
+        String modelFile = cmd.getOptionValue("model");
+        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
+        int numIters = CLIUtils.getIntegerArgument(cmd, "iters", 20);
+        int burnIn = CLIUtils.getIntegerArgument(cmd, "burn-in", numIters / 2);
+        int numTops = CLIUtils.getIntegerArgument(cmd, "top", 0);
+        long seed = CLIUtils.getIntegerArgument(cmd, "seed", (int) SamplerUtils.RAND_SEED);
+
+        long sTime = System.currentTimeMillis();
+        InferenceServer server = new InferenceServer(inputTopicWords(modelFile),
+                alpha, numIters, burnIn, seed);
+        if (cmd.hasOption("vocab")) {
+            server.setWordVocab(IOUtils.loadVocab(cmd.getOptionValue("vocab")));
+        }
+        System.err.println("[LOG] Loaded " + server.getNumTopics() + " topics from "
+                + modelFile + " in " + (System.currentTimeMillis() - sTime) + " ms");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, "UTF-8")));
+        server.serve(in, out, numTops);
+        out.close();
+        System.err.println("[LOG] " + server.getLatencySummary());
+    }
+}
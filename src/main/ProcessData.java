@@ -46,6 +46,7 @@ public class ProcessData extends AbstractRunner {
             addOption("min-df", "Document frequency minimum cutoff");
             addOption("max-df", "Document frequency maximum cutoff");
             addOption("min-doc-length", "Document minimum length");
+            addOption("num-threads", "Number of threads used to process documents");
 
             addOption("L", "Maximum label vocab size");
             addOption("min-label-df", "Minimum count of raw labels");
@@ -103,6 +104,7 @@ public class ProcessData extends AbstractRunner {
                     docTypeCountCutoff,
                     stopwordFilter,
                     lemmatization);
+            corpProc.setNumThreads(CLIUtils.getIntegerArgument(cmd, "num-threads", 1));
 
             if (cmd.hasOption("response-file") && cmd.hasOption("label-file")) {
                 String responseFile = cmd.getOptionValue("response-file");
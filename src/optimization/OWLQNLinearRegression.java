@@ -80,6 +80,7 @@ public class OWLQNLinearRegression extends AbstractLinearModel {
         private final int N;
         private final int K;
         private final double l2;
+        private final ShardedObjective loss;
 
         public DiffFunc(SparseVector[] designMatrix, double[] values, double l2) {
             this.designMatrix = designMatrix;
@@ -91,6 +92,22 @@ public class OWLQNLinearRegression extends AbstractLinearModel {
             if (this.K <= 0) {
                 throw new RuntimeException("Number of features = " + this.K);
             }
+            this.loss = new ShardedObjective(N, K) {
+                @Override
+                protected double evaluate(int start, int end, double[] w,
+                        double[] grads) {
+                    double sumSquare = 0.0;
+                    for (int n = start; n < end; n++) {
+                        SparseVector designVec = DiffFunc.this.designMatrix[n];
+                        double diff = DiffFunc.this.values[n] - designVec.dotProduct(w);
+                        sumSquare += diff * diff;
+                        for (int ii = 0; ii < designVec.size(); ii++) {
+                            grads[designVec.getIndexAt(ii)] -= 2 * diff * designVec.getValueAt(ii);
+                        }
+                    }
+                    return sumSquare;
+                }
+            };
         }
 
         @Override
@@ -101,12 +118,7 @@ public class OWLQNLinearRegression extends AbstractLinearModel {
         @Override
         public double[] derivativeAt(double[] w) {
             double[] grads = new double[K];
-            for (int n = 0; n < N; n++) {
-                double dotprod = dotprod(designMatrix[n], w);
-                for (int k : this.designMatrix[n].getIndices()) {
-                    grads[k] -= 2 * (values[n] - dotprod) * designMatrix[n].get(k);
-                }
-            }
+            loss.getGradient(w, grads);
             if (l2 > 0) {
                 for (int k = 0; k < w.length; k++) {
                     grads[k] += 2 * l2 * w[k];
@@ -117,13 +129,7 @@ public class OWLQNLinearRegression extends AbstractLinearModel {
 
         @Override
         public double valueAt(double[] w) {
-            double loss = 0.0;
-            for (int n = 0; n < N; n++) {
-                double dotprod = dotprod(designMatrix[n], w);
-                double diff = values[n] - dotprod;
-                loss += diff * diff;
-            }
-            double val = loss;
+            double val = loss.getValue(w);
             if (l2 > 0) {
                 double reg = 0.0;
                 for (int ii = 0; ii < w.length; ii++) {
@@ -133,13 +139,5 @@ public class OWLQNLinearRegression extends AbstractLinearModel {
             }
             return val;
         }
-
-        private double dotprod(SparseVector designVec, double[] w) {
-            double dotprod = 0.0;
-            for (int k : designVec.getIndices()) {
-                dotprod += w[k] * designVec.get(k);
-            }
-            return dotprod;
-        }
     }
 }
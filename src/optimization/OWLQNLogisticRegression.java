@@ -81,6 +81,7 @@ public class OWLQNLogisticRegression extends AbstractLinearModel {
         private final int N;
         private final int K;
         private final double l2;
+        private final ShardedObjective loss;
 
         public DiffFunc(SparseVector[] designMatrix, int[] values, double l2) {
             this.designMatrix = designMatrix;
@@ -92,6 +93,26 @@ public class OWLQNLogisticRegression extends AbstractLinearModel {
             if (this.K <= 0) {
                 throw new RuntimeException("Number of features = " + this.K);
             }
+            this.loss = new ShardedObjective(N, K) {
+                @Override
+                protected double evaluate(int start, int end, double[] w,
+                        double[] grads) {
+                    double llh = 0.0;
+                    for (int nn = start; nn < end; nn++) {
+                        SparseVector designVec = DiffFunc.this.designMatrix[nn];
+                        int value = DiffFunc.this.values[nn];
+                        double dotprod = designVec.dotProduct(w);
+                        double expDotprod = Math.exp(dotprod);
+                        llh -= value * dotprod - Math.log(expDotprod + 1);
+                        double pred = expDotprod / (expDotprod + 1);
+                        for (int ii = 0; ii < designVec.size(); ii++) {
+                            grads[designVec.getIndexAt(ii)] -= (value - pred)
+                                    * designVec.getValueAt(ii);
+                        }
+                    }
+                    return llh;
+                }
+            };
         }
 
         @Override
@@ -101,13 +122,7 @@ public class OWLQNLogisticRegression extends AbstractLinearModel {
 
         @Override
         public double valueAt(double[] w) {
-            double llh = 0.0;
-            for (int nn = 0; nn < N; nn++) {
-                double dotProb = designMatrix[nn].dotProduct(w);
-                llh -= values[nn] * dotProb - Math.log(Math.exp(dotProb) + 1);
-            }
-
-            double val = llh;
+            double val = loss.getValue(w);
             if (l2 > 0) {
                 double reg = 0.0;
                 for (int ii = 0; ii < w.length; ii++) {
@@ -121,14 +136,7 @@ public class OWLQNLogisticRegression extends AbstractLinearModel {
         @Override
         public double[] derivativeAt(double[] w) {
             double[] grads = new double[K];
-            for (int nn = 0; nn < N; nn++) {
-                double dotprod = designMatrix[nn].dotProduct(w);
-                double expDotprod = Math.exp(dotprod);
-                double pred = expDotprod / (expDotprod + 1);
-                for (int kk = 0; kk < K; kk++) {
-                    grads[kk] -= (values[nn] - pred) * designMatrix[nn].get(kk);
-                }
-            }
+            loss.getGradient(w, grads);
             if (l2 > 0) {
                 for (int kk = 0; kk < w.length; kk++) {
                     grads[kk] += 2 * l2 * w[kk];
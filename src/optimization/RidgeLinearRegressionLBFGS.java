@@ -21,6 +21,7 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
     private final double mu;
     private final double sigmaSquare;
     private final double[] sigmaSquares;
+    private final ShardedObjective residuals; // sum of squared residuals
 
     public RidgeLinearRegressionLBFGS(double[] values,
             double[] params,
@@ -38,6 +39,7 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
         this.mu = mu;
         this.sigmaSquare = sigma * sigma;
         this.sigmaSquares = null;
+        this.residuals = createResiduals();
     }
 
     public RidgeLinearRegressionLBFGS(double[] values,
@@ -59,6 +61,7 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
         for (int ii = 0; ii < this.sigmaSquares.length; ii++) {
             this.sigmaSquares[ii] = sigmas[ii] * sigmas[ii];
         }
+        this.residuals = createResiduals();
     }
 
     public RidgeLinearRegressionLBFGS(ArrayList<Double> values,
@@ -85,6 +88,30 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
         for (int ii = 0; ii < this.sigmaSquares.length; ii++) {
             this.sigmaSquares[ii] = sigmas[ii] * sigmas[ii];
         }
+        this.residuals = createResiduals();
+    }
+
+    /**
+     * Sum of squared residuals and its gradient (up to a factor of -2) over
+     * all instances, evaluated in parallel over shards of instances.
+     */
+    private ShardedObjective createResiduals() {
+        return new ShardedObjective(N, K) {
+            @Override
+            protected double evaluate(int start, int end, double[] point,
+                    double[] gradient) {
+                double sumSquare = 0.0;
+                for (int n = start; n < end; n++) {
+                    SparseVector designVec = designMatrix[n];
+                    double diff = values[n] - designVec.dotProduct(point);
+                    sumSquare += diff * diff;
+                    for (int ii = 0; ii < designVec.size(); ii++) {
+                        gradient[designVec.getIndexAt(ii)] += diff * designVec.getValueAt(ii);
+                    }
+                }
+                return sumSquare;
+            }
+        };
     }
 
     public double getMu(int k) {
@@ -100,13 +127,7 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
 
     @Override
     public double getValue() {
-        double llh = 0.0;
-        for (int n = 0; n < N; n++) {
-            double dotprod = dotprod(n);
-            double diff = values[n] - dotprod;
-            llh += diff * diff;
-        }
-        llh /= (-2 * rhoSquare * N);
+        double llh = residuals.getValue(params) / (-2 * rhoSquare * N);
 
         double lprior = 0.0;
         for (int k = 0; k < K; k++) {
@@ -120,13 +141,9 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
     @Override
     public void getValueGradient(double[] gradient) {
         double[] llhGrad = new double[K];
-        for (int n = 0; n < N; n++) {
-            double dotprod = dotprod(n);
-            for (int k : this.designMatrix[n].getIndices()) {
-                double grad = (values[n] - dotprod) * designMatrix[n].get(k)
-                        / (rhoSquare * N);
-                llhGrad[k] += grad;
-            }
+        residuals.getGradient(params, llhGrad);
+        for (int k = 0; k < K; k++) {
+            llhGrad[k] /= rhoSquare * N;
         }
 
         double[] lpGrad = new double[K];
@@ -139,14 +156,6 @@ public class RidgeLinearRegressionLBFGS implements Optimizable.ByGradientValue {
         }
     }
 
-    private double dotprod(int n) {
-        double dotprod = 0.0;
-        for (int k : designMatrix[n].getIndices()) {
-            dotprod += params[k] * designMatrix[n].get(k);
-        }
-        return dotprod;
-    }
-
     @Override
     public int getNumParameters() {
         return this.K;
@@ -0,0 +1,139 @@
+package optimization;
+
+import core.AbstractSampler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Objective function that is a sum over rows (e.g., instances of a design
+ * matrix), evaluated in parallel on shards of consecutive rows.
+ *
+ * The rows are split into shards whose boundaries only depend on the number
+ * of rows, each shard computes its partial value and gradient, and the
+ * partial results are added in shard order. The result is therefore the same
+ * regardless of the number of threads. Shards run on the shared worker pool
+ * of AbstractSampler, or on the calling thread if the pool has a single
+ * thread or there is a single shard.
+ *
+ * Optimizers usually ask for the value and the gradient at the same point
+ * one after the other, so both are computed together and kept until the
+ * point changes.
+ *
+ * @author vietan
+ */
+public abstract class ShardedObjective {
+
+    public static final int MIN_SHARD_SIZE = 1024;
+    public static final int MAX_NUM_SHARDS = 64;
+    private final int numRows;
+    private final int dim;
+    private final int shardSize;
+    private final int numShards;
+    private final double[][] shardGradients;
+    private final double[] shardValues;
+    private double[] lastPoint;
+    private double lastValue;
+    private final double[] lastGradient;
+
+    /**
+     * @param numRows Number of rows
+     * @param dim Dimension of the gradient
+     */
+    public ShardedObjective(int numRows, int dim) {
+        this.numRows = numRows;
+        this.dim = dim;
+        this.shardSize = Math.max(MIN_SHARD_SIZE,
+                (numRows + MAX_NUM_SHARDS - 1) / MAX_NUM_SHARDS);
+        this.numShards = Math.max(1, (numRows + shardSize - 1) / shardSize);
+        this.shardValues = new double[numShards];
+        this.shardGradients = new double[numShards][dim];
+        this.lastGradient = new double[dim];
+    }
+
+    /**
+     * Compute the partial value and gradient of rows in [start, end).
+     *
+     * @param start First row
+     * @param end Row after the last row
+     * @param point The point at which the objective is evaluated
+     * @param gradient Zero-initialized array to which the partial gradient is
+     * added
+     * @return The partial value
+     */
+    protected abstract double evaluate(int start, int end, double[] point,
+            double[] gradient);
+
+    public int getNumShards() {
+        return this.numShards;
+    }
+
+    /**
+     * Return the sum of the values of all rows.
+     *
+     * @param point The point
+     */
+    public synchronized double getValue(double[] point) {
+        update(point);
+        return lastValue;
+    }
+
+    /**
+     * Compute the sum of the gradients of all rows.
+     *
+     * @param point The point
+     * @param gradient Output array
+     */
+    public synchronized void getGradient(double[] point, double[] gradient) {
+        update(point);
+        System.arraycopy(lastGradient, 0, gradient, 0, dim);
+    }
+
+    private void update(final double[] point) {
+        if (lastPoint != null && Arrays.equals(lastPoint, point)) {
+            return;
+        }
+        ForkJoinPool pool = AbstractSampler.getWorkerPool();
+        if (numShards == 1 || pool.getParallelism() == 1) {
+            for (int ss = 0; ss < numShards; ss++) {
+                evaluateShard(ss, point);
+            }
+        } else {
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (int ss = 0; ss < numShards; ss++) {
+                final int shard = ss;
+                tasks.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        evaluateShard(shard, point);
+                        return null;
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+
+        // reduce in shard order
+        lastValue = 0.0;
+        Arrays.fill(lastGradient, 0.0);
+        for (int ss = 0; ss < numShards; ss++) {
+            lastValue += shardValues[ss];
+            double[] shardGradient = shardGradients[ss];
+            for (int kk = 0; kk < dim; kk++) {
+                lastGradient[kk] += shardGradient[kk];
+            }
+        }
+        lastPoint = Arrays.copyOf(point, point.length);
+    }
+
+    private void evaluateShard(int shard, double[] point) {
+        int start = shard * shardSize;
+        int end = Math.min(numRows, start + shardSize);
+        Arrays.fill(shardGradients[shard], 0.0);
+        shardValues[shard] = evaluate(start, end, point, shardGradients[shard]);
+    }
+}
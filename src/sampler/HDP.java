@@ -35,6 +35,8 @@ public class HDP extends AbstractSampler {
     private HDPDish emptyDish;
     private int numTokenAssignmentsChange;
     private int numTableAssignmentsChange;
+    private final SamplerUtils.CandidateBuffer tableCandidates = new SamplerUtils.CandidateBuffer();
+    private final SamplerUtils.CandidateBuffer dishCandidates = new SamplerUtils.CandidateBuffer();
 
     public void configure(String folder,
             int[][] words,
@@ -386,14 +388,8 @@ public class HDP extends AbstractSampler {
 //            System.out.println();
 //        }
 
-        HashMap<Integer, Double> dishLogPriors = getDishLogPriors();
-        HashMap<Integer, Double> dishLogLikelihoods = getDishLogLikelihoods(observations);
-
-        if (dishLogPriors.size() != dishLogLikelihoods.size()) {
-            throw new RuntimeException("Numbers of dishes mismatch");
-        }
-
-        int sampledDish = sampleDish(dishLogPriors, dishLogLikelihoods);
+        fillDishCandidates(observations);
+        int sampledDish = sampleDish();
         if (curDish != sampledDish) {
             numTableAssignmentsChange++;
         }
@@ -426,35 +422,21 @@ public class HDP extends AbstractSampler {
     }
 
     /**
-     * Sample a dish given precomputed log priors and log likelihoods
-     *
-     * @param dishLogPriors Precomputed log priors
-     * @param dishLogLikelihoods Precomputed log likelihoods
+     * Sample a dish given the log probabilities in dishCandidates, which are
+     * overwritten.
      */
-    private int sampleDish(
-            HashMap<Integer, Double> dishLogPriors,
-            HashMap<Integer, Double> dishLogLikelihoods) {
-        ArrayList<Integer> dishIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
-
-        for (int dishIndex : dishLogPriors.keySet()) {
-            dishIndices.add(dishIndex);
-            double logprob = dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex);
-            logprobs.add(logprob);
-        }
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
-
-        if (sampledIndex == logprobs.size()) {
-            for (int dishIndex : dishLogPriors.keySet()) {
-                logln(dishIndex
-                        + "\tlog prior: " + MiscUtils.formatDouble(dishLogPriors.get(dishIndex))
-                        + "\tlog likelihood: " + MiscUtils.formatDouble(dishLogLikelihoods.get(dishIndex))
-                        + "\ttotal = " + MiscUtils.formatDouble(dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex)));
+    private int sampleDish() {
+        int sampledIndex = dishCandidates.logMaxRescaleSample();
+
+        if (sampledIndex == dishCandidates.size()) {
+            for (int ii = 0; ii < dishCandidates.size(); ii++) {
+                logln(dishCandidates.getIndex(ii)
+                        + "\tweight: " + MiscUtils.formatDouble(dishCandidates.getValue(ii)));
             }
             throw new RuntimeException("Out-of-bound sampling");
         }
 
-        return dishIndices.get(sampledIndex);
+        return dishCandidates.getIndex(sampledIndex);
     }
 
     /**
@@ -472,32 +454,22 @@ public class HDP extends AbstractSampler {
             removeCustomerFromTable(d, curTableIndex, n);
         }
 
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
-
+        tableCandidates.clear();
         double normalizer = Math.log(this.localRestaurants[d].getTotalNumCustomers()
                 + hyperparams.get(ALPHA_LOCAL));
 
         // for existing tables
         for (HDPTable table : this.localRestaurants[d].getTables()) {
-            tableIndices.add(table.getIndex());
             double logprob = Math.log(table.getNumCustomers()) - normalizer
                     + table.getContent().getContent().getLogLikelihood(curObs);
-            logprobs.add(logprob);
+            tableCandidates.add(table.getIndex(), logprob);
         }
 
         // for new tables
-        tableIndices.add(PSEUDO_INDEX);
-        HashMap<Integer, Double> dishLogPriors = getDishLogPriors();
-        HashMap<Integer, Double> dishLogLikelihoods = getDishLogLikelihoods(curObs);
-
-        if (dishLogPriors.size() != dishLogLikelihoods.size()) {
-            throw new RuntimeException("Numbers of dishes mismatch");
-        }
-
+        fillDishCandidates(curObs);
         double marginalLogLikelihood = 0.0;
-        for (int dishIndex : dishLogPriors.keySet()) {
-            double lp = dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex);
+        for (int ii = 0; ii < dishCandidates.size(); ii++) {
+            double lp = dishCandidates.getValue(ii);
             if (marginalLogLikelihood == 0.0) {
                 marginalLogLikelihood = lp;
             } else {
@@ -506,11 +478,11 @@ public class HDP extends AbstractSampler {
         }
         double logprob = Math.log(hyperparams.get(ALPHA_LOCAL)) - normalizer
                 + marginalLogLikelihood;
-        logprobs.add(logprob);
+        tableCandidates.add(PSEUDO_INDEX, logprob);
 
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
-        int tableIndex = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIndex = tableCandidates.getIndex(sampledIndex);
 
         if (curTableIndex != tableIndex) {
             numTokenAssignmentsChange++;
@@ -519,7 +491,7 @@ public class HDP extends AbstractSampler {
         HDPTable table;
         if (tableIndex == PSEUDO_INDEX) {
             // sample dish
-            int sampledDish = sampleDish(dishLogPriors, dishLogLikelihoods);
+            int sampledDish = sampleDish();
             HDPDish dish;
             if (sampledDish == PSEUDO_INDEX) {
                 dish = createDish();
@@ -547,33 +519,40 @@ public class HDP extends AbstractSampler {
         }
     }
 
-    private HashMap<Integer, Double> getDishLogPriors() {
-        HashMap<Integer, Double> dishLogPriors = new HashMap<Integer, Double>();
+    /**
+     * Compute the log prior plus the log likelihood of a token for each dish
+     * (and a new dish) into dishCandidates.
+     *
+     * @param observation The token
+     */
+    private void fillDishCandidates(int observation) {
+        dishCandidates.clear();
         double normalizer = Math.log(this.globalRestaurant.getTotalNumCustomers()
                 + hyperparams.get(ALPHA_GLOBAL));
         for (HDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogPriors.put(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer);
-        }
-        dishLogPriors.put(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer);
-        return dishLogPriors;
-    }
-
-    private HashMap<Integer, Double> getDishLogLikelihoods(int observation) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
-        for (HDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observation));
+            dishCandidates.add(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observation));
         }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyDish.getContent().getLogLikelihood(observation));
-        return dishLogLikelihoods;
+        dishCandidates.add(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                + emptyDish.getContent().getLogLikelihood(observation));
     }
 
-    private HashMap<Integer, Double> getDishLogLikelihoods(HashMap<Integer, Integer> observations) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
+    /**
+     * Compute the log prior plus the log likelihood of a set of observations
+     * for each dish (and a new dish) into dishCandidates.
+     *
+     * @param observations The observations
+     */
+    private void fillDishCandidates(HashMap<Integer, Integer> observations) {
+        dishCandidates.clear();
+        double normalizer = Math.log(this.globalRestaurant.getTotalNumCustomers()
+                + hyperparams.get(ALPHA_GLOBAL));
         for (HDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observations));
+            dishCandidates.add(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observations));
         }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyDish.getContent().getLogLikelihood(observations));
-        return dishLogLikelihoods;
+        dishCandidates.add(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                + emptyDish.getContent().getLogLikelihood(observations));
     }
 
     @Override
@@ -10,6 +10,7 @@ import java.util.Collections;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.DirMult;
+import sampling.util.FrozenTopicWords;
 import sampling.util.SparseCount;
 import util.CLIUtils;
 import util.IOUtils;
@@ -37,6 +38,7 @@ public class LDA extends AbstractSampler {
     protected DirMult[] topic_words;
     protected int numTokens;
     protected int numTokensChanged;
+    private FrozenTopicWords frozenTopicWords; // loaded model at test time
 
     public void configure(LDA sampler) {
         this.configure(sampler.folder,
@@ -496,19 +498,32 @@ public class LDA extends AbstractSampler {
         }
     }
 
-    protected void sampleZ(int d, int ii, int n,
-            boolean removeFromData, boolean addToData) {
+    /**
+     * Sample the topic assignment of a token in a test document given the
+     * frozen topic-word distributions.
+     *
+     * @param d The document index
+     * @param ii The index of the token among the sampled tokens
+     * @param n The token index
+     * @param removeFromData Whether the token is removed from the document
+     * @param addToData Whether the token is added to the document
+     * @param probs Scratch array of at least K elements
+     */
+    private void sampleTestZ(int d, int ii, int n,
+            boolean removeFromData, boolean addToData, double[] probs) {
         if (removeFromData) {
             doc_topics[d].decrement(z[d][ii]);
         }
 
-        double[] probs = new double[K];
+        frozenTopicWords.getProbabilities(words[d][n], probs);
         for (int k = 0; k < K; k++) {
-            probs[k] = (doc_topics[d].getCount(k) + hyperparams.get(ALPHA))
-                    * (topic_words[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                    / (topic_words[k].getCountSum() + V * hyperparams.get(BETA));
+            probs[k] *= doc_topics[d].getCount(k) + hyperparams.get(ALPHA);
+        }
+        int sampledZ = SamplerUtils.scaleSample(probs, K);
+        if (sampledZ == K) {
+            throw new RuntimeException("Failed to sample topic of token "
+                    + n + " in document " + d);
         }
-        int sampledZ = SamplerUtils.scaleSample(probs);
         if (sampledZ != z[d][ii]) {
             numTokensChanged++;
         }
@@ -1047,6 +1062,7 @@ public class LDA extends AbstractSampler {
         }
 
         inputModel(stateFile);
+        frozenTopicWords = new FrozenTopicWords(topic_words);
 
         words = newWords;
         D = words.length;
@@ -1081,7 +1097,7 @@ public class LDA extends AbstractSampler {
             logln("--- Sampling on test data ...");
         }
 
-        double totalBeta = hyperparams.get(BETA) * V;
+        double[] probs = new double[K];
         ArrayList<double[][]> tokenProbsList = new ArrayList<double[][]>();
         for (iter = 0; iter < testMaxIter; iter++) {
             if (iter % testSampleLag == 0) {
@@ -1094,9 +1110,9 @@ public class LDA extends AbstractSampler {
                 for (int ii = 0; ii < trainIndices[d].size(); ii++) {
                     int n = trainIndices[d].get(ii);
                     if (iter == 0) {
-                        sampleZ(d, ii, n, !REMOVE, ADD);
+                        sampleTestZ(d, ii, n, !REMOVE, ADD, probs);
                     } else {
-                        sampleZ(d, ii, n, REMOVE, ADD);
+                        sampleTestZ(d, ii, n, REMOVE, ADD, probs);
                     }
                 }
             }
@@ -1114,11 +1130,10 @@ public class LDA extends AbstractSampler {
 
                     for (int i = 0; i < testIndices[d].size(); i++) {
                         int n = testIndices[d].get(i);
+                        frozenTopicWords.getProbabilities(words[d][n], probs);
                         double val = 0.0;
                         for (int k = 0; k < K; k++) {
-                            double phi = (topic_words[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                    / (topic_words[k].getCountSum() + totalBeta);
-                            val += theta[k] * phi;
+                            val += theta[k] * probs[k];
                         }
                         tokenProbs[d][i] += val;
                     }
@@ -1142,6 +1157,7 @@ public class LDA extends AbstractSampler {
         }
 
         inputModel(stateFile);
+        frozenTopicWords = new FrozenTopicWords(topic_words);
 
         words = newWords;
         D = words.length;
@@ -1176,6 +1192,7 @@ public class LDA extends AbstractSampler {
             logln("--- Sampling on test data ...");
         }
 
+        double[] probs = new double[K];
         BufferedWriter writer = IOUtils.getBufferedWriter(stateFile + ".perp");
         for (iter = 0; iter < testMaxIter; iter++) {
             if (iter % testSampleLag == 0) {
@@ -1188,9 +1205,9 @@ public class LDA extends AbstractSampler {
                 for (int ii = 0; ii < trainIndices[d].size(); ii++) {
                     int n = trainIndices[d].get(ii);
                     if (iter == 0) {
-                        sampleZ(d, ii, n, !REMOVE, ADD);
+                        sampleTestZ(d, ii, n, !REMOVE, ADD, probs);
                     } else {
-                        sampleZ(d, ii, n, REMOVE, ADD);
+                        sampleTestZ(d, ii, n, REMOVE, ADD, probs);
                     }
                 }
             }
@@ -1207,7 +1224,7 @@ public class LDA extends AbstractSampler {
     }
 
     private double computePerplexity(ArrayList<Integer>[] testIndices, String outFile) {
-        double totalBeta = hyperparams.get(BETA) * V;
+        double[] phis = new double[K];
         double totalLogprob = 0.0;
         int numTestTokens = 0;
         for (int d = 0; d < D; d++) {
@@ -1224,11 +1241,10 @@ public class LDA extends AbstractSampler {
 
                 double docLogProb = 0.0;
                 for (int n : testIndices[d]) {
+                    frozenTopicWords.getProbabilities(words[d][n], phis);
                     double val = 0.0;
                     for (int k = 0; k < K; k++) {
-                        double phi = (topic_words[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                / (topic_words[k].getCountSum() + totalBeta);
-                        val += docTheta[k] * phi;
+                        val += docTheta[k] * phis[k];
                     }
                     docLogProb += Math.log(val);
                 }
@@ -1258,6 +1274,7 @@ public class LDA extends AbstractSampler {
 
         // input model
         inputModel(stateFile);
+        frozenTopicWords = new FrozenTopicWords(topic_words);
 
         words = newWords;
         D = words.length;
@@ -1279,6 +1296,7 @@ public class LDA extends AbstractSampler {
         if (verbose) {
             logln("--- Sampling on test data ...");
         }
+        double[] probs = new double[K];
         BufferedWriter writer = IOUtils.getBufferedWriter(stateFile + ".perp1");
         for (iter = 0; iter < testMaxIter; iter++) {
             if (iter % testSampleLag == 0) {
@@ -1286,26 +1304,28 @@ public class LDA extends AbstractSampler {
                         + " @ thread " + Thread.currentThread().getId());
             }
 
-            if (iter == 0) {
-                sampleZs(!REMOVE, !ADD, !REMOVE, ADD);
-            } else {
-                sampleZs(!REMOVE, !ADD, REMOVE, ADD);
+            for (int d = 0; d < D; d++) {
+                for (int n = 0; n < words[d].length; n++) {
+                    if (iter == 0) {
+                        sampleTestZ(d, n, n, !REMOVE, ADD, probs);
+                    } else {
+                        sampleTestZ(d, n, n, REMOVE, ADD, probs);
+                    }
+                }
             }
 
             // compute perplexity
-            double totalBeta = hyperparams.get(BETA) * V;
             if (iter >= this.testBurnIn && iter % this.testSampleLag == 0) {
                 double totalLogprob = 0.0;
                 for (int d = 0; d < D; d++) {
                     double docLogProb = 0.0;
                     for (int n = 0; n < words[d].length; n++) {
+                        frozenTopicWords.getProbabilities(words[d][n], probs);
                         double val = 0.0;
                         for (int k = 0; k < K; k++) {
                             double theta = (doc_topics[d].getCount(k) + hyperparams.get(ALPHA))
                                     / (doc_topics[d].getCountSum() + hyperparams.get(ALPHA) * K);
-                            double phi = (topic_words[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                    / (topic_words[k].getCountSum() + totalBeta);
-                            val += theta * phi;
+                            val += theta * probs[k];
                         }
                         docLogProb += Math.log(val);
                     }
@@ -1459,7 +1479,7 @@ public class LDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPerplexityFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.endsWith("zip")) {
@@ -1473,12 +1493,11 @@ public class LDA extends AbstractSampler {
                         newWords, trainIndices, testIndices,
                         stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
             // summarize multiple perplexities
             String[] ppxFiles = iterPerplexityFolder.list();
@@ -1511,7 +1530,7 @@ public class LDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPerplexityFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.contains("zip")) {
@@ -1526,12 +1545,11 @@ public class LDA extends AbstractSampler {
                         newWords, trainIndices, testIndices,
                         stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
             // summarize multiple perplexities
             String[] ppxFiles = iterPerplexityFolder.list();
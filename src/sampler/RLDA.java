@@ -61,7 +61,7 @@ public class RLDA extends LDA {
         this.children.add(child);
     }
 
-    public int getNumTokens() {
+    public long getNumTokens() {
         return this.numTokens;
     }
 
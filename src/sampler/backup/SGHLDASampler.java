@@ -2597,7 +2597,6 @@ class SGHLDATable extends FullTable<String, SGHLDANode> {
         super(index, content);
         this.born = iter;
         this.restIndex = restId;
-        this.customers = new ArrayList<String>();
         this.stick = new TruncatedStickBreaking(numLevels, gemMean, gemScale);
         this.docLevelCounts = new HashMap<Integer, SparseCount>();
     }
@@ -2607,7 +2606,6 @@ class SGHLDATable extends FullTable<String, SGHLDANode> {
         super(index, content);
         this.born = iter;
         this.restIndex = restId;
-        this.customers = new ArrayList<String>();
         this.stick = stick;
         this.docLevelCounts = indCounts;
     }
@@ -8,9 +8,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.DirMult;
+import sampling.util.FrozenTopicWords;
+import sampling.util.ParallelDocumentInference;
+import sampling.util.ParallelTopicSweep;
+import sampling.util.ParallelTopicSweep.TopicWordView;
 import sampling.util.SparseCount;
 import util.CLIUtils;
 import util.IOUtils;
@@ -46,6 +51,11 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
     private ArrayList<String> labelVocab;
     private int numTokens;
     private int numTokensChange;
+    // approximate distributed sampling
+    private int numThreads = 1;
+    private int mergeInterval = -1;
+    private transient ParallelTopicSweep parallelSweep;
+    private transient FrozenTopicWords frozenLabelWords; // loaded model at test time
 
     public LabeledLDA() {
         this.basename = "L-LDA";
@@ -63,6 +73,21 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         return this.z;
     }
 
+    /**
+     * Sample training documents in parallel using approximate distributed
+     * Gibbs sampling (AD-LDA).
+     *
+     * @param numThreads Number of threads. Sequential sampling is used if this
+     * is 1.
+     * @param mergeInterval Number of documents each thread samples before
+     * the label-word counts are synchronized. If this is non-positive, counts
+     * are synchronized at the end of each sweep.
+     */
+    public void setParallelConfigurations(int numThreads, int mergeInterval) {
+        this.numThreads = numThreads;
+        this.mergeInterval = mergeInterval;
+    }
+
     public void configure(LabeledLDA sampler) {
         this.configure(sampler.folder,
                 sampler.V,
@@ -352,6 +377,12 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
      */
     public void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
+        if (numThreads > 1
+                && removeFromModel && addToModel
+                && removeFromData && addToData) {
+            sampleZsParallel();
+            return;
+        }
         double totalBeta = V * hyperparams.get(BETA);
         for (int d = 0; d < D; d++) {
             for (int n = 0; n < words[d].length; n++) {
@@ -397,6 +428,70 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         }
     }
 
+    /**
+     * Sample topic assignments for all tokens with documents sharded across
+     * threads (AD-LDA). Each thread sees the label-word counts at the last
+     * synchronization plus its own changes.
+     */
+    private void sampleZsParallel() {
+        if (parallelSweep == null
+                || parallelSweep.getNumThreads() != numThreads
+                || parallelSweep.getMergeInterval() != mergeInterval) {
+            parallelSweep = new ParallelTopicSweep(numThreads, mergeInterval, RAND_SEED);
+        }
+        numTokensChange += parallelSweep.sweep(labelWords, D,
+                new ParallelTopicSweep.DocumentSampler() {
+                    @Override
+                    public int sampleDocument(int d, TopicWordView view) {
+                        return sampleZs(d, view);
+                    }
+                });
+    }
+
+    /**
+     * Sample topic assignments for all tokens in a document using the
+     * label-word counts of a parallel worker.
+     *
+     * @param d The document index
+     * @param view The label-word counts seen by the worker
+     * @return Number of tokens whose assignments changed
+     */
+    private int sampleZs(int d, TopicWordView view) {
+        double alpha = hyperparams.get(ALPHA);
+        double beta = hyperparams.get(BETA);
+        double totalBeta = V * beta;
+        boolean isLabeled = labels != null && labels[d].length > 0;
+        int numCandidates = isLabeled ? labels[d].length : L;
+        double[] probs = view.getScratch(numCandidates);
+        int numChanges = 0;
+        for (int n = 0; n < words[d].length; n++) {
+            view.decrement(z[d][n], words[d][n]);
+            docLabels[d].decrement(z[d][n]);
+
+            for (int ii = 0; ii < numCandidates; ii++) {
+                int k = isLabeled ? labels[d][ii] : ii;
+                probs[ii] = (docLabels[d].getCount(k) + alpha)
+                        * (view.getCount(k, words[d][n]) + beta)
+                        / (view.getCountSum(k) + totalBeta);
+            }
+            int idx = SamplerUtils.scaleSample(probs, numCandidates, view.getRandom());
+            if (idx == numCandidates) {
+                throw new RuntimeException("Failed to sample label of token "
+                        + n + " in document " + d);
+            }
+            int sampledZ = isLabeled ? labels[d][idx] : idx;
+
+            if (sampledZ != z[d][n]) {
+                numChanges++;
+            }
+            z[d][n] = sampledZ;
+
+            view.increment(z[d][n], words[d][n]);
+            docLabels[d].increment(z[d][n]);
+        }
+        return numChanges;
+    }
+
     public double[] predictNewDocument(int[] newDoc) throws Exception {
         // initialize assignments
         DirMult docTopic = new DirMult(L, hyperparams.get(ALPHA) * L, 1.0 / L);
@@ -1043,41 +1138,52 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         }
     }
 
-    public void sampleZ(int d, int i, int n,
-            boolean removeFromData, boolean addToData) {
-        double totalBeta = V * hyperparams.get(BETA);
-        if (removeFromData) {
-            docLabels[d].decrement(z[d][i]);
-        }
-
-        int sampledZ;
-        if (labels != null && labels[d].length > 0) {
-            double[] probs = new double[labels[d].length];
-            for (int ii = 0; ii < labels[d].length; ii++) {
+    /**
+     * Sample the label of a token in a test document given the frozen
+     * label-word distributions. Only the counts of the document are updated by
+     * the caller, so different documents can be sampled in parallel.
+     *
+     * @param d The document index
+     * @param w The word type of the token
+     * @param alpha Document-label prior
+     * @param probs Scratch array of at least L elements
+     * @param random Random number generator of the worker
+     * @return The sampled label
+     */
+    private int sampleTestZ(int d, int w, double alpha, double[] probs, Random random) {
+        boolean isLabeled = labels != null && labels[d].length > 0;
+        int numCandidates = isLabeled ? labels[d].length : L;
+        if (isLabeled) {
+            for (int ii = 0; ii < numCandidates; ii++) {
                 int k = labels[d][ii];
-                probs[ii] = (docLabels[d].getCount(k) + hyperparams.get(ALPHA) * labels[d].length / L)
-                        * (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                        / (labelWords[k].getCountSum() + totalBeta);
+                probs[ii] = (docLabels[d].getCount(k) + alpha)
+                        * frozenLabelWords.getProbability(k, w);
             }
-            sampledZ = labels[d][SamplerUtils.scaleSample(probs)];
-        } else { // for documents without labels and for test documents
-            double[] probs = new double[L];
-            for (int ll = 0; ll < L; ll++) {
-                probs[ll] = (docLabels[d].getCount(ll) + hyperparams.get(ALPHA))
-                        * (labelWords[ll].getCount(words[d][n]) + hyperparams.get(BETA))
-                        / (labelWords[ll].getCountSum() + totalBeta);
+        } else {
+            frozenLabelWords.getProbabilities(w, probs);
+            for (int k = 0; k < L; k++) {
+                probs[k] *= docLabels[d].getCount(k) + alpha;
             }
-            sampledZ = SamplerUtils.scaleSample(probs);
         }
-
-        if (sampledZ != z[d][i]) {
-            numTokensChange++;
+        int idx = SamplerUtils.scaleSample(probs, numCandidates, random);
+        if (idx == numCandidates) {
+            throw new RuntimeException("Failed to sample label of a token of word type "
+                    + w + " in document " + d);
         }
-        z[d][i] = sampledZ;
+        return isLabeled ? labels[d][idx] : idx;
+    }
 
-        if (addToData) {
-            docLabels[d].increment(z[d][i]);
+    /**
+     * Return the number of test iterations at which a sample is taken.
+     */
+    private int getNumTestSamples() {
+        int numSamples = 0;
+        for (int it = this.testBurnIn; it < this.testMaxIter; it++) {
+            if (it % this.testSampleLag == 0) {
+                numSamples++;
+            }
         }
+        return numSamples;
     }
 
     /**
@@ -1107,6 +1213,7 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
 
         // input model
         inputModel(stateFile);
+        frozenLabelWords = new FrozenTopicWords(labelWords);
 
         words = newWords;
         labels = newLabels;
@@ -1137,85 +1244,108 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
             z[d] = new int[trainIndices[d].size()];
         }
 
-        ArrayList<Double> perplexities = new ArrayList<Double>();
         if (verbose) {
             logln("--- Sampling on test data ...");
         }
-        for (iter = 0; iter < testMaxIter; iter++) {
-            if (iter % testSampleLag == 0) {
-                logln("--- --- iter " + iter + "/" + testMaxIter
-                        + " @ thread " + Thread.currentThread().getId()
-                        + "\n" + getSamplerFolderPath());
-            }
-
-            for (int d = 0; d < D; d++) {
-                for (int ii = 0; ii < trainIndices[d].size(); ii++) {
-                    int n = trainIndices[d].get(ii);
-                    if (iter == 0) {
-                        sampleZ(d, ii, n, !REMOVE, ADD);
-                    } else {
-                        sampleZ(d, ii, n, REMOVE, ADD);
+        // documents are sampled in parallel against the fixed model
+        final ArrayList<Integer>[] trainIdxs = trainIndices;
+        final ArrayList<Integer>[] testIdxs = testIndices;
+        final double alpha = hyperparams.get(ALPHA);
+        final int numSamples = getNumTestSamples();
+        final double[][] docLogProbs = new double[numSamples][D];
+        ParallelDocumentInference.run(D, RAND_SEED,
+                new ParallelDocumentInference.DocumentInference() {
+                    @Override
+                    public void sampleDocument(int d, ParallelDocumentInference.Worker worker) {
+                        double[] probs = worker.getScratch(0, L);
+                        double docAlpha = alpha;
+                        if (labels[d].length > 0) {
+                            docAlpha = alpha * labels[d].length / L;
+                        }
+                        int sampleIdx = 0;
+                        for (int it = 0; it < testMaxIter; it++) {
+                            for (int ii = 0; ii < trainIdxs[d].size(); ii++) {
+                                int n = trainIdxs[d].get(ii);
+                                if (it > 0) {
+                                    docLabels[d].decrement(z[d][ii]);
+                                }
+                                z[d][ii] = sampleTestZ(d, words[d][n], docAlpha,
+                                        probs, worker.getRandom());
+                                docLabels[d].increment(z[d][ii]);
+                            }
+                            if (it >= testBurnIn && it % testSampleLag == 0) {
+                                docLogProbs[sampleIdx++][d] = computeLogProbability(d,
+                                        testIdxs[d], worker.getScratch(1, L));
+                            }
+                        }
                     }
-                }
-            }
+                });
 
-            // compute perplexity
-            if (iter >= this.testBurnIn && iter % this.testSampleLag == 0) {
-                perplexities.add(computePerplexity(testIndices, stateFile + ".perp"));
+        // compute perplexity at each test sample
+        ArrayList<Double> perplexities = new ArrayList<Double>();
+        for (int ss = 0; ss < numSamples; ss++) {
+            double totalLogprob = 0.0;
+            for (int d = 0; d < D; d++) {
+                totalLogprob += docLogProbs[ss][d];
             }
+            perplexities.add(Math.exp(-totalLogprob / numTestTokens));
+        }
+        if (numSamples > 0) {
+            outputLogProbabilities(testIndices, docLogProbs[numSamples - 1],
+                    stateFile + ".perp");
         }
         double avgPerplexity = StatUtils.mean(perplexities);
         return avgPerplexity;
     }
 
-    private double computePerplexity(ArrayList<Integer>[] testIndices, String outFile) {
-        double totalBeta = hyperparams.get(BETA) * V;
-        double totalLogprob = 0.0;
-        int numTestTokens = 0;
-        for (int d = 0; d < D; d++) {
-            numTestTokens += testIndices[d].size();
+    /**
+     * Compute the log probability of the held-out tokens of a test document.
+     *
+     * @param d The document index
+     * @param testIndices Positions of the held-out tokens
+     * @param phis Scratch array of at least L elements
+     */
+    private double computeLogProbability(int d, ArrayList<Integer> testIndices,
+            double[] phis) {
+        double docLogProb = 0.0;
+        for (int n : testIndices) {
+            double val = 0.0;
+            if (labels[d].length > 0) {
+                for (int ii = 0; ii < labels[d].length; ii++) {
+                    int k = labels[d][ii];
+                    double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
+                            / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * labels[d].length);
+                    val += theta * frozenLabelWords.getProbability(k, words[d][n]);
+                }
+            } else { // for documents without labels and for test documents
+                frozenLabelWords.getProbabilities(words[d][n], phis);
+                for (int k = 0; k < L; k++) {
+                    double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
+                            / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * L);
+                    val += theta * phis[k];
+                }
+            }
+            docLogProb += Math.log(val);
         }
+        return docLogProb;
+    }
+
+    private void outputLogProbabilities(ArrayList<Integer>[] testIndices,
+            double[] docLogProbs, String outFile) {
         try {
             BufferedWriter writer = IOUtils.getBufferedWriter(outFile);
             for (int d = 0; d < D; d++) {
-                double docLogProb = 0.0;
-                for (int n : testIndices[d]) {
-                    double val = 0.0;
-                    if (labels[d].length > 0) {
-                        for (int ii = 0; ii < labels[d].length; ii++) {
-                            int k = labels[d][ii];
-                            double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
-                                    / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * labels[d].length);
-                            double phi = (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                    / (labelWords[k].getCountSum() + totalBeta);
-                            val += theta * phi;
-                        }
-                    } else { // for documents without labels and for test documents
-                        for (int k = 0; k < L; k++) {
-                            double theta = (docLabels[d].getCount(k) + hyperparams.get(ALPHA))
-                                    / (docLabels[d].getCountSum() + hyperparams.get(ALPHA) * L);
-                            double phi = (labelWords[k].getCount(words[d][n]) + hyperparams.get(BETA))
-                                    / (labelWords[k].getCountSum() + totalBeta);
-                            val += theta * phi;
-                        }
-                    }
-                    docLogProb += Math.log(val);
-                }
-                totalLogprob += docLogProb;
                 writer.write(d
                         + "\t" + words[d].length
                         + "\t" + labels[d].length
                         + "\t" + testIndices[d].size()
-                        + "\t" + docLogProb + "\n");
+                        + "\t" + docLogProbs[d] + "\n");
             }
             writer.close();
         } catch (IOException e) {
             e.printStackTrace();
-            throw new RuntimeException();
+            throw new RuntimeException("Exception while outputing to " + outFile);
         }
-
-        double perplexity = Math.exp(-totalLogprob / numTestTokens);
-        return perplexity;
     }
 
     public void sampleNewDocuments(String stateFile,
@@ -1231,6 +1361,7 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
 
         // input model
         inputModel(stateFile);
+        frozenLabelWords = new FrozenTopicWords(labelWords);
 
         // test data
         test(newWords);
@@ -1253,32 +1384,36 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
             logln("--- topicWords: " + labelWords.length + ". " + topicWordCount);
         }
 
-        // initialize assignments
-        sampleZs(!REMOVE, !ADD, !REMOVE, ADD);
-
-        // sample an store predictions
-        double[][] predictedScores = new double[D][L];
-        int count = 0;
-        for (iter = 0; iter < testMaxIter; iter++) {
-            if (iter == 0) {
-                sampleZs(!REMOVE, !ADD, !REMOVE, ADD);
-            } else {
-                sampleZs(!REMOVE, !ADD, REMOVE, ADD);
-            }
-
-            if (iter >= this.testBurnIn && iter % this.testSampleLag == 0) {
-                if (verbose) {
-                    logln("--- iter = " + iter + " / " + this.testMaxIter);
-                }
-                for (int dd = 0; dd < D; dd++) {
-                    double[] predProbs = docLabels[dd].getDistribution();
-                    for (int ll = 0; ll < L; ll++) {
-                        predictedScores[dd][ll] += predProbs[ll];
+        // sample and store predictions, with documents sampled in parallel
+        // against the fixed model
+        final double alpha = hyperparams.get(ALPHA);
+        final int count = getNumTestSamples();
+        final double[][] predictedScores = new double[D][L];
+        ParallelDocumentInference.run(D, RAND_SEED,
+                new ParallelDocumentInference.DocumentInference() {
+                    @Override
+                    public void sampleDocument(int d, ParallelDocumentInference.Worker worker) {
+                        double[] probs = worker.getScratch(0, L);
+                        // initialize assignments
+                        for (int n = 0; n < words[d].length; n++) {
+                            z[d][n] = sampleTestZ(d, words[d][n], alpha, probs, worker.getRandom());
+                            docLabels[d].increment(z[d][n]);
+                        }
+                        for (int it = 0; it < testMaxIter; it++) {
+                            for (int n = 0; n < words[d].length; n++) {
+                                docLabels[d].decrement(z[d][n]);
+                                z[d][n] = sampleTestZ(d, words[d][n], alpha, probs, worker.getRandom());
+                                docLabels[d].increment(z[d][n]);
+                            }
+                            if (it >= testBurnIn && it % testSampleLag == 0) {
+                                double[] predProbs = docLabels[d].getDistribution();
+                                for (int ll = 0; ll < L; ll++) {
+                                    predictedScores[d][ll] += predProbs[ll];
+                                }
+                            }
+                        }
                     }
-                }
-                count++;
-            }
-        }
+                });
 
         // output result during test time
         if (verbose) {
@@ -1307,7 +1442,7 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPerplexityFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.endsWith("zip")) {
                     continue;
@@ -1320,12 +1455,11 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
                         newWords, newLabels, trainIndices, testIndices,
                         stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
             // summarize multiple perplexities
             String[] ppxFiles = iterPerplexityFolder.list();
@@ -1352,7 +1486,7 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
@@ -1364,12 +1498,11 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
                 LabeledLDATestRunner runner = new LabeledLDATestRunner(sampler,
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1410,6 +1543,13 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
             addOption("beta", "Hyperparameter of the symmetric Dirichlet prior "
                     + "for word distributions");
 
+            // parallel sampling
+            addOption("num-threads", "Number of threads for parallel sampling");
+            addOption("merge-interval", "Number of documents per thread between "
+                    + "synchronizations (parallel sampling)");
+            addOption("num-workers", "Number of worker threads for parallel test "
+                    + "(default: number of available processors)");
+
             options.addOption("paramOpt", false, "Whether hyperparameter "
                     + "optimization using slice sampling is performed");
             options.addOption("v", false, "verbose");
@@ -1450,6 +1590,9 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
 
         double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
         double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
+        int numThreads = CLIUtils.getIntegerArgument(cmd, "num-threads", 1);
+        int mergeInterval = CLIUtils.getIntegerArgument(cmd, "merge-interval", -1);
+        setNumWorkerThreads(CLIUtils.getIntegerArgument(cmd, "num-workers", -1));
 
         boolean verbose = true;
         boolean debug = true;
@@ -1476,6 +1619,7 @@ public class LabeledLDA extends AbstractSampler implements Serializable {
         sampler.setDebug(debug);
         sampler.setWordVocab(data.getWordVocab());
         sampler.setLabelVocab(data.getLabelVocab());
+        sampler.setParallelConfigurations(numThreads, mergeInterval);
 
         sampler.configure(outputFolder,
                 V, K, alpha, beta, initState, paramOpt,
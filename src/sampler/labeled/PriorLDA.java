@@ -6,6 +6,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.util.ArrayList;
 import sampling.likelihood.DirMult;
+import sampling.util.ParallelTopicSweep;
+import sampling.util.ParallelTopicSweep.TopicWordView;
 import util.IOUtils;
 import util.MiscUtils;
 import util.SamplerUtils;
@@ -35,10 +37,29 @@ public class PriorLDA extends AbstractSampler {
     private int numTokens;      // number of token assignments to be sampled
     private int numTokensChange;
     private ArrayList<String> labelVocab;
+    // approximate distributed sampling
+    private int numThreads = 1;
+    private int mergeInterval = -1;
+    private transient ParallelTopicSweep parallelSweep;
     
     public void setLabelVocab(ArrayList<String> labelVoc) {
         this.labelVocab = labelVoc;
     }
+
+    /**
+     * Sample training documents in parallel using approximate distributed
+     * Gibbs sampling (AD-LDA).
+     *
+     * @param numThreads Number of threads. Sequential sampling is used if this
+     * is 1.
+     * @param mergeInterval Number of documents each thread samples before
+     * the topic-word counts are synchronized. If this is non-positive, counts
+     * are synchronized at the end of each sweep.
+     */
+    public void setParallelConfigurations(int numThreads, int mergeInterval) {
+        this.numThreads = numThreads;
+        this.mergeInterval = mergeInterval;
+    }
     
     public void configure(PriorLDA sampler) {
         this.configure(sampler.folder,
@@ -270,6 +291,12 @@ public class PriorLDA extends AbstractSampler {
     protected long sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         long sTime = System.currentTimeMillis();
+        if (numThreads > 1
+                && removeFromModel && addToModel
+                && removeFromData && addToData) {
+            sampleZsParallel();
+            return System.currentTimeMillis() - sTime;
+        }
         double totalBeta = V * hyperparams.get(BETA);
         for (int d = 0; d < D; d++) {
             for (int n = 0; n < words[d].length; n++) {
@@ -303,6 +330,64 @@ public class PriorLDA extends AbstractSampler {
         return System.currentTimeMillis() - sTime;
     }
     
+    /**
+     * Sample the topic assignments for all tokens with documents sharded
+     * across threads (AD-LDA).
+     */
+    private void sampleZsParallel() {
+        if (parallelSweep == null
+                || parallelSweep.getNumThreads() != numThreads
+                || parallelSweep.getMergeInterval() != mergeInterval) {
+            parallelSweep = new ParallelTopicSweep(numThreads, mergeInterval, RAND_SEED);
+        }
+        numTokensChange += parallelSweep.sweep(labelWords, D,
+                new ParallelTopicSweep.DocumentSampler() {
+                    @Override
+                    public int sampleDocument(int d, TopicWordView view) {
+                        return sampleZs(d, view);
+                    }
+                });
+    }
+
+    /**
+     * Sample the topic assignments for all tokens in a document using the
+     * topic-word counts of a parallel worker.
+     *
+     * @param d The document index
+     * @param view The topic-word counts seen by the worker
+     * @return Number of tokens whose assignments changed
+     */
+    private int sampleZs(int d, TopicWordView view) {
+        double alpha = hyperparams.get(ALPHA);
+        double beta = hyperparams.get(BETA);
+        double totalBeta = V * beta;
+        double[] probs = view.getScratch(K);
+        int numChanges = 0;
+        for (int n = 0; n < words[d].length; n++) {
+            docLabels[d].decrement(z[d][n]);
+            view.decrement(z[d][n], words[d][n]);
+
+            for (int k = 0; k < K; k++) {
+                probs[k] = (docLabels[d].getCount(k) + alpha)
+                        * (view.getCount(k, words[d][n]) + beta)
+                        / (view.getCountSum(k) + totalBeta);
+            }
+            int sampledZ = SamplerUtils.scaleSample(probs, K, view.getRandom());
+            if (sampledZ == K) {
+                throw new RuntimeException("Failed to sample topic of token "
+                        + n + " in document " + d);
+            }
+            if (sampledZ != z[d][n]) {
+                numChanges++;
+            }
+            z[d][n] = sampledZ;
+
+            docLabels[d].increment(z[d][n]);
+            view.increment(z[d][n], words[d][n]);
+        }
+        return numChanges;
+    }
+    
     @Override
     public String getCurrentState() {
         return this.getSamplerFolderPath();
@@ -1077,7 +1162,7 @@ public class PriorLDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPerplexityFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.contains("zip")) {
@@ -1091,12 +1176,11 @@ public class PriorLDA extends AbstractSampler {
                         newWords, newLabels,
                         stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
             // summarize multiple perplexities
             String[] ppxFiles = iterPerplexityFolder.list();
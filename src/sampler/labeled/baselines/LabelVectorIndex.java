@@ -0,0 +1,382 @@
+package sampler.labeled.baselines;
+
+import core.AbstractSampler;
+import java.util.ArrayList;
+import util.SparseVector;
+
+/**
+ * Inverted index over the label vectors of a nearest-neighbor baseline, used
+ * to compute the cosine similarity between a document and all labels.
+ *
+ * The postings of each word list the labels whose vectors contain the word.
+ * Scores are accumulated term at a time over the words of the document, so
+ * only the labels sharing at least one word with the document are visited.
+ * For each label, the products are added in increasing word order, which is
+ * the order used by SparseVector.dotProduct, so the scores are exactly those
+ * of the brute-force cosine. Every posting of the document's words is
+ * visited: documents are short, and skipping postings with score upper bounds
+ * (as in WAND) would save little while making it harder to reproduce the
+ * ranking of the brute-force scores, including ties and NaNs.
+ *
+ * The index is read-only. Each thread scores documents with its own Searcher.
+ *
+ * @author vietan
+ */
+public class LabelVectorIndex {
+
+    // minimum number of documents per task when searching in parallel
+    public static final int MIN_DOCS_PER_TASK = 64;
+    private final int numLabels;
+    private final int numWords;
+    private final int[] offsets; // [V + 1]: start of each word's postings
+    private final int[] postingLabels;
+    private final double[] postingValues;
+    private final double[] labelL2Norms;
+    private final boolean[] isEmpty; // labels whose vectors are empty are never scored
+    private final int[] zeroNormLabels; // non-empty labels whose vectors are all zeros
+
+    /**
+     * Build the index.
+     *
+     * @param labelVectors Vector of each label
+     * @param labelL2Norms L2 norm of each label vector
+     */
+    public LabelVectorIndex(SparseVector[] labelVectors, double[] labelL2Norms) {
+        this.numLabels = labelVectors.length;
+        this.labelL2Norms = labelL2Norms;
+        int maxIndex = -1;
+        long numPostings = 0;
+        for (SparseVector labelVector : labelVectors) {
+            if (labelVector.size() > 0) {
+                maxIndex = Math.max(maxIndex, labelVector.getIndexAt(labelVector.size() - 1));
+                numPostings += labelVector.size();
+            }
+        }
+        if (numPostings > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many postings: " + numPostings);
+        }
+        this.numWords = maxIndex + 1;
+        this.isEmpty = new boolean[numLabels];
+        ArrayList<Integer> zeroNorms = new ArrayList<Integer>();
+        for (int ll = 0; ll < numLabels; ll++) {
+            this.isEmpty[ll] = labelVectors[ll].size() == 0;
+            if (!isEmpty[ll] && labelL2Norms[ll] == 0.0) {
+                zeroNorms.add(ll);
+            }
+        }
+        this.zeroNormLabels = new int[zeroNorms.size()];
+        for (int ii = 0; ii < zeroNormLabels.length; ii++) {
+            this.zeroNormLabels[ii] = zeroNorms.get(ii);
+        }
+
+        this.offsets = new int[numWords + 1];
+        for (SparseVector labelVector : labelVectors) {
+            for (int ii = 0; ii < labelVector.size(); ii++) {
+                this.offsets[labelVector.getIndexAt(ii) + 1]++;
+            }
+        }
+        for (int v = 0; v < numWords; v++) {
+            this.offsets[v + 1] += this.offsets[v];
+        }
+        this.postingLabels = new int[(int) numPostings];
+        this.postingValues = new double[(int) numPostings];
+        int[] positions = new int[numWords];
+        System.arraycopy(offsets, 0, positions, 0, numWords);
+        for (int ll = 0; ll < numLabels; ll++) {
+            SparseVector labelVector = labelVectors[ll];
+            for (int ii = 0; ii < labelVector.size(); ii++) {
+                int pos = positions[labelVector.getIndexAt(ii)]++;
+                this.postingLabels[pos] = ll;
+                this.postingValues[pos] = labelVector.getValueAt(ii);
+            }
+        }
+    }
+
+    public int getNumLabels() {
+        return this.numLabels;
+    }
+
+    /**
+     * Compute the feature vector of a document.
+     */
+    public static interface FeatureExtractor {
+
+        public SparseVector getFeatureVector(int[] words);
+    }
+
+    /**
+     * Compute the cosine similarity between each document and every label, in
+     * parallel on the shared worker pool.
+     *
+     * @param docs Words of the documents
+     * @param extractor Feature extractor, which must be thread-safe
+     */
+    public double[][] score(final int[][] docs, final FeatureExtractor extractor) {
+        final double[][] docScores = new double[docs.length][];
+        runShards(docs.length, new Shard() {
+            @Override
+            public void run(int start, int end) {
+                Searcher searcher = new Searcher();
+                for (int dd = start; dd < end; dd++) {
+                    if (docs[dd].length == 0) {
+                        docScores[dd] = new double[numLabels];
+                    } else {
+                        docScores[dd] = searcher.score(extractor.getFeatureVector(docs[dd]));
+                    }
+                }
+            }
+        });
+        return docScores;
+    }
+
+    /**
+     * Return the top labels of each document, in parallel on the shared
+     * worker pool.
+     *
+     * @param docs Words of the documents
+     * @param extractor Feature extractor, which must be thread-safe
+     * @param topK Maximum number of labels per document
+     */
+    public ArrayList<ArrayList<Integer>> search(final int[][] docs,
+            final FeatureExtractor extractor, final int topK) {
+        final ArrayList<ArrayList<Integer>> docLabels = new ArrayList<ArrayList<Integer>>();
+        for (int dd = 0; dd < docs.length; dd++) {
+            docLabels.add(null);
+        }
+        runShards(docs.length, new Shard() {
+            @Override
+            public void run(int start, int end) {
+                Searcher searcher = new Searcher();
+                for (int dd = start; dd < end; dd++) {
+                    // each task sets its own documents, and runTasks waits for
+                    // all tasks before the list is read
+                    if (docs[dd].length == 0) {
+                        docLabels.set(dd, new ArrayList<Integer>());
+                    } else {
+                        docLabels.set(dd, searcher.search(extractor.getFeatureVector(docs[dd]), topK));
+                    }
+                }
+            }
+        });
+        return docLabels;
+    }
+
+    private static interface Shard {
+
+        public void run(int start, int end);
+    }
+
+    private static void runShards(int numDocs, final Shard shard) {
+        int numTasks = Math.min(AbstractSampler.getNumWorkerThreads() * 4,
+                (numDocs + MIN_DOCS_PER_TASK - 1) / MIN_DOCS_PER_TASK);
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (int tt = 0; tt < numTasks; tt++) {
+            final int start = (int) ((long) numDocs * tt / numTasks);
+            final int end = (int) ((long) numDocs * (tt + 1) / numTasks);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    shard.run(start, end);
+                }
+            });
+        }
+        AbstractSampler.runTasks(tasks);
+    }
+
+    /**
+     * Scratch space to score documents against the index. A searcher must only
+     * be used by one thread at a time.
+     */
+    public class Searcher {
+
+        private final double[] dotProducts;
+        private final boolean[] isTouched;
+        private final int[] touchedLabels;
+        private int numTouched;
+        private final double[] scores;
+        private int[] heap;
+
+        public Searcher() {
+            this.dotProducts = new double[numLabels];
+            this.isTouched = new boolean[numLabels];
+            this.touchedLabels = new int[numLabels];
+            this.scores = new double[numLabels];
+            this.heap = new int[16];
+        }
+
+        /**
+         * Return the cosine similarity between a document and every label.
+         * Labels with empty vectors get a score of 0.
+         *
+         * @param docVector Feature vector of the document
+         */
+        public double[] score(SparseVector docVector) {
+            double[] docScores = new double[numLabels];
+            accumulate(docVector);
+            for (int ii = 0; ii < numTouched; ii++) {
+                int ll = touchedLabels[ii];
+                docScores[ll] = scores[ll];
+            }
+            reset();
+            return docScores;
+        }
+
+        /**
+         * Return the labels with the highest cosine similarity to a document,
+         * in the order and with the cut-off at a zero score used when all
+         * labels are sorted: labels with higher scores first, ties broken by
+         * label index, stopping at the first label whose score is 0.
+         *
+         * @param docVector Feature vector of the document
+         * @param topK Maximum number of labels
+         */
+        public ArrayList<Integer> search(SparseVector docVector, int topK) {
+            ArrayList<Integer> labels = new ArrayList<Integer>();
+            accumulate(docVector);
+
+            // labels without any common word score 0, and so do labels whose
+            // dot product cancels out exactly. When the sorted labels stop at a
+            // zero score, only the labels ranked before it (positive or NaN)
+            // are returned.
+            int numNonZeros = 0;
+            for (int ii = 0; ii < numTouched; ii++) {
+                if (scores[touchedLabels[ii]] != 0.0) {
+                    numNonZeros++;
+                }
+            }
+            boolean hasZero = numNonZeros < numLabels;
+
+            int heapSize = 0;
+            if (heap.length < topK) {
+                heap = new int[topK];
+            }
+            for (int ii = 0; ii < numTouched; ii++) {
+                int ll = touchedLabels[ii];
+                double score = scores[ll];
+                if (score == 0.0 || (hasZero && score < 0.0)) {
+                    continue;
+                }
+                if (heapSize < topK) {
+                    heap[heapSize] = ll;
+                    siftUp(heapSize++);
+                } else if (isBetter(ll, heap[0])) {
+                    heap[0] = ll;
+                    siftDown(0, heapSize);
+                }
+            }
+
+            // pop from the worst to the best
+            Integer[] sorted = new Integer[heapSize];
+            for (int ii = heapSize - 1; ii >= 0; ii--) {
+                sorted[ii] = heap[0];
+                heap[0] = heap[ii];
+                siftDown(0, ii);
+            }
+            for (Integer label : sorted) {
+                labels.add(label);
+            }
+            reset();
+            return labels;
+        }
+
+        /**
+         * Compute the scores of the labels whose cosine similarity with the
+         * document is not 0. Labels are scored with the same arithmetic as
+         * the brute-force cosine, including 0 / 0 = NaN when a norm is 0.
+         */
+        private void accumulate(SparseVector docVector) {
+            double docL2Norm = docVector.getL2Norm();
+            if (docL2Norm == 0.0) { // every non-empty label gets 0 / 0
+                for (int ll = 0; ll < numLabels; ll++) {
+                    if (!isEmpty[ll]) {
+                        touch(ll);
+                    }
+                }
+            } else {
+                for (int jj = 0; jj < docVector.size(); jj++) {
+                    int v = docVector.getIndexAt(jj);
+                    if (v >= numWords) {
+                        continue;
+                    }
+                    double value = docVector.getValueAt(jj);
+                    for (int pp = offsets[v]; pp < offsets[v + 1]; pp++) {
+                        int ll = postingLabels[pp];
+                        touch(ll);
+                        dotProducts[ll] += postingValues[pp] * value;
+                    }
+                }
+                for (int ll : zeroNormLabels) {
+                    touch(ll);
+                }
+            }
+            for (int ii = 0; ii < numTouched; ii++) {
+                int ll = touchedLabels[ii];
+                scores[ll] = dotProducts[ll] / (labelL2Norms[ll] * docL2Norm);
+            }
+        }
+
+        private void touch(int ll) {
+            if (!isTouched[ll]) {
+                isTouched[ll] = true;
+                touchedLabels[numTouched++] = ll;
+            }
+        }
+
+        private void reset() {
+            for (int ii = 0; ii < numTouched; ii++) {
+                int ll = touchedLabels[ii];
+                isTouched[ll] = false;
+                dotProducts[ll] = 0.0;
+                scores[ll] = 0.0;
+            }
+            numTouched = 0;
+        }
+
+        /**
+         * Whether label l1 is ranked before label l2.
+         */
+        private boolean isBetter(int l1, int l2) {
+            // same order as sorting RankingItems, in which NaN ranks first
+            if (scores[l1] != scores[l2]) {
+                int cmp = Double.compare(scores[l1], scores[l2]);
+                if (cmp != 0) {
+                    return cmp > 0;
+                }
+            }
+            return l1 < l2;
+        }
+
+        // the heap keeps the worst of the current top labels at the root
+        private void siftUp(int pos) {
+            int label = heap[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!isBetter(heap[parent], label)) {
+                    break;
+                }
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = label;
+        }
+
+        private void siftDown(int pos, int size) {
+            int label = heap[pos];
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && isBetter(heap[child], heap[child + 1])) {
+                    child++;
+                }
+                if (!isBetter(label, heap[child])) {
+                    break;
+                }
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = label;
+        }
+    }
+}
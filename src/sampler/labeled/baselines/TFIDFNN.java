@@ -21,7 +21,7 @@ import util.SparseVector;
  *
  * @author vietan
  */
-public class TFIDFNN {
+public class TFIDFNN implements LabelVectorIndex.FeatureExtractor {
 
     protected int[][] words;
     protected int[][] labels;
@@ -32,6 +32,8 @@ public class TFIDFNN {
     protected SparseVector[] labelVectors; // L x V;
     protected int minWordTypeCount = 0;
     protected double[] labelL2Norms;
+    protected LabelVectorIndex labelIndex; // built from the label vectors on first use
+    protected LabelVectorIndex.Searcher searcher; // scores single documents, reused across calls
 
     public TFIDFNN(int minWordTypeCount) {
         this.minWordTypeCount = minWordTypeCount;
@@ -84,21 +86,22 @@ public class TFIDFNN {
         return this.idfs;
     }
 
+    @Override
     public SparseVector getFeatureVector(int[] newWords) {
         SparseCount typeCount = new SparseCount();
         for (int n = 0; n < newWords.length; n++) {
             typeCount.increment(newWords[n]);
         }
 
-        SparseVector docVector = new SparseVector();
+        SparseVector.Builder docVector = new SparseVector.Builder();
         for (int idx : typeCount.getIndices()) {
             double tf = Math.log(typeCount.getCount(idx) + 1);
             double idf = idfs[idx];
             double tfidf = tf * idf;
-            docVector.set(idx, tfidf); // index starts with 0 instead of 1
+            docVector.add(idx, tfidf); // index starts with 0 instead of 1
         }
 
-        return docVector;
+        return docVector.build();
     }
 
     public void learn() {
@@ -182,21 +185,40 @@ public class TFIDFNN {
         for (int ll = 0; ll < L; ll++) {
             labelL2Norms[ll] = labelVectors[ll].getL2Norm();
         }
+        labelIndex = null;
+        searcher = null;
     }
 
-    public double[][] predict(int[][] newWords) {
-        double[][] predictions = new double[newWords.length][];
-        int stepSize = MiscUtils.getRoundStepSize(newWords.length, 10);
-        if (stepSize == 1) {
-            stepSize = 10;
+    /**
+     * Return the inverted index over the current label vectors.
+     */
+    public LabelVectorIndex getLabelIndex() {
+        if (labelIndex == null) {
+            labelIndex = new LabelVectorIndex(labelVectors, labelL2Norms);
         }
-        for (int dd = 0; dd < predictions.length; dd++) {
-            if (dd % stepSize == 0) {
-                System.out.println("--- Predicting doc = " + dd + " / " + newWords.length);
-            }
-            predictions[dd] = this.predict(newWords[dd]);
+        return labelIndex;
+    }
+
+    /**
+     * Return the searcher used to score single documents. It is reused across
+     * calls, so the single-document predictions must not be called from
+     * multiple threads at the same time.
+     */
+    protected LabelVectorIndex.Searcher getSearcher() {
+        if (searcher == null) {
+            searcher = getLabelIndex().new Searcher();
         }
-        return predictions;
+        return searcher;
+    }
+
+    /**
+     * Predict the label scores of a set of documents in parallel.
+     *
+     * @param newWords The token vectors of the test documents
+     */
+    public double[][] predict(int[][] newWords) {
+        System.out.println("--- Predicting " + newWords.length + " docs ...");
+        return getLabelIndex().score(newWords, this);
     }
 
     /**
@@ -208,19 +230,11 @@ public class TFIDFNN {
      * [0, 1].
      */
     public double[] predict(int[] newWords) {
-        double[] scores = new double[L];
         if (newWords.length == 0) {
-            return scores;
-        }
-        SparseVector docVector = getFeatureVector(newWords);
-        double newDocL2Norm = docVector.getL2Norm();
-        for (int l = 0; l < L; l++) {
-            if (labelVectors[l].size() > 0) { // skip topics that didn't have enough training data for
-                scores[l] = labelVectors[l].dotProduct(docVector)
-                        / (labelL2Norms[l] * newDocL2Norm);
-            }
+            return new double[L];
         }
-        return scores;
+        // labels without training data get 0
+        return getSearcher().score(getFeatureVector(newWords));
     }
 
 //    public SparseVector predict(int[] newWords) {
@@ -238,24 +252,28 @@ public class TFIDFNN {
 //        }
 //        return vec;
 //    }
+    /**
+     * Predict the top labels of a given document, ranked by decreasing scores
+     * and stopping at the first label with a score of 0.
+     *
+     * @param newWords The token vector of the test document
+     * @param topK Maximum number of labels
+     */
     public ArrayList<Integer> predictLabel(int[] newWords, int topK) {
-        double[] scores = predict(newWords);
-        ArrayList<RankingItem<Integer>> rank = new ArrayList<RankingItem<Integer>>();
-        for (int ii = 0; ii < scores.length; ii++) {
-            rank.add(new RankingItem<Integer>(ii, scores[ii]));
-        }
-        Collections.sort(rank);
-        ArrayList<Integer> rankLabels = new ArrayList<Integer>();
-        for (int ii = 0; ii < topK; ii++) {
-            RankingItem<Integer> item = rank.get(ii);
-            int label = item.getObject();
-            double score = item.getPrimaryValue();
-            if (score == 0.0) {
-                break;
-            }
-            rankLabels.add(label);
+        if (newWords.length == 0) {
+            return new ArrayList<Integer>();
         }
-        return rankLabels;
+        return getSearcher().search(getFeatureVector(newWords), topK);
+    }
+
+    /**
+     * Predict the top labels of a set of documents in parallel.
+     *
+     * @param newWords The token vectors of the test documents
+     * @param topK Maximum number of labels per document
+     */
+    public ArrayList<ArrayList<Integer>> predictLabels(int[][] newWords, int topK) {
+        return getLabelIndex().search(newWords, this, topK);
     }
 
     public void outputPredictorTextFile(File predFile) {
@@ -292,10 +310,7 @@ public class TFIDFNN {
             }
             reader.close();
 
-            labelL2Norms = new double[L];
-            for (int ll = 0; ll < L; ll++) {
-                labelL2Norms[ll] = labelVectors[ll].getL2Norm();
-            }
+            computeLabelL2Norms();
         } catch (IOException | NumberFormatException e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing model from "
@@ -370,10 +385,7 @@ public class TFIDFNN {
             }
             reader.close();
 
-            labelL2Norms = new double[L];
-            for (int ll = 0; ll < L; ll++) {
-                labelL2Norms[ll] = labelVectors[ll].getL2Norm();
-            }
+            computeLabelL2Norms();
         } catch (IOException | RuntimeException e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing predictor from "
@@ -1623,7 +1623,7 @@ public class L2H extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) {
                 if (!filename.contains("zip")) {
                     continue;
@@ -1638,10 +1638,9 @@ public class L2H extends AbstractSampler {
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath(),
                         initPredictions, topK);
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
-            runThreads(threads); // run MAX_NUM_PARALLEL_THREADS threads at a time
+            runTasks(tasks); // run the tests on the shared worker pool
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while sampling during parallel test.");
@@ -1003,7 +1003,7 @@ public class SLDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.contains("zip")) {
@@ -1016,12 +1016,11 @@ public class SLDA extends AbstractSampler {
                 ClassSLDATestRunner runner = new ClassSLDATestRunner(sampler,
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -59,6 +59,9 @@ public class MSHDPSampler extends AbstractSampler {
     private int numTokenAssignmentsChange;
     private int numTableAssignmentsChange;
     private int numConverged;
+    // buffers of sampling candidates, refilled for every draw
+    private final SamplerUtils.CandidateBuffer tableCandidates = new SamplerUtils.CandidateBuffer();
+    private final SamplerUtils.CandidateBuffer dishCandidates = new SamplerUtils.CandidateBuffer();
 
     public void configure(String folder,
             int[][][] words, double[][] responses,
@@ -599,12 +602,10 @@ public class MSHDPSampler extends AbstractSampler {
 //                + ". weighted sum = " + weightedSum
 //                );
 
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
+        tableCandidates.clear();
 
         // for existing tables
         for (SHDPTable table : this.localRestaurants[d].getTables()) {
-            tableIndices.add(table.getIndex());
             double logprior = Math.log(table.getNumCustomers());
             double wordLlh = table.getContent().getContent().getLogLikelihood(curObs);
             double logprob = logprior + wordLlh;
@@ -625,38 +626,19 @@ public class MSHDPSampler extends AbstractSampler {
 //                        + "\t" + table.getContent().toString());
             }
 
-            logprobs.add(logprob);
+            tableCandidates.add(table.getIndex(), logprob);
         }
 
-        HashMap<Integer, Double> dishLogPriors = null;
-        HashMap<Integer, Double> dishLogLikelihoods = null;
-        HashMap<Integer, Double> dishResLogLikelihoods = null;
         if (extend) { // in test time, only use the learnt structure, don't create new table
             // for new tables
-            tableIndices.add(PSEUDO_INDEX);
-            dishLogPriors = getDishLogPriors();
-            dishLogLikelihoods = getDishLogLikelihoods(curObs);
-
-            if (dishLogPriors.size() != dishLogLikelihoods.size()) {
-                throw new RuntimeException("Numbers of dishes mismatch");
-            }
-
-            dishResLogLikelihoods = new HashMap<Integer, Double>();
-            if (resObserved) {
-                dishResLogLikelihoods = getDishResponseLogLikelihoodsNewTable(
-                        responses[d][t], weightedSum, numTokens);
-
-                if (dishLogPriors.size() != dishResLogLikelihoods.size()) {
-                    throw new RuntimeException("Numbers of dishes mismatch");
-                }
-            }
-
+            fillDishCandidates(curObs);
             double marginalLogLikelihood = 0.0;
-            for (int dishIndex : dishLogPriors.keySet()) {
-                double lp = dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex);
+            for (int ii = 0; ii < dishCandidates.size(); ii++) {
+                double lp = dishCandidates.getValue(ii);
 
                 if (resObserved) {
-                    lp += dishResLogLikelihoods.get(dishIndex);
+                    lp += getDishResponseLogLikelihoodNewTable(dishCandidates.getIndex(ii),
+                            responses[d][t], weightedSum, numTokens);
                 }
 
                 if (marginalLogLikelihood == 0.0) {
@@ -668,7 +650,7 @@ public class MSHDPSampler extends AbstractSampler {
 
             double logprob = Math.log(hyperparams.get(ALPHA_LOCAL))
                     + marginalLogLikelihood;
-            logprobs.add(logprob);
+            tableCandidates.add(PSEUDO_INDEX, logprob);
 
             // debug
 //            logln((logprobs.size()-1)
@@ -679,8 +661,8 @@ public class MSHDPSampler extends AbstractSampler {
 //                    );
         }
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
-        int tableIndex = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIndex = tableCandidates.getIndex(sampledIndex);
 
         // debug
 //        logln("---> index = " + sampledIndex + ". " + tableIndex + "\n\n");
@@ -691,8 +673,8 @@ public class MSHDPSampler extends AbstractSampler {
 
         SHDPTable table;
         if (tableIndex == PSEUDO_INDEX) {
-            // sample dish
-            int sampledDish = sampleDish(dishLogPriors, dishLogLikelihoods, dishResLogLikelihoods, !OBSERVED);
+            // sample dish, without the response variable
+            int sampledDish = sampleDish();
             SHDPDish dish;
             if (sampledDish == PSEUDO_INDEX) {
                 dish = createDish();
@@ -763,23 +745,8 @@ public class MSHDPSampler extends AbstractSampler {
             removeTableFromDish(d, tableIndex, observations);
         }
 
-        HashMap<Integer, Double> dishLogPriors = getDishLogPriors();
-        HashMap<Integer, Double> dishLogLikelihoods = getDishLogLikelihoods(observations);
-
-        if (dishLogPriors.size() != dishLogLikelihoods.size()) {
-            throw new RuntimeException("Numbers of dishes mismatch");
-        }
-
-        HashMap<Integer, Double> dishResLogLikelihoods = new HashMap<Integer, Double>();
-        if (resObserved) {
-            dishResLogLikelihoods = getDishResponseLogLikelihoodsExistingTable(table.getEta());
-
-            if (dishLogPriors.size() != dishResLogLikelihoods.size()) {
-                throw new RuntimeException("Numbers of dishes mismatch");
-            }
-        }
-
-        int sampledDish = sampleDish(dishLogPriors, dishLogLikelihoods, dishResLogLikelihoods, resObserved);
+        fillDishCandidates(observations, resObserved, table.getEta());
+        int sampledDish = sampleDish();
         if (curDish != sampledDish) {
             numTableAssignmentsChange++;
         }
@@ -798,43 +765,21 @@ public class MSHDPSampler extends AbstractSampler {
     }
 
     /**
-     * Sample a dish using precomputed probabilities
-     *
-     * @param dishLogPriors Log priors
-     * @param dishLogLikelihoods Word log likelihoods
-     * @param dishLogLikelihoods Response variable log likelihoods
-     * @param resObserved Whether the response variable is observed
+     * Sample a dish given the log probabilities in dishCandidates, which are
+     * overwritten.
      */
-    private int sampleDish(HashMap<Integer, Double> dishLogPriors,
-            HashMap<Integer, Double> dishLogLikelihoods,
-            HashMap<Integer, Double> dishResLogLikelihoods,
-            boolean resObserved) {
-        ArrayList<Integer> dishIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
-
-        for (int dishIndex : dishLogPriors.keySet()) {
-            dishIndices.add(dishIndex);
-            double logprob = dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex);
-
-            if (resObserved) {
-                logprob += dishResLogLikelihoods.get(dishIndex);
-            }
-
-            logprobs.add(logprob);
-        }
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
+    private int sampleDish() {
+        int sampledIndex = dishCandidates.logMaxRescaleSample();
 
-        if (sampledIndex == logprobs.size()) {
-            for (int dishIndex : dishLogPriors.keySet()) {
-                logln(dishIndex
-                        + "\tlog prior: " + MiscUtils.formatDouble(dishLogPriors.get(dishIndex))
-                        + "\tlog likelihood: " + MiscUtils.formatDouble(dishLogLikelihoods.get(dishIndex))
-                        + "\ttotal = " + MiscUtils.formatDouble(dishLogPriors.get(dishIndex) + dishLogLikelihoods.get(dishIndex)));
+        if (sampledIndex == dishCandidates.size()) {
+            for (int ii = 0; ii < dishCandidates.size(); ii++) {
+                logln(dishCandidates.getIndex(ii)
+                        + "\tweight: " + MiscUtils.formatDouble(dishCandidates.getValue(ii)));
             }
             throw new RuntimeException("Out-of-bound sampling");
         }
 
-        return dishIndices.get(sampledIndex);
+        return dishCandidates.getIndex(sampledIndex);
     }
 
     /**
@@ -948,77 +893,93 @@ public class MSHDPSampler extends AbstractSampler {
         dish.setMean(newMean);
     }
 
-    private HashMap<Integer, Double> getDishResponseLogLikelihoodsExistingTable(double eta) {
-        HashMap<Integer, Double> resLlhs = new HashMap<Integer, Double>();
-
-        // for existing dishes
-        for (SHDPDish dish : globalRestaurant.getTables()) {
-            double mean = dish.getMean();
-            double var = hyperparams.get(SIGMA_LOCAL);
-            double resLlh = StatUtils.logNormalProbability(eta, mean, Math.sqrt(var));
-            resLlhs.put(dish.getIndex(), resLlh);
+    /**
+     * Log likelihood of the regression parameter of an existing table if it
+     * is assigned to a dish.
+     *
+     * @param dishIndex The dish index, PSEUDO_INDEX for a new dish
+     * @param eta The regression parameter of the table
+     */
+    private double getDishResponseLogLikelihoodExistingTable(int dishIndex, double eta) {
+        double mean;
+        double var;
+        if (dishIndex == PSEUDO_INDEX) {
+            mean = hyperparams.get(MU);
+            var = hyperparams.get(SIGMA_GLOBAL) + hyperparams.get(SIGMA_LOCAL);
+        } else {
+            mean = globalRestaurant.getTable(dishIndex).getMean();
+            var = hyperparams.get(SIGMA_LOCAL);
         }
-
-        // for new dish
-        double mean = hyperparams.get(MU);
-        double var = hyperparams.get(SIGMA_GLOBAL) + hyperparams.get(SIGMA_LOCAL);
-        double resLlh = StatUtils.logNormalProbability(eta, mean, Math.sqrt(var));
-        resLlhs.put(PSEUDO_INDEX, resLlh);
-
-        return resLlhs;
+        return StatUtils.logNormalProbability(eta, mean, Math.sqrt(var));
     }
 
-    private HashMap<Integer, Double> getDishResponseLogLikelihoodsNewTable(
+    /**
+     * Log likelihood of the response variable if a new table assigned to a
+     * dish is created.
+     *
+     * @param dishIndex The dish index, PSEUDO_INDEX for a new dish
+     */
+    private double getDishResponseLogLikelihoodNewTable(int dishIndex,
             double response, double weightedSum, double tokenCount) {
-        HashMap<Integer, Double> resLlhs = new HashMap<Integer, Double>();
-
         double tokenCountSquare = tokenCount * tokenCount;
-
-        // for existing dishes
-        for (SHDPDish dish : globalRestaurant.getTables()) {
-            double mean = (weightedSum + dish.getMean()) / tokenCount;
-            double var = hyperparams.get(SIGMA_LOCAL) / tokenCountSquare + hyperparams.get(RHO);
-            double resLlh = StatUtils.logNormalProbability(response, mean, Math.sqrt(var));
-            resLlhs.put(dish.getIndex(), resLlh);
+        double mean;
+        double var;
+        if (dishIndex == PSEUDO_INDEX) {
+            mean = (weightedSum + hyperparams.get(MU)) / tokenCount;
+            var = (hyperparams.get(SIGMA_GLOBAL) + hyperparams.get(SIGMA_LOCAL)) / tokenCountSquare
+                    + hyperparams.get(RHO);
+        } else {
+            mean = (weightedSum + globalRestaurant.getTable(dishIndex).getMean()) / tokenCount;
+            var = hyperparams.get(SIGMA_LOCAL) / tokenCountSquare + hyperparams.get(RHO);
         }
-
-        // for new dish
-        double mean = (weightedSum + hyperparams.get(MU)) / tokenCount;
-        double var = (hyperparams.get(SIGMA_GLOBAL) + hyperparams.get(SIGMA_LOCAL)) / tokenCountSquare
-                + hyperparams.get(RHO);
-        double resLlh = StatUtils.logNormalProbability(response, mean, Math.sqrt(var));
-        resLlhs.put(PSEUDO_INDEX, resLlh);
-
-        return resLlhs;
+        return StatUtils.logNormalProbability(response, mean, Math.sqrt(var));
     }
 
-    private HashMap<Integer, Double> getDishLogPriors() {
-        HashMap<Integer, Double> dishLogPriors = new HashMap<Integer, Double>();
+    /**
+     * Fill dishCandidates with the log prior and the log likelihood of a
+     * token of each dish, including a new dish.
+     *
+     * @param observation The word type of the token
+     */
+    private void fillDishCandidates(int observation) {
+        dishCandidates.clear();
         double normalizer = Math.log(this.globalRestaurant.getTotalNumCustomers()
                 + hyperparams.get(ALPHA_GLOBAL));
         for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogPriors.put(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer);
+            dishCandidates.add(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observation));
         }
-        dishLogPriors.put(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer);
-        return dishLogPriors;
+        dishCandidates.add(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                + emptyDirMultModel.getLogLikelihood(observation));
     }
 
-    private HashMap<Integer, Double> getDishLogLikelihoods(int observation) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
+    /**
+     * Fill dishCandidates with the log probability of assigning a table to
+     * each dish, including a new dish.
+     *
+     * @param observations Word type counts of the table
+     * @param resObserved Whether the response variable is observed
+     * @param eta The regression parameter of the table
+     */
+    private void fillDishCandidates(HashMap<Integer, Integer> observations,
+            boolean resObserved, double eta) {
+        dishCandidates.clear();
+        double normalizer = Math.log(this.globalRestaurant.getTotalNumCustomers()
+                + hyperparams.get(ALPHA_GLOBAL));
         for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observation));
+            double lp = Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observations);
+            if (resObserved) {
+                lp += getDishResponseLogLikelihoodExistingTable(dish.getIndex(), eta);
+            }
+            dishCandidates.add(dish.getIndex(), lp);
         }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyDirMultModel.getLogLikelihood(observation));
-        return dishLogLikelihoods;
-    }
-
-    private HashMap<Integer, Double> getDishLogLikelihoods(HashMap<Integer, Integer> observations) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
-        for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observations));
+        double lp = Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                + emptyDirMultModel.getLogLikelihood(observations);
+        if (resObserved) {
+            lp += getDishResponseLogLikelihoodExistingTable(PSEUDO_INDEX, eta);
         }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyDirMultModel.getLogLikelihood(observations));
-        return dishLogLikelihoods;
+        dishCandidates.add(PSEUDO_INDEX, lp);
     }
 
     private int[] parseTokenId(String tokenId) {
@@ -8,6 +8,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -22,6 +23,7 @@ import sampling.likelihood.DirMult;
 import sampling.util.Restaurant;
 import sampling.util.SparseCount;
 import sampling.util.FullTable;
+import sampling.util.IndexedList;
 import sampling.util.TreeNode;
 import util.IOUtils;
 import util.MiscUtils;
@@ -67,6 +69,10 @@ public class SRCRPSampler extends AbstractSampler {
     private int numTokenAssignmentsChange;
     private int numTableAssignmentsChange;
     private int numConverged;
+    // buffers of sampling candidates, refilled for every draw
+    private final SamplerUtils.CandidateBuffer tableCandidates = new SamplerUtils.CandidateBuffer();
+    private final SamplerUtils.CandidateBuffer nodeCandidates = new SamplerUtils.CandidateBuffer();
+    private final GlobalNodeCandidates globalNodeCandidates = new GlobalNodeCandidates();
 
     public void configure(String folder,
             int[][][] words, double[][] responses,
@@ -771,11 +777,9 @@ public class SRCRPSampler extends AbstractSampler {
             }
         }
 
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
+        tableCandidates.clear();
         // for existing tables
         for (SRCRPTable table : this.localRestaurants[d].getTables()) {
-            tableIndices.add(table.getIndex());
             double logprior = Math.log(table.getNumCustomers());
             double wordLlh = table.getContent().getContent().getLogLikelihood(curObs);
             double logprob = logprior + wordLlh;
@@ -798,49 +802,29 @@ public class SRCRPSampler extends AbstractSampler {
 //                    );
             }
 
-            logprobs.add(logprob);
+            tableCandidates.add(table.getIndex(), logprob);
         }
 
-        HashMap<String, Double> nodeLogPriors = null;
-        HashMap<String, Double> nodeLogLikelihoods = null;
-        HashMap<String, Double> nodeResLogLikelihoods = null;
         if (extend) {
             // for new tables
-            tableIndices.add(PSEUDO_TABLE_INDEX);
-
             // --- compute the log priors
-            nodeLogPriors = new HashMap<String, Double>();
-            computeNodeLogPriors(nodeLogPriors, globalTreeRoot, 0.0);
+            globalNodeCandidates.clear();
+            computeNodeLogPriors(globalTreeRoot, 0.0);
 
             // --- compute the log likelihoods
-            HashMap<Integer, Integer> observations = new HashMap<Integer, Integer>();
-            observations.put(curObs, 1);
-            nodeLogLikelihoods = new HashMap<String, Double>();
-            computeWordLogLikelihoods(nodeLogLikelihoods, globalTreeRoot, observations);
-
-            // debug
-            if (nodeLogPriors.size() != nodeLogLikelihoods.size()) {
-                throw new RuntimeException("Numbers of nodes mismatch");
-            }
+            computeWordLogLikelihoods(curObs);
 
             // --- compute response log likelihoods
-            nodeResLogLikelihoods = new HashMap<String, Double>();
             if (resObserved) {
-                computeResponseLogLikelihoodsNewTable(nodeResLogLikelihoods,
-                        globalTreeRoot, responses[d][t], weightedSum, numTokens);
-
-                // debug
-                if (nodeLogPriors.size() != nodeResLogLikelihoods.size()) {
-                    throw new RuntimeException("Numbers of nodes mismatch");
-                }
+                computeResponseLogLikelihoodsNewTable(responses[d][t], weightedSum, numTokens);
             }
 
             // combine
             double marginalLlh = 0.0;
-            for (String nodePath : nodeLogPriors.keySet()) {
-                double lp = nodeLogPriors.get(nodePath) + nodeLogLikelihoods.get(nodePath);
+            for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+                double lp = globalNodeCandidates.logPriors[ii] + globalNodeCandidates.wordLlhs[ii];
                 if (resObserved) {
-                    lp += nodeResLogLikelihoods.get(nodePath);
+                    lp += globalNodeCandidates.resLlhs[ii];
                 }
 
                 if (marginalLlh == 0.0) {
@@ -862,11 +846,11 @@ public class SRCRPSampler extends AbstractSampler {
 //                    + "\n"
 //                    );
 
-            logprobs.add(logprob);
+            tableCandidates.add(PSEUDO_TABLE_INDEX, logprob);
         }
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
-        int tableIndex = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIndex = tableCandidates.getIndex(sampledIndex);
 
         // debug
 //        logln("---> index = " + sampledIndex + ". " + tableIndex + "\n\n");
@@ -878,14 +862,7 @@ public class SRCRPSampler extends AbstractSampler {
         SRCRPTable table;
         if (tableIndex == PSEUDO_TABLE_INDEX) {
             // sample global node
-            String globalNodePath = sampleNode(nodeLogPriors, nodeLogLikelihoods, nodeResLogLikelihoods, resObserved);
-            SRCRPNode globalNode;
-            if (globalNodePath.contains("-1")) { // create a new node 
-                SRCRPNode parentGlobalNode = getGlobalNode(parseParentNodePath(globalNodePath));
-                globalNode = createGlobalNode(parentGlobalNode);
-            } else {
-                globalNode = getGlobalNode(parseNodePath(globalNodePath));
-            }
+            SRCRPNode globalNode = getCandidateNode(sampleNode(resObserved));
 
             int newTableIndex = this.localRestaurants[d].getNextTableIndex();
             double tempTableRegParam = SamplerUtils.getGaussian(globalNode.getMean(), sigmas[globalNode.getLevel()]);
@@ -947,65 +924,51 @@ public class SRCRPSampler extends AbstractSampler {
         }
 
         // compute the log priors
-        HashMap<String, Double> nodeLogPriors = new HashMap<String, Double>();
-        computeNodeLogPriors(nodeLogPriors, globalTreeRoot, 0.0);
+        globalNodeCandidates.clear();
+        computeNodeLogPriors(globalTreeRoot, 0.0);
 
         // compute the log likelihoods
-        HashMap<String, Double> nodeLogLikelihoods = new HashMap<String, Double>();
-        computeWordLogLikelihoods(nodeLogLikelihoods, globalTreeRoot, observations);
-
-        if (nodeLogPriors.size() != nodeLogLikelihoods.size()) {
-            throw new RuntimeException("Numbers of nodes mismatch");
-        }
+        computeWordLogLikelihoods(observations);
 
-        HashMap<String, Double> nodeResLogLikelihoods = new HashMap<String, Double>();
         if (resObserved) {
-            computeResponseLogLikelihoodsExistingTable(nodeResLogLikelihoods, globalTreeRoot, table.getEta());
-
-            if (nodeLogPriors.size() != nodeResLogLikelihoods.size()) {
-                throw new RuntimeException("Numbers of nodes mismatch");
-            }
+            computeResponseLogLikelihoodsExistingTable(table.getEta());
         }
 
         // sample node
-        String globalNodePath = sampleNode(nodeLogPriors, nodeLogLikelihoods, nodeResLogLikelihoods, resObserved);
+        int sampledIdx = sampleNode(resObserved);
 
         // debug
         if (microDebug) {
-            ArrayList<RankingItem<String>> rankItems = new ArrayList<RankingItem<String>>();
-            for (String nodePath : nodeLogLikelihoods.keySet()) {
-                rankItems.add(new RankingItem<String>(nodePath,
-                        nodeLogPriors.get(nodePath) + nodeLogLikelihoods.get(nodePath) + nodeResLogLikelihoods.get(nodePath)));
+            ArrayList<RankingItem<Integer>> rankItems = new ArrayList<RankingItem<Integer>>();
+            for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+                rankItems.add(new RankingItem<Integer>(ii,
+                        globalNodeCandidates.logPriors[ii] + globalNodeCandidates.wordLlhs[ii]
+                        + globalNodeCandidates.resLlhs[ii]));
             }
             Collections.sort(rankItems);
 
             for (int i = 0; i < rankItems.size(); i++) {
-                String nodePath = rankItems.get(i).getObject();
+                int ii = rankItems.get(i).getObject();
                 SRCRPNode node = null;
-                if (!nodePath.contains("-1")) {
-                    node = getGlobalNode(parseNodePath(nodePath));
+                if (!globalNodeCandidates.newChild[ii]) {
+                    node = globalNodeCandidates.getNode(ii);
                 }
-                logln(nodePath
-                        + ". " + MiscUtils.formatDouble(nodeLogPriors.get(nodePath))
-                        + ". " + MiscUtils.formatDouble(nodeLogLikelihoods.get(nodePath))
-                        + ". " + MiscUtils.formatDouble(nodeResLogLikelihoods.get(nodePath))
+                logln(globalNodeCandidates.getPathString(ii)
+                        + ". " + MiscUtils.formatDouble(globalNodeCandidates.logPriors[ii])
+                        + ". " + MiscUtils.formatDouble(globalNodeCandidates.wordLlhs[ii])
+                        + ". " + MiscUtils.formatDouble(globalNodeCandidates.resLlhs[ii])
                         + ". " + MiscUtils.formatDouble(rankItems.get(i).getPrimaryValue())
                         + "\t" + (node == null ? "---" : node.toString()));
             }
-            logln("---> " + globalNodePath + "\n");
+            logln("---> " + globalNodeCandidates.getPathString(sampledIdx) + "\n");
         }
 
-        if (curNode != null && !curNode.getPathString().equals(globalNodePath)) {
+        if (curNode != null && (globalNodeCandidates.newChild[sampledIdx]
+                || globalNodeCandidates.getNode(sampledIdx) != curNode)) {
             numTableAssignmentsChange++;
         }
 
-        SRCRPNode globalNode;
-        if (globalNodePath.contains("-1")) { // create a new node
-            SRCRPNode parentGlobalNode = getGlobalNode(parseParentNodePath(globalNodePath));
-            globalNode = createGlobalNode(parentGlobalNode);
-        } else {
-            globalNode = getGlobalNode(parseNodePath(globalNodePath));
-        }
+        SRCRPNode globalNode = getCandidateNode(sampledIdx);
 
         // update
         table.setContent(globalNode);
@@ -1014,48 +977,53 @@ public class SRCRPSampler extends AbstractSampler {
     }
 
     /**
-     * Sample a global node given precomputed log priors and log likelihoods
+     * Sample a global node given the precomputed log priors and log
+     * likelihoods of the candidates
      *
-     * @param nodeLogPriors Log priors
-     * @param nodeLlhs Word log likelihood
-     * @param nodeResLlhs Response log likelihood
      * @param responseObserved Whether the response variable is observed
-     * @return The path to the sampled node
+     * @return The position of the sampled candidate
      */
-    private String sampleNode(
-            HashMap<String, Double> nodeLogPriors,
-            HashMap<String, Double> nodeLlhs,
-            HashMap<String, Double> nodeResLlhs,
-            boolean responseObserved) {
-        ArrayList<String> nodePaths = new ArrayList<String>();
-        ArrayList<Double> nodeLogProbs = new ArrayList<Double>();
-
-        for (String nodePath : nodeLogPriors.keySet()) {
-            nodePaths.add(nodePath);
-            double logprob = nodeLogPriors.get(nodePath) + nodeLlhs.get(nodePath);
+    private int sampleNode(boolean responseObserved) {
+        nodeCandidates.clear();
+        for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+            double logprob = globalNodeCandidates.logPriors[ii] + globalNodeCandidates.wordLlhs[ii];
 
             if (responseObserved) {
-                logprob += nodeResLlhs.get(nodePath);
+                logprob += globalNodeCandidates.resLlhs[ii];
             }
 
-            nodeLogProbs.add(logprob);
+            nodeCandidates.add(ii, logprob);
 
             // debug
-//            logln(nodePath
-//                    + ".\t" + MiscUtils.formatDouble(nodeLogPriors.get(nodePath))
-//                    + ". " + MiscUtils.formatDouble(nodeLlhs.get(nodePath))
-//                    + ". " + (responseObserved ? MiscUtils.formatDouble( nodeResLlhs.get(nodePath)) : "--- ")
+//            logln(globalNodeCandidates.getPathString(ii)
+//                    + ".\t" + MiscUtils.formatDouble(globalNodeCandidates.logPriors[ii])
+//                    + ". " + MiscUtils.formatDouble(globalNodeCandidates.wordLlhs[ii])
+//                    + ". " + (responseObserved ? MiscUtils.formatDouble(globalNodeCandidates.resLlhs[ii]) : "--- ")
 //                    + ". " + MiscUtils.formatDouble(logprob)
 //                    );
         }
 
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(nodeLogProbs);
-        String sampledNodePath = nodePaths.get(sampledIndex);
+        int sampledIndex = nodeCandidates.logMaxRescaleSample();
+        int candidateIndex = nodeCandidates.getIndex(sampledIndex);
 
         // debug
-//        logln("---> index = " + sampledIndex + ". " + sampledNodePath + "\n");
+//        logln("---> index = " + sampledIndex + ". " + globalNodeCandidates.getPathString(candidateIndex) + "\n");
 
-        return sampledNodePath;
+        return candidateIndex;
+    }
+
+    /**
+     * Return the global node of a candidate, creating it if the candidate is a
+     * new child node.
+     *
+     * @param ii The position of the candidate
+     */
+    private SRCRPNode getCandidateNode(int ii) {
+        SRCRPNode node = globalNodeCandidates.getNode(ii);
+        if (globalNodeCandidates.newChild[ii]) {
+            return createGlobalNode(node);
+        }
+        return node;
     }
 
     private void updateMultiscale() {
@@ -1174,125 +1142,90 @@ public class SRCRPSampler extends AbstractSampler {
     }
 
     /**
-     * Recursively compute the log likelihoods of each node in the global tree
-     * given a set of observations.
+     * Compute the log likelihoods of each candidate node given a set of
+     * observations.
      *
-     * @param nodeLlhs The hash table to store the result
-     * @param curNode The current node
      * @param observations The set of observations
      */
-    private void computeWordLogLikelihoods(HashMap<String, Double> nodeLlhs,
-            SRCRPNode curNode,
-            HashMap<Integer, Integer> observations) {
-        double curNodeLlh = curNode.getContent().getLogLikelihood(observations);
-        nodeLlhs.put(curNode.getPathString(), curNodeLlh);
-
-        if (!this.isLeafNode(curNode)) {
-            double pseudoChildLlh = this.emptyModels[curNode.getLevel()].getLogLikelihood(observations);
-            nodeLlhs.put(curNode.getPseudoChildPathString(), pseudoChildLlh);
+    private void computeWordLogLikelihoods(HashMap<Integer, Integer> observations) {
+        for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+            SRCRPNode node = globalNodeCandidates.getNode(ii);
+            if (globalNodeCandidates.newChild[ii]) {
+                globalNodeCandidates.wordLlhs[ii] = this.emptyModels[node.getLevel()].getLogLikelihood(observations);
+            } else {
+                globalNodeCandidates.wordLlhs[ii] = node.getContent().getLogLikelihood(observations);
+            }
+        }
+    }
 
-            for (SRCRPNode child : curNode.getChildren()) {
-                computeWordLogLikelihoods(nodeLlhs, child, observations);
+    /**
+     * Compute the log likelihoods of each candidate node given a single
+     * observation.
+     *
+     * @param observation The observation
+     */
+    private void computeWordLogLikelihoods(int observation) {
+        for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+            SRCRPNode node = globalNodeCandidates.getNode(ii);
+            if (globalNodeCandidates.newChild[ii]) {
+                globalNodeCandidates.wordLlhs[ii] = this.emptyModels[node.getLevel()].getLogLikelihood(observation);
+            } else {
+                globalNodeCandidates.wordLlhs[ii] = node.getContent().getLogLikelihood(observation);
             }
         }
     }
 
     /**
-     * Compute the log probability of assigning an existing table to a possible
-     * node in the tree based on the response variable.
+     * Compute the log probability of assigning an existing table to each
+     * candidate node based on the response variable.
      *
-     * @param resLlhs The hash table storing the result
-     * @param curNode The current node in the recursive call
      * @param eta The regression parameter
      */
-    private void computeResponseLogLikelihoodsExistingTable(
-            HashMap<String, Double> resLlhs,
-            SRCRPNode curNode,
-            double eta) {
-        double mean = curNode.getMean();
-//        double var = curNode.getVariance();
-        double var = sigmas[curNode.getLevel()];
-        double curNodeResLlh = StatUtils.logNormalProbability(eta, mean, Math.sqrt(var));
-        resLlhs.put(curNode.getPathString(), curNodeResLlh);
-
-        // debug
-//        logln("cur node: " + curNode.toString() 
-//                + ". mean = " + MiscUtils.formatDouble(mean)
-//                + ". var = " + MiscUtils.formatDouble(var)
-//                + ". llh = " + MiscUtils.formatDouble(curNodeResLlh)
-//                );
-
-        if (!this.isLeafNode(curNode)) {
-            double pseudoVar = var + this.sigmas[curNode.getLevel() + 1];
-            double pseudoResLlh = StatUtils.logNormalProbability(eta, mean, Math.sqrt(pseudoVar));
-            resLlhs.put(curNode.getPseudoChildPathString(), pseudoResLlh);
-
-            // debug
-//            logln("pseudo " + curNode.getPseudoChildPathString()
-//                    + ". var = " + MiscUtils.formatDouble(pseudoVar)
-//                    + ". llh = " + MiscUtils.formatDouble(pseudoResLlh));
-
-            for (SRCRPNode child : curNode.getChildren()) {
-                computeResponseLogLikelihoodsExistingTable(resLlhs, child, eta);
+    private void computeResponseLogLikelihoodsExistingTable(double eta) {
+        for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+            SRCRPNode node = globalNodeCandidates.getNode(ii);
+            double mean = node.getMean();
+//            double var = node.getVariance();
+            double var = sigmas[node.getLevel()];
+            if (globalNodeCandidates.newChild[ii]) {
+                var += this.sigmas[node.getLevel() + 1];
             }
+            globalNodeCandidates.resLlhs[ii] = StatUtils.logNormalProbability(eta, mean, Math.sqrt(var));
         }
     }
 
     /**
-     * Recursively compute the log probability of assigning a new table to a
-     * possible node in the tree based on the response variable
+     * Compute the log probability of assigning a new table to each candidate
+     * node based on the response variable
      *
-     * @param resLlhs The results
-     * @param curNode The current node in the recursive call
      * @param response Value of the response variable
      * @param weightedSum The current weight sum
      * @param count Number of tokens
      */
     private void computeResponseLogLikelihoodsNewTable(
-            HashMap<String, Double> resLlhs,
-            SRCRPNode curNode,
             double response,
             double weightedSum,
             int count) {
-        double mean = (weightedSum + curNode.getMean()) / count;
-        double var = sigmas[curNode.getLevel()] / (count * count) + hyperparams.get(RHO);
-        double curNodeResLlh = StatUtils.logNormalProbability(response, mean, Math.sqrt(var));
-        resLlhs.put(curNode.getPathString(), curNodeResLlh);
-
-        // debug
-//        logln("cur node: " + curNode.toString() 
-//                + ". sum = " + MiscUtils.formatDouble(sum)
-//                + ". mean = " + MiscUtils.formatDouble(mean)
-//                + ". var = " + MiscUtils.formatDouble(var)
-//                + ". llh = " + MiscUtils.formatDouble(curNodeResLlh)
-//                );
-
-        if (!this.isLeafNode(curNode)) {
-            double pseudoVar = var + sigmas[curNode.getLevel() + 1] / (count * count);
-            double pseudoResLlh = StatUtils.logNormalProbability(response, mean, Math.sqrt(pseudoVar));
-            resLlhs.put(curNode.getPseudoChildPathString(), pseudoResLlh);
-
-            // debug
-//            logln("pseudo " + curNode.getPseudoChildPathString()
-//                    + ". var = " + MiscUtils.formatDouble(pseudoVar)
-//                    + ". llh = " + MiscUtils.formatDouble(pseudoResLlh));
-
-            for (SRCRPNode child : curNode.getChildren()) {
-                computeResponseLogLikelihoodsNewTable(resLlhs, child, response, weightedSum, count);
+        for (int ii = 0; ii < globalNodeCandidates.size(); ii++) {
+            SRCRPNode node = globalNodeCandidates.getNode(ii);
+            double mean = (weightedSum + node.getMean()) / count;
+            double var = sigmas[node.getLevel()] / (count * count) + hyperparams.get(RHO);
+            if (globalNodeCandidates.newChild[ii]) {
+                var += sigmas[node.getLevel() + 1] / (count * count);
             }
+            globalNodeCandidates.resLlhs[ii] = StatUtils.logNormalProbability(response, mean, Math.sqrt(var));
         }
     }
 
     /**
      * Recursively compute the log priors of all possible assignments (including
-     * existing and new nodes) of the global tree.
+     * existing and new nodes) of the global tree, which become the candidate
+     * nodes.
      *
-     * @param logPriors The hash table to store the result
      * @param curNode The current node
      * @param passingLogProb The log probability passed from the parent node
      */
     private void computeNodeLogPriors(
-            HashMap<String, Double> logPriors,
             SRCRPNode curNode,
             double passingLogProb) {
 
@@ -1308,14 +1241,64 @@ public class SRCRPSampler extends AbstractSampler {
             curNodeLogProb = Math.log(curNode.getNumNodeCustomers()) - normalizer;
 
             double pseudoChildLogProb = Math.log(gammas[curNode.getLevel()]) - normalizer;
-            logPriors.put(curNode.getPseudoChildPathString(), passingLogProb + pseudoChildLogProb);
+            globalNodeCandidates.add(curNode, true, passingLogProb + pseudoChildLogProb);
 
             for (SRCRPNode child : curNode.getChildren()) {
                 double childLogProb = Math.log(child.getNumPathCustomers()) - normalizer;
-                computeNodeLogPriors(logPriors, child, passingLogProb + childLogProb);
+                computeNodeLogPriors(child, passingLogProb + childLogProb);
+            }
+        }
+        globalNodeCandidates.add(curNode, false, passingLogProb + curNodeLogProb);
+    }
+
+    /**
+     * Candidate nodes of the global tree for a table: the existing nodes and
+     * a new child of each internal node, with their log priors and log
+     * likelihoods. The arrays are reused across draws and only grow with the
+     * size of the tree.
+     */
+    private static class GlobalNodeCandidates {
+
+        private final ArrayList<SRCRPNode> nodes = new ArrayList<SRCRPNode>();
+        boolean[] newChild = new boolean[0]; // whether the candidate is a new child of the node
+        double[] logPriors = new double[0];
+        double[] wordLlhs = new double[0];
+        double[] resLlhs = new double[0];
+
+        void clear() {
+            nodes.clear();
+        }
+
+        void add(SRCRPNode node, boolean isNewChild, double logPrior) {
+            int ii = nodes.size();
+            if (ii == logPriors.length) {
+                int capacity = Math.max(16, 2 * ii);
+                newChild = Arrays.copyOf(newChild, capacity);
+                logPriors = Arrays.copyOf(logPriors, capacity);
+                wordLlhs = Arrays.copyOf(wordLlhs, capacity);
+                resLlhs = Arrays.copyOf(resLlhs, capacity);
+            }
+            nodes.add(node);
+            newChild[ii] = isNewChild;
+            logPriors[ii] = logPrior;
+            wordLlhs[ii] = 0.0;
+            resLlhs[ii] = 0.0;
+        }
+
+        int size() {
+            return nodes.size();
+        }
+
+        SRCRPNode getNode(int ii) {
+            return nodes.get(ii);
+        }
+
+        String getPathString(int ii) {
+            if (newChild[ii]) {
+                return nodes.get(ii).getPseudoChildPathString();
             }
+            return nodes.get(ii).getPathString();
         }
-        logPriors.put(curNode.getPathString(), passingLogProb + curNodeLogProb);
     }
 
     private int[] parseTokenId(String tokenId) {
@@ -2264,7 +2247,7 @@ public class SRCRPSampler extends AbstractSampler {
 
 class SRCRPNode extends TreeNode<SRCRPNode, DirMult> {
 
-    ArrayList<SRCRPTable> customers;
+    IndexedList<SRCRPTable> customers;
     int numPathCustomers; // number of customers on the path from root to this node (including customers in the subtree)
     private double mean;
 
@@ -2272,7 +2255,7 @@ class SRCRPNode extends TreeNode<SRCRPNode, DirMult> {
             double mean) {
         super(index, level, content, parent);
         this.numPathCustomers = 0;
-        this.customers = new ArrayList<SRCRPTable>();
+        this.customers = new IndexedList<SRCRPTable>();
         this.mean = mean;
     }
 
@@ -2296,7 +2279,7 @@ class SRCRPNode extends TreeNode<SRCRPNode, DirMult> {
         this.mean = mean;
     }
 
-    ArrayList<SRCRPTable> getCustomers() {
+    IndexedList<SRCRPTable> getCustomers() {
         return this.customers;
     }
 
@@ -2391,7 +2374,6 @@ class SRCRPTable extends FullTable<String, SRCRPNode> {
     SRCRPTable(int index, SRCRPNode content, int restId, double eta) {
         super(index, content);
         this.restIndex = restId;
-        this.customers = new ArrayList<String>();
         this.eta = eta;
     }
 
@@ -63,6 +63,7 @@ public class SHDP extends AbstractSampler {
     private SparseCount[] docTopics;
     private Topics topicWords;
     private int[][] z;
+    private final SamplerUtils.CandidateBuffer candidates = new SamplerUtils.CandidateBuffer();
     // optimization
     protected double[] docRegressMeans;
     protected SparseVector[] designMatrix;
@@ -495,10 +496,8 @@ public class SHDP extends AbstractSampler {
                     }
                 }
 
-                ArrayList<Integer> indices = new ArrayList<Integer>();
-                ArrayList<Double> logprobs = new ArrayList<Double>();
+                candidates.clear();
                 for (int k : topicWords.getIndices()) {
-                    indices.add(k);
                     double docTopicProb = docTopics[ii].getCount(k)
                             + hyperparams.get(ALPHA_LOCAL) * globalWeights.get(k);
                     double topicWordProb =
@@ -511,11 +510,10 @@ public class SHDP extends AbstractSampler {
                                 + topicWords.getComponent(k).param / words[dd].length;
                         logprob += StatUtils.logNormalProbability(responses[ii], mean, rhoSqrt);
                     }
-                    logprobs.add(logprob);
+                    candidates.add(k, logprob);
                 }
 
                 if (addToModel) {
-                    indices.add(NEW_COMPONENT_INDEX);
                     double docTopicProb = hyperparams.get(ALPHA_LOCAL)
                             * globalWeights.get(NEW_COMPONENT_INDEX);
                     double topicWordProb = uniform;
@@ -527,21 +525,21 @@ public class SHDP extends AbstractSampler {
                         double resLlh = StatUtils.logNormalProbability(responses[ii], mean, Math.sqrt(var));
                         logprob += resLlh;
                     }
-                    logprobs.add(logprob);
+                    candidates.add(NEW_COMPONENT_INDEX, logprob);
                 }
 
-                int sampledIdx = SamplerUtils.logMaxRescaleSample(logprobs);
-                if (sampledIdx == logprobs.size()) {
-                    for (int jj = 0; jj < indices.size(); jj++) {
+                int sampledIdx = candidates.logMaxRescaleSample();
+                if (sampledIdx == candidates.size()) {
+                    for (int jj = 0; jj < candidates.size(); jj++) {
                         System.out.println(jj
-                                + "\t" + indices.get(jj)
-                                + "\t" + logprobs.get(jj)
-                                + "\t" + globalWeights.get(indices.get(jj)));
+                                + "\t" + candidates.getIndex(jj)
+                                + "\t" + candidates.getValue(jj)
+                                + "\t" + globalWeights.get(candidates.getIndex(jj)));
                     }
                     throw new RuntimeException("Out-of-bound sampling. Size = "
-                            + logprobs.size());
+                            + candidates.size());
                 }
-                int newZ = indices.get(sampledIdx);
+                int newZ = candidates.getIndex(sampledIdx);
 
                 if (curZ != newZ) {
                     numTokensChange++;
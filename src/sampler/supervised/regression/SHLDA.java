@@ -100,6 +100,10 @@ public class SHLDA extends AbstractSampler
     protected int[] initBranchFactor = new int[]{16, 3};
     private int numAccepts;
     private int numProposes;
+    // buffers of sampling candidates, refilled for every draw
+    private final SamplerUtils.CandidateBuffer tableCandidates = new SamplerUtils.CandidateBuffer();
+    private final SamplerUtils.CandidateBuffer nodeCandidates = new SamplerUtils.CandidateBuffer();
+    private final PathCandidates pathCandidates = new PathCandidates();
     private String seededAssignmentFile;
 
     public void setInitialBranchingFactor(int[] bf) {
@@ -808,14 +812,12 @@ public class SHLDA extends AbstractSampler
         if (node.getLevel() == L - 1) {
             return node;
         }
-        ArrayList<SNode> children = new ArrayList<SNode>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
+        nodeCandidates.clear();
         for (SNode child : node.getChildren()) {
-            children.add(child);
-            logprobs.add(node.getLogProbability(obs));
+            nodeCandidates.add(child.getIndex(), node.getLogProbability(obs));
         }
-        int sampledIdx = SamplerUtils.logMaxRescaleSample(logprobs);
-        SNode sampledNode = children.get(sampledIdx);
+        int sampledIdx = nodeCandidates.logMaxRescaleSample();
+        SNode sampledNode = node.getChild(nodeCandidates.getIndex(sampledIdx));
         return recurseNode(sampledNode, obs);
     }
 
@@ -1211,19 +1213,16 @@ public class SHLDA extends AbstractSampler
             return curNode;
         }
 
-        ArrayList<Integer> children = new ArrayList<Integer>();
-        ArrayList<Double> probs = new ArrayList<Double>();
+        nodeCandidates.clear();
         for (SNode child : curNode.getChildren()) {
-            children.add(child.getIndex());
-            probs.add((double) child.getNumTables());
+            nodeCandidates.add(child.getIndex(), child.getNumTables());
         }
         if (extend) {
-            children.add(PSEUDO_NODE_INDEX);
-            probs.add(gammas[curNode.getLevel()]);
+            nodeCandidates.add(PSEUDO_NODE_INDEX, gammas[curNode.getLevel()]);
         }
 
-        int idx = SamplerUtils.scaleSample(probs);
-        int nodeIdx = children.get(idx);
+        int idx = nodeCandidates.scaleSample();
+        int nodeIdx = nodeCandidates.getIndex(idx);
         if (nodeIdx == PSEUDO_NODE_INDEX) {
             return curNode;
         } else {
@@ -1291,86 +1290,37 @@ public class SHLDA extends AbstractSampler
         }
 
         // sample 
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> tableLps = new ArrayList<Double>();
-
-        HashMap<SNode, int[]> proposedZs = new HashMap<SNode, int[]>();
-        HashMap<SNode, Double> proposedLps = new HashMap<SNode, Double>();
-
         // path log prior
-        HashMap<SNode, Double> pathLogpriors = new HashMap<SNode, Double>();
-        computePathLogPrior(pathLogpriors, globalTreeRoot, 0.0, extend);
+        pathCandidates.clear(d, s);
+        computePathLogPriors(extend);
 
         // --- new table (randomly choose a path from prior)
-        ArrayList<SNode> allPathNodes = new ArrayList<SNode>();
-        ArrayList<Double> allPathLogpriors = new ArrayList<Double>();
-        for (SNode node : pathLogpriors.keySet()) {
-            allPathNodes.add(node);
-            allPathLogpriors.add(pathLogpriors.get(node));
-        }
-        int newTabSampledIdx = SamplerUtils.logMaxRescaleSample(allPathLogpriors);
-        SNode newTabSampledNode = allPathNodes.get(newTabSampledIdx);
-        double newTabLp = 0.0;
-        int[] newTableZs = new int[words[d][s].length];
-        SNode[] path = getPathFromNode(newTabSampledNode);
-
-        // sample level for each token
-        for (int n = 0; n < words[d][s].length; n++) {
-            double[] lps = new double[L];
-
-            for (int ll = 0; ll < L; ll++) {
-                // word log likelihood
-                double wordLlh;
-                if (ll < path.length) {
-                    wordLlh = path[ll].getLogProbability(words[d][s][n]);
-                } else { // approx using ancestor
-                    wordLlh = path[path.length - 1].getLogProbability(words[d][s][n]);
-                }
-                lps[ll] = docLevelDist[d].getLogLikelihood(ll) + wordLlh;
-            }
-
-            int idx = SamplerUtils.logMaxRescaleSample(lps);
-            newTabLp += lps[idx];
-            newTableZs[n] = idx;
-        }
-        proposedZs.put(newTabSampledNode, newTableZs);
-        proposedLps.put(newTabSampledNode, newTabLp);
-
+        int newTabPathIdx = samplePath(false, false);
+        SNode newTabSampledNode = pathCandidates.getNode(newTabPathIdx);
+        proposeTokenAssignments(d, s, newTabPathIdx);
 
         // propose assignments
-        proposeTokenAssignments(d, s, proposedZs, proposedLps);
+        proposeTokenAssignments(d, s);
 
         // path response llhs
-        HashMap<SNode, Double> pathResLlhs = new HashMap<SNode, Double>();
         if (observed) {
-            computePathResponseLogLikelihood(pathResLlhs, docValues[d], denom,
-                    responses[d], proposedZs);
+            computePathResponseLogLikelihood(docValues[d], denom, responses[d]);
         }
 
-        // debug
-//        boolean condition = (d == 10);
-//        if (condition) {
-//            logln("ppZs: " + proposedZs.size()
-//                    + "\tppLps: " + proposedLps.size()
-//                    + "\tprior" + pathLogpriors.size()
-//                    + "\tres: " + pathResLlhs.size());
-//        }
-
         // sample table for this sentence
 
         // --- existing tables
+        tableCandidates.clear();
         for (STable table : this.localRestaurants[d].getTables()) {
-            tableIndices.add(table.getIndex());
-
-            SNode pathNode = table.getContent();
+            int pathIdx = table.getContent().candidateIndex;
             double resLlh = 0.0;
             if (observed) {
-                resLlh = pathResLlhs.get(pathNode);
+                resLlh = pathCandidates.resLlhs[pathIdx];
             }
             double lp = Math.log(table.getNumCustomers())
-                    + proposedLps.get(pathNode)
+                    + pathCandidates.wordLlhs[pathIdx]
                     + resLlh;
-            tableLps.add(lp);
+            tableCandidates.add(table.getIndex(), lp);
 
             // debug
 //            if (condition) {
@@ -1381,18 +1331,20 @@ public class SHLDA extends AbstractSampler
 //                        + ". # custs: " + table.getNumCustomers()
 //                        + ". leaf: " + table.getContent().getPathString()
 //                        + ". " + MiscUtils.formatDouble(Math.log(table.getNumCustomers()))
-//                        + ". " + MiscUtils.formatDouble(proposedLps.get(pathNode))
+//                        + ". " + MiscUtils.formatDouble(pathCandidates.wordLlhs[pathIdx])
 //                        + ". " + MiscUtils.formatDouble(resLlh)
 //                        + ". " + MiscUtils.formatDouble(lp));
 //            }
         }
 
-        tableIndices.add(PSEUDO_TABLE_INDEX);
         double newTabLogPrior = logAlpha;
-        double newTabWordLlh = proposedLps.get(newTabSampledNode);
-        double newTabResLlh = pathResLlhs.get(newTabSampledNode);
+        double newTabWordLlh = pathCandidates.wordLlhs[newTabPathIdx];
+        double newTabResLlh = 0.0;
+        if (observed) {
+            newTabResLlh = pathCandidates.resLlhs[newTabPathIdx];
+        }
         double newTabLogprob = newTabLogPrior + newTabWordLlh + newTabResLlh;
-        tableLps.add(newTabLogprob);
+        tableCandidates.add(PSEUDO_TABLE_INDEX, newTabLogprob);
 
         // debug
 //        if (condition) {
@@ -1408,8 +1360,8 @@ public class SHLDA extends AbstractSampler
 
         // update new assignments
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(tableLps);
-        int tableIdx = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIdx = tableCandidates.getIndex(sampledIndex);
 
         // debug
 //        if (condition) {
@@ -1429,7 +1381,7 @@ public class SHLDA extends AbstractSampler
             table = new STable(iter, newTableIdx, null, d);
             localRestaurants[d].addTable(table);
 
-            newZs = proposedZs.get(newTabSampledNode);
+            newZs = pathCandidates.assignments[newTabPathIdx];
             if (!isLeafNode(newTabSampledNode)) {
                 newTabSampledNode = createNewPath(newTabSampledNode);
             }
@@ -1437,7 +1389,7 @@ public class SHLDA extends AbstractSampler
             addTableToPath(table.getContent());
         } else {
             table = localRestaurants[d].getTable(tableIdx);
-            newZs = proposedZs.get(table.getContent());
+            newZs = pathCandidates.assignments[table.getContent().candidateIndex];
         }
 
         c[d][s] = table;
@@ -1499,39 +1451,34 @@ public class SHLDA extends AbstractSampler
             removeObservationsFromPath(curTable.getContent(), sentObsCountPerLevel);
         }
 
+        // path log prior
+        pathCandidates.clear(d, s);
+        computePathLogPriors(extend);
+
         // for each possible path, sample a new set of level assignments for
         // tokens in this sentence.
-        HashMap<SNode, int[]> proposedZs = new HashMap<SNode, int[]>();
-        HashMap<SNode, Double> proposedLps = new HashMap<SNode, Double>();
-        proposeTokenAssignments(d, s, proposedZs, proposedLps, extend);
-
-        // path log prior
-        HashMap<SNode, Double> pathLogpriors = new HashMap<SNode, Double>();
-        computePathLogPrior(pathLogpriors, globalTreeRoot, 0.0, extend);
+        for (int ii = 0; ii < pathCandidates.numPriorPaths; ii++) {
+            proposeTokenAssignments(d, s, ii);
+        }
 
         // path response llhs
-        HashMap<SNode, Double> pathResLlhs = new HashMap<SNode, Double>();
         if (observed) {
-            computePathResponseLogLikelihood(pathResLlhs, docValues[d],
-                    denom, responses[d], proposedZs);
+            computePathResponseLogLikelihood(docValues[d], denom, responses[d]);
         }
 
         // sample table for this sentence
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> tableLps = new ArrayList<Double>();
         // --- existing tables
+        tableCandidates.clear();
         for (STable table : this.localRestaurants[d].getTables()) {
-            tableIndices.add(table.getIndex());
-
-            SNode pathNode = table.getContent();
+            int pathIdx = table.getContent().candidateIndex;
             double resLlh = 0.0;
             if (observed) {
-                resLlh = pathResLlhs.get(pathNode);
+                resLlh = pathCandidates.resLlhs[pathIdx];
             }
             double lp = Math.log(table.getNumCustomers())
-                    + proposedLps.get(pathNode)
+                    + pathCandidates.wordLlhs[pathIdx]
                     + resLlh;
-            tableLps.add(lp);
+            tableCandidates.add(table.getIndex(), lp);
 
             // debug
 //            if (d == 0) {
@@ -1541,17 +1488,16 @@ public class SHLDA extends AbstractSampler
 //                        + ". table: " + table.getIndex()
 //                        + ". leaf: " + table.getContent().getPathString()
 //                        + ". " + MiscUtils.formatDouble(Math.log(table.getNumCustomers()))
-//                        + ". " + MiscUtils.formatDouble(proposedLps.get(pathNode))
+//                        + ". " + MiscUtils.formatDouble(pathCandidates.wordLlhs[pathIdx])
 //                        + ". " + MiscUtils.formatDouble(resLlh)
 //                        + ". " + MiscUtils.formatDouble(lp));
 //            }
         }
 
         // --- new table
-        tableIndices.add(PSEUDO_TABLE_INDEX);
         double newTabLp = logAlpha
-                + computeMarginals(pathLogpriors, proposedLps, pathResLlhs, observed);
-        tableLps.add(newTabLp);
+                + computeMarginals(observed);
+        tableCandidates.add(PSEUDO_TABLE_INDEX, newTabLp);
 
         // debug
 //        if (d == 0) {
@@ -1563,8 +1509,8 @@ public class SHLDA extends AbstractSampler
 //        }
 
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(tableLps);
-        int tableIdx = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIdx = tableCandidates.getIndex(sampledIndex);
 
         // debug
 //        if (d == 0) {
@@ -1584,8 +1530,9 @@ public class SHLDA extends AbstractSampler
             table = new STable(iter, newTableIdx, null, d);
             localRestaurants[d].addTable(table);
 
-            SNode newNode = samplePath(pathLogpriors, proposedLps, pathResLlhs, observed);
-            newZs = proposedZs.get(newNode);
+            int newPathIdx = samplePath(true, observed);
+            SNode newNode = pathCandidates.getNode(newPathIdx);
+            newZs = pathCandidates.assignments[newPathIdx];
             if (!isLeafNode(newNode)) {
                 newNode = createNewPath(newNode);
             }
@@ -1593,7 +1540,7 @@ public class SHLDA extends AbstractSampler
             addTableToPath(table.getContent());
         } else {
             table = localRestaurants[d].getTable(tableIdx);
-            newZs = proposedZs.get(table.getContent());
+            newZs = pathCandidates.assignments[table.getContent().candidateIndex];
 
         }
 
@@ -1624,30 +1571,26 @@ public class SHLDA extends AbstractSampler
     }
 
     /**
-     * Sample a path
+     * Sample a path among the candidate paths whose log priors are computed
      *
-     * @param logPriors Path log priors
-     * @param wordLlhs Path word log likelihoods
-     * @param resLlhs Path response variable log likelihoods
+     * @param useWordLlhs Whether the word log likelihoods are used
+     * @param observed Whether the response variable log likelihoods are used
+     * @return The position of the sampled path in the candidates
      */
-    SNode samplePath(
-            HashMap<SNode, Double> logPriors,
-            HashMap<SNode, Double> wordLlhs,
-            HashMap<SNode, Double> resLlhs,
-            boolean observed) {
-        ArrayList<SNode> pathList = new ArrayList<SNode>();
-        ArrayList<Double> logProbs = new ArrayList<Double>();
-        for (SNode node : logPriors.keySet()) {
-            double lp = logPriors.get(node) + wordLlhs.get(node);
+    int samplePath(boolean useWordLlhs, boolean observed) {
+        nodeCandidates.clear();
+        for (int ii = 0; ii < pathCandidates.numPriorPaths; ii++) {
+            double lp = pathCandidates.logPriors[ii];
+            if (useWordLlhs) {
+                lp += pathCandidates.wordLlhs[ii];
+            }
             if (observed) {
-                lp += resLlhs.get(node);
+                lp += pathCandidates.resLlhs[ii];
             }
-            pathList.add(node);
-            logProbs.add(lp);
+            nodeCandidates.add(ii, lp);
         }
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logProbs);
-        SNode path = pathList.get(sampledIndex);
-        return path;
+        int sampledIndex = nodeCandidates.logMaxRescaleSample();
+        return nodeCandidates.getIndex(sampledIndex);
     }
 
     /**
@@ -1656,137 +1599,71 @@ public class SHLDA extends AbstractSampler
      *
      * @param d The document index
      * @param s The sentence index
-     * @param ppAssignments Map to store the proposed assignments
-     * @param ppLogprobs Map to store the corresponding log probabilities of the
-     * proposed assignments
      */
-    void proposeTokenAssignments(int d, int s,
-            HashMap<SNode, int[]> ppAssignments,
-            HashMap<SNode, Double> ppLogprobs) {
-        // log prior of each level: shared across document
-        double[] logpriors = new double[L];
-        for (int ll = 0; ll < L; ll++) {
-            logpriors[ll] = docLevelDist[d].getLogLikelihood(ll);
-        }
-
+    void proposeTokenAssignments(int d, int s) {
         for (STable table : localRestaurants[d].getTables()) {
-            SNode node = table.getContent();
-            if (ppAssignments.containsKey(node)) {
-                continue;
-            }
-
-            int[] asgns = new int[words[d][s].length];
-            double lp = 0.0;
-            SNode[] path = getPathFromNode(node);
-
-            // sample level for each token
-            for (int n = 0; n < words[d][s].length; n++) {
-                double[] lps = new double[L];
-
-                for (int ll = 0; ll < L; ll++) {
-                    // word log likelihood
-                    double wordLlh;
-                    if (ll < path.length) {
-                        wordLlh = path[ll].getLogProbability(words[d][s][n]);
-                    } else { // approx using ancestor
-                        wordLlh = path[path.length - 1].getLogProbability(words[d][s][n]);
-                    }
-                    lps[ll] = logpriors[ll] + wordLlh;
-                }
-
-                int idx = SamplerUtils.logMaxRescaleSample(lps);
-                asgns[n] = idx;
-                lp += lps[idx];
+            int pathIdx = pathCandidates.add(table.getContent());
+            if (!pathCandidates.proposed[pathIdx]) {
+                proposeTokenAssignments(d, s, pathIdx);
             }
-
-            ppAssignments.put(node, asgns);
-            ppLogprobs.put(node, lp);
         }
     }
 
     /**
-     * Propose the assignments for all tokens in a given sentence considering
-     * all possible paths in the global tree.
+     * Propose the assignments for all tokens in a given sentence when it is
+     * assigned to a candidate path, and store them with their log probability
+     * in the candidates.
      *
      * @param d The document index
      * @param s The sentence index
-     * @param ppAssignments Map to store the proposed assignments
-     * @param ppLogprobs Map to store the corresponding log probabilities of the
-     * proposed assignments
-     * @param extend Whether extending the tree
+     * @param pathIdx The position of the path in the candidates
      */
-    void proposeTokenAssignments(int d, int s,
-            HashMap<SNode, int[]> ppAssignments,
-            HashMap<SNode, Double> ppLogprobs,
-            boolean extend) {
-        // log prior of each level: shared across document
-        double[] logpriors = new double[L];
-        for (int ll = 0; ll < L; ll++) {
-            logpriors[ll] = docLevelDist[d].getLogLikelihood(ll);
-        }
-
-        Stack<SNode> stack = new Stack<SNode>();
-        stack.add(globalTreeRoot);
-        while (!stack.isEmpty()) {
-            SNode node = stack.pop();
-            for (SNode child : node.getChildren()) {
-                stack.add(child);
-            }
+    void proposeTokenAssignments(int d, int s, int pathIdx) {
+        int[] asgns = pathCandidates.getAssignments(pathIdx);
+        int pathLength = pathCandidates.fillPath(pathIdx);
+        SNode[] path = pathCandidates.path;
+        double[] lps = pathCandidates.levelLps;
+        double[] weights = pathCandidates.levelWeights;
+        double lp = 0.0;
 
-            if (!extend && !isLeafNode(node)) {
-                continue;
-            }
-
-            int[] asgns = new int[words[d][s].length];
-            double lp = 0.0;
-            SNode[] path = getPathFromNode(node);
-
-            // sample level for each token
-            for (int n = 0; n < words[d][s].length; n++) {
-                double[] lps = new double[L];
-
-                for (int ll = 0; ll < L; ll++) {
-                    // word log likelihood
-                    double wordLlh;
-                    if (ll < path.length) {
-                        wordLlh = path[ll].getLogProbability(words[d][s][n]);
-                    } else { // approx using ancestor
-                        wordLlh = path[path.length - 1].getLogProbability(words[d][s][n]);
-                    }
-                    lps[ll] = logpriors[ll] + wordLlh;
+        // sample level for each token
+        for (int n = 0; n < words[d][s].length; n++) {
+            for (int ll = 0; ll < L; ll++) {
+                // word log likelihood
+                double wordLlh;
+                if (ll < pathLength) {
+                    wordLlh = path[ll].getLogProbability(words[d][s][n]);
+                } else { // approx using ancestor
+                    wordLlh = path[pathLength - 1].getLogProbability(words[d][s][n]);
                 }
-
-                int idx = SamplerUtils.logMaxRescaleSample(lps);
-                asgns[n] = idx;
-                lp += lps[idx];
+                lps[ll] = pathCandidates.levelLogPriors[ll] + wordLlh;
             }
 
-            ppAssignments.put(node, asgns);
-            ppLogprobs.put(node, lp);
+            System.arraycopy(lps, 0, weights, 0, L);
+            int idx = SamplerUtils.logMaxRescaleSample(weights, L);
+            if (idx == L) {
+                throw new RuntimeException("Failed to sample level of token " + n
+                        + " in sentence " + s + " of document " + d);
+            }
+            asgns[n] = idx;
+            lp += lps[idx];
         }
+        pathCandidates.wordLlhs[pathIdx] = lp;
+        pathCandidates.proposed[pathIdx] = true;
     }
 
     /**
      * Compute the log probability of a new table, marginalized over all
      * possible paths
      *
-     * @param pathLogPriors The log priors of each path
-     * @param pathWordLogLikelihoods The word likelihoods
-     * @param pathResLogLikelihoods The response variable likelihoods
+     * @param resObserved Whether the response variable is observed
      */
-    double computeMarginals(
-            HashMap<SNode, Double> pathLogPriors,
-            HashMap<SNode, Double> pathWordLogLikelihoods,
-            HashMap<SNode, Double> pathResLogLikelihoods,
-            boolean resObserved) {
+    double computeMarginals(boolean resObserved) {
         double marginal = 0.0;
-        for (SNode node : pathLogPriors.keySet()) {
-            double logprior = pathLogPriors.get(node);
-            double loglikelihood = pathWordLogLikelihoods.get(node);
-
-            double lp = logprior + loglikelihood;
+        for (int ii = 0; ii < pathCandidates.numPriorPaths; ii++) {
+            double lp = pathCandidates.logPriors[ii] + pathCandidates.wordLlhs[ii];
             if (resObserved) {
-                lp += pathResLogLikelihoods.get(node);
+                lp += pathCandidates.resLlhs[ii];
             }
 
             if (marginal == 0.0) {
@@ -1800,35 +1677,38 @@ public class SHLDA extends AbstractSampler
 
     /**
      * Compute the log likelihoods of an author response when assigning a set of
-     * tokens (represented by their level assignments) to each path in the tree.
+     * tokens (represented by their proposed level assignments) to each
+     * candidate path.
      *
-     * @param nodeResLogProbs Map to store the results
      * @param curAuthorVal Current author value
      * @param denom
+     * @param authorResponse The author response
      */
     void computePathResponseLogLikelihood(
-            HashMap<SNode, Double> nodeResLogProbs,
             double curAuthorVal, double denom,
-            double authorResponse,
-            HashMap<SNode, int[]> proposedZs) {
-        for (SNode pathNode : proposedZs.keySet()) {
-            SNode[] path = getPathFromNode(pathNode);
+            double authorResponse) {
+        int[] levelCounts = pathCandidates.levelCounts;
+        SNode[] path = pathCandidates.path;
+        for (int ii = 0; ii < pathCandidates.size(); ii++) {
+            if (!pathCandidates.proposed[ii]) {
+                continue;
+            }
+            int pathLength = pathCandidates.fillPath(ii);
 
-            int[] ppZs = proposedZs.get(pathNode);
-            int[] levelCounts = new int[L];
-            for (int ii = 0; ii < ppZs.length; ii++) {
-                levelCounts[ppZs[ii]]++;
+            int[] ppZs = pathCandidates.assignments[ii];
+            Arrays.fill(levelCounts, 0);
+            for (int n = 0; n < pathCandidates.numTokens; n++) {
+                levelCounts[ppZs[n]]++;
             }
 
             double addReg = 0.0;
             int level;
-            for (level = 0; level < path.length; level++) {
+            for (level = 0; level < pathLength; level++) {
                 addReg += path[level].getRegressionParameter() * levelCounts[level] / denom;
             }
             double authorMean = curAuthorVal + addReg;
-            double resLlh = StatUtils.logNormalProbability(
+            pathCandidates.resLlhs[ii] = StatUtils.logNormalProbability(
                     authorResponse, authorMean, sqrtRho);
-            nodeResLogProbs.put(pathNode, resLlh);
         }
     }
 
@@ -1877,15 +1757,24 @@ public class SHLDA extends AbstractSampler
         return resLlhs;
     }
 
+    /**
+     * Compute the log probability of each path in the global tree. These paths
+     * are the first candidates of the sentence being sampled.
+     *
+     * @param extend Whether extending the tree
+     */
+    void computePathLogPriors(boolean extend) {
+        computePathLogPrior(globalTreeRoot, 0.0, extend);
+        pathCandidates.numPriorPaths = pathCandidates.size();
+    }
+
     /**
      * Recursively compute the log probability of each path in the global tree
      *
-     * @param nodeLogProbs HashMap to store the results
      * @param curNode Current node in the recursive call
      * @param parentLogProb The log probability passed from the parent node
      */
     void computePathLogPrior(
-            HashMap<SNode, Double> nodeLogProbs,
             SNode curNode,
             double parentLogProb,
             boolean extend) {
@@ -1896,13 +1785,14 @@ public class SHLDA extends AbstractSampler
 
             for (SNode child : curNode.getChildren()) {
                 double childWeight = parentLogProb + Math.log(child.getNumTables()) - logNorm;
-                computePathLogPrior(nodeLogProbs, child, childWeight, extend);
+                computePathLogPrior(child, childWeight, extend);
             }
         }
         if (!extend && !isLeafNode(curNode)) {
             return;
         }
-        nodeLogProbs.put(curNode, newWeight);
+        int pathIdx = pathCandidates.add(curNode);
+        pathCandidates.logPriors[pathIdx] = newWeight;
     }
 
     /**
@@ -1943,7 +1833,7 @@ public class SHLDA extends AbstractSampler
             } else {
                 dirMult = new DirMult(V, betas[level] * V, curNode.getTopic());
             }
-            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level].getObservations());
+            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level]);
             level++;
         }
         nodeDataLlhs.put(curNode, storeDataLlh);
@@ -3392,11 +3282,126 @@ public class SHLDA extends AbstractSampler
         }
     }
 
+    /**
+     * Candidate paths of the sentence being sampled, with their log priors,
+     * the proposed level assignments of the tokens of the sentence on each
+     * path and the resulting log likelihoods. The arrays are reused across
+     * sentences and only grow with the number of paths, so that sampling a
+     * sentence does not allocate. The end node of each candidate path stores
+     * its position in the candidates.
+     */
+    private class PathCandidates {
+
+        private final ArrayList<SNode> nodes = new ArrayList<SNode>();
+        int numPriorPaths; // number of leading candidates that have log priors
+        int numTokens; // number of tokens in the sentence
+        double[] logPriors = new double[0];
+        double[] wordLlhs = new double[0];
+        double[] resLlhs = new double[0];
+        boolean[] proposed = new boolean[0];
+        int[][] assignments = new int[0][];
+        // per-level buffers
+        double[] levelLogPriors;
+        double[] levelLps;
+        double[] levelWeights;
+        int[] levelCounts;
+        SNode[] path;
+
+        /**
+         * Remove all candidates and prepare for a new sentence.
+         *
+         * @param d The document index
+         * @param s The sentence index
+         */
+        void clear(int d, int s) {
+            for (SNode node : nodes) {
+                node.candidateIndex = -1;
+            }
+            nodes.clear();
+            numPriorPaths = 0;
+            numTokens = words[d][s].length;
+            if (levelLogPriors == null || levelLogPriors.length != L) {
+                levelLogPriors = new double[L];
+                levelLps = new double[L];
+                levelWeights = new double[L];
+                levelCounts = new int[L];
+                path = new SNode[L];
+            }
+            // log prior of each level: shared across document
+            for (int ll = 0; ll < L; ll++) {
+                levelLogPriors[ll] = docLevelDist[d].getLogLikelihood(ll);
+            }
+        }
+
+        /**
+         * Add the path ending at a given node if it is not a candidate yet.
+         *
+         * @param node The end node of the path
+         * @return The position of the path in the candidates
+         */
+        int add(SNode node) {
+            if (node.candidateIndex >= 0) {
+                return node.candidateIndex;
+            }
+            int ii = nodes.size();
+            if (ii == logPriors.length) {
+                int capacity = Math.max(16, 2 * ii);
+                logPriors = Arrays.copyOf(logPriors, capacity);
+                wordLlhs = Arrays.copyOf(wordLlhs, capacity);
+                resLlhs = Arrays.copyOf(resLlhs, capacity);
+                proposed = Arrays.copyOf(proposed, capacity);
+                assignments = Arrays.copyOf(assignments, capacity);
+            }
+            logPriors[ii] = 0.0;
+            wordLlhs[ii] = 0.0;
+            resLlhs[ii] = 0.0;
+            proposed[ii] = false;
+            nodes.add(node);
+            node.candidateIndex = ii;
+            return ii;
+        }
+
+        int size() {
+            return nodes.size();
+        }
+
+        SNode getNode(int ii) {
+            return nodes.get(ii);
+        }
+
+        /**
+         * Return the array to store the proposed level assignments of the
+         * tokens for a candidate path, of which only the first numTokens
+         * elements are used.
+         */
+        int[] getAssignments(int ii) {
+            if (assignments[ii] == null || assignments[ii].length < numTokens) {
+                assignments[ii] = new int[numTokens];
+            }
+            return assignments[ii];
+        }
+
+        /**
+         * Store the nodes on a candidate path from the root in the path
+         * buffer.
+         *
+         * @return The number of nodes on the path
+         */
+        int fillPath(int ii) {
+            SNode node = nodes.get(ii);
+            for (SNode curNode = node; curNode != null; curNode = curNode.getParent()) {
+                path[curNode.getLevel()] = curNode;
+            }
+            return node.getLevel() + 1;
+        }
+    }
+
     class SNode extends TopicTreeNode<SNode, DirMult> {
 
         private final int born;
         private int numTables;
         private double regression;
+        private int candidateIndex = -1; // position in the path candidates, -1 if not a candidate
 
         SNode(int iter, int index, int level,
                 DirMult content,
@@ -3420,7 +3425,7 @@ public class SHLDA extends AbstractSampler
          */
         double getLogProbability(SparseCount obs) {
             if (this.getTopic() == null) {
-                return this.content.getLogLikelihood(obs.getObservations());
+                return this.content.getLogLikelihood(obs);
             } else {
                 double val = 0.0;
                 for (int o : obs.getIndices()) {
@@ -1945,7 +1945,7 @@ public class SHLDAOld extends AbstractSampler implements Regressor<ResponseTextD
             } else {
                 dirMult = new DirMult(V, betas[level] * V, curNode.getTopic());
             }
-            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level].getObservations());
+            storeDataLlh += dirMult.getLogLikelihood(tokenCountPerLevel[level]);
             level++;
         }
         nodeDataLlhs.put(curNode, storeDataLlh);
@@ -3089,7 +3089,7 @@ public class SHLDAOld extends AbstractSampler implements Regressor<ResponseTextD
          */
         public double getLogProbability(SparseCount obs) {
             if (this.getTopic() == null) {
-                return this.content.getLogLikelihood(obs.getObservations());
+                return this.content.getLogLikelihood(obs);
             } else {
                 double val = 0.0;
                 for (int o : obs.getIndices()) {
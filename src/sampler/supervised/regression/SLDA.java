@@ -13,11 +13,14 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Random;
 import optimization.RidgeLinearRegressionLBFGS;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampler.unsupervised.LDA;
 import sampling.likelihood.DirMult;
+import sampling.util.FrozenTopicWords;
+import sampling.util.ParallelDocumentInference;
 import util.CLIUtils;
 import util.IOUtils;
 import util.MiscUtils;
@@ -56,10 +59,15 @@ public class SLDA extends AbstractSampler {
     protected DirMult[] docTopics;
     protected DirMult[] topicWords;
     protected double[] regParams;
+    // test
+    protected FrozenTopicWords phis; // topic-word probabilities of a loaded model
     // optimization
     protected double[] docRegressMeans;
-    protected SparseVector[] designMatrix;
+    protected SparseVector[] designMatrix; // [D]: empirical topic proportions, kept up to date
     // internal
+    protected double[] probs; // [K]: buffer of unnormalized sampling probabilities
+    protected double[] responseSlopes; // [K]: per-topic response factors of a document
+    protected double[] responseOffsets; // [K]
     protected int numTokensChanged;
     protected int numTokens;
     protected double sqrtRho;
@@ -89,6 +97,33 @@ public class SLDA extends AbstractSampler {
                 sampler.REP_INTERVAL);
     }
 
+    /**
+     * Return a sampler to test a model with the configuration of this
+     * sampler. The configuration (hyperparameters, settings and name) is
+     * shared rather than copied; the returned sampler only owns the state of
+     * the test documents.
+     */
+    public SLDA getTestSampler() {
+        SLDA testSampler = new SLDA(basename);
+        testSampler.folder = folder;
+        testSampler.prefix = prefix;
+        testSampler.name = name;
+        testSampler.V = V;
+        testSampler.K = K;
+        testSampler.hyperparams = hyperparams;
+        testSampler.rho = rho;
+        testSampler.mu = mu;
+        testSampler.sigma = sigma;
+        testSampler.sqrtRho = sqrtRho;
+        testSampler.initState = initState;
+        testSampler.paramOptimized = paramOptimized;
+        testSampler.BURN_IN = BURN_IN;
+        testSampler.MAX_ITER = MAX_ITER;
+        testSampler.LAG = LAG;
+        testSampler.REP_INTERVAL = REP_INTERVAL;
+        return testSampler;
+    }
+
     public void configure(
             String folder,
             int V, int K,
@@ -260,50 +295,75 @@ public class SLDA extends AbstractSampler {
      */
     public double[] test(int[][] docWords, ArrayList<Integer> docIndices,
             File stateFile, File predictionFile) {
+        return test(docWords, docIndices, TestModel.input(stateFile.toString()),
+                predictionFile);
+    }
+
+    /**
+     * Sample topic assignments of test documents using a loaded model.
+     *
+     * @param docWords Test documents
+     * @param docIndices Indices of test documents
+     * @param model The trained model, which is shared and not modified
+     * @param predictionFile File storing predictions at different test
+     * iterations using the given trained model
+     * @return Prediction on all documents using the given model
+     */
+    public double[] test(int[][] docWords, ArrayList<Integer> docIndices,
+            TestModel model, File predictionFile) {
+        try {
+            return sampleTest(docWords, docIndices, model, predictionFile);
+        } finally { // do not keep the topics of the model alive after testing
+            this.phis = null;
+        }
+    }
+
+    private double[] sampleTest(int[][] docWords, ArrayList<Integer> docIndices,
+            TestModel model, File predictionFile) {
+        if (model.regParams.length != K) {
+            throw new MismatchRuntimeException(model.regParams.length, K);
+        }
         setTestConfigurations(BURN_IN, MAX_ITER, LAG);
-        inputModel(stateFile.toString());
+        this.topicWords = null;
+        this.regParams = model.regParams;
+        this.phis = model.phis;
         setupData(docWords, docIndices, null);
         initializeDataStructure();
 
         // store predictions at different test iterations
-        ArrayList<double[]> predResponsesList = new ArrayList<double[]>();
-
-        // sample topic assignments for test document
-        for (iter = 0; iter < this.testMaxIter; iter++) {
-            numTokensChanged = 0;
-            isReporting = verbose && iter % testRepInterval == 0;
-            if (isReporting) {
-                String str = "Iter " + iter + "/" + testMaxIter
-                        + ". current thread: " + Thread.currentThread().getId();
-                if (iter < BURN_IN) {
-                    logln("--- Burning in. " + str);
-                } else {
-                    logln("--- Sampling. " + str);
-                }
-            }
-
-            if (iter == 0) {
-                sampleZs(!REMOVE, !ADD, !REMOVE, ADD, !OBSERVED);
-            } else {
-                sampleZs(!REMOVE, !ADD, REMOVE, ADD, !OBSERVED);
-            }
-
-            if (isReporting) {
-                logln("--- --- # tokens: " + numTokens
-                        + ". # token changed: " + numTokensChanged
-                        + ". change ratio: " + (double) numTokensChanged / numTokens
-                        + "\n");
-                System.out.println();
-            }
-
-            // store prediction (on all documents) at a test iteration
-            if (iter >= this.testBurnIn && iter % this.testSampleLag == 0) {
-                double[] predResponses = new double[D];
-                System.arraycopy(docRegressMeans, 0, predResponses, 0, D);
-                predResponsesList.add(predResponses);
+        final ArrayList<double[]> predResponsesList = new ArrayList<double[]>();
+        for (int it = this.testBurnIn; it < this.testMaxIter; it++) {
+            if (it % this.testSampleLag == 0) {
+                predResponsesList.add(new double[D]);
             }
         }
 
+        // sample topic assignments for test documents, which are independent
+        // given the fixed model, in parallel
+        if (verbose) {
+            logln("--- Sampling " + D + " test documents. "
+                    + "current thread: " + Thread.currentThread().getId());
+        }
+        ParallelDocumentInference.run(D, RAND_SEED,
+                new ParallelDocumentInference.DocumentInference() {
+                    @Override
+                    public void sampleDocument(int dd, ParallelDocumentInference.Worker worker) {
+                        double[] docProbs = worker.getScratch(0, K);
+                        double[] slopes = worker.getScratch(1, K);
+                        double[] offsets = worker.getScratch(2, K);
+                        int sampleIdx = 0;
+                        for (int it = 0; it < testMaxIter; it++) {
+                            sampleZs(dd, !REMOVE, !ADD, it > 0, ADD, !OBSERVED,
+                                    docProbs, slopes, offsets, worker.getRandom());
+
+                            // store prediction at a test iteration
+                            if (it >= testBurnIn && it % testSampleLag == 0) {
+                                predResponsesList.get(sampleIdx++)[dd] = docRegressMeans[dd];
+                            }
+                        }
+                    }
+                });
+
         // store predictions if necessary
         if (predictionFile != null) {
             PredictionUtils.outputSingleModelRegressions(predictionFile, predResponsesList);
@@ -401,6 +461,10 @@ public class SLDA extends AbstractSampler {
         }
 
         docRegressMeans = new double[D];
+        designMatrix = new SparseVector[D];
+        for (int dd = 0; dd < D; dd++) {
+            designMatrix[dd] = new SparseVector(K);
+        }
     }
 
     protected void initializeAssignments() {
@@ -414,6 +478,36 @@ public class SLDA extends AbstractSampler {
             default:
                 throw new RuntimeException("Initialization not supported");
         }
+        initializeDesignMatrix();
+    }
+
+    /**
+     * Compute the design matrix from the current document-topic counts.
+     */
+    protected void initializeDesignMatrix() {
+        SparseVector.Builder builder = new SparseVector.Builder(K);
+        for (int dd = 0; dd < D; dd++) {
+            for (int k : docTopics[dd].getSparseCounts().getIndices()) {
+                builder.add(k, (double) docTopics[dd].getCount(k) / words[dd].length);
+            }
+            designMatrix[dd] = builder.build();
+        }
+    }
+
+    /**
+     * Update the design matrix entry of a topic in a document after its count
+     * has changed.
+     *
+     * @param dd Document index
+     * @param k Topic index
+     */
+    protected void updateDesignMatrix(int dd, int k) {
+        int count = docTopics[dd].getCount(k);
+        if (count == 0) {
+            designMatrix[dd].remove(k);
+        } else {
+            designMatrix[dd].set(k, (double) count / words[dd].length);
+        }
     }
 
     private void initializeRandomAssignments() {
@@ -582,6 +676,15 @@ public class SLDA extends AbstractSampler {
      * Sample topic assignments for all tokens. This is a bit faster than using
      * sampleZ.
      *
+     * The conditional probabilities are computed in the linear space. When
+     * the response is observed, the Gaussian likelihood of assigning a token
+     * of document d to topic k is, up to a factor that does not depend on k,
+     * exp(a_k * r - b_k) where r is the residual of the response without the
+     * token, a_k = eta_k / (N_d * rho) and b_k = eta_k^2 / (2 * N_d^2 * rho).
+     * The slopes a_k and offsets b_k are computed once per document, so each
+     * token only needs K exponentials, and none if the response is not
+     * observed.
+     *
      * @param removeFromModel
      * @param addToModel
      * @param removeFromData
@@ -591,58 +694,113 @@ public class SLDA extends AbstractSampler {
     protected void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData,
             boolean observe) {
+        if (probs == null || probs.length != K) {
+            probs = new double[K];
+            responseSlopes = new double[K];
+            responseOffsets = new double[K];
+        }
         for (int dd = 0; dd < D; dd++) {
-            for (int nn = 0; nn < words[dd].length; nn++) {
-                if (removeFromModel) {
-                    topicWords[z[dd][nn]].decrement(words[dd][nn]);
+            numTokensChanged += sampleZs(dd, removeFromModel, addToModel,
+                    removeFromData, addToData, observe,
+                    probs, responseSlopes, responseOffsets, null);
+        }
+    }
+
+    /**
+     * Sample topic assignments for all tokens in a document.
+     *
+     * @param dd Document index
+     * @param removeFromModel
+     * @param addToModel
+     * @param removeFromData
+     * @param addToData
+     * @param observe Whether the response variable of this document is observed
+     * @param probs Scratch array of K elements
+     * @param slopes Scratch array of K elements
+     * @param offsets Scratch array of K elements
+     * @param random Random number generator. If this is null, the shared
+     * generator of SamplerUtils is used.
+     * @return Number of tokens whose assignments changed
+     */
+    protected int sampleZs(int dd, boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData, boolean observe,
+            double[] probs, double[] slopes, double[] offsets, Random random) {
+        double alpha = hyperparams.get(ALPHA);
+        int numChanges = 0;
+        if (observe) {
+            double docLen = words[dd].length;
+            for (int k = 0; k < K; k++) {
+                slopes[k] = regParams[k] / (docLen * rho);
+                offsets[k] = regParams[k] * regParams[k]
+                        / (2 * docLen * docLen * rho);
+            }
+        }
+        for (int nn = 0; nn < words[dd].length; nn++) {
+            if (removeFromModel) {
+                topicWords[z[dd][nn]].decrement(words[dd][nn]);
+            }
+            if (removeFromData) {
+                docTopics[dd].decrement(z[dd][nn]);
+                updateDesignMatrix(dd, z[dd][nn]);
+                docRegressMeans[dd] -= regParams[z[dd][nn]] / words[dd].length;
+            }
+
+            int ww = words[dd][nn];
+            if (phis != null) {
+                phis.getProbabilities(ww, probs);
+                for (int k = 0; k < K; k++) {
+                    probs[k] *= docTopics[dd].getCount(k) + alpha;
                 }
-                if (removeFromData) {
-                    docTopics[dd].decrement(z[dd][nn]);
-                    docRegressMeans[dd] -= regParams[z[dd][nn]] / words[dd].length;
+            } else {
+                for (int k = 0; k < K; k++) {
+                    probs[k] = (docTopics[dd].getCount(k) + alpha)
+                            * topicWords[k].getProbability(ww);
                 }
-
-                double[] logprobs = new double[K];
+            }
+            if (observe) {
+                double residual = responses[dd] - docRegressMeans[dd];
+                double max = Double.NEGATIVE_INFINITY;
                 for (int k = 0; k < K; k++) {
-                    logprobs[k] = Math.log(docTopics[dd].getCount(k) + hyperparams.get(ALPHA))
-                            + Math.log(topicWords[k].getProbability(words[dd][nn]));
-                    if (observe) {
-                        double mean = docRegressMeans[dd] + regParams[k] / words[dd].length;
-                        logprobs[k] += StatUtils.logNormalProbability(responses[dd], mean, sqrtRho);
+                    double logFactor = slopes[k] * residual - offsets[k];
+                    if (logFactor > max) {
+                        max = logFactor;
                     }
                 }
+                for (int k = 0; k < K; k++) {
+                    probs[k] *= Math.exp(slopes[k] * residual - offsets[k] - max);
+                }
+            }
 
-                int sampledZ = SamplerUtils.logMaxRescaleSample(logprobs);
+            int sampledZ = random == null ? SamplerUtils.scaleSample(probs, K)
+                    : SamplerUtils.scaleSample(probs, K, random);
+            if (sampledZ == K) {
+                throw new RuntimeException("Failed to sample topic of token "
+                        + nn + " in document " + dd);
+            }
 
-                if (z[dd][nn] != sampledZ) {
-                    numTokensChanged++; // for debugging
-                }
-                // update
-                z[dd][nn] = sampledZ;
+            if (z[dd][nn] != sampledZ) {
+                numChanges++; // for debugging
+            }
+            // update
+            z[dd][nn] = sampledZ;
 
-                if (addToModel) {
-                    topicWords[z[dd][nn]].increment(words[dd][nn]);
-                }
-                if (addToData) {
-                    docTopics[dd].increment(z[dd][nn]);
-                    docRegressMeans[dd] += regParams[z[dd][nn]] / words[dd].length;
-                }
+            if (addToModel) {
+                topicWords[z[dd][nn]].increment(words[dd][nn]);
+            }
+            if (addToData) {
+                docTopics[dd].increment(z[dd][nn]);
+                updateDesignMatrix(dd, z[dd][nn]);
+                docRegressMeans[dd] += regParams[z[dd][nn]] / words[dd].length;
             }
         }
+        return numChanges;
     }
 
     /**
-     * Update regression parameters by optimizing using L-BFGS.
+     * Update regression parameters by optimizing using L-BFGS. The design
+     * matrix is kept up to date while sampling, so it is used directly.
      */
     private void updateTopicRegressionParameters() {
-        designMatrix = new SparseVector[D];
-        for (int dd = 0; dd < D; dd++) {
-            designMatrix[dd] = new SparseVector(K);
-            for (int k : docTopics[dd].getSparseCounts().getIndices()) {
-                double val = (double) docTopics[dd].getCount(k) / z[dd].length;
-                designMatrix[dd].change(k, val);
-            }
-        }
-
         RidgeLinearRegressionLBFGS optimizable = new RidgeLinearRegressionLBFGS(
                 responses, regParams, designMatrix, rho, mu, sigma);
 
@@ -664,11 +822,8 @@ public class SLDA extends AbstractSampler {
         }
 
         // update current predictions
-        this.docRegressMeans = new double[D];
         for (int dd = 0; dd < D; dd++) {
-            for (int kk : designMatrix[dd].getIndices()) {
-                this.docRegressMeans[dd] += designMatrix[dd].get(kk) * regParams[kk];
-            }
+            this.docRegressMeans[dd] = designMatrix[dd].dotProduct(regParams);
         }
     }
 
@@ -845,6 +1000,57 @@ public class SLDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Trained model used at test time: the regression parameters and the
+     * frozen topic-word probabilities. A test model is never modified.
+     */
+    public static class TestModel {
+
+        final double[] regParams;
+        final FrozenTopicWords phis;
+
+        public TestModel(double[] regParams, FrozenTopicWords phis) {
+            this.regParams = regParams;
+            this.phis = phis;
+        }
+
+        /**
+         * Load the model stored in a state file.
+         *
+         * @param zipFilepath The state file
+         */
+        public static TestModel input(String zipFilepath) {
+            try {
+                String filename = IOUtils.removeExtension(IOUtils.getFilename(zipFilepath));
+                BufferedReader reader = IOUtils.getBufferedReader(zipFilepath,
+                        filename + ModelFileExt);
+                ArrayList<Double> params = new ArrayList<Double>();
+                ArrayList<DirMult> topics = new ArrayList<DirMult>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int topicIdx = Integer.parseInt(line);
+                    if (topicIdx != topics.size()) {
+                        throw new RuntimeException("Indices mismatch when loading model");
+                    }
+                    params.add(Double.parseDouble(reader.readLine()));
+                    topics.add(DirMult.input(reader.readLine()));
+                }
+                reader.close();
+
+                double[] regParams = new double[params.size()];
+                for (int k = 0; k < regParams.length; k++) {
+                    regParams[k] = params.get(k);
+                }
+                return new TestModel(regParams, new FrozenTopicWords(
+                        topics.toArray(new DirMult[topics.size()])));
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while inputing model from "
+                        + zipFilepath);
+            }
+        }
+    }
+
     protected void inputAssignments(String zipFilepath) throws Exception {
         if (verbose) {
             logln("--- --- Loading assignments from " + zipFilepath);
@@ -869,6 +1075,7 @@ public class SLDA extends AbstractSampler {
                 }
             }
             reader.close();
+            initializeDesignMatrix();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while inputing assignments from "
@@ -917,6 +1124,10 @@ public class SLDA extends AbstractSampler {
     /**
      * Run Gibbs sampling on test data using multiple models learned which are
      * stored in the ReportFolder. The runs on multiple models are parallel.
+     * The test documents and the configuration are shared by all runners.
+     * Each runner loads its model when it starts and drops it when it is
+     * done, so the number of models in memory is bounded by the number of
+     * worker threads rather than by the number of models.
      *
      * @param newWords Words of new documents
      * @param newDocIndices Indices of test documents
@@ -934,7 +1145,7 @@ public class SLDA extends AbstractSampler {
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (String filename : filenames) { // all learned models
                 if (!filename.contains("zip")) {
                     continue;
@@ -946,12 +1157,11 @@ public class SLDA extends AbstractSampler {
                 SLDATestRunner runner = new SLDATestRunner(sampler,
                         newWords, newDocIndices, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1019,6 +1229,8 @@ public class SLDA extends AbstractSampler {
         options.addOption("train", false, "Train");
         options.addOption("test", false, "Test");
         options.addOption("parallel", false, "Parallel");
+        addOption("num-workers", "Number of worker threads for parallel test "
+                + "(default: number of available processors)");
 
         // configurations
         addOption("init", "Initialization");
@@ -1135,6 +1347,7 @@ public class SLDA extends AbstractSampler {
 
             double[] predictions;
             if (cmd.hasOption("parallel")) { // predict using all models
+                setNumWorkerThreads(CLIUtils.getIntegerArgument(cmd, "num-workers", -1));
                 File iterPredFolder = new File(sampler.getSamplerFolderPath(), "iter-preds");
                 IOUtils.createFolder(iterPredFolder);
                 SLDA.parallelTest(data.getWords(), selectedDocIndices, iterPredFolder, sampler);
@@ -1210,12 +1423,11 @@ class SLDATestRunner implements Runnable {
 
     @Override
     public void run() {
-        SLDA testSampler = new SLDA();
+        SLDA testSampler = sampler.getTestSampler();
         testSampler.setVerbose(true);
         testSampler.setDebug(false);
         testSampler.setLog(false);
         testSampler.setReport(false);
-        testSampler.configure(sampler);
         testSampler.setTestConfigurations(sampler.getBurnIn(),
                 sampler.getMaxIters(), sampler.getSampleLag());
 
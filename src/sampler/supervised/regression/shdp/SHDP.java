@@ -54,6 +54,7 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
     private int numTokens;
     private int numTokensChange;
     private SparseVector sbpWeights;
+    private final SamplerUtils.CandidateBuffer candidates = new SamplerUtils.CandidateBuffer();
 
     public void configure(SHDP sampler) {
         this.configure(sampler.folder,
@@ -518,10 +519,8 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
             }
         }
 
-        ArrayList<Integer> indices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
+        candidates.clear();
         for (int k : topicWords.getIndices()) {
-            indices.add(k);
             double logprior = Math.log(docTopics[d].getCount(k) + hyperparams.get(ALPHA_LOCAL) * sbpWeights.get(k));
             double loglh = topicWords.getComponent(k).topic.getLogLikelihood(words[d][n]);
             double lp = logprior + loglh;
@@ -531,11 +530,10 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
                 lp += StatUtils.logNormalProbability(responses[d],
                         mean, Math.sqrt(hyperparams.get(RHO)));
             }
-            logprobs.add(lp);
+            candidates.add(k, lp);
         }
 
         if (addToModel) { // for test time
-            indices.add(NEW_COMPONENT_INDEX);
             double logprior = Math.log(hyperparams.get(ALPHA_LOCAL) * sbpWeights.get(NEW_COMPONENT_INDEX));
             double loglh = Math.log(1.0 / V);
             double lp = logprior + loglh;
@@ -546,11 +544,11 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
                 double resLlh = StatUtils.logNormalProbability(responses[d], mean, Math.sqrt(var));
                 lp += resLlh;
             }
-            logprobs.add(lp);
+            candidates.add(NEW_COMPONENT_INDEX, lp);
         }
 
-        int sampledIdx = SamplerUtils.logMaxRescaleSample(logprobs);
-        int newZ = indices.get(sampledIdx);
+        int sampledIdx = candidates.logMaxRescaleSample();
+        int newZ = candidates.getIndex(sampledIdx);
 
         if (curZ != newZ) {
             numTokensChange++;
@@ -1143,7 +1141,7 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.contains("zip")) {
@@ -1156,12 +1154,11 @@ public class SHDP extends AbstractSampler implements Regressor<ResponseTextDatas
                 SHDPTestRunner runner = new SHDPTestRunner(sampler,
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
         } catch (Exception e) {
             e.printStackTrace();
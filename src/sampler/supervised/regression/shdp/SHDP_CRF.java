@@ -53,6 +53,8 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
     private DirMult emptyModel;
     private int numTokenAsgnsChange;
     private int numTableAsgnsChange;
+    private final SamplerUtils.CandidateBuffer tableCandidates = new SamplerUtils.CandidateBuffer();
+    private final SamplerUtils.CandidateBuffer dishCandidates = new SamplerUtils.CandidateBuffer();
     private int numConverged;
 
     public void configure(String folder,
@@ -622,8 +624,7 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
         }
 
         // for existing tables
-        ArrayList<Integer> tableIndices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
+        tableCandidates.clear();
         for (SHDPTable table : this.localRestaurants[d].getTables()) {
             double logPrior = Math.log(table.getNumCustomers());
             double wordLlh = table.getContent().getContent().getLogLikelihood(curObs);
@@ -637,38 +638,15 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
                 lp += resLlh;
             }
 
-            tableIndices.add(table.getIndex());
-            logprobs.add(lp);
+            tableCandidates.add(table.getIndex(), lp);
         }
 
         // for new table
-        HashMap<Integer, Double> dishLogPriors = new HashMap<Integer, Double>();
-        HashMap<Integer, Double> dishWordLlhs = new HashMap<Integer, Double>();
-        HashMap<Integer, Double> dishResLlhs = new HashMap<Integer, Double>();
         if (extend) {
-            dishLogPriors = getDishLogPriors();
-            dishWordLlhs = getDishWordLogLikelihoods(curObs);
-
-            if (dishLogPriors.size() != dishWordLlhs.size()) {
-                throw new RuntimeException("Number of dishes mismatch");
-            }
-
-            if (resObserved) {
-                dishResLlhs = getDishResponseLogLikelihoods(d, docRegressMeans[d]);
-
-                if (dishLogPriors.size() != dishResLlhs.size()) {
-                    throw new RuntimeException("Number of dishes mismatch");
-                }
-            }
-
+            fillDishCandidates(curObs, d, docRegressMeans[d], resObserved, true);
             double marginal = 0.0;
-            for (int dishIndex : dishLogPriors.keySet()) {
-                double lp = dishLogPriors.get(dishIndex) + dishWordLlhs.get(dishIndex);
-
-                if (resObserved) {
-                    lp += dishResLlhs.get(dishIndex);
-                }
-
+            for (int ii = 0; ii < dishCandidates.size(); ii++) {
+                double lp = dishCandidates.getValue(ii);
                 if (marginal == 0.0) {
                     marginal = lp;
                 } else {
@@ -678,14 +656,12 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
 
             double logPrior = Math.log(hyperparams.get(ALPHA_LOCAL));
             double lp = logPrior + marginal;
-
-            tableIndices.add(PSEUDO_INDEX);
-            logprobs.add(lp);
+            tableCandidates.add(PSEUDO_INDEX, lp);
         }
 
         // sample
-        int sampledIndex = SamplerUtils.logMaxRescaleSample(logprobs);
-        int tableIndex = tableIndices.get(sampledIndex);
+        int sampledIndex = tableCandidates.logMaxRescaleSample();
+        int tableIndex = tableCandidates.getIndex(sampledIndex);
 
         if (curTable.getIndex() != tableIndex) {
             numTokenAsgnsChange++;
@@ -699,7 +675,7 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
 
             // sample dish
             SHDPDish dish;
-            int dishIdx = sampleDish(dishLogPriors, dishWordLlhs, dishResLlhs, resObserved, extend);
+            int dishIdx = sampleDish();
             if (dishIdx == PSEUDO_INDEX) {
                 dish = createDish();
             } else {
@@ -786,23 +762,8 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
             }
         }
 
-        HashMap<Integer, Double> dishLogPriors = getDishLogPriors();
-        HashMap<Integer, Double> dishWordLlhs = getDishWordLogLikelihoods(observations);
-
-        if (dishLogPriors.size() != dishWordLlhs.size()) {
-            throw new RuntimeException("Numbers of dishes mismatch");
-        }
-
-        HashMap<Integer, Double> dishResLlhs = new HashMap<Integer, Double>();
-        if (resObserved) {
-            dishResLlhs = getDishResponseLogLikelihoods(d, preSum);
-
-            if (dishLogPriors.size() != dishResLlhs.size()) {
-                throw new RuntimeException("Numbers of dishes mismatch");
-            }
-        }
-
-        int sampledDishIndex = sampleDish(dishLogPriors, dishWordLlhs, dishResLlhs, resObserved, extend);
+        fillDishCandidates(observations, d, preSum, resObserved, extend);
+        int sampledDishIndex = sampleDish();
         if (curDishIndex != sampledDishIndex) {
             numTableAsgnsChange++;
         }
@@ -867,79 +828,96 @@ public class SHDP_CRF extends AbstractSampler implements Regressor<ResponseTextD
         }
     }
 
-    private int sampleDish(
-            HashMap<Integer, Double> dishLogPriors,
-            HashMap<Integer, Double> dishWordLlhs,
-            HashMap<Integer, Double> dishResLlhs,
-            boolean resObserved,
-            boolean extend) {
-        ArrayList<Integer> indices = new ArrayList<Integer>();
-        ArrayList<Double> logprobs = new ArrayList<Double>();
-        for (int idx : dishLogPriors.keySet()) {
-            if (!extend && idx == PSEUDO_INDEX) {
-                continue;
-            }
+    /**
+     * Sample a dish given the log probabilities in dishCandidates, which are
+     * overwritten.
+     */
+    private int sampleDish() {
+        int sampledIdx = dishCandidates.logMaxRescaleSample();
+        return dishCandidates.getIndex(sampledIdx);
+    }
 
-            double lp = dishLogPriors.get(idx) + dishWordLlhs.get(idx);
+    /**
+     * Compute the log probability of assigning a token to each dish (and a new
+     * dish) into dishCandidates.
+     *
+     * @param observation The token
+     * @param d Document index
+     * @param preSum Sum of the regression parameters of the other tables
+     * @param resObserved Whether the response is observed
+     * @param extend Whether a new dish can be created
+     */
+    private void fillDishCandidates(int observation, int d, double preSum,
+            boolean resObserved, boolean extend) {
+        dishCandidates.clear();
+        double normalizer = getDishLogNormalizer();
+        for (SHDPDish dish : this.globalRestaurant.getTables()) {
+            double lp = Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observation);
             if (resObserved) {
-                lp += dishResLlhs.get(idx);
+                lp += getDishResponseLogLikelihood(d, preSum, dish);
             }
-
-            indices.add(idx);
-            logprobs.add(lp);
+            dishCandidates.add(dish.getIndex(), lp);
         }
-        int sampledIdx = SamplerUtils.logMaxRescaleSample(logprobs);
-        return indices.get(sampledIdx);
-    }
-
-    private HashMap<Integer, Double> getDishLogPriors() {
-        HashMap<Integer, Double> dishLogPriors = new HashMap<Integer, Double>();
-        double normalizer = Math.log(this.globalRestaurant.getTotalNumCustomers()
-                + hyperparams.get(ALPHA_GLOBAL));
-        for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogPriors.put(dish.getIndex(), Math.log(dish.getNumCustomers()) - normalizer);
+        if (extend) {
+            double lp = Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                    + emptyModel.getLogLikelihood(observation);
+            if (resObserved) {
+                lp += getNewDishResponseLogLikelihood(d, preSum);
+            }
+            dishCandidates.add(PSEUDO_INDEX, lp);
         }
-        dishLogPriors.put(PSEUDO_INDEX, Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer);
-        return dishLogPriors;
     }
 
-    private HashMap<Integer, Double> getDishWordLogLikelihoods(int observation) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
+    /**
+     * Compute the log probability of assigning a set of tokens to each dish
+     * (and a new dish) into dishCandidates.
+     *
+     * @param observations The tokens
+     * @param d Document index
+     * @param preSum Sum of the regression parameters of the other tables
+     * @param resObserved Whether the response is observed
+     * @param extend Whether a new dish can be created
+     */
+    private void fillDishCandidates(HashMap<Integer, Integer> observations,
+            int d, double preSum, boolean resObserved, boolean extend) {
+        dishCandidates.clear();
+        double normalizer = getDishLogNormalizer();
         for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observation));
+            double lp = Math.log(dish.getNumCustomers()) - normalizer
+                    + dish.getContent().getLogLikelihood(observations);
+            if (resObserved) {
+                lp += getDishResponseLogLikelihood(d, preSum, dish);
+            }
+            dishCandidates.add(dish.getIndex(), lp);
+        }
+        if (extend) {
+            double lp = Math.log(hyperparams.get(ALPHA_GLOBAL)) - normalizer
+                    + emptyModel.getLogLikelihood(observations);
+            if (resObserved) {
+                lp += getNewDishResponseLogLikelihood(d, preSum);
+            }
+            dishCandidates.add(PSEUDO_INDEX, lp);
         }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyModel.getLogLikelihood(observation));
-        return dishLogLikelihoods;
     }
 
-    private HashMap<Integer, Double> getDishWordLogLikelihoods(HashMap<Integer, Integer> observations) {
-        HashMap<Integer, Double> dishLogLikelihoods = new HashMap<Integer, Double>();
-        for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            dishLogLikelihoods.put(dish.getIndex(), dish.getContent().getLogLikelihood(observations));
-        }
-        dishLogLikelihoods.put(PSEUDO_INDEX, emptyModel.getLogLikelihood(observations));
-        return dishLogLikelihoods;
+    private double getDishLogNormalizer() {
+        return Math.log(this.globalRestaurant.getTotalNumCustomers()
+                + hyperparams.get(ALPHA_GLOBAL));
     }
 
-    private HashMap<Integer, Double> getDishResponseLogLikelihoods(int d, double preSum) {
-        HashMap<Integer, Double> resLlhs = new HashMap<Integer, Double>();
+    private double getDishResponseLogLikelihood(int d, double preSum, SHDPDish dish) {
         int tokenCount = words[d].length;
+        double mean = (preSum + dish.getRegressionParameter()) / tokenCount;
+        double var = hyperparams.get(RHO);
+        return StatUtils.logNormalProbability(responses[d], mean, Math.sqrt(var));
+    }
 
-        // for existing dishes
-        for (SHDPDish dish : this.globalRestaurant.getTables()) {
-            double mean = (preSum + dish.getRegressionParameter()) / tokenCount;
-            double var = hyperparams.get(RHO);
-            double resLlh = StatUtils.logNormalProbability(responses[d], mean, Math.sqrt(var));
-            resLlhs.put(dish.getIndex(), resLlh);
-        }
-
-        // for new dish
+    private double getNewDishResponseLogLikelihood(int d, double preSum) {
+        int tokenCount = words[d].length;
         double mean = (preSum + hyperparams.get(MU)) / tokenCount;
         double var = hyperparams.get(SIGMA) / (tokenCount * tokenCount) + hyperparams.get(RHO);
-        double resLlh = StatUtils.logNormalProbability(responses[d], mean, Math.sqrt(var));
-        resLlhs.put(PSEUDO_INDEX, resLlh);
-
-        return resLlhs;
+        return StatUtils.logNormalProbability(responses[d], mean, Math.sqrt(var));
     }
 
     @Override
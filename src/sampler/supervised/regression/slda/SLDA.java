@@ -1091,7 +1091,7 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
         String[] filenames = reportFolder.list();
         try {
             IOUtils.createFolder(iterPredFolder);
-            ArrayList<Thread> threads = new ArrayList<Thread>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
             for (int i = 0; i < filenames.length; i++) {
                 String filename = filenames[i];
                 if (!filename.contains("zip")) {
@@ -1104,12 +1104,11 @@ public class SLDA extends AbstractSampler implements Regressor<ResponseTextDatas
                 SLDATestRunner runner = new SLDATestRunner(sampler,
                         newWords, stateFile.getAbsolutePath(),
                         partialResultFile.getAbsolutePath());
-                Thread thread = new Thread(runner);
-                threads.add(thread);
+                tasks.add(runner);
             }
 
-            // run MAX_NUM_PARALLEL_THREADS threads at a time
-            runThreads(threads);
+            // run the tests on the shared worker pool
+            runTasks(tasks);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -48,6 +48,7 @@ public class HDP extends AbstractSampler {
     private SparseCount[] docTopics;
     private Topics topicWords;
     private int[][] z;
+    private final SamplerUtils.CandidateBuffer candidates = new SamplerUtils.CandidateBuffer();
     // internal
     private int numTokens;
     private int numTokensChange;
@@ -396,6 +397,7 @@ public class HDP extends AbstractSampler {
     private void sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
         double totalBeta = hyperparams.get(BETA) * V;
+        double alphaLocal = hyperparams.get(ALPHA_LOCAL);
         for (int ii = 0; ii < D; ii++) {
             int dd = docIndices.get(ii);
             for (int nn = 0; nn < words[dd].length; nn++) {
@@ -408,30 +410,31 @@ public class HDP extends AbstractSampler {
                     this.topicWords.getComponent(curZ).phi.decrement(words[dd][nn]);
                     if (this.topicWords.getComponent(curZ).phi.isEmpty()) {
                         topicWords.removeComponent(curZ);
+                        // return the weight of the topic to the unused stick
+                        globalWeights.set(NEW_COMPONENT_INDEX,
+                                globalWeights.get(NEW_COMPONENT_INDEX)
+                                + globalWeights.get(curZ));
                         globalWeights.remove(curZ);
                     }
                 }
 
-                ArrayList<Integer> indices = new ArrayList<Integer>();
-                ArrayList<Double> probs = new ArrayList<Double>();
+                candidates.clear();
                 for (int k : topicWords.getIndices()) {
-                    indices.add(k);
                     double docTopicProb = docTopics[ii].getCount(k)
-                            + hyperparams.get(ALPHA_LOCAL) * globalWeights.get(k);
+                            + alphaLocal * globalWeights.get(k);
                     double topicWordProb = topicWords.getComponent(k).getPhi(words[dd][nn]);
-                    probs.add(docTopicProb * topicWordProb);
+                    candidates.add(k, docTopicProb * topicWordProb);
                 }
 
                 if (addToModel) {
-                    indices.add(NEW_COMPONENT_INDEX);
-                    double docTopicProb = hyperparams.get(ALPHA_LOCAL)
+                    double docTopicProb = alphaLocal
                             * globalWeights.get(NEW_COMPONENT_INDEX);
                     double topicWordProb = uniform;
-                    probs.add(docTopicProb * topicWordProb);
+                    candidates.add(NEW_COMPONENT_INDEX, docTopicProb * topicWordProb);
                 }
 
-                int sampledIdx = SamplerUtils.scaleSample(probs);
-                int newZ = indices.get(sampledIdx);
+                int sampledIdx = candidates.scaleSample();
+                int newZ = candidates.getIndex(sampledIdx);
 
                 if (curZ != newZ) {
                     numTokensChange++;
@@ -455,13 +458,29 @@ public class HDP extends AbstractSampler {
                     this.topicWords.getComponent(newZ).phi.increment(words[dd][nn]);
                 }
 
-                if (newTopic) { // if new topic is created, update SBP weights
-                    sampleGlobalWeights();
+                if (newTopic) { // if new topic is created, break off its weight
+                    splitNewTopicWeight(newZ);
                 }
             }
         }
     }
 
+    /**
+     * Assign a global weight to a newly created topic by breaking the stick of
+     * the unused topics: b ~ Beta(1, alpha_global), the new topic gets b times
+     * the weight of the unused topics, which keep the rest (Teh et al., JASA
+     * 2006). This is much cheaper than resampling all global weights after each
+     * new topic; they are resampled once per iteration.
+     *
+     * @param k The new topic
+     */
+    private void splitNewTopicWeight(int k) {
+        double b = SamplerUtils.randoms.nextBeta(1.0, hyperparams.get(ALPHA_GLOBAL));
+        double unusedWeight = globalWeights.get(NEW_COMPONENT_INDEX);
+        globalWeights.set(k, b * unusedWeight);
+        globalWeights.set(NEW_COMPONENT_INDEX, (1 - b) * unusedWeight);
+    }
+
     /**
      * Sample global distribution over topics.
      */
@@ -471,13 +490,21 @@ public class HDP extends AbstractSampler {
                     + " vs. " + topicWords.getNumComponents());
         }
 
+        // sample the number of tables of each topic in each document, only
+        // for the topics that the document uses
+        double alphaLocal = hyperparams.get(ALPHA_LOCAL);
         SparseCount counts = new SparseCount();
-        for (int k : topicWords.getIndices()) {
-            for (int ii = 0; ii < D; ii++) {
+        int[] topicIndices = new int[16];
+        for (int ii = 0; ii < D; ii++) {
+            if (topicIndices.length < docTopics[ii].size()) {
+                topicIndices = new int[2 * docTopics[ii].size()];
+            }
+            int numIndices = docTopics[ii].getIndices(topicIndices);
+            for (int jj = 0; jj < numIndices; jj++) {
+                int k = topicIndices[jj];
                 int count = docTopics[ii].getCount(k);
                 if (count > 1) {
-                    int c = SamplerUtils.randAntoniak(
-                            hyperparams.get(ALPHA_LOCAL) * globalWeights.get(k),
+                    int c = SamplerUtils.randAntoniak(alphaLocal * globalWeights.get(k),
                             count);
                     counts.changeCount(k, c);
                 } else {
@@ -1,7 +1,12 @@
 package sampler.unsupervised;
 
 import core.AbstractSampler;
+import core.CheckpointQueue;
+import core.StateReader;
+import core.StateWriter;
+import data.BinaryCorpus;
 import data.TextDataset;
+import data.TokenStore;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -9,12 +14,19 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampling.likelihood.DirMult;
+import sampling.util.AliasTable;
+import sampling.util.ParallelTopicSweep;
+import sampling.util.ParallelTopicSweep.TopicWordView;
+import sampling.util.SparseCount;
 import util.CLIUtils;
+import util.DataUtils;
 import util.IOUtils;
+import util.LogGammaTable;
 import util.MiscUtils;
 import util.SamplerUtils;
 
@@ -28,6 +40,16 @@ public class LDA extends AbstractSampler {
     // hyperparameters
     public static final int ALPHA = 0;
     public static final int BETA = 1;
+
+    /**
+     * Kernels for sampling the topic assignments during training.
+     */
+    public static enum SamplingKernel {
+
+        GIBBS, // standard collapsed Gibbs sampling, O(K) per token
+        SPARSE, // bucketed sampling (Yao et al., KDD 2009)
+        ALIAS // alias-table Metropolis-Hastings (Yuan et al., WWW 2015)
+    }
     // inputs
     protected int[][] words; // original documents
     protected ArrayList<Integer> docIndices; // [D]: indices of considered docs
@@ -40,8 +62,30 @@ public class LDA extends AbstractSampler {
     protected DirMult[] topicWords;
     protected int[][] z;
     // internal
-    protected int numTokens;
-    protected int numTokensChanged;
+    protected long numTokens;
+    protected long numTokensChanged;
+    protected SamplingKernel kernel = SamplingKernel.GIBBS;
+    // sparse kernel
+    protected SparseCount[] wordTopics; // [V]: topic counts of each word type
+    protected double[] topicCoeffs;     // [K]: (n_dk + alpha_k) / (n_k + beta V)
+    protected double[] topicDenoms;     // [K]: n_k + beta V
+    protected double[] qTopicMasses;    // [K]: scratch for the topic-word bucket
+    protected int[] qTopics;            // [K]: scratch for the topic-word bucket
+    protected boolean isWordTopicsStale = true; // wordTopics does not reflect z
+    // alias kernel
+    protected int numMHSteps = 2;       // # doc/word proposal cycles per token
+    protected int numAliasUses = -1;    // # draws before rebuilding a table, K if non-positive
+    protected AliasTable[] wordAliasTables; // [V]: stale n_kw / (n_k + beta V)
+    protected int[] wordAliasSweeps;    // [V]: sweep in which each table was built
+    protected AliasTable smoothingAliasTable; // stale beta / (n_k + beta V)
+    protected int numAliasSweeps;
+    // approximate distributed sampling
+    protected int numThreads = 1;
+    protected int mergeInterval = -1;   // # docs per thread between merges, once per sweep if non-positive
+    protected transient ParallelTopicSweep parallelSweep;
+    // out-of-core training
+    protected transient TokenStore tokenStore; // non-null if words and z are on disk
+    protected transient TokenStore.Chunk tokenChunk;
 
     public LDA() {
         this.basename = "LDA";
@@ -110,8 +154,45 @@ public class LDA extends AbstractSampler {
                 + "_opt-" + this.paramOptimized;
     }
 
+    public void setSamplingKernel(SamplingKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public SamplingKernel getSamplingKernel() {
+        return this.kernel;
+    }
+
+    /**
+     * Configure the alias-table Metropolis-Hastings kernel.
+     *
+     * @param numMHSteps Number of (word proposal, doc proposal) cycles per
+     * token
+     * @param numAliasUses Number of draws from an alias table before it is
+     * rebuilt. If this is non-positive, K is used.
+     */
+    public void setAliasConfigurations(int numMHSteps, int numAliasUses) {
+        this.numMHSteps = numMHSteps;
+        this.numAliasUses = numAliasUses;
+    }
+
+    /**
+     * Sample documents in parallel using approximate distributed Gibbs
+     * sampling (AD-LDA). This takes precedence over the sampling kernel.
+     *
+     * @param numThreads Number of document shards, which run on the shared
+     * worker pool. Sequential sampling is used if this is 1.
+     * @param mergeInterval Number of documents each thread samples before
+     * the topic-word counts are synchronized. If this is non-positive, counts
+     * are synchronized at the end of each sweep.
+     */
+    public void setParallelConfigurations(int numThreads, int mergeInterval) {
+        this.numThreads = numThreads;
+        this.mergeInterval = mergeInterval;
+    }
+
     /**
-     * Return the current topic assignments for all tokens.
+     * Return the current topic assignments for all tokens, or null if training
+     * out of core.
      *
      * @return Current topic assignments
      */
@@ -129,7 +210,8 @@ public class LDA extends AbstractSampler {
     }
 
     /**
-     * Return the learned distribution over topics for each document.
+     * Return the learned distribution over topics for each document, or null
+     * if training out of core.
      *
      * @return
      */
@@ -168,6 +250,39 @@ public class LDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Set training data stored out of core. Word ids and topic assignments
+     * stay on disk and are sampled chunk by chunk, so only the topic-word
+     * counts and the counts of the documents in the current chunk are kept in
+     * memory. Per-document topic distributions are not stored, and
+     * out-of-core training always uses the standard Gibbs kernel on a single
+     * thread with a symmetric document-topic prior.
+     *
+     * The assignment file is shared by all checkpoints and only holds the
+     * latest assignments. A report state iter-N.zip has the topics of
+     * iteration N, but loading it recomputes the counts from the assignment
+     * file, so only the last state written can be restored as of its
+     * iteration. Copy the assignment file along with a state to keep it
+     * restorable.
+     *
+     * @param store The token store
+     */
+    public void train(TokenStore store) {
+        this.tokenStore = store;
+        this.tokenChunk = new TokenStore.Chunk();
+        this.docIndices = null;
+        this.words = null;
+        this.D = store.getNumDocuments();
+        this.numTokens = store.getNumTokens();
+
+        if (verbose) {
+            logln("--- # docs:\t" + D);
+            logln("--- # tokens:\t" + numTokens);
+            logln("--- assignment file:\t" + store.getAssignmentFile());
+            logln("--- chunk size:\t" + store.getChunkSize());
+        }
+    }
+
     @Override
     public void initialize() {
         if (verbose) {
@@ -245,6 +360,20 @@ public class LDA extends AbstractSampler {
                     + ". # prior documents = " + docTopicPrior.length);
         }
 
+        if (tokenStore != null) { // document counts are computed per chunk
+            if (tokenStore.getNumValues() != K) {
+                throw new RuntimeException("Mismatch. K = " + K
+                        + ". # topics in token store = " + tokenStore.getNumValues());
+            }
+            if (docTopicPrior != null) {
+                throw new RuntimeException("Document-topic priors are not "
+                        + "supported when training out of core");
+            }
+            docTopics = null;
+            z = null;
+            return;
+        }
+
         docTopics = new DirMult[D];
         for (int d = 0; d < D; d++) {
             if (docTopicPrior != null) {
@@ -342,17 +471,15 @@ public class LDA extends AbstractSampler {
 
             // store model
             if (report && iter > BURN_IN && iter % LAG == 0) {
-                outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-                outputTopicTopWords(new File(reportFolderPath,
-                        "topwords-" + iter + ".txt"), 20);
+                reportState(reportFolderPath, false);
             }
         }
 
         if (report) { // output the final model
-            outputState(new File(reportFolderPath, "iter-" + iter + ".zip"));
-            outputTopicTopWords(new File(reportFolderPath,
-                    "topwords-" + iter + ".txt"), 20);
+            reportState(reportFolderPath, true);
         }
+        finishCheckpoints();
+        LogGammaTable.clear();
 
         float ellapsedSeconds = (System.currentTimeMillis() - startTime) / (1000);
         logln("Total runtime iterating: " + ellapsedSeconds + " seconds");
@@ -362,6 +489,58 @@ public class LDA extends AbstractSampler {
         }
     }
 
+    /**
+     * Output the current state and topics to the report folder. With
+     * background checkpointing, they are written from a snapshot. When
+     * training out of core, the state only holds the topics and the
+     * assignments stay in the token store (see train(TokenStore)).
+     *
+     * @param reportFolderPath The report folder
+     * @param isFinal Whether this is the final state
+     */
+    private void reportState(File reportFolderPath, boolean isFinal) {
+        final File stateFile = new File(reportFolderPath, "iter-" + iter + ".zip");
+        final File topWordFile = new File(reportFolderPath, "topwords-" + iter + ".txt");
+        if (isBackgroundCheckpointing()) {
+            outputCheckpoint(snapshotState(stateFile, topWordFile), isFinal);
+        } else {
+            outputState(stateFile);
+            outputTopicTopWords(topWordFile, 20);
+        }
+    }
+
+    /**
+     * Copy the counts and assignments, and return a task that outputs the
+     * copy.
+     */
+    private Runnable snapshotState(final File stateFile, final File topWordFile) {
+        final DirMult[] topics = new DirMult[K];
+        for (int k = 0; k < K; k++) {
+            topics[k] = topicWords[k].clone();
+        }
+        final DirMult[] docs;
+        final int[][] zs;
+        if (tokenStore != null) { // assignments are stored in the token store
+            tokenStore.flush();
+            docs = null;
+            zs = null;
+        } else {
+            docs = new DirMult[D];
+            zs = new int[D][];
+            for (int d = 0; d < D; d++) {
+                docs[d] = docTopics[d].clone();
+                zs[d] = z[d].clone();
+            }
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                outputState(stateFile.getAbsolutePath(), topics, docs, zs);
+                outputTopicTopWords(topWordFile, topics, 20);
+            }
+        };
+    }
+
     /**
      * Sample the topic assignments for all tokens
      *
@@ -373,6 +552,27 @@ public class LDA extends AbstractSampler {
      */
     protected long sampleZs(boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
+        if (tokenStore != null) {
+            return sampleZsStreaming(removeFromModel, addToModel,
+                    removeFromData, addToData);
+        }
+        if (numThreads > 1
+                && removeFromModel && addToModel
+                && removeFromData && addToData) {
+            return sampleZsParallel();
+        }
+        if (kernel == SamplingKernel.SPARSE
+                && removeFromModel && addToModel
+                && removeFromData && addToData
+                && isSparseSamplingSupported()) {
+            return sampleZsSparse();
+        }
+        if (kernel == SamplingKernel.ALIAS
+                && removeFromModel && addToModel
+                && removeFromData && addToData
+                && isSparseSamplingSupported()) {
+            return sampleZsAlias();
+        }
         long sTime = System.currentTimeMillis();
         for (int dd = 0; dd < D; dd++) {
             for (int nn = 0; nn < z[dd].length; nn++) {
@@ -383,6 +583,539 @@ public class LDA extends AbstractSampler {
         return System.currentTimeMillis() - sTime;
     }
 
+    /**
+     * Sample the topic assignments for all tokens in the token store, one
+     * chunk at a time. The topic counts of a document are recomputed from its
+     * stored assignments when the document is sampled.
+     *
+     * @param removeFromModel
+     * @param addToModel
+     * @param removeFromData
+     * @param addToData
+     * @return Elapsed time
+     */
+    protected long sampleZsStreaming(boolean removeFromModel, boolean addToModel,
+            boolean removeFromData, boolean addToData) {
+        long sTime = System.currentTimeMillis();
+        double alpha = hyperparams.get(ALPHA);
+        int[] docCounts = new int[K];
+        double[] probs = new double[K];
+        for (int docStart = 0; docStart < D; docStart = tokenChunk.getDocumentEnd()) {
+            tokenStore.readChunk(docStart, tokenChunk);
+            int[] ws = tokenChunk.getWords();
+            int[] zs = tokenChunk.getAssignments();
+            for (int dd = tokenChunk.getDocumentStart(); dd < tokenChunk.getDocumentEnd(); dd++) {
+                int start = tokenChunk.getTokenStart(dd);
+                int end = tokenChunk.getTokenEnd(dd);
+                Arrays.fill(docCounts, 0);
+                if (removeFromData) {
+                    for (int nn = start; nn < end; nn++) {
+                        docCounts[zs[nn]]++;
+                    }
+                }
+                for (int nn = start; nn < end; nn++) {
+                    if (removeFromData) {
+                        docCounts[zs[nn]]--;
+                    }
+                    if (removeFromModel) {
+                        topicWords[zs[nn]].decrement(ws[nn]);
+                    }
+
+                    for (int k = 0; k < K; k++) {
+                        probs[k] = (docCounts[k] + alpha)
+                                * topicWords[k].getProbability(ws[nn]);
+                    }
+                    int sampledZ = SamplerUtils.scaleSample(probs);
+                    if (sampledZ != zs[nn]) {
+                        numTokensChanged++;
+                    }
+                    zs[nn] = sampledZ;
+
+                    if (addToData) {
+                        docCounts[zs[nn]]++;
+                    }
+                    if (addToModel) {
+                        topicWords[zs[nn]].increment(ws[nn]);
+                    }
+                }
+            }
+            tokenStore.writeChunk(tokenChunk);
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Compute the log likelihood of the stored topic assignments of all
+     * documents in the token store.
+     *
+     * @param alpha The document-topic hyperparameter
+     */
+    protected double getDocTopicLogLikelihoodStreaming(double alpha) {
+        LogGammaTable sumTable = LogGammaTable.get(alpha * K);
+        LogGammaTable elementTable = LogGammaTable.get(alpha);
+        int[] docCounts = new int[K];
+        double llh = 0.0;
+        for (int docStart = 0; docStart < D; docStart = tokenChunk.getDocumentEnd()) {
+            tokenStore.readChunk(docStart, tokenChunk);
+            int[] zs = tokenChunk.getAssignments();
+            for (int dd = tokenChunk.getDocumentStart(); dd < tokenChunk.getDocumentEnd(); dd++) {
+                int start = tokenChunk.getTokenStart(dd);
+                int end = tokenChunk.getTokenEnd(dd);
+                Arrays.fill(docCounts, 0);
+                for (int nn = start; nn < end; nn++) {
+                    docCounts[zs[nn]]++;
+                }
+                llh -= sumTable.logGammaRatio(end - start);
+                for (int k = 0; k < K; k++) {
+                    if (docCounts[k] > 0) {
+                        llh += elementTable.logGammaRatio(docCounts[k]);
+                    }
+                }
+            }
+        }
+        return llh;
+    }
+
+    /**
+     * Recompute the topic-word counts from the assignments in the token
+     * store.
+     */
+    protected void updateTopicWordsStreaming() {
+        for (int k = 0; k < K; k++) {
+            topicWords[k].clear();
+        }
+        for (int docStart = 0; docStart < D; docStart = tokenChunk.getDocumentEnd()) {
+            tokenStore.readChunk(docStart, tokenChunk);
+            int[] ws = tokenChunk.getWords();
+            int[] zs = tokenChunk.getAssignments();
+            for (int nn = 0; nn < tokenChunk.getNumTokens(); nn++) {
+                topicWords[zs[nn]].increment(ws[nn]);
+            }
+        }
+    }
+
+    /**
+     * Sample the topic assignments for all tokens with documents sharded
+     * across threads (AD-LDA, Newman et al., JMLR 2009). Each thread sees the
+     * topic-word counts at the last synchronization plus its own changes.
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsParallel() {
+        long sTime = System.currentTimeMillis();
+        isWordTopicsStale = true;
+        if (parallelSweep == null
+                || parallelSweep.getNumThreads() != numThreads
+                || parallelSweep.getMergeInterval() != mergeInterval) {
+            parallelSweep = new ParallelTopicSweep(numThreads, mergeInterval, RAND_SEED);
+        }
+        numTokensChanged += parallelSweep.sweep(topicWords, D,
+                new ParallelTopicSweep.DocumentSampler() {
+                    @Override
+                    public int sampleDocument(int dd, TopicWordView view) {
+                        return sampleZs(dd, view);
+                    }
+                });
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens in a document using the
+     * topic-word counts of a parallel worker.
+     *
+     * @param dd The document index
+     * @param view The topic-word counts seen by the worker
+     * @return Number of tokens whose assignments changed
+     */
+    protected int sampleZs(int dd, TopicWordView view) {
+        int numChanges = 0;
+        double[] probs = view.getScratch(K);
+        for (int nn = 0; nn < z[dd].length; nn++) {
+            docTopics[dd].decrement(z[dd][nn]);
+            view.decrement(z[dd][nn], words[dd][nn]);
+
+            for (int k = 0; k < K; k++) {
+                probs[k] = (docTopics[dd].getCount(k)
+                        + hyperparams.get(ALPHA) * K * docTopics[dd].getCenterElement(k))
+                        * view.getProbability(k, words[dd][nn]);
+            }
+            int sampledZ = SamplerUtils.scaleSample(probs, K, view.getRandom());
+            if (sampledZ == K) {
+                throw new RuntimeException("Failed to sample topic of token "
+                        + nn + " in document " + dd);
+            }
+            if (sampledZ != z[dd][nn]) {
+                numChanges++;
+            }
+            z[dd][nn] = sampledZ;
+
+            docTopics[dd].increment(z[dd][nn]);
+            view.increment(z[dd][nn], words[dd][nn]);
+        }
+        return numChanges;
+    }
+
+    /**
+     * Check whether the bucketed or alias sampler can be used. The smoothing
+     * bucket is cached across topics, which requires that all topics share the
+     * same symmetric Dirichlet prior over the vocabulary.
+     *
+     * @return True if the sparse and alias kernels can be used
+     */
+    protected boolean isSparseSamplingSupported() {
+        for (int k = 0; k < K; k++) {
+            if (!topicWords[k].isShortRepresented()
+                    || topicWords[k].getConcentration() != topicWords[0].getConcentration()
+                    || topicWords[k].getCenterElement(0) != topicWords[0].getCenterElement(0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build the word-major topic counts used by the sparse and alias kernels
+     * from the current topic assignments. The two kernels keep them up to date
+     * while sampling, so they are only rebuilt after the assignments have been
+     * changed in some other way (initialization, loading a state, or a sweep
+     * of another kernel).
+     */
+    protected void initializeSparseStructure() {
+        wordTopics = new SparseCount[V];
+        for (int v = 0; v < V; v++) {
+            wordTopics[v] = new SparseCount();
+        }
+        for (int dd = 0; dd < D; dd++) {
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                wordTopics[words[dd][nn]].increment(z[dd][nn]);
+            }
+        }
+        topicCoeffs = new double[K];
+        topicDenoms = new double[K];
+        qTopicMasses = new double[K];
+        qTopics = new int[K];
+        isWordTopicsStale = false;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens using the bucketed sampler
+     * of SparseLDA (Yao, Mimno and McCallum, KDD 2009). The unnormalized
+     * conditional
+     *
+     * (n_dk + a_k) (n_kw + b) / (n_k + bV)
+     *
+     * is split into a smoothing bucket a_k b / (n_k + bV), a document bucket
+     * n_dk b / (n_k + bV) and a topic-word bucket (n_dk + a_k) n_kw / (n_k +
+     * bV). The first is cached across documents, the second across tokens of a
+     * document, and the third only visits the topics that word w is currently
+     * assigned to. Draws are from the same conditional as {@link #sampleZ}.
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsSparse() {
+        long sTime = System.currentTimeMillis();
+        if (isWordTopicsStale) {
+            initializeSparseStructure();
+        }
+        double beta = topicWords[0].getConcentration() * topicWords[0].getCenterElement(0);
+        double betaSum = topicWords[0].getConcentration();
+        double sharedAlpha = hyperparams.get(ALPHA);
+
+        // smoothing bucket shared by documents with the default symmetric prior
+        double sharedSmoothing = 0.0;
+        for (int k = 0; k < K; k++) {
+            topicDenoms[k] = topicWords[k].getCountSum() + betaSum;
+            sharedSmoothing += sharedAlpha * beta / topicDenoms[k];
+        }
+
+        for (int dd = 0; dd < D; dd++) {
+            DirMult docTopic = docTopics[dd];
+            double docAlphaSum = docTopic.getConcentration();
+            // the default prior has concentration alpha * K
+            boolean isShared = docTopic.isShortRepresented()
+                    && docAlphaSum == sharedAlpha * K;
+            double smoothing;
+            if (isShared) {
+                smoothing = sharedSmoothing;
+            } else {
+                smoothing = 0.0;
+                for (int k = 0; k < K; k++) {
+                    smoothing += docAlphaSum * docTopic.getCenterElement(k)
+                            * beta / topicDenoms[k];
+                }
+            }
+            double docMass = 0.0;
+            for (int k = 0; k < K; k++) {
+                topicCoeffs[k] = docAlphaSum * docTopic.getCenterElement(k) / topicDenoms[k];
+            }
+            for (int k : docTopic.getSparseCounts().getIndices()) {
+                int count = docTopic.getCount(k);
+                docMass += count * beta / topicDenoms[k];
+                topicCoeffs[k] = (count + docAlphaSum * docTopic.getCenterElement(k))
+                        / topicDenoms[k];
+            }
+
+            for (int nn = 0; nn < z[dd].length; nn++) {
+                int ww = words[dd][nn];
+                int curZ = z[dd][nn];
+
+                // remove the current assignment and update the buckets
+                double alphaK = docAlphaSum * docTopic.getCenterElement(curZ);
+                int docCount = docTopic.getCount(curZ);
+                smoothing -= alphaK * beta / topicDenoms[curZ];
+                docMass -= docCount * beta / topicDenoms[curZ];
+                docTopic.decrement(curZ);
+                topicWords[curZ].decrement(ww);
+                wordTopics[ww].decrement(curZ);
+                topicDenoms[curZ]--;
+                smoothing += alphaK * beta / topicDenoms[curZ];
+                docMass += (docCount - 1) * beta / topicDenoms[curZ];
+                topicCoeffs[curZ] = (docCount - 1 + alphaK) / topicDenoms[curZ];
+
+                // topic-word bucket
+                double topicWordMass = 0.0;
+                int numQTopics = 0;
+                for (int k : wordTopics[ww].getIndices()) {
+                    double mass = topicCoeffs[k] * wordTopics[ww].getCount(k);
+                    qTopics[numQTopics] = k;
+                    qTopicMasses[numQTopics] = mass;
+                    numQTopics++;
+                    topicWordMass += mass;
+                }
+
+                int sampledZ = -1;
+                double u = SamplerUtils.rand.nextDouble()
+                        * (smoothing + docMass + topicWordMass);
+                if (u < topicWordMass) {
+                    for (int ii = 0; ii < numQTopics; ii++) {
+                        u -= qTopicMasses[ii];
+                        if (u <= 0) {
+                            sampledZ = qTopics[ii];
+                            break;
+                        }
+                    }
+                    if (sampledZ == -1) { // round-off
+                        sampledZ = qTopics[numQTopics - 1];
+                    }
+                } else if (u < topicWordMass + docMass) {
+                    u -= topicWordMass;
+                    int lastK = -1;
+                    for (int k : docTopic.getSparseCounts().getIndices()) {
+                        lastK = k;
+                        u -= docTopic.getCount(k) * beta / topicDenoms[k];
+                        if (u <= 0) {
+                            sampledZ = k;
+                            break;
+                        }
+                    }
+                    if (sampledZ == -1) { // round-off
+                        sampledZ = lastK;
+                    }
+                } else {
+                    u -= topicWordMass + docMass;
+                    for (int k = 0; k < K; k++) {
+                        u -= docAlphaSum * docTopic.getCenterElement(k) * beta / topicDenoms[k];
+                        if (u <= 0) {
+                            sampledZ = k;
+                            break;
+                        }
+                    }
+                    if (sampledZ == -1) { // round-off
+                        sampledZ = K - 1;
+                    }
+                }
+
+                if (sampledZ != curZ) {
+                    numTokensChanged++;
+                }
+                z[dd][nn] = sampledZ;
+
+                // add the new assignment and update the buckets
+                alphaK = docAlphaSum * docTopic.getCenterElement(sampledZ);
+                docCount = docTopic.getCount(sampledZ);
+                smoothing -= alphaK * beta / topicDenoms[sampledZ];
+                docMass -= docCount * beta / topicDenoms[sampledZ];
+                docTopic.increment(sampledZ);
+                topicWords[sampledZ].increment(ww);
+                wordTopics[ww].increment(sampledZ);
+                topicDenoms[sampledZ]++;
+                smoothing += alphaK * beta / topicDenoms[sampledZ];
+                docMass += (docCount + 1) * beta / topicDenoms[sampledZ];
+                topicCoeffs[sampledZ] = (docCount + 1 + alphaK) / topicDenoms[sampledZ];
+            }
+
+            // topic totals changed while sampling this document
+            if (isShared) {
+                sharedSmoothing = smoothing;
+            } else {
+                sharedSmoothing = 0.0;
+                for (int k = 0; k < K; k++) {
+                    sharedSmoothing += sharedAlpha * beta / topicDenoms[k];
+                }
+            }
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Sample the topic assignments for all tokens using the alias-table
+     * Metropolis-Hastings sampler of LightLDA (Yuan et al., WWW 2015). Each
+     * step alternates two proposals whose draws cost O(1):
+     *
+     * - a word proposal q_w(k) proportional to (n_kw + b) / (n_k + bV), drawn
+     * from a stale alias table over the nonzero n_kw mixed with a shared stale
+     * alias table for the smoothing part b / (n_k + bV), and
+     *
+     * - a doc proposal q_d(k) proportional to n_dk + a_k, drawn by picking a
+     * random token of the document (or from the prior).
+     *
+     * Both proposals are corrected by an MH acceptance test against the true
+     * conditional, so the chain has the same stationary distribution as
+     * {@link #sampleZ}. Stale tables are rebuilt lazily once they have been
+     * drawn from a given number of times or built in an earlier sweep.
+     *
+     * @return Elapsed time
+     */
+    protected long sampleZsAlias() {
+        long sTime = System.currentTimeMillis();
+        if (isWordTopicsStale) {
+            initializeSparseStructure();
+        }
+        if (wordAliasTables == null || wordAliasTables.length != V) {
+            wordAliasTables = new AliasTable[V];
+            wordAliasSweeps = new int[V];
+            smoothingAliasTable = new AliasTable(K);
+        }
+        numAliasSweeps++;
+        double beta = topicWords[0].getConcentration() * topicWords[0].getCenterElement(0);
+        double betaSum = topicWords[0].getConcentration();
+        int maxUses = numAliasUses > 0 ? numAliasUses : K;
+        buildSmoothingAliasTable(beta, betaSum);
+
+        for (int dd = 0; dd < D; dd++) {
+            DirMult docTopic = docTopics[dd];
+            double docAlphaSum = docTopic.getConcentration();
+            int docLength = z[dd].length;
+
+            for (int nn = 0; nn < docLength; nn++) {
+                int ww = words[dd][nn];
+                int curZ = z[dd][nn];
+
+                docTopic.decrement(curZ);
+                topicWords[curZ].decrement(ww);
+                wordTopics[ww].decrement(curZ);
+
+                AliasTable wordTable = wordAliasTables[ww];
+                if (wordTable == null
+                        || wordAliasSweeps[ww] != numAliasSweeps
+                        || wordTable.getNumUses() >= maxUses) {
+                    wordTable = buildWordAliasTable(ww, betaSum);
+                }
+                if (smoothingAliasTable.getNumUses() >= Math.max(maxUses, K)) {
+                    buildSmoothingAliasTable(beta, betaSum);
+                }
+
+                int s = curZ;
+                for (int step = 0; step < numMHSteps; step++) {
+                    // word proposal
+                    double wordMass = wordTable.getTotalWeight();
+                    double smoothMass = smoothingAliasTable.getTotalWeight();
+                    int t;
+                    if (SamplerUtils.rand.nextDouble() * (wordMass + smoothMass) < wordMass) {
+                        t = wordTable.sample(SamplerUtils.rand);
+                    } else {
+                        t = smoothingAliasTable.sample(SamplerUtils.rand);
+                    }
+                    if (t != s) {
+                        double piT = (docTopic.getCount(t) + docAlphaSum * docTopic.getCenterElement(t))
+                                * (topicWords[t].getCount(ww) + beta)
+                                / (topicWords[t].getCountSum() + betaSum);
+                        double piS = (docTopic.getCount(s) + docAlphaSum * docTopic.getCenterElement(s))
+                                * (topicWords[s].getCount(ww) + beta)
+                                / (topicWords[s].getCountSum() + betaSum);
+                        double qT = wordTable.getWeight(t) + smoothingAliasTable.getWeight(t);
+                        double qS = wordTable.getWeight(s) + smoothingAliasTable.getWeight(s);
+                        if (SamplerUtils.rand.nextDouble() * piS * qT < piT * qS) {
+                            s = t;
+                        }
+                    }
+
+                    // doc proposal, including the current token with topic s
+                    z[dd][nn] = s;
+                    if (SamplerUtils.rand.nextDouble() * (docLength + docAlphaSum) < docLength) {
+                        t = z[dd][SamplerUtils.rand.nextInt(docLength)];
+                    } else if (docTopic.isShortRepresented()) {
+                        t = SamplerUtils.rand.nextInt(K);
+                    } else {
+                        t = SamplerUtils.scaleSample(docTopic.getCenterVector());
+                    }
+                    if (t != s) {
+                        double ratio = (topicWords[t].getCount(ww) + beta)
+                                * (topicWords[s].getCountSum() + betaSum)
+                                / ((topicWords[s].getCount(ww) + beta)
+                                * (topicWords[t].getCountSum() + betaSum));
+                        if (SamplerUtils.rand.nextDouble() < ratio) {
+                            s = t;
+                        }
+                    }
+                }
+
+                if (s != curZ) {
+                    numTokensChanged++;
+                }
+                z[dd][nn] = s;
+
+                docTopic.increment(s);
+                topicWords[s].increment(ww);
+                wordTopics[ww].increment(s);
+            }
+        }
+        return System.currentTimeMillis() - sTime;
+    }
+
+    /**
+     * Rebuild the alias table of the word-specific part of the word proposal
+     * from the current counts.
+     *
+     * @param ww The word type
+     * @param betaSum Concentration of the topic-word Dirichlet priors
+     * @return The rebuilt table
+     */
+    private AliasTable buildWordAliasTable(int ww, double betaSum) {
+        AliasTable table = wordAliasTables[ww];
+        if (table == null) {
+            table = new AliasTable(wordTopics[ww].size());
+            wordAliasTables[ww] = table;
+        }
+        int numTopics = 0;
+        for (int k : wordTopics[ww].getIndices()) {
+            qTopics[numTopics++] = k;
+        }
+        Arrays.sort(qTopics, 0, numTopics);
+        for (int ii = 0; ii < numTopics; ii++) {
+            int k = qTopics[ii];
+            qTopicMasses[ii] = wordTopics[ww].getCount(k)
+                    / (topicWords[k].getCountSum() + betaSum);
+        }
+        table.build(qTopics, qTopicMasses, numTopics);
+        wordAliasSweeps[ww] = numAliasSweeps;
+        return table;
+    }
+
+    /**
+     * Rebuild the alias table of the smoothing part of the word proposal from
+     * the current topic totals.
+     *
+     * @param beta Pseudo-count of each word in the topic-word priors
+     * @param betaSum Concentration of the topic-word Dirichlet priors
+     */
+    private void buildSmoothingAliasTable(double beta, double betaSum) {
+        for (int k = 0; k < K; k++) {
+            qTopicMasses[k] = beta / (topicWords[k].getCountSum() + betaSum);
+        }
+        smoothingAliasTable.build(qTopicMasses, K);
+    }
+
     /**
      * Sample the topic assignment for each token
      *
@@ -396,6 +1129,7 @@ public class LDA extends AbstractSampler {
     protected void sampleZ(int dd, int nn,
             boolean removeFromModel, boolean addToModel,
             boolean removeFromData, boolean addToData) {
+        isWordTopicsStale = true;
         if (removeFromData) {
             docTopics[dd].decrement(z[dd][nn]);
         }
@@ -431,7 +1165,10 @@ public class LDA extends AbstractSampler {
     @Override
     public double getLogLikelihood() {
         double docTopicLlh = 0;
-        for (int d = 0; d < D; d++) {
+        if (tokenStore != null) {
+            docTopicLlh = getDocTopicLogLikelihoodStreaming(hyperparams.get(ALPHA));
+        }
+        for (int d = 0; docTopics != null && d < D; d++) {
             docTopicLlh += docTopics[d].getLogLikelihood();
         }
         double topicWordLlh = 0;
@@ -447,13 +1184,14 @@ public class LDA extends AbstractSampler {
             throw new RuntimeException("Number of hyperparameters mismatched");
         }
         double llh = 0;
-        for (int d = 0; d < D; d++) {
-            llh += docTopics[d].getLogLikelihood(newParams.get(ALPHA) * K, 
-                    docTopics[d].getCenterVector());
+        if (tokenStore != null) {
+            llh += getDocTopicLogLikelihoodStreaming(newParams.get(ALPHA));
+        }
+        for (int d = 0; docTopics != null && d < D; d++) {
+            llh += docTopics[d].getLogLikelihoodWithConcentration(newParams.get(ALPHA) * K);
         }
         for (int k = 0; k < K; k++) {
-            llh += topicWords[k].getLogLikelihood(newParams.get(BETA) * V, 
-                    topicWords[k].getCenterVector());
+            llh += topicWords[k].getLogLikelihoodWithConcentration(newParams.get(BETA) * V);
         }
         return llh;
     }
@@ -461,7 +1199,7 @@ public class LDA extends AbstractSampler {
     @Override
     public void updateHyperparameters(ArrayList<Double> newParams) {
         this.hyperparams = newParams;
-        for (int d = 0; d < D; d++) {
+        for (int d = 0; docTopics != null && d < D; d++) {
             this.docTopics[d].setConcentration(this.hyperparams.get(ALPHA) * K);
         }
         for (int k = 0; k < K; k++) {
@@ -472,7 +1210,7 @@ public class LDA extends AbstractSampler {
     @Override
     public void validate(String msg) {
         logln("Validating ... " + msg);
-        for (int d = 0; d < D; d++) {
+        for (int d = 0; docTopics != null && d < D; d++) {
             docTopics[d].validate(msg);
         }
         for (int k = 0; k < K; k++) {
@@ -487,6 +1225,10 @@ public class LDA extends AbstractSampler {
      * @param numTopWords
      */
     public void outputTopicTopWords(File file, int numTopWords) {
+        outputTopicTopWords(file, topicWords, numTopWords);
+    }
+
+    private void outputTopicTopWords(File file, DirMult[] topicWords, int numTopWords) {
         if (this.wordVocab == null) {
             throw new RuntimeException("The word vocab has not been assigned yet");
         }
@@ -519,28 +1261,30 @@ public class LDA extends AbstractSampler {
 
     @Override
     public void outputState(String filepath) {
+        if (tokenStore != null) { // assignments are stored in the token store
+            tokenStore.flush();
+        }
+        outputState(filepath, topicWords, docTopics, z);
+    }
+
+    private void outputState(String filepath, DirMult[] topicWords,
+            DirMult[] docTopics, int[][] z) {
         if (verbose) {
             logln("--- Outputing current state to " + filepath);
         }
         try {
-            StringBuilder modelStr = new StringBuilder();
+            StateWriter writer = new StateWriter(filepath);
+            writer.writeInt(K);
             for (int k = 0; k < K; k++) {
-                modelStr.append(k).append("\n");
-                modelStr.append(DirMult.output(topicWords[k])).append("\n");
+                writer.writeDirMult(topicWords[k]);
             }
 
-            StringBuilder assignStr = new StringBuilder();
-            for (int d = 0; d < D; d++) {
-                assignStr.append(d).append("\n");
-                assignStr.append(DirMult.output(docTopics[d])).append("\n");
-                for (int n = 0; n < z[d].length; n++) {
-                    assignStr.append(z[d][n]).append("\t");
-                }
-                assignStr.append("\n");
+            writer.writeInt(z == null ? 0 : D);
+            for (int d = 0; z != null && d < D; d++) {
+                writer.writeDirMult(docTopics[d]);
+                writer.writeInts(z[d]);
             }
-
-            // output to a compressed file
-            this.outputZipFile(filepath, modelStr.toString(), assignStr.toString());
+            writer.close();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while outputing to " + filepath);
@@ -554,9 +1298,24 @@ public class LDA extends AbstractSampler {
         }
 
         try {
-            inputModel(filepath);
+            if (StateReader.isBinaryState(filepath)) {
+                inputBinaryState(filepath);
+            } else { // states in the old text format
+                inputModel(filepath);
+                if (tokenStore == null) {
+                    inputAssignments(filepath);
+                }
+            }
 
-            inputAssignments(filepath);
+            if (tokenStore != null) {
+                // assignments are in the token store, and the counts are
+                // recomputed so that they are consistent with the assignments.
+                // The topics read from the state are thus replaced by those of
+                // the latest assignments, which need not be from the same
+                // iteration as the state.
+                updateTopicWordsStreaming();
+            }
+            isWordTopicsStale = true;
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading from " + filepath);
@@ -565,6 +1324,37 @@ public class LDA extends AbstractSampler {
         validate("Done reading state from " + filepath);
     }
 
+    private void inputBinaryState(String filepath) throws Exception {
+        this.initializeModelStructure(null);
+        StateReader reader = new StateReader(filepath);
+        try {
+            int numTopics = reader.readInt();
+            if (numTopics != K) {
+                throw new RuntimeException("Mismatch. K = " + K
+                        + ". # topics in state = " + numTopics);
+            }
+            for (int k = 0; k < K; k++) {
+                topicWords[k] = reader.readDirMult();
+            }
+
+            if (tokenStore != null) {
+                return;
+            }
+            this.initializeDataStructure(null);
+            int numDocs = reader.readInt();
+            if (numDocs != D) {
+                throw new RuntimeException("Mismatch. D = " + D
+                        + ". # documents in state = " + numDocs);
+            }
+            for (int d = 0; d < D; d++) {
+                docTopics[d] = reader.readDirMult();
+                reader.readInts(z[d]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
     private void inputModel(String zipFilepath) {
         if (verbose) {
             logln("--- --- Loading model from " + zipFilepath);
@@ -656,6 +1446,10 @@ public class LDA extends AbstractSampler {
         addOption("word-file", "Document word file");
         addOption("info-file", "Document info file");
         addOption("selected-docs-file", "(Optional) Indices of selected documents");
+        addOption("assignment-file", "(Optional) File to store topic assignments "
+                + "when training out of core. If given, the word file must be "
+                + "in binary format.");
+        addOption("chunk-size", "Number of tokens per chunk when training out of core");
 
         // data output
         addOption("output-folder", "Output folder");
@@ -671,6 +1465,16 @@ public class LDA extends AbstractSampler {
 
         // configurations
         addOption("init", "Initialization");
+        addOption("kernel", "Sampling kernel (gibbs, sparse, alias)");
+        addOption("mh-steps", "Number of MH steps per token (alias kernel)");
+        addOption("alias-uses", "Number of draws before rebuilding an alias table (alias kernel)");
+        addOption("num-threads", "Number of threads for parallel sampling");
+        addOption("merge-interval", "Number of documents per thread between "
+                + "synchronizations (parallel sampling)");
+        addOption("checkpoint-queue", "Number of checkpoints that can wait to be "
+                + "written in the background (0 to write them while sampling)");
+        addOption("checkpoint-policy", "What to do when the checkpoint queue is "
+                + "full (block, skip, drop-oldest)");
 
         options.addOption("v", false, "verbose");
         options.addOption("d", false, "debug");
@@ -698,11 +1502,49 @@ public class LDA extends AbstractSampler {
             default:
                 throw new RuntimeException("Initialization " + init + " not supported");
         }
+        String kernelName = CLIUtils.getStringArgument(cmd, "kernel", "gibbs");
+        SamplingKernel kernel;
+        switch (kernelName) {
+            case "gibbs":
+                kernel = SamplingKernel.GIBBS;
+                break;
+            case "sparse":
+                kernel = SamplingKernel.SPARSE;
+                break;
+            case "alias":
+                kernel = SamplingKernel.ALIAS;
+                break;
+            default:
+                throw new RuntimeException("Sampling kernel " + kernelName + " not supported");
+        }
 
         // model parameters
         double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
         double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
         int K = CLIUtils.getIntegerArgument(cmd, "K", 50);
+        int numMHSteps = CLIUtils.getIntegerArgument(cmd, "mh-steps", 2);
+        int numAliasUses = CLIUtils.getIntegerArgument(cmd, "alias-uses", K);
+        int numThreads = CLIUtils.getIntegerArgument(cmd, "num-threads", 1);
+        if (numThreads > 1) { // shards run on the shared worker pool
+            setNumWorkerThreads(numThreads);
+        }
+        int mergeInterval = CLIUtils.getIntegerArgument(cmd, "merge-interval", -1);
+        int checkpointQueueSize = CLIUtils.getIntegerArgument(cmd, "checkpoint-queue", 0);
+        String policyName = CLIUtils.getStringArgument(cmd, "checkpoint-policy", "block");
+        CheckpointQueue.Policy checkpointPolicy;
+        switch (policyName) {
+            case "block":
+                checkpointPolicy = CheckpointQueue.Policy.BLOCK;
+                break;
+            case "skip":
+                checkpointPolicy = CheckpointQueue.Policy.SKIP;
+                break;
+            case "drop-oldest":
+                checkpointPolicy = CheckpointQueue.Policy.DROP_OLDEST;
+                break;
+            default:
+                throw new RuntimeException("Checkpoint policy " + policyName + " not supported");
+        }
 
         // data input
         String datasetName = cmd.getOptionValue("dataset");
@@ -713,6 +1555,13 @@ public class LDA extends AbstractSampler {
         // data output
         String outputFolder = cmd.getOptionValue("output-folder");
 
+        if (cmd.hasOption("assignment-file")) {
+            runModelOutOfCore(wordVocFile, docWordFile, outputFolder, K,
+                    alpha, beta, initState, paramOpt,
+                    burnIn, maxIters, sampleLag, repInterval, numTopWords);
+            return;
+        }
+
         TextDataset data = new TextDataset(datasetName);
         data.loadFormattedData(new File(wordVocFile),
                 new File(docWordFile),
@@ -726,6 +1575,10 @@ public class LDA extends AbstractSampler {
         sampler.setLog(true);
         sampler.setReport(true);
         sampler.setWordVocab(data.getWordVocab());
+        sampler.setSamplingKernel(kernel);
+        sampler.setAliasConfigurations(numMHSteps, numAliasUses);
+        sampler.setParallelConfigurations(numThreads, mergeInterval);
+        sampler.setBackgroundCheckpointing(checkpointQueueSize, checkpointPolicy);
 
         sampler.configure(outputFolder, V, K,
                 alpha, beta,
@@ -756,6 +1609,39 @@ public class LDA extends AbstractSampler {
         sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
     }
 
+    private static void runModelOutOfCore(String wordVocFile, String docWordFile,
+            String outputFolder, int K, double alpha, double beta,
+            InitialState initState, boolean paramOpt,
+            int burnIn, int maxIters, int sampleLag, int repInterval,
+            int numTopWords) throws Exception {
+        String assignmentFile = cmd.getOptionValue("assignment-file");
+        int chunkSize = CLIUtils.getIntegerArgument(cmd, "chunk-size",
+                TokenStore.DEFAULT_CHUNK_SIZE);
+        ArrayList<String> wordVocab = DataUtils.inputWordVocab(wordVocFile);
+        int V = wordVocab.size();
+        TokenStore store = TokenStore.open(BinaryCorpus.open(new File(docWordFile)),
+                new File(assignmentFile), K, chunkSize);
+
+        LDA sampler = new LDA();
+        sampler.setVerbose(cmd.hasOption("v"));
+        sampler.setDebug(cmd.hasOption("d"));
+        sampler.setLog(true);
+        sampler.setReport(true);
+        sampler.setWordVocab(wordVocab);
+
+        sampler.configure(outputFolder, V, K,
+                alpha, beta,
+                initState, paramOpt,
+                burnIn, maxIters, sampleLag, repInterval);
+        File samplerFolder = new File(sampler.getSamplerFolderPath());
+        IOUtils.createFolder(samplerFolder);
+
+        sampler.train(store);
+        sampler.initialize();
+        sampler.iterate();
+        sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
+    }
+
     public static void main(String[] args) {
         try {
             long sTime = System.currentTimeMillis();
@@ -611,7 +611,7 @@ public class RecursiveLDA extends AbstractSampler {
             return this.children[idx];
         }
 
-        public int getNumTokens() {
+        public long getNumTokens() {
             return this.numTokens;
         }
 
@@ -29,7 +29,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
 
     public AbstractDiscreteFiniteLikelihoodModel(int dim) {
         this.dimension = dim;
-        this.observations = new SparseCount();
+        this.observations = new SparseCount(dim);
     }
 
     public abstract String getModelName();
@@ -55,7 +55,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
     }
 
     public void clear() {
-        this.observations = new SparseCount();
+        this.observations = new SparseCount(dimension);
     }
 
     public boolean isEmpty() {
@@ -76,9 +76,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
 
     public int[] getCounts() {
         int[] counts = new int[this.dimension];
-        for (int obs : this.observations.getIndices()) {
-            counts[obs] = this.observations.getCount(obs);
-        }
+        this.observations.getCountStore().copyTo(counts);
         return counts;
     }
 
@@ -87,7 +85,7 @@ public abstract class AbstractDiscreteFiniteLikelihoodModel
     }
 
     public void setCounts(int[] c) {
-        this.observations = new SparseCount();
+        this.observations = new SparseCount(dimension);
         for (int i = 0; i < c.length; i++) {
             if (c[i] > 0) {
                 this.observations.setCount(i, c[i]);
@@ -4,7 +4,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import sampling.AbstractDiscreteFiniteLikelihoodModel;
+import sampling.util.CountStore;
 import sampling.util.SparseCount;
+import util.LogGammaTable;
 import util.SamplerUtils;
 import weka.core.SerializedObject;
 
@@ -21,6 +23,9 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     private double[] center; // the mean vector for asymmetric distribution
     private double centerElement; // an element in the mean vector for symmetric distribution
     private double[] distribution;
+    // cached log Gamma tables of the prior, only for symmetric priors
+    private transient LogGammaTable priorSumTable;
+    private transient LogGammaTable priorElementTable;
 
     public DirMult(int dim, double concentration, double centerElement) {
         super(dim);
@@ -57,6 +62,7 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     }
 
     public void setHyperparameters(double[] p) {
+        invalidateLogGammaTables();
         this.concentration = 0.0;
         for (double v : p) {
             this.concentration += v;
@@ -68,13 +74,22 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     }
 
     public void setConcentration(double conc) {
+        if (conc != this.concentration) {
+            invalidateLogGammaTables();
+        }
         this.concentration = conc;
     }
 
     public void getCenterVector(double[] ce) {
+        invalidateLogGammaTables();
         this.center = ce;
     }
 
+    private void invalidateLogGammaTables() {
+        this.priorSumTable = null;
+        this.priorElementTable = null;
+    }
+
     public double getConcentration() {
         return concentration;
     }
@@ -154,7 +169,25 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     }
 
     public double getLogLikelihood(SparseCount observations) {
-        return getLogLikelihood(observations.getObservations());
+        return getLogLikelihood(observations.getCountStore());
+    }
+
+    public double getLogLikelihood(CountStore observations) {
+        double llh = 0.0;
+        int j = 0;
+        CountStore.EntryIterator iter = observations.entryIterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            int observation = iter.key();
+            int count = iter.value();
+            for (int i = 0; i < count; i++) {
+                llh += Math.log(concentration * getCenterElement(observation)
+                        + getCount(observation) + i)
+                        - Math.log(concentration + getCountSum() + j);
+                j++;
+            }
+        }
+        return llh;
     }
 
     @Override
@@ -172,22 +205,31 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
     @Override
     public double getLogLikelihood() {
         if (isShortRepresented()) {
-            return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), centerElement * concentration);
+            if (priorElementTable == null) {
+                double priorElement = centerElement * concentration;
+                priorSumTable = LogGammaTable.get(getDimension() * priorElement);
+                priorElementTable = LogGammaTable.get(priorElement);
+            }
+            return SamplerUtils.computeLogLhood(getSparseCounts(),
+                    priorSumTable, priorElementTable);
         } else {
             double[] params = new double[this.getDimension()];
             for (int i = 0; i < this.getDimension(); i++) {
                 params[i] = center[i] * concentration;
             }
-            return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), params);
+            return SamplerUtils.computeLogLhood(getSparseCounts(), params);
         }
     }
 
     public double getLogLikelihood(double[] params) {
-        return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), params);
+        return SamplerUtils.computeLogLhood(getSparseCounts(), params);
     }
 
     public double getLogLikelihood(double concentr, double centerE) {
-        return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), centerE * concentr);
+        double priorElement = centerE * concentr;
+        return SamplerUtils.computeLogLhood(getSparseCounts(),
+                LogGammaTable.get(getDimension() * priorElement),
+                LogGammaTable.get(priorElement));
     }
 
     public double getLogLikelihood(double concentr, double[] centerV) {
@@ -195,7 +237,22 @@ public class DirMult extends AbstractDiscreteFiniteLikelihoodModel implements Se
         for (int i = 0; i < this.getDimension(); i++) {
             params[i] = centerV[i] * concentr;
         }
-        return SamplerUtils.computeLogLhood(getCounts(), getCountSum(), params);
+        return SamplerUtils.computeLogLhood(getSparseCounts(), params);
+    }
+
+    /**
+     * Compute the log likelihood of the observations under the same mean
+     * vector but a different concentration parameter. This is mainly used for
+     * slice sampling the concentration, and does not turn a symmetric prior
+     * into an asymmetric one.
+     *
+     * @param concentr The concentration parameter
+     */
+    public double getLogLikelihoodWithConcentration(double concentr) {
+        if (isShortRepresented()) {
+            return getLogLikelihood(concentr, centerElement);
+        }
+        return getLogLikelihood(concentr, center);
     }
 
     @Override
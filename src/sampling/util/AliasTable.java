@@ -0,0 +1,180 @@
+package sampling.util;
+
+import java.util.Random;
+
+/**
+ * Implementation of Walker's alias method (using Vose's construction) for
+ * sampling from a fixed discrete distribution in constant time. Each outcome
+ * is identified by an integer key. The unnormalized weights used to build the
+ * table are kept so that the probability of any key can be looked up, which
+ * is needed when the table is used as a Metropolis-Hastings proposal.
+ *
+ * A table is typically built from counts that keep changing while sampling, so
+ * it becomes stale. The number of draws since the last build is tracked so that
+ * the caller can decide when to rebuild.
+ *
+ * @author vietan
+ */
+public class AliasTable {
+
+    private int size;
+    private int[] keys;         // sorted keys of the outcomes
+    private double[] weights;   // unnormalized weight of each outcome
+    private double[] probs;     // probability of keeping the bucket
+    private int[] aliases;      // alias of each bucket
+    private double totalWeight;
+    private int numUses;
+    // scratch for building
+    private int[] smalls;
+    private int[] larges;
+
+    public AliasTable() {
+        this(0);
+    }
+
+    public AliasTable(int capacity) {
+        this.size = 0;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.weights = new double[capacity];
+        this.probs = new double[capacity];
+        this.aliases = new int[capacity];
+        this.smalls = new int[capacity];
+        this.larges = new int[capacity];
+    }
+
+    /**
+     * Build the table over outcomes 0, 1, ..., length - 1.
+     *
+     * @param ws Unnormalized weights
+     * @param length Number of outcomes
+     */
+    public void build(double[] ws, int length) {
+        if (keys.length < length) {
+            allocate(length);
+        }
+        for (int ii = 0; ii < length; ii++) {
+            keys[ii] = ii;
+        }
+        build(null, ws, length);
+    }
+
+    /**
+     * Build the table over a set of keyed outcomes. The keys must be sorted in
+     * increasing order so that {@link #getWeight(int)} can look them up.
+     *
+     * @param ks Sorted keys, or null if the keys have already been filled
+     * @param ws Unnormalized weights
+     * @param length Number of outcomes
+     */
+    public void build(int[] ks, double[] ws, int length) {
+        if (keys.length < length) {
+            allocate(length);
+        }
+        this.size = length;
+        this.numUses = 0;
+        this.totalWeight = 0.0;
+        for (int ii = 0; ii < length; ii++) {
+            if (ks != null) {
+                keys[ii] = ks[ii];
+            }
+            weights[ii] = ws[ii];
+            totalWeight += ws[ii];
+        }
+
+        int numSmalls = 0;
+        int numLarges = 0;
+        for (int ii = 0; ii < length; ii++) {
+            probs[ii] = weights[ii] * length / totalWeight;
+            aliases[ii] = ii;
+            if (probs[ii] < 1.0) {
+                smalls[numSmalls++] = ii;
+            } else {
+                larges[numLarges++] = ii;
+            }
+        }
+        while (numSmalls > 0 && numLarges > 0) {
+            int small = smalls[--numSmalls];
+            int large = larges[--numLarges];
+            aliases[small] = large;
+            probs[large] += probs[small] - 1.0;
+            if (probs[large] < 1.0) {
+                smalls[numSmalls++] = large;
+            } else {
+                larges[numLarges++] = large;
+            }
+        }
+        // left-overs are due to round-off and should be kept with probability 1
+        while (numLarges > 0) {
+            probs[larges[--numLarges]] = 1.0;
+        }
+        while (numSmalls > 0) {
+            probs[smalls[--numSmalls]] = 1.0;
+        }
+    }
+
+    /**
+     * Draw a key from the table in constant time.
+     *
+     * @param rand Random number generator
+     * @return The sampled key
+     */
+    public int sample(Random rand) {
+        numUses++;
+        int bucket = rand.nextInt(size);
+        if (rand.nextDouble() < probs[bucket]) {
+            return keys[bucket];
+        }
+        return keys[aliases[bucket]];
+    }
+
+    /**
+     * Return the unnormalized weight of a key when the table was last built,
+     * or 0 if the key was not included.
+     *
+     * @param key The key
+     * @return The unnormalized weight
+     */
+    public double getWeight(int key) {
+        if (key >= 0 && key < size && keys[key] == key) { // dense keys
+            return weights[key];
+        }
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else if (keys[mid] > key) {
+                hi = mid - 1;
+            } else {
+                return weights[mid];
+            }
+        }
+        return 0.0;
+    }
+
+    public double getTotalWeight() {
+        return this.totalWeight;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Return the number of draws since the table was last built.
+     *
+     * @return Number of draws
+     */
+    public int getNumUses() {
+        return this.numUses;
+    }
+}
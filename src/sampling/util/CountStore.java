@@ -0,0 +1,323 @@
+package sampling.util;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Primitive store of non-negative integer counts indexed by non-negative
+ * integers. Only non-zero counts are kept.
+ *
+ * Counts are stored either in an open-addressing int-to-int hash map (sparse
+ * mode) or in a plain int array (dense mode). When the dimension of the index
+ * space is known, the store starts in dense mode if the dimension is small and
+ * otherwise switches between the two modes depending on the fraction of
+ * non-zero counts. Neither mode boxes or allocates when a count is changed.
+ *
+ * @author vietan
+ */
+public class CountStore implements Cloneable, Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    public static final int UNKNOWN_DIMENSION = -1;
+    // dimensions up to this are always stored densely
+    public static final int MAX_SMALL_DIMENSION = 64;
+    // switch to dense mode when at least 1/PROMOTE_RATIO of the counts are non-zero
+    public static final int PROMOTE_RATIO = 4;
+    // switch back to sparse mode when less than 1/DEMOTE_RATIO are non-zero
+    public static final int DEMOTE_RATIO = 16;
+    private final int dimension;
+    private TIntIntHashMap sparse; // non-null in sparse mode
+    private int[] dense; // non-null in dense mode
+    private int size; // number of non-zero counts
+    private boolean denseAllowed; // false once an index outside the dimension is seen
+
+    public CountStore() {
+        this(UNKNOWN_DIMENSION);
+    }
+
+    /**
+     * @param dim Dimension of the index space, or UNKNOWN_DIMENSION if indices
+     * are unbounded. Dense mode is only used when the dimension is known.
+     */
+    public CountStore(int dim) {
+        this.dimension = dim;
+        this.size = 0;
+        this.denseAllowed = dim > 0;
+        if (dim > 0 && dim <= MAX_SMALL_DIMENSION) {
+            this.dense = new int[dim];
+        } else {
+            this.sparse = new TIntIntHashMap();
+        }
+    }
+
+    @Override
+    public CountStore clone() {
+        try {
+            CountStore cs = (CountStore) super.clone();
+            if (this.dense != null) {
+                cs.dense = this.dense.clone();
+            } else {
+                cs.sparse = new TIntIntHashMap(this.sparse);
+            }
+            return cs;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException("Exception while cloning", e);
+        }
+    }
+
+    public int getDimension() {
+        return this.dimension;
+    }
+
+    public boolean isDense() {
+        return this.dense != null;
+    }
+
+    /**
+     * Return the number of non-zero counts.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public int get(int index) {
+        if (dense != null) {
+            return (index >= 0 && index < dense.length) ? dense[index] : 0;
+        }
+        return sparse.get(index);
+    }
+
+    public boolean containsKey(int index) {
+        return get(index) != 0;
+    }
+
+    /**
+     * Change the count of an index.
+     *
+     * @param index The index
+     * @param delta Change in the count
+     * @return The new count
+     */
+    public int adjust(int index, int delta) {
+        if (delta == 0) {
+            return get(index);
+        }
+        int newCount;
+        if (dense != null && (index < 0 || index >= dense.length)) {
+            denseAllowed = false;
+            toSparse();
+        }
+        if (dense != null) {
+            int oldCount = dense[index];
+            newCount = oldCount + delta;
+            dense[index] = newCount;
+            if (oldCount == 0) {
+                size++;
+            } else if (newCount == 0) {
+                size--;
+                demoteIfSparse();
+            }
+        } else {
+            newCount = sparse.adjustOrPutValue(index, delta, delta);
+            if (newCount == delta) { // newly added
+                size++;
+                promoteIfDense();
+            } else if (newCount == 0) {
+                sparse.remove(index);
+                size--;
+            }
+        }
+        return newCount;
+    }
+
+    /**
+     * Set the count of an index.
+     *
+     * @param index The index
+     * @param count The new count
+     */
+    public void set(int index, int count) {
+        adjust(index, count - get(index));
+    }
+
+    public void clear() {
+        this.size = 0;
+        if (dense != null) {
+            java.util.Arrays.fill(dense, 0);
+        } else {
+            sparse.clear();
+        }
+    }
+
+    /**
+     * Copy the indices with non-zero counts to a buffer.
+     *
+     * @param buffer Buffer whose length is at least size()
+     * @return The number of indices copied
+     */
+    public int getIndices(int[] buffer) {
+        int n = 0;
+        if (dense != null) {
+            for (int ii = 0; ii < dense.length && n < size; ii++) {
+                if (dense[ii] != 0) {
+                    buffer[n++] = ii;
+                }
+            }
+        } else {
+            TIntIntIterator iterator = sparse.iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                buffer[n++] = iterator.key();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Copy all counts to a dense array.
+     *
+     * @param counts Array whose length is at least the largest index + 1
+     */
+    public void copyTo(int[] counts) {
+        if (dense != null) {
+            System.arraycopy(dense, 0, counts, 0, Math.min(dense.length, counts.length));
+        } else {
+            TIntIntIterator iterator = sparse.iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                counts[iterator.key()] = iterator.value();
+            }
+        }
+    }
+
+    /**
+     * Return a live view of the indices with non-zero counts. The view must not
+     * be used while the store is being structurally modified, i.e., while
+     * counts become zero or non-zero.
+     */
+    public Set<Integer> keySet() {
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new KeyIterator();
+            }
+
+            @Override
+            public int size() {
+                return CountStore.this.size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return (o instanceof Integer) && containsKey((Integer) o);
+            }
+        };
+    }
+
+    private void promoteIfDense() {
+        if (denseAllowed && (long) size * PROMOTE_RATIO >= dimension) {
+            int[] counts = new int[dimension];
+            copyTo(counts);
+            this.dense = counts;
+            this.sparse = null;
+        }
+    }
+
+    private void demoteIfSparse() {
+        if (dimension > MAX_SMALL_DIMENSION && (long) size * DEMOTE_RATIO < dimension) {
+            toSparse();
+        }
+    }
+
+    private void toSparse() {
+        TIntIntHashMap counts = new TIntIntHashMap(Math.max(2 * size, 10));
+        for (int ii = 0; ii < dense.length; ii++) {
+            if (dense[ii] != 0) {
+                counts.put(ii, dense[ii]);
+            }
+        }
+        this.sparse = counts;
+        this.dense = null;
+    }
+
+    /**
+     * Return an iterator over the non-zero counts which neither boxes nor
+     * allocates per entry. The same restrictions as keySet() apply.
+     */
+    public EntryIterator entryIterator() {
+        return new EntryIterator();
+    }
+
+    /**
+     * Iterator over the non-zero counts, used in the same way as Trove's
+     * primitive iterators: call advance() and then read key() and value().
+     */
+    public class EntryIterator {
+
+        private final int[] denseCounts = dense;
+        private final TIntIntIterator sparseIterator = sparse == null ? null : sparse.iterator();
+        private int position = -1;
+        private int numReturned = 0;
+
+        public boolean hasNext() {
+            if (sparseIterator != null) {
+                return sparseIterator.hasNext();
+            }
+            return numReturned < size;
+        }
+
+        public void advance() {
+            if (sparseIterator != null) {
+                sparseIterator.advance();
+                return;
+            }
+            if (numReturned >= size) {
+                throw new NoSuchElementException();
+            }
+            do {
+                position++;
+            } while (denseCounts[position] == 0);
+            numReturned++;
+        }
+
+        public int key() {
+            if (sparseIterator != null) {
+                return sparseIterator.key();
+            }
+            return position;
+        }
+
+        public int value() {
+            if (sparseIterator != null) {
+                return sparseIterator.value();
+            }
+            return denseCounts[position];
+        }
+    }
+
+    private class KeyIterator implements Iterator<Integer> {
+
+        private final EntryIterator entries = new EntryIterator();
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public Integer next() {
+            entries.advance();
+            return entries.key();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported");
+        }
+    }
+}
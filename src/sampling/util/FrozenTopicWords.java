@@ -0,0 +1,181 @@
+package sampling.util;
+
+import sampling.likelihood.DirMult;
+
+/**
+ * Read-only topic-word probabilities of a trained model, used at test time
+ * when the model does not change.
+ *
+ * The probabilities are computed once and stored as floats laid out
+ * word-major, so that the probabilities of a word under all topics are
+ * contiguous. If all topics have symmetric priors and the counts are sparse,
+ * each probability is stored as a per-topic smoothing term plus, for the
+ * topics in which the word was observed, a count term, in compressed sparse
+ * rows. Otherwise the full matrix is stored.
+ *
+ * @author vietan
+ */
+public class FrozenTopicWords {
+
+    private final int numTopics;
+    private final int vocabSize;
+    // dense: [V * K] probabilities
+    private final float[] probs;
+    // sparse: probability of word w in topic k is smoothing[k] plus the count
+    // term of (w, k) if any
+    private final float[] smoothing; // [K]
+    private final int[] rowStarts; // [V + 1]: start of each word's row
+    private final int[] topics; // topic of each entry, sorted in each row
+    private final float[] counts; // count term of each entry
+
+    /**
+     * Freeze the probabilities of a set of topics.
+     *
+     * @param topicWords Topic-word distributions, which are only read
+     */
+    public FrozenTopicWords(DirMult[] topicWords) {
+        this.numTopics = topicWords.length;
+        this.vocabSize = numTopics == 0 ? 0 : topicWords[0].getDimension();
+        boolean symmetric = true;
+        long numEntries = 0;
+        for (DirMult topic : topicWords) {
+            symmetric &= topic.isShortRepresented();
+            numEntries += topic.getSparseCounts().size();
+        }
+        long denseSize = (long) numTopics * vocabSize;
+        // a sparse entry takes twice the memory of a dense one
+        boolean sparse = symmetric && 2 * numEntries < denseSize;
+        if (!sparse && denseSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many topic-word probabilities: " + denseSize);
+        }
+
+        if (!sparse) {
+            this.probs = new float[(int) denseSize];
+            for (int k = 0; k < numTopics; k++) {
+                for (int w = 0; w < vocabSize; w++) {
+                    this.probs[w * numTopics + k] = (float) topicWords[k].getProbability(w);
+                }
+            }
+            this.smoothing = null;
+            this.rowStarts = null;
+            this.topics = null;
+            this.counts = null;
+            return;
+        }
+
+        this.probs = null;
+        this.smoothing = new float[numTopics];
+        this.rowStarts = new int[vocabSize + 1];
+        for (int k = 0; k < numTopics; k++) {
+            DirMult topic = topicWords[k];
+            double denom = topic.getCountSum() + topic.getConcentration();
+            this.smoothing[k] = (float) (topic.getConcentration()
+                    * topic.getCenterElement(0) / denom);
+            for (int w : topic.getSparseCounts().getIndices()) {
+                this.rowStarts[w + 1]++;
+            }
+        }
+        for (int w = 0; w < vocabSize; w++) {
+            this.rowStarts[w + 1] += this.rowStarts[w];
+        }
+        this.topics = new int[(int) numEntries];
+        this.counts = new float[(int) numEntries];
+        int[] positions = new int[vocabSize];
+        System.arraycopy(rowStarts, 0, positions, 0, vocabSize);
+        // topics are visited in order, so each row is sorted by topic
+        for (int k = 0; k < numTopics; k++) {
+            DirMult topic = topicWords[k];
+            double denom = topic.getCountSum() + topic.getConcentration();
+            for (int w : topic.getSparseCounts().getIndices()) {
+                int pos = positions[w]++;
+                this.topics[pos] = k;
+                this.counts[pos] = (float) (topic.getCount(w) / denom);
+            }
+        }
+    }
+
+    /**
+     * Freeze a dense topic-word probability matrix.
+     *
+     * @param phis [K][V] topic-word probabilities
+     */
+    public FrozenTopicWords(double[][] phis) {
+        this.numTopics = phis.length;
+        this.vocabSize = numTopics == 0 ? 0 : phis[0].length;
+        long denseSize = (long) numTopics * vocabSize;
+        if (denseSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many topic-word probabilities: " + denseSize);
+        }
+        this.probs = new float[(int) denseSize];
+        for (int k = 0; k < numTopics; k++) {
+            for (int w = 0; w < vocabSize; w++) {
+                this.probs[w * numTopics + k] = (float) phis[k][w];
+            }
+        }
+        this.smoothing = null;
+        this.rowStarts = null;
+        this.topics = null;
+        this.counts = null;
+    }
+
+    public int getNumTopics() {
+        return this.numTopics;
+    }
+
+    public int getVocabSize() {
+        return this.vocabSize;
+    }
+
+    public boolean isSparse() {
+        return this.probs == null;
+    }
+
+    /**
+     * Return the probability of a word in a topic.
+     *
+     * @param k Topic index
+     * @param w Word type
+     */
+    public double getProbability(int k, int w) {
+        if (probs != null) {
+            return probs[w * numTopics + k];
+        }
+        double prob = smoothing[k];
+        int lo = rowStarts[w];
+        int hi = rowStarts[w + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (topics[mid] < k) {
+                lo = mid + 1;
+            } else if (topics[mid] > k) {
+                hi = mid - 1;
+            } else {
+                return prob + counts[mid];
+            }
+        }
+        return prob;
+    }
+
+    /**
+     * Copy the probabilities of a word under all topics.
+     *
+     * @param w Word type
+     * @param dest Array of at least K elements whose first K elements are set
+     * to the probabilities of the word in each topic
+     */
+    public void getProbabilities(int w, double[] dest) {
+        if (probs != null) {
+            int offset = w * numTopics;
+            for (int k = 0; k < numTopics; k++) {
+                dest[k] = probs[offset + k];
+            }
+            return;
+        }
+        for (int k = 0; k < numTopics; k++) {
+            dest[k] = smoothing[k];
+        }
+        for (int ii = rowStarts[w]; ii < rowStarts[w + 1]; ii++) {
+            dest[topics[ii]] += counts[ii];
+        }
+    }
+}
@@ -1,26 +1,26 @@
 package sampling.util;
 
-import java.util.ArrayList;
-
 /**
  * Implementation of a table in the Chinese restaurant process metaphor. This
- * explicitly stores the IDs of all customers sitting at this table.
+ * explicitly stores the IDs of all customers sitting at this table. Customers
+ * are kept in an {@link IndexedList}, so seating and unseating a customer take
+ * constant time regardless of the size of the table.
  *
  * @author vietan
  */
 public class FullTable<C, M> {
 
     protected final int index;
-    protected ArrayList<C> customers;
+    protected IndexedList<C> customers;
     protected M content;
 
     public FullTable(int index, M content) {
         this.index = index;
         this.content = content;
-        this.customers = new ArrayList<C>();
+        this.customers = new IndexedList<C>();
     }
 
-    public ArrayList<C> getCustomers() {
+    public IndexedList<C> getCustomers() {
         return this.customers;
     }
 
@@ -40,11 +40,10 @@ public class FullTable<C, M> {
      * @param customer The customer to be removed
      */
     protected void removeCustomer(C customer) {
-        if (!this.customers.contains(customer)) {
+        if (!this.customers.remove(customer)) {
             throw new RuntimeException("This table does not contain the given customer. "
                     + this.toString());
         }
-        this.customers.remove(customer);
     }
 
     /**
@@ -58,6 +57,10 @@ public class FullTable<C, M> {
         this.customers.add(customer);
     }
 
+    public boolean containsCustomer(C customer) {
+        return this.customers.contains(customer);
+    }
+
     public M getContent() {
         return content;
     }
@@ -0,0 +1,100 @@
+package sampling.util;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * List of distinct elements that keeps track of the position of each element,
+ * so that adding, removing and checking for an element take constant time.
+ *
+ * An element is removed by moving the last element into its position, so the
+ * order of the elements changes on removal. Elements are compared using
+ * equals() and hashCode(), as in ArrayList.
+ *
+ * @author vietan
+ */
+public class IndexedList<E> extends AbstractList<E> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1123581321L;
+    private final ArrayList<E> elements;
+    private final HashMap<E, Integer> positions;
+
+    public IndexedList() {
+        this.elements = new ArrayList<E>();
+        this.positions = new HashMap<E, Integer>();
+    }
+
+    @Override
+    public E get(int index) {
+        return this.elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return this.elements.size();
+    }
+
+    /**
+     * Add an element at the end of the list.
+     *
+     * @param element An element that is not already in the list
+     */
+    @Override
+    public boolean add(E element) {
+        if (this.positions.containsKey(element)) {
+            throw new RuntimeException("Element " + element + " is already in the list");
+        }
+        this.positions.put(element, this.elements.size());
+        this.elements.add(element);
+        this.modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        Integer position = this.positions.remove(element);
+        if (position == null) {
+            return false;
+        }
+        E last = this.elements.remove(this.elements.size() - 1);
+        if (position < this.elements.size()) {
+            this.elements.set(position, last);
+            this.positions.put(last, position);
+        }
+        this.modCount++;
+        return true;
+    }
+
+    @Override
+    public E remove(int index) {
+        E element = this.elements.get(index);
+        remove(element);
+        return element;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return this.positions.containsKey(element);
+    }
+
+    @Override
+    public int indexOf(Object element) {
+        Integer position = this.positions.get(element);
+        return position == null ? -1 : position;
+    }
+
+    @Override
+    public int lastIndexOf(Object element) {
+        return indexOf(element);
+    }
+
+    @Override
+    public void clear() {
+        this.elements.clear();
+        this.positions.clear();
+        this.modCount++;
+    }
+}
@@ -0,0 +1,116 @@
+package sampling.util;
+
+import core.AbstractSampler;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Test-time inference on documents in parallel against a fixed model.
+ *
+ * Once the topic-word distributions are fixed, the assignments of different
+ * test documents are conditionally independent, so each document can be
+ * sampled for all test iterations without looking at the others. Documents are
+ * split into contiguous shards which run as tasks on the shared worker pool of
+ * AbstractSampler. Each shard has its own worker state (random number
+ * generator and scratch arrays), and the model must only be read while the
+ * documents are sampled.
+ *
+ * The random number generator of the worker is reseeded from the seed and the
+ * document index before each document, so the results do not depend on the
+ * number of threads or on how the documents are split.
+ *
+ * @author vietan
+ */
+public class ParallelDocumentInference {
+
+    // number of shards per worker thread, for load balancing
+    public static final int SHARDS_PER_THREAD = 4;
+
+    /**
+     * Test-time sampler of a single document.
+     */
+    public static interface DocumentInference {
+
+        /**
+         * Run all test iterations on a document.
+         *
+         * @param dd The document index
+         * @param worker The state of the worker sampling the document
+         */
+        public void sampleDocument(int dd, Worker worker);
+    }
+
+    /**
+     * Run test-time inference on all documents in parallel and wait until all
+     * of them finish.
+     *
+     * @param D Number of documents
+     * @param seed Seed of the random number generators
+     * @param inference Sampler of a single document
+     */
+    public static void run(int D, final long seed, final DocumentInference inference) {
+        int numShards = Math.min(D,
+                AbstractSampler.getNumWorkerThreads() * SHARDS_PER_THREAD);
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (int ss = 0; ss < numShards; ss++) {
+            final int start = (int) ((long) D * ss / numShards);
+            final int end = (int) ((long) D * (ss + 1) / numShards);
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    Worker worker = new Worker();
+                    for (int dd = start; dd < end; dd++) {
+                        worker.reseed(seed, dd);
+                        inference.sampleDocument(dd, worker);
+                    }
+                }
+            });
+        }
+        AbstractSampler.runTasks(tasks);
+    }
+
+    /**
+     * State owned by a single worker.
+     */
+    public static class Worker {
+
+        private final Random rand;
+        private double[][] scratches;
+
+        Worker() {
+            this.rand = new Random();
+            this.scratches = new double[0][];
+        }
+
+        void reseed(long seed, int dd) {
+            // spread consecutive document indices over the seed space
+            this.rand.setSeed(seed + 0x9E3779B97F4A7C15L * (dd + 1));
+        }
+
+        /**
+         * Random number generator owned by this worker.
+         */
+        public Random getRandom() {
+            return this.rand;
+        }
+
+        /**
+         * Scratch array owned by this worker, with at least the given size.
+         * Different slots give different arrays.
+         *
+         * @param slot Index of the scratch array
+         * @param size Minimum size
+         */
+        public double[] getScratch(int slot, int size) {
+            if (slot >= scratches.length) {
+                double[][] temp = new double[slot + 1][];
+                System.arraycopy(scratches, 0, temp, 0, scratches.length);
+                scratches = temp;
+            }
+            if (scratches[slot] == null || scratches[slot].length < size) {
+                scratches[slot] = new double[size];
+            }
+            return scratches[slot];
+        }
+    }
+}
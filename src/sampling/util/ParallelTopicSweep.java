@@ -0,0 +1,230 @@
+package sampling.util;
+
+import core.AbstractSampler;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import java.util.ArrayList;
+import java.util.Random;
+import sampling.likelihood.DirMult;
+
+/**
+ * Approximate distributed sweep over documents for topic models whose
+ * topic-word distributions are stored as an array of DirMult (AD-LDA, Newman
+ * et al., JMLR 2009).
+ *
+ * Documents are split into contiguous shards, one per worker. While sampling,
+ * the global topic-word counts are read-only and each worker keeps a private
+ * delta of the changes it makes, so that it sees its own updates but not those
+ * of the other workers. Deltas are merged into the global counts, in the order
+ * of the workers, every a given number of documents per worker or at the end
+ * of the sweep. Document-level counts are owned by exactly one worker and can
+ * be updated directly.
+ *
+ * Between two merges, the batch of each worker runs as a task on the shared
+ * worker pool of AbstractSampler, so no thread is created per batch and at
+ * most AbstractSampler.getNumWorkerThreads() batches run at the same time.
+ *
+ * Each worker has its own random number generator, seeded deterministically
+ * from the seed and the worker index, so that a run is reproducible for a
+ * fixed number of threads.
+ *
+ * @author vietan
+ */
+public class ParallelTopicSweep {
+
+    private final int numThreads;
+    private final int mergeInterval;
+    private final TopicWordView[] views;
+
+    /**
+     * Sampler of the assignments of all tokens in a document.
+     */
+    public static interface DocumentSampler {
+
+        /**
+         * Sample all tokens in a document.
+         *
+         * @param dd The document index
+         * @param view The topic-word counts as seen by the worker
+         * @return The number of tokens whose assignments changed
+         */
+        public int sampleDocument(int dd, TopicWordView view);
+    }
+
+    /**
+     * @param numThreads Number of workers, i.e., document shards
+     * @param mergeInterval Number of documents each worker samples between two
+     * merges. If this is non-positive, deltas are merged at the end of the
+     * sweep only.
+     * @param seed Seed of the random number generators of the workers
+     */
+    public ParallelTopicSweep(int numThreads, int mergeInterval, long seed) {
+        this.numThreads = numThreads;
+        this.mergeInterval = mergeInterval;
+        this.views = new TopicWordView[numThreads];
+        for (int tt = 0; tt < numThreads; tt++) {
+            this.views[tt] = new TopicWordView(seed + tt);
+        }
+    }
+
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    public int getMergeInterval() {
+        return this.mergeInterval;
+    }
+
+    /**
+     * Sample all documents in parallel.
+     *
+     * @param topicWords Global topic-word distributions
+     * @param D Number of documents
+     * @param sampler Sampler of a single document
+     * @return The number of tokens whose assignments changed
+     */
+    public int sweep(DirMult[] topicWords, final int D, final DocumentSampler sampler) {
+        for (TopicWordView view : views) {
+            view.bind(topicWords);
+        }
+        final int[] starts = new int[numThreads];
+        final int[] ends = new int[numThreads];
+        int maxShardSize = 0;
+        for (int tt = 0; tt < numThreads; tt++) {
+            starts[tt] = (int) ((long) D * tt / numThreads);
+            ends[tt] = (int) ((long) D * (tt + 1) / numThreads);
+            maxShardSize = Math.max(maxShardSize, ends[tt] - starts[tt]);
+        }
+        int batchSize = mergeInterval > 0 ? mergeInterval : Math.max(maxShardSize, 1);
+
+        final int[] numChanges = new int[numThreads];
+        for (int offset = 0; offset < maxShardSize; offset += batchSize) {
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+            for (int tt = 0; tt < numThreads; tt++) {
+                final int threadIdx = tt;
+                final int batchStart = starts[tt] + offset;
+                final int batchEnd = Math.min(ends[tt], batchStart + batchSize);
+                if (batchStart >= batchEnd) {
+                    continue;
+                }
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int dd = batchStart; dd < batchEnd; dd++) {
+                            numChanges[threadIdx] += sampler.sampleDocument(dd, views[threadIdx]);
+                        }
+                    }
+                });
+            }
+            AbstractSampler.runTasks(tasks);
+
+            // merge the deltas in a fixed order
+            for (TopicWordView view : views) {
+                view.merge();
+            }
+        }
+
+        int totalChanges = 0;
+        for (int numChange : numChanges) {
+            totalChanges += numChange;
+        }
+        return totalChanges;
+    }
+
+    /**
+     * The topic-word counts as seen by a single worker: the global counts at
+     * the last merge plus the worker's own changes since then.
+     */
+    public static class TopicWordView {
+
+        private final Random rand;
+        private DirMult[] topicWords;
+        private TIntIntHashMap[] deltas;
+        private int[] deltaSums;
+        private double[] scratch;
+
+        TopicWordView(long seed) {
+            this.rand = new Random(seed);
+            this.scratch = new double[0];
+        }
+
+        void bind(DirMult[] tws) {
+            this.topicWords = tws;
+            if (deltas == null || deltas.length != tws.length) {
+                this.deltas = new TIntIntHashMap[tws.length];
+                this.deltaSums = new int[tws.length];
+            }
+        }
+
+        /**
+         * Random number generator owned by this worker.
+         */
+        public Random getRandom() {
+            return this.rand;
+        }
+
+        /**
+         * Scratch array owned by this worker, with at least the given size.
+         */
+        public double[] getScratch(int size) {
+            if (scratch.length < size) {
+                scratch = new double[size];
+            }
+            return scratch;
+        }
+
+        public int getCount(int k, int w) {
+            int count = topicWords[k].getCount(w);
+            if (deltas[k] != null) {
+                count += deltas[k].get(w);
+            }
+            return count;
+        }
+
+        public int getCountSum(int k) {
+            return topicWords[k].getCountSum() + deltaSums[k];
+        }
+
+        /**
+         * Same as DirMult.getProbability on the worker's counts.
+         */
+        public double getProbability(int k, int w) {
+            DirMult topic = topicWords[k];
+            return (getCount(k, w) + topic.getConcentration() * topic.getCenterElement(w))
+                    / (getCountSum(k) + topic.getConcentration());
+        }
+
+        public void increment(int k, int w) {
+            changeCount(k, w, 1);
+        }
+
+        public void decrement(int k, int w) {
+            changeCount(k, w, -1);
+        }
+
+        private void changeCount(int k, int w, int delta) {
+            if (deltas[k] == null) {
+                deltas[k] = new TIntIntHashMap();
+            }
+            deltas[k].adjustOrPutValue(w, delta, delta);
+            deltaSums[k] += delta;
+        }
+
+        void merge() {
+            for (int k = 0; k < deltas.length; k++) {
+                if (deltas[k] == null || deltas[k].isEmpty()) {
+                    continue;
+                }
+                TIntIntIterator iterator = deltas[k].iterator();
+                while (iterator.hasNext()) {
+                    iterator.advance();
+                    if (iterator.value() != 0) {
+                        topicWords[k].changeCount(iterator.key(), iterator.value());
+                    }
+                }
+                deltas[k].clear();
+                deltaSums[k] = 0;
+            }
+        }
+    }
+}
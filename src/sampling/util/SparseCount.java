@@ -7,24 +7,33 @@ import java.util.HashMap;
 import java.util.Set;
 
 /**
+ * Sparse counts of observations, backed by a primitive CountStore.
  *
  * @author vietan
  */
 public class SparseCount implements Cloneable, Serializable {
 
-    private static final long serialVersionUID = 1123581321L;
-    private HashMap<Integer, Integer> counts;
+    private static final long serialVersionUID = 1123581322L;
+    private CountStore counts;
     private int countSum;
 
     public SparseCount() {
-        this.counts = new HashMap<Integer, Integer>();
+        this(CountStore.UNKNOWN_DIMENSION);
+    }
+
+    /**
+     * @param dim Number of possible observations, which lets the counts be
+     * stored in a dense array when appropriate
+     */
+    public SparseCount(int dim) {
+        this.counts = new CountStore(dim);
         this.countSum = 0;
     }
 
     @Override
     public SparseCount clone() throws CloneNotSupportedException {
         SparseCount sc = (SparseCount) super.clone();
-        sc.counts = (HashMap<Integer, Integer>) this.counts.clone();
+        sc.counts = this.counts.clone();
         return sc;
     }
 
@@ -39,7 +48,24 @@ public class SparseCount implements Cloneable, Serializable {
         this.setCount(idx, 0);
     }
 
+    /**
+     * Return a copy of the counts as a map from observation to count. This
+     * boxes every entry; use getIndices() and getCount() in loops.
+     *
+     * @return Map from observations to their counts
+     */
     public HashMap<Integer, Integer> getObservations() {
+        HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+        for (int obs : getIndices()) {
+            map.put(obs, counts.get(obs));
+        }
+        return map;
+    }
+
+    /**
+     * Return the underlying primitive count store.
+     */
+    public CountStore getCountStore() {
         return this.counts;
     }
 
@@ -48,16 +74,9 @@ public class SparseCount implements Cloneable, Serializable {
             throw new RuntimeException("Setting a negative count. " + count);
         }
         int curCount = this.getCount(observation);
-        this.counts.put(observation, count);
+        this.counts.set(observation, count);
         this.countSum += count - curCount;
-        if (count == 0) {
-            this.counts.remove(observation);
-        }
 
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
@@ -76,6 +95,16 @@ public class SparseCount implements Cloneable, Serializable {
         return this.counts.keySet();
     }
 
+    /**
+     * Copy the observations with non-zero counts to a buffer without boxing.
+     *
+     * @param buffer Buffer whose length is at least size()
+     * @return Number of observations copied
+     */
+    public int getIndices(int[] buffer) {
+        return this.counts.getIndices(buffer);
+    }
+
     public boolean containsIndex(int idx) {
         return this.counts.containsKey(idx);
     }
@@ -85,12 +114,7 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public int getCount(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            return 0;
-        } else {
-            return count;
-        }
+        return this.counts.get(observation);
     }
 
     public void changeCount(int observation, int delta) {
@@ -99,34 +123,20 @@ public class SparseCount implements Cloneable, Serializable {
     }
 
     public void increment(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            this.counts.put(observation, 1);
-        } else {
-            this.counts.put(observation, count + 1);
-        }
+        this.counts.adjust(observation, 1);
         this.countSum++;
     }
 
     public void decrement(int observation) {
-        Integer count = this.counts.get(observation);
-        if (count == null) {
-            for (Integer obs : this.counts.keySet()) {
+        if (this.counts.get(observation) <= 0) {
+            for (int obs : this.counts.keySet()) {
                 System.out.println(obs + ": " + this.counts.get(obs));
             }
             throw new RuntimeException("Removing observation that does not exist " + observation);
         }
-        if (count == 1) {
-            this.counts.remove(observation);
-        } else {
-            this.counts.put(observation, count - 1);
-        }
+        this.counts.adjust(observation, -1);
         this.countSum--;
 
-        if (counts.get(observation) != null && this.counts.get(observation) < 0) {
-            throw new RuntimeException("Negative count for observation " + observation
-                    + ". count = " + this.counts.get(observation));
-        }
         if (countSum < 0) {
             throw new RuntimeException("Negative count sumze " + countSum);
         }
@@ -152,6 +162,10 @@ public class SparseCount implements Cloneable, Serializable {
 
         int totalCount = 0;
         for (int obs : this.counts.keySet()) {
+            if (this.counts.get(obs) < 0) {
+                throw new RuntimeException(msg + ". Negative count for observation "
+                        + obs + ". count = " + this.counts.get(obs));
+            }
             totalCount += this.counts.get(obs);
         }
         if (totalCount != this.countSum) {
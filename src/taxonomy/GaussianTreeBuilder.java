@@ -64,7 +64,7 @@ public class GaussianTreeBuilder extends AbstractTaxonomyBuilder {
         ArrayList<ArrayList<Integer>> getPartitions() {
             ArrayList<ArrayList<Integer>> partitions = new ArrayList<ArrayList<Integer>>();
             for (Group group : this.restaurant.getTables()) {
-                partitions.add(group.getCustomers());
+                partitions.add(new ArrayList<Integer>(group.getCustomers()));
             }
             return partitions;
         }
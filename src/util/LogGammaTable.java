@@ -0,0 +1,142 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lookup table of log Gamma(n + a) - log Gamma(a) and digamma(n + a) -
+ * digamma(a) for a fixed pseudo-count a and integer n >= 0.
+ *
+ * Dirichlet-multinomial likelihoods only involve these differences, and the
+ * counts are small integers shared by many distributions with the same prior.
+ * Entries are filled in lazily using the recurrences Gamma(x + 1) = x Gamma(x)
+ * and digamma(x + 1) = digamma(x) + 1 / x, so each value costs one log (or one
+ * division) the first time it is needed and a lookup afterward. Counts larger
+ * than MAX_CACHED_COUNT are computed directly.
+ *
+ * Tables are shared through a bounded cache keyed by a, so that all
+ * distributions with the same prior (e.g., all documents of a sampler, or all
+ * candidates of a slice-sampling step) use the same table. The cache holds at
+ * most MAX_NUM_TABLES tables of MAX_CACHED_COUNT entries (8 MB in total), and
+ * samplers clear it when they finish.
+ *
+ * @author vietan
+ */
+public class LogGammaTable {
+
+    public static final int MAX_CACHED_COUNT = 1 << 14;
+    public static final int MAX_NUM_TABLES = 32;
+    private static final Map<Double, LogGammaTable> tables
+            = new LinkedHashMap<Double, LogGammaTable>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Double, LogGammaTable> eldest) {
+                    return size() > MAX_NUM_TABLES;
+                }
+            };
+    private final double a;
+    private final double logGammaA;
+    // [n]: log Gamma(n + a) - log Gamma(a)
+    private volatile double[] logGammaRatios;
+    // [n]: digamma(n + a) - digamma(a)
+    private volatile double[] digammaDiffs;
+
+    private LogGammaTable(double a) {
+        this.a = a;
+        this.logGammaA = SamplerUtils.logGammaStirling(a);
+        this.logGammaRatios = new double[]{0.0};
+        this.digammaDiffs = new double[]{0.0};
+    }
+
+    /**
+     * Return the shared table of a given pseudo-count.
+     *
+     * @param a The pseudo-count
+     * @return The table
+     */
+    public static LogGammaTable get(double a) {
+        synchronized (tables) {
+            LogGammaTable table = tables.get(a);
+            if (table == null) {
+                table = new LogGammaTable(a);
+                tables.put(a, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Remove all tables from the cache. Distributions that already hold a
+     * table can keep using it.
+     */
+    public static void clear() {
+        synchronized (tables) {
+            tables.clear();
+        }
+    }
+
+    public double getPseudoCount() {
+        return this.a;
+    }
+
+    /**
+     * Return log Gamma(n + a) - log Gamma(a).
+     *
+     * @param n A non-negative count
+     */
+    public double logGammaRatio(int n) {
+        double[] values = logGammaRatios;
+        if (n < values.length) {
+            return values[n];
+        }
+        if (n >= MAX_CACHED_COUNT) {
+            return SamplerUtils.logGammaStirling(n + a) - logGammaA;
+        }
+        return growLogGammaRatios(n)[n];
+    }
+
+    /**
+     * Return digamma(n + a) - digamma(a).
+     *
+     * @param n A non-negative count
+     */
+    public double digammaDiff(int n) {
+        double[] values = digammaDiffs;
+        if (n < values.length) {
+            return values[n];
+        }
+        if (n >= MAX_CACHED_COUNT) {
+            return StatUtils.digamma(n + a) - StatUtils.digamma(a);
+        }
+        return growDigammaDiffs(n)[n];
+    }
+
+    private synchronized double[] growLogGammaRatios(int n) {
+        double[] values = logGammaRatios;
+        if (n < values.length) {
+            return values;
+        }
+        int newLength = Math.min(Math.max(2 * values.length, n + 1), MAX_CACHED_COUNT);
+        double[] newValues = new double[newLength];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        for (int ii = values.length; ii < newLength; ii++) {
+            newValues[ii] = newValues[ii - 1] + Math.log(a + ii - 1);
+        }
+        logGammaRatios = newValues;
+        return newValues;
+    }
+
+    private synchronized double[] growDigammaDiffs(int n) {
+        double[] values = digammaDiffs;
+        if (n < values.length) {
+            return values;
+        }
+        int newLength = Math.min(Math.max(2 * values.length, n + 1), MAX_CACHED_COUNT);
+        double[] newValues = new double[newLength];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        for (int ii = values.length; ii < newLength; ii++) {
+            newValues[ii] = newValues[ii - 1] + 1.0 / (a + ii - 1);
+        }
+        digammaDiffs = newValues;
+        return newValues;
+    }
+}
@@ -1,7 +1,9 @@
 package util;
 
 import cc.mallet.util.Randoms;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
 import sampling.util.SparseCount;
@@ -207,16 +209,30 @@ public class SamplerUtils {
      * @param prior_val A single element in the symmetric prior vector
      */
     public static double computeLogLhood(int[] obs, int sum, double prior_val) {
-        double size = obs.length;
-        double prior_sum = size * prior_val;
-        double val = 0.0;
-
-        val += SamplerUtils.logGammaStirling(prior_sum);
-        val -= size * SamplerUtils.logGammaStirling(prior_val);
+        LogGammaTable elementTable = LogGammaTable.get(prior_val);
+        double val = -LogGammaTable.get(obs.length * prior_val).logGammaRatio(sum);
         for (int ii = 0; ii < obs.length; ++ii) {
-            val += SamplerUtils.logGammaStirling(prior_val + (double) obs[ii]);
+            if (obs[ii] > 0) { // zero counts cancel out
+                val += elementTable.logGammaRatio(obs[ii]);
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Compute log likelihood for a single symmetric multinomial using cached
+     * log Gamma tables. Only non-zero counts are visited.
+     *
+     * @param obs Sparse counts of observations
+     * @param sumTable Table of the sum of the prior vector
+     * @param elementTable Table of a single element in the prior vector
+     */
+    public static double computeLogLhood(SparseCount obs,
+            LogGammaTable sumTable, LogGammaTable elementTable) {
+        double val = -sumTable.logGammaRatio(obs.getCountSum());
+        for (int ii : obs.getIndices()) {
+            val += elementTable.logGammaRatio(obs.getCount(ii));
         }
-        val -= SamplerUtils.logGammaStirling(sum + prior_sum);
         return val;
     }
 
@@ -224,7 +240,7 @@ public class SamplerUtils {
         double val = 0.0;
         val += logGammaStirling(concentration);
         val -= logGammaStirling(obs.getCountSum() + concentration);
-        for (int i = 0; i < prior_mean.length; i++) {
+        for (int i : obs.getIndices()) { // zero counts cancel out
             double pseudoCount = concentration * prior_mean[i];
             val -= logGammaStirling(pseudoCount);
             val += logGammaStirling(pseudoCount + obs.getCount(i));
@@ -237,7 +253,7 @@ public class SamplerUtils {
         double priorValSum = StatUtils.sum(priorVals);
         val += logGammaStirling(priorValSum);
         val -= logGammaStirling(obs.getCountSum() + priorValSum);
-        for (int i = 0; i < priorVals.length; i++) {
+        for (int i : obs.getIndices()) { // zero counts cancel out
             val -= logGammaStirling(priorVals[i]);
             val += logGammaStirling(priorVals[i] + obs.getCount(i));
         }
@@ -259,6 +275,9 @@ public class SamplerUtils {
         val += logGammaStirling(concentration);
         val -= logGammaStirling(sum + concentration);
         for (int i = 0; i < obs.length; i++) {
+            if (obs[i] == 0) { // zero counts cancel out
+                continue;
+            }
             double pseudoCount = concentration * prior_mean[i];
             val -= logGammaStirling(pseudoCount);
             val += logGammaStirling(pseudoCount + obs[i]);
@@ -324,12 +343,11 @@ public class SamplerUtils {
         double val = 0.0;
         val += SamplerUtils.logGammaStirling(prior_sum);
 
-        for (double p : prior_vals) {
-            val -= SamplerUtils.logGammaStirling(p);
-        }
-
         for (int ii = 0; ii < obs.length; ++ii) {
-            val += SamplerUtils.logGammaStirling(prior_vals[ii] + (double) obs[ii]);
+            if (obs[ii] > 0) { // zero counts cancel out
+                val += SamplerUtils.logGammaStirling(prior_vals[ii] + (double) obs[ii])
+                        - SamplerUtils.logGammaStirling(prior_vals[ii]);
+            }
         }
 
         val -= SamplerUtils.logGammaStirling(sum + prior_sum);
@@ -403,6 +421,57 @@ public class SamplerUtils {
         return index;
     }
 
+    /**
+     * Scale sample from the first length elements of an unnormalized pdf using
+     * a given random number generator. This does not allocate and is safe to
+     * use from multiple threads, each with its own generator.
+     *
+     * @param distribution Unnormalized pdf
+     * @param length Number of elements to consider
+     * @param random Random number generator
+     * @return The sampled index, or length if the pdf cannot be sampled from
+     * (e.g., it contains NaN or all of its elements are zero)
+     */
+    public static int scaleSample(double[] distribution, int length, Random random) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += distribution[i];
+        }
+        double b = 0, r = random.nextDouble() * sum;
+        int i;
+        for (i = 0; i < length; i++) {
+            b += distribution[i];
+            if (b > r) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Scale sample from the first length elements of an unnormalized pdf.
+     *
+     * @param distribution Unnormalized pdf
+     * @param length Number of elements to consider
+     * @return The sampled index, or length if the pdf cannot be sampled from
+     * (e.g., it contains NaN or all of its elements are zero)
+     */
+    public static int scaleSample(double[] distribution, int length) {
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += distribution[i];
+        }
+        double b = 0, r = rand.nextDouble() * sum;
+        int i;
+        for (i = 0; i < length; i++) {
+            b += distribution[i];
+            if (b > r) {
+                break;
+            }
+        }
+        return i;
+    }
+
     /**
      * Scale sample from a pdf
      */
@@ -467,6 +536,28 @@ public class SamplerUtils {
         return scaleSample(weights, sum);
     }
 
+    /**
+     * Sample from the first length elements of an unnormalized pdf in the log
+     * space, after rescaling by the maximum. The elements are overwritten with
+     * the rescaled weights, so that nothing is allocated.
+     *
+     * @param logDist Unnormalized log pdf
+     * @param length Number of elements to consider
+     * @return The sampled index, or length if the pdf cannot be sampled from
+     */
+    public static int logMaxRescaleSample(double[] logDist, int length) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            if (logDist[i] > max) {
+                max = logDist[i];
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            logDist[i] = Math.exp(logDist[i] - max);
+        }
+        return scaleSample(logDist, length);
+    }
+
 //    public static int logScaleSampleNew(double[] logPdf){
 //        
 //    }
@@ -689,4 +780,83 @@ public class SamplerUtils {
         }
         return result;
     }
+
+    /**
+     * Growable buffer of candidates (e.g., topics or tables) and their
+     * unnormalized (log) probabilities, to be reused across draws so that
+     * sampling does not allocate or box.
+     */
+    public static class CandidateBuffer implements Serializable {
+
+        private static final long serialVersionUID = 1123581321L;
+        private int[] indices;
+        private double[] values;
+        private int size;
+
+        public CandidateBuffer() {
+            this.indices = new int[16];
+            this.values = new double[16];
+            this.size = 0;
+        }
+
+        public void clear() {
+            this.size = 0;
+        }
+
+        public void add(int index, double value) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            indices[size] = index;
+            values[size] = value;
+            size++;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Return the candidate at a given position. Since the arrays are
+         * reused, a position beyond the current candidates (e.g., the size()
+         * returned by a failed draw) is rejected rather than returning a
+         * stale candidate of an earlier draw.
+         */
+        public int getIndex(int position) {
+            checkPosition(position);
+            return this.indices[position];
+        }
+
+        public double getValue(int position) {
+            checkPosition(position);
+            return this.values[position];
+        }
+
+        private void checkPosition(int position) {
+            if (position < 0 || position >= size) {
+                throw new RuntimeException("Out-of-bound sampling. Position "
+                        + position + " of " + size + " candidates");
+            }
+        }
+
+        /**
+         * Sample a position with probability proportional to the values.
+         *
+         * @return The sampled position, or size() if sampling failed
+         */
+        public int scaleSample() {
+            return SamplerUtils.scaleSample(values, size);
+        }
+
+        /**
+         * Sample a position with probability proportional to the exponentials
+         * of the values. The values are overwritten.
+         *
+         * @return The sampled position, or size() if sampling failed
+         */
+        public int logMaxRescaleSample() {
+            return SamplerUtils.logMaxRescaleSample(values, size);
+        }
+    }
 }
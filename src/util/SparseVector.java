@@ -1,48 +1,75 @@
 package util;
 
 import java.io.Serializable;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
+ * Sparse vector of doubles stored as two parallel arrays of indices and
+ * values, sorted by index.
+ *
+ * Setting the value of an index larger than all existing indices appends to
+ * the arrays; inserting or removing other indices shifts the elements after
+ * it. To build a vector from entries in arbitrary order, use a
+ * {@link Builder}, which sorts the entries once. A vector that is only read
+ * afterward (e.g., a row of a design matrix) can be frozen, which trims the
+ * arrays and makes it immutable. Hot loops should iterate the non-zero
+ * entries with {@link #getIndexAt(int)} and {@link #getValueAt(int)} rather
+ * than {@link #getIndices()}, which boxes each index.
  *
  * @author vietan
  */
 public class SparseVector implements Serializable {
 
     private static final long serialVersionUID = 1123581321L;
-    private HashMap<Integer, Double> values;
+    private static final int INIT_CAPACITY = 8;
+    private static final int[] EMPTY_INDICES = new int[0];
+    private static final double[] EMPTY_VALUES = new double[0];
+    private int[] indices;
+    private double[] values;
+    private int size;
     private int dim;
+    private boolean frozen;
 
     public SparseVector() {
-        this.values = new HashMap<Integer, Double>();
+        this.indices = EMPTY_INDICES;
+        this.values = EMPTY_VALUES;
     }
 
     public SparseVector(int dim) {
-        this.values = new HashMap<Integer, Double>();
+        this();
         this.dim = dim;
     }
 
     public SparseVector(SparseVector other) {
-        this.values = new HashMap<>();
-        for (int key : other.getIndices()) {
-            this.values.put(key, other.get(key));
-        }
+        this.indices = Arrays.copyOf(other.indices, other.size);
+        this.values = Arrays.copyOf(other.values, other.size);
+        this.size = other.size;
         this.dim = other.getDimension();
     }
 
     public SparseVector(double[] vec) {
-        this.values = new HashMap<>();
+        this();
         this.dim = vec.length;
         for (int ii = 0; ii < vec.length; ii++) {
             if (vec[ii] != 0) {
-                this.values.put(ii, vec[ii]);
+                this.set(ii, vec[ii]);
             }
         }
     }
 
+    private SparseVector(int[] indices, double[] values, int size, int dim) {
+        this.indices = indices;
+        this.values = values;
+        this.size = size;
+        this.dim = dim;
+    }
+
     public void setDimension(int dim) {
         this.dim = dim;
     }
@@ -51,104 +78,269 @@ public class SparseVector implements Serializable {
         return this.dim;
     }
 
+    /**
+     * Make this vector immutable and trim its arrays to its size. Modifying a
+     * frozen vector throws a RuntimeException.
+     *
+     * @return This vector
+     */
+    public SparseVector freeze() {
+        if (!frozen) {
+            if (indices.length != size) {
+                indices = Arrays.copyOf(indices, size);
+                values = Arrays.copyOf(values, size);
+            }
+            frozen = true;
+        }
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return this.frozen;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new RuntimeException("Modifying a frozen sparse vector");
+        }
+    }
+
+    /**
+     * Return the index of the ii-th non-zero entry, in increasing order of
+     * indices.
+     */
+    public int getIndexAt(int ii) {
+        return this.indices[ii];
+    }
+
+    /**
+     * Return the value of the ii-th non-zero entry.
+     */
+    public double getValueAt(int ii) {
+        return this.values[ii];
+    }
+
+    /**
+     * Return the position of an index in the arrays, or (-insertion point - 1)
+     * if the index is not in this vector.
+     */
+    private int find(int index) {
+        if (size > 0 && indices[size - 1] < index) {
+            return -size - 1;
+        }
+        return Arrays.binarySearch(indices, 0, size, index);
+    }
+
     public void scale(double scalar) {
-        for (int kk : getIndices()) {
-            values.put(kk, get(kk) * scalar);
+        checkMutable();
+        for (int ii = 0; ii < size; ii++) {
+            values[ii] *= scalar;
         }
     }
 
     public void reset() {
-        this.values = new HashMap<Integer, Double>();
+        checkMutable();
+        this.indices = EMPTY_INDICES;
+        this.values = EMPTY_VALUES;
+        this.size = 0;
     }
 
     public double[] dense() {
         double[] vec = new double[dim];
-        for (int idx : getIndices()) {
-            vec[idx] = get(idx);
+        for (int ii = 0; ii < size; ii++) {
+            vec[indices[ii]] = values[ii];
         }
         return vec;
     }
 
     public boolean isEmpty() {
-        return this.values.isEmpty();
+        return this.size == 0;
     }
 
     public int size() {
-        return this.values.size();
+        return this.size;
     }
 
     public void normalize() {
         double sum = this.sum();
-        for (int idx : getIndices()) {
-            double normVal = this.get(idx) / sum;
-            this.values.put(idx, normVal);
+        checkMutable();
+        for (int ii = 0; ii < size; ii++) {
+            values[ii] /= sum;
         }
     }
 
     public double sum() {
         double sum = 0.0;
-        for (double val : values.values()) {
-            sum += val;
+        for (int ii = 0; ii < size; ii++) {
+            sum += values[ii];
         }
         return sum;
     }
 
     public void remove(int index) {
-        this.values.remove(index);
+        checkMutable();
+        int pos = find(index);
+        if (pos >= 0) {
+            System.arraycopy(indices, pos + 1, indices, pos, size - pos - 1);
+            System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+            size--;
+        }
     }
 
     public double get(int index) {
-        if (containsIndex(index)) {
-            return this.values.get(index);
+        int pos = find(index);
+        if (pos >= 0) {
+            return values[pos];
         }
         return 0.0;
     }
 
-    public void set(int index, Double value) {
-        this.values.put(index, value);
+    public void set(int index, double value) {
+        checkMutable();
+        int pos = find(index);
+        if (pos >= 0) {
+            values[pos] = value;
+        } else {
+            insert(-pos - 1, index, value);
+        }
+    }
+
+    private void insert(int pos, int index, double value) {
+        if (size == indices.length) {
+            int capacity = Math.max(INIT_CAPACITY, 2 * size);
+            indices = Arrays.copyOf(indices, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (pos < size) {
+            System.arraycopy(indices, pos, indices, pos + 1, size - pos);
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+        }
+        indices[pos] = index;
+        values[pos] = value;
+        size++;
     }
 
     public void change(int index, double delta) {
-        if (!this.containsIndex(index)) {
-            this.set(index, delta);
+        checkMutable();
+        int pos = find(index);
+        if (pos >= 0) {
+            values[pos] += delta;
         } else {
-            double val = this.get(index) + delta;
-            this.set(index, val);
+            insert(-pos - 1, index, delta);
         }
     }
 
     public boolean containsIndex(int idx) {
-        return this.values.containsKey(idx);
+        return find(idx) >= 0;
     }
 
+    /**
+     * Return the indices of the non-zero entries, in increasing order.
+     */
     public Set<Integer> getIndices() {
-        return this.values.keySet();
+        return new AbstractSet<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int ii = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return ii < size;
+                    }
+
+                    @Override
+                    public Integer next() {
+                        if (ii >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        return indices[ii++];
+                    }
+
+                    @Override
+                    public void remove() {
+                        SparseVector.this.remove(indices[--ii]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer && containsIndex((Integer) o);
+            }
+        };
     }
 
     public ArrayList<Integer> getSortedIndices() {
-        ArrayList<Integer> sortedIndices = new ArrayList<Integer>();
-        for (int idx : getIndices()) {
-            sortedIndices.add(idx);
+        ArrayList<Integer> sortedIndices = new ArrayList<Integer>(size);
+        for (int ii = 0; ii < size; ii++) {
+            sortedIndices.add(indices[ii]);
         }
-        Collections.sort(sortedIndices);
         return sortedIndices;
     }
 
     /**
-     * Add another sparse vector to this vector
+     * Add another sparse vector to this vector. Values of indices already in
+     * this vector are added in place, so adding a vector whose indices are all
+     * present does not allocate and takes time logarithmic in the size of this
+     * vector per entry. New indices are merged from the end, growing the
+     * arrays geometrically when needed.
      *
      * @param other The other sparse vector
      */
     public void add(SparseVector other) {
-        for (int idx : other.getIndices()) {
-            double otherVal = other.get(idx);
-            Double thisVal = this.get(idx);
-            if (thisVal == null) {
-                this.set(idx, otherVal);
+        checkMutable();
+        // add to existing indices and count the new ones
+        int numNew = 0;
+        int lo = 0;
+        for (int jj = 0; jj < other.size; jj++) {
+            int pos = Arrays.binarySearch(indices, lo, size, other.indices[jj]);
+            if (pos >= 0) {
+                values[pos] += other.values[jj];
+                lo = pos + 1;
             } else {
-                this.set(idx, thisVal + otherVal);
+                numNew++;
+                lo = -pos - 1;
             }
         }
+        if (numNew == 0) {
+            return;
+        }
+
+        // merge the new indices from the end
+        int[] oldIndices = indices;
+        double[] oldValues = values;
+        int newSize = size + numNew;
+        if (newSize > indices.length) {
+            int capacity = Math.max(newSize, 2 * size);
+            indices = new int[capacity];
+            values = new double[capacity];
+        }
+        int ii = size - 1;
+        int jj = other.size - 1;
+        int nn = newSize - 1;
+        while (jj >= 0) {
+            if (ii >= 0 && oldIndices[ii] >= other.indices[jj]) {
+                if (oldIndices[ii] == other.indices[jj]) { // already added
+                    jj--;
+                }
+                indices[nn] = oldIndices[ii];
+                values[nn--] = oldValues[ii--];
+            } else {
+                indices[nn] = other.indices[jj];
+                values[nn--] = other.values[jj--];
+            }
+        }
+        if (indices != oldIndices) { // copy the remaining entries
+            System.arraycopy(oldIndices, 0, indices, 0, ii + 1);
+            System.arraycopy(oldValues, 0, values, 0, ii + 1);
+        }
+        this.size = newSize;
     }
 
     /**
@@ -160,44 +352,46 @@ public class SparseVector implements Serializable {
         if (c == 0) {
             throw new RuntimeException("Dividing 0");
         }
-        for (int idx : this.getIndices()) {
-            this.set(idx, this.get(idx) / c);
+        checkMutable();
+        for (int ii = 0; ii < size; ii++) {
+            values[ii] /= c;
         }
     }
 
     public void multiply(double c) {
-        for (int idx : this.getIndices()) {
-            this.set(idx, this.get(idx) * c);
-        }
+        scale(c);
     }
 
     public double getL2Norm() {
-        if (this.values.isEmpty()) {
-            return 0.0;
-        }
         double sumSquare = 0.0;
-        for (double val : this.values.values()) {
-            sumSquare += val * val;
+        for (int ii = 0; ii < size; ii++) {
+            sumSquare += values[ii] * values[ii];
         }
         return Math.sqrt(sumSquare);
     }
 
     public double dotProduct(SparseVector other) {
         double sum = 0.0;
-        for (int idx : this.getIndices()) {
-            Double otherVal = other.get(idx);
-            if (otherVal == null) {
-                continue;
+        int ii = 0;
+        int jj = 0;
+        while (ii < size && jj < other.size) {
+            int thisIdx = indices[ii];
+            int otherIdx = other.indices[jj];
+            if (thisIdx == otherIdx) {
+                sum += values[ii++] * other.values[jj++];
+            } else if (thisIdx < otherIdx) {
+                ii++;
+            } else {
+                jj++;
             }
-            sum += this.get(idx) * otherVal;
         }
         return sum;
     }
 
     public double dotProduct(double[] other) {
         double sum = 0.0;
-        for (int idx : this.getIndices()) {
-            sum += this.get(idx) * other[idx];
+        for (int ii = 0; ii < size; ii++) {
+            sum += values[ii] * other[indices[ii]];
         }
         return sum;
     }
@@ -227,27 +421,27 @@ public class SparseVector implements Serializable {
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
-        str.append(Integer.toString(this.values.size()));
-        for (int idx : this.getIndices()) {
-            str.append(" ").append(idx).append(":").append(this.get(idx));
+        str.append(Integer.toString(size));
+        for (int ii = 0; ii < size; ii++) {
+            str.append(" ").append(indices[ii]).append(":").append(values[ii]);
         }
         return str.toString();
     }
 
     public static SparseVector parseString(String str) {
-        SparseVector vector = new SparseVector();
+        Builder builder = new Builder();
         String[] sstr = str.split(" ");
         for (int ii = 1; ii < sstr.length; ii++) {
             String[] se = sstr[ii].split(":");
-            vector.set(Integer.parseInt(se[0]), Double.parseDouble(se[1]));
+            builder.add(Integer.parseInt(se[0]), Double.parseDouble(se[1]));
         }
-        return vector;
+        return builder.build();
     }
 
     public ArrayList<RankingItem<Integer>> getSortedList() {
         ArrayList<RankingItem<Integer>> sortedList = new ArrayList<RankingItem<Integer>>();
-        for (int key : this.getIndices()) {
-            sortedList.add(new RankingItem<Integer>(key, this.values.get(key)));
+        for (int ii = 0; ii < size; ii++) {
+            sortedList.add(new RankingItem<Integer>(indices[ii], values[ii]));
         }
         Collections.sort(sortedList);
         return sortedList;
@@ -255,21 +449,114 @@ public class SparseVector implements Serializable {
 
     public static String output(SparseVector vector) {
         StringBuilder str = new StringBuilder();
-        for (int key : vector.getIndices()) {
-            str.append(key).append(",").append(vector.get(key)).append("\t");
+        for (int ii = 0; ii < vector.size; ii++) {
+            str.append(vector.indices[ii]).append(",")
+                    .append(vector.values[ii]).append("\t");
         }
         return str.toString();
     }
 
     public static SparseVector input(String str) {
-        SparseVector vector = new SparseVector();
+        Builder builder = new Builder();
         String[] sstr = str.split("\t");
         for (String s : sstr) {
             String[] ss = s.split(",");
             int key = Integer.parseInt(ss[0]);
             double val = Double.parseDouble(ss[1]);
-            vector.set(key, val);
+            builder.add(key, val);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builder of a sparse vector from entries given in any order. Entries are
+     * appended and sorted once when the vector is built.
+     */
+    public static class Builder {
+
+        private int[] indices;
+        private double[] values;
+        private long[] orders; // index and position of each entry
+        private int size;
+        private int dim;
+        private boolean sorted;
+
+        public Builder() {
+            this.indices = new int[INIT_CAPACITY];
+            this.values = new double[INIT_CAPACITY];
+            this.sorted = true;
+        }
+
+        public Builder(int dim) {
+            this();
+            this.dim = dim;
+        }
+
+        /**
+         * Add a value to an index. Values added to the same index are summed.
+         */
+        public Builder add(int index, double value) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            if (size > 0 && indices[size - 1] >= index) {
+                sorted = false;
+            }
+            indices[size] = index;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Build the vector. The builder is reset and can be reused.
+         */
+        public SparseVector build() {
+            if (!sorted) {
+                sortEntries();
+            }
+            // merge entries with the same index
+            int nn = 0;
+            for (int ii = 0; ii < size; ii++) {
+                if (nn > 0 && indices[nn - 1] == indices[ii]) {
+                    values[nn - 1] += values[ii];
+                } else {
+                    indices[nn] = indices[ii];
+                    values[nn] = values[ii];
+                    nn++;
+                }
+            }
+            SparseVector vector = new SparseVector(Arrays.copyOf(indices, nn),
+                    Arrays.copyOf(values, nn), nn, dim);
+            this.size = 0;
+            this.sorted = true;
+            return vector;
+        }
+
+        /**
+         * Sort the entries by index, keeping the order in which entries of the
+         * same index were added so that their sum does not depend on the sort.
+         */
+        private void sortEntries() {
+            if (orders == null || orders.length < size) {
+                orders = new long[indices.length];
+            }
+            for (int ii = 0; ii < size; ii++) {
+                orders[ii] = ((long) indices[ii] << 32) | ii;
+            }
+            Arrays.sort(orders, 0, size);
+            double[] sortedValues = new double[indices.length];
+            for (int ii = 0; ii < size; ii++) {
+                int pos = (int) orders[ii];
+                indices[ii] = (int) (orders[ii] >>> 32);
+                sortedValues[ii] = values[pos];
+            }
+            values = sortedValues;
         }
-        return vector;
     }
 }
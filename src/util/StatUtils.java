@@ -290,22 +290,15 @@ public class StatUtils {
     }
 
     /**
-     * Compute digamma difference
+     * Compute digamma difference digamma(x + d) - digamma(x) using the cached
+     * table of x.
      *
      * @param x
      * @param d
      * @return
      */
     public static double digammaDiff(double x, int d) {
-        double sum = 0;
-        int dcutoff = 16;
-        if (d > dcutoff) {
-            return (digamma(x + d) - digamma(x));
-        }
-        for (int i = 0; i < d; ++i) {
-            sum += 1 / (x + i);
-        }
-        return (sum);
+        return LogGammaTable.get(x).digammaDiff(d);
     }
     // for computing trigamma
     public static final double L1 = 0.0001;
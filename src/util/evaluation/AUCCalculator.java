@@ -0,0 +1,196 @@
+package util.evaluation;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Area under the ROC and precision-recall curves of a ranking.
+ *
+ * This computes the same values as the AUCCalculator tool (lib/auc.jar) of
+ * Davis and Goadrich, which was previously run as a separate process. Items
+ * with the same score are treated as a single threshold, so each distinct
+ * score gives one point (true positives, false positives) of the curves.
+ * Points are interpolated between consecutive true-positive counts as in
+ * the tool, and the areas are accumulated in a single pass over the points
+ * without storing the interpolated curve.
+ *
+ * @author vietan
+ */
+public class AUCCalculator {
+
+    private final int numPositives;
+    private final int numNegatives;
+    private double aucROC;
+    private double aucPR;
+    // areas accumulated over the points of the curves
+    private double rocArea;
+    private double prArea;
+    private boolean hasPoint;
+    private double prevRecall;
+    private double prevPrecision;
+    private double prevFalsePositiveRate;
+
+    /**
+     * Compute the AUCs of a ranking given the scores of all items.
+     *
+     * @param scores Scores of all items
+     * @param relevants Indices of the relevant (positive) items
+     */
+    public AUCCalculator(double[] scores, Set<Integer> relevants) {
+        this(scores, toLabels(scores.length, relevants));
+    }
+
+    /**
+     * Compute the AUCs of a ranking given the scores of all items.
+     *
+     * @param scores Scores of all items
+     * @param labels Whether each item is relevant (positive)
+     */
+    public AUCCalculator(double[] scores, boolean[] labels) {
+        if (scores.length != labels.length) {
+            throw new RuntimeException("Lengths mismatched. "
+                    + scores.length + " vs. " + labels.length);
+        }
+        int numPos = 0;
+        for (boolean label : labels) {
+            if (label) {
+                numPos++;
+            }
+        }
+        double[] posScores = new double[numPos];
+        double[] negScores = new double[scores.length - numPos];
+        int pp = 0;
+        int nn = 0;
+        for (int ii = 0; ii < scores.length; ii++) {
+            if (labels[ii]) {
+                posScores[pp++] = scores[ii];
+            } else {
+                negScores[nn++] = scores[ii];
+            }
+        }
+        Arrays.sort(posScores);
+        Arrays.sort(negScores);
+        this.numPositives = posScores.length;
+        this.numNegatives = negScores.length;
+
+        if (numPositives == 0 || numNegatives == 0) {
+            // the curves are undefined
+            this.aucROC = Double.NaN;
+            this.aucPR = Double.NaN;
+            return;
+        }
+        compute(posScores, negScores);
+    }
+
+    private static boolean[] toLabels(int numItems, Set<Integer> relevants) {
+        boolean[] labels = new boolean[numItems];
+        for (int item : relevants) {
+            labels[item] = true;
+        }
+        return labels;
+    }
+
+    public double getAUCROC() {
+        return this.aucROC;
+    }
+
+    public double getAUCPR() {
+        return this.aucPR;
+    }
+
+    public int getNumPositives() {
+        return this.numPositives;
+    }
+
+    public int getNumNegatives() {
+        return this.numNegatives;
+    }
+
+    /**
+     * Walk through the distinct scores in decreasing order, adding the
+     * (true positives, false positives) point after each score.
+     */
+    private void compute(double[] posScores, double[] negScores) {
+        int pp = posScores.length - 1;
+        int nn = negScores.length - 1;
+        int tp = 0;
+        int fp = 0;
+        boolean started = false;
+        double curTp = 0; // the last point added to the curves
+        double curFp = 0;
+        while (pp >= 0 || nn >= 0) {
+            double score;
+            if (nn < 0 || (pp >= 0 && posScores[pp] >= negScores[nn])) {
+                score = posScores[pp];
+            } else {
+                score = negScores[nn];
+            }
+            while (pp >= 0 && posScores[pp] == score) {
+                tp++;
+                pp--;
+            }
+            while (nn >= 0 && negScores[nn] == score) {
+                fp++;
+                nn--;
+            }
+            if (tp == 0) { // points without true positives are dropped
+                continue;
+            }
+            if (!started) {
+                started = true;
+                if (tp == 1) {
+                    addPoint(tp, fp);
+                    curTp = tp;
+                    curFp = fp;
+                    continue;
+                }
+                // the curves start at one true positive, with the precision
+                // of the first point
+                curTp = 1;
+                curFp = (double) fp / tp;
+                addPoint(curTp, curFp);
+            }
+            addInterpolatedPoints(curTp, curFp, tp, fp);
+            curTp = tp;
+            curFp = fp;
+        }
+        this.aucROC = 1.0 - rocArea;
+        this.aucPR = prArea;
+    }
+
+    /**
+     * Add the points between (startTp, startFp) (already added) and (endTp,
+     * endFp), one per true positive, and the end point.
+     */
+    private void addInterpolatedPoints(double startTp, double startFp,
+            double endTp, double endFp) {
+        double slope = (endFp - startFp) / (endTp - startTp);
+        double tp = startTp;
+        while (Math.abs(tp - endTp) > 1.001) {
+            double fp = startFp + (tp - startTp + 1) * slope;
+            tp = tp + 1;
+            addPoint(tp, fp);
+        }
+        addPoint(endTp, endFp);
+    }
+
+    private void addPoint(double tp, double fp) {
+        double recall = tp / numPositives;
+        double precision = tp / (tp + fp);
+        double falsePositiveRate = fp / numNegatives;
+        if (!hasPoint) {
+            prArea = recall * precision;
+            rocArea = 0.5 * recall * falsePositiveRate;
+            hasPoint = true;
+        } else {
+            prArea += (recall - prevRecall) * precision
+                    + 0.5 * (recall - prevRecall) * (prevPrecision - precision);
+            rocArea += (recall - prevRecall) * falsePositiveRate
+                    - 0.5 * (recall - prevRecall)
+                    * (falsePositiveRate - prevFalsePositiveRate);
+        }
+        prevRecall = recall;
+        prevPrecision = precision;
+        prevFalsePositiveRate = falsePositiveRate;
+    }
+}
@@ -0,0 +1,222 @@
+package util.evaluation;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Inverted index from each word type to the sorted list of documents it
+ * appears in, used to compute document and co-document frequencies.
+ *
+ * Postings of all words are stored in a single int array, so the memory is
+ * proportional to the number of unique (word, document) pairs in the corpus
+ * rather than the square of the vocabulary size. The co-document frequency of
+ * two words is computed by intersecting their postings, only for the pairs
+ * that are actually asked for, and cached. Frequent words also have a bitset
+ * over documents so that intersecting them with other words costs one lookup
+ * per document of the other word.
+ *
+ * Indices are shared: {@link #get(int[][], int)} returns the same index for
+ * the same corpus array, so that it is built once for all report iterations
+ * and all models trained on the corpus.
+ *
+ * @author vietan
+ */
+public class CoDocumentIndex {
+
+    // words in at least 1/BITSET_RATIO of the documents also get a bitset
+    public static final int BITSET_RATIO = 32;
+    // maximum number of cached co-document frequencies
+    public static final int MAX_CACHED_PAIRS = 1 << 20;
+    private static final Map<int[][], CoDocumentIndex> indices
+            = new WeakHashMap<int[][], CoDocumentIndex>();
+    private final int numDocs;
+    private final int vocabSize;
+    private final int[] offsets; // [V + 1]: start of each word's postings
+    private final int[] postings; // document indices, sorted for each word
+    private final BitSet[] bitsets; // non-null only for frequent words
+    private final TLongIntHashMap pairCache;
+
+    /**
+     * Build the index of a corpus.
+     *
+     * @param corpus Word types of each document
+     * @param vocabSize Vocabulary size
+     */
+    public CoDocumentIndex(int[][] corpus, int vocabSize) {
+        this.numDocs = corpus.length;
+        this.vocabSize = vocabSize;
+
+        // count the number of documents of each word type
+        int[] lastDocs = new int[vocabSize];
+        Arrays.fill(lastDocs, -1);
+        int[] docFreqs = new int[vocabSize];
+        long numPostings = 0;
+        for (int d = 0; d < corpus.length; d++) {
+            for (int n = 0; n < corpus[d].length; n++) {
+                int v = corpus[d][n];
+                if (lastDocs[v] != d) {
+                    lastDocs[v] = d;
+                    docFreqs[v]++;
+                    numPostings++;
+                }
+            }
+        }
+        if (numPostings > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many postings: " + numPostings);
+        }
+
+        this.offsets = new int[vocabSize + 1];
+        for (int v = 0; v < vocabSize; v++) {
+            this.offsets[v + 1] = this.offsets[v] + docFreqs[v];
+        }
+
+        // documents are visited in order, so the postings are sorted
+        this.postings = new int[(int) numPostings];
+        int[] positions = new int[vocabSize];
+        System.arraycopy(offsets, 0, positions, 0, vocabSize);
+        Arrays.fill(lastDocs, -1);
+        for (int d = 0; d < corpus.length; d++) {
+            for (int n = 0; n < corpus[d].length; n++) {
+                int v = corpus[d][n];
+                if (lastDocs[v] != d) {
+                    lastDocs[v] = d;
+                    this.postings[positions[v]++] = d;
+                }
+            }
+        }
+
+        this.bitsets = new BitSet[vocabSize];
+        for (int v = 0; v < vocabSize; v++) {
+            if ((long) docFreqs[v] * BITSET_RATIO >= numDocs && docFreqs[v] > 0) {
+                BitSet bitset = new BitSet(numDocs);
+                for (int ii = offsets[v]; ii < offsets[v + 1]; ii++) {
+                    bitset.set(postings[ii]);
+                }
+                this.bitsets[v] = bitset;
+            }
+        }
+        this.pairCache = new TLongIntHashMap();
+    }
+
+    /**
+     * Return the shared index of a corpus, building it if needed.
+     *
+     * @param corpus Word types of each document
+     * @param vocabSize Vocabulary size
+     */
+    public static CoDocumentIndex get(int[][] corpus, int vocabSize) {
+        synchronized (indices) {
+            CoDocumentIndex index = indices.get(corpus);
+            if (index == null || index.vocabSize != vocabSize) {
+                index = new CoDocumentIndex(corpus, vocabSize);
+                indices.put(corpus, index);
+            }
+            return index;
+        }
+    }
+
+    public int getNumDocuments() {
+        return this.numDocs;
+    }
+
+    public int getVocabSize() {
+        return this.vocabSize;
+    }
+
+    /**
+     * Return the number of documents containing a word type.
+     */
+    public int getDocumentFrequency(int v) {
+        return offsets[v + 1] - offsets[v];
+    }
+
+    /**
+     * Return the number of documents containing both word types.
+     */
+    public int getCoDocumentFrequency(int v1, int v2) {
+        if (v1 == v2) {
+            return getDocumentFrequency(v1);
+        }
+        long key = v1 < v2 ? (long) v1 * vocabSize + v2 : (long) v2 * vocabSize + v1;
+        synchronized (pairCache) {
+            if (pairCache.containsKey(key)) {
+                return pairCache.get(key);
+            }
+        }
+        int count = intersect(v1, v2);
+        synchronized (pairCache) {
+            if (pairCache.size() >= MAX_CACHED_PAIRS) {
+                pairCache.clear();
+            }
+            pairCache.put(key, count);
+        }
+        return count;
+    }
+
+    private int intersect(int v1, int v2) {
+        // iterate over the shorter postings
+        if (getDocumentFrequency(v1) > getDocumentFrequency(v2)) {
+            int temp = v1;
+            v1 = v2;
+            v2 = temp;
+        }
+        int count = 0;
+        if (bitsets[v2] != null) {
+            BitSet bitset = bitsets[v2];
+            for (int ii = offsets[v1]; ii < offsets[v1 + 1]; ii++) {
+                if (bitset.get(postings[ii])) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int ii = offsets[v1];
+        int jj = offsets[v2];
+        int end1 = offsets[v1 + 1];
+        int end2 = offsets[v2 + 1];
+        while (ii < end1 && jj < end2) {
+            int d1 = postings[ii];
+            int d2 = postings[jj];
+            if (d1 == d2) {
+                count++;
+                ii++;
+                jj++;
+            } else if (d1 < d2) {
+                ii++;
+            } else {
+                jj = gallop(d1, jj, end2);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the first position in [start, end) whose document is at least a
+     * given document.
+     */
+    private int gallop(int doc, int start, int end) {
+        int step = 1;
+        int lo = start;
+        int hi = start + step;
+        while (hi < end && postings[hi] < doc) {
+            lo = hi;
+            step <<= 1;
+            hi = start + step;
+        }
+        if (hi > end) {
+            hi = end;
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (postings[mid] < doc) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
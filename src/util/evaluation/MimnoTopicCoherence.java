@@ -1,12 +1,14 @@
 package util.evaluation;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Random;
-import java.util.Set;
 import util.MiscUtils;
 
 /**
+ * Topic coherence (Mimno et al., EMNLP 2011) computed from the document and
+ * co-document frequencies of the top words of each topic. The frequencies are
+ * looked up in a {@link CoDocumentIndex} shared by all instances on the same
+ * corpus.
  *
  * @author vietan
  */
@@ -15,7 +17,7 @@ public class MimnoTopicCoherence {
     private int[][] corpus;
     private int vocabSize;
     private int numTokens;
-    private int[][] coDocFreq;
+    private CoDocumentIndex index;
 
     public MimnoTopicCoherence(int[][] corpus, int vocSize, int numTokens) {
         this.corpus = corpus;
@@ -28,19 +30,7 @@ public class MimnoTopicCoherence {
     }
 
     public void prepare() {
-        this.coDocFreq = new int[vocabSize][vocabSize];
-        for (int d = 0; d < corpus.length; d++) {
-            Set<Integer> uniqueTokens = new HashSet<Integer>();
-            for (int n = 0; n < corpus[d].length; n++) {
-                uniqueTokens.add(corpus[d][n]);
-            }
-
-            for (int token : uniqueTokens) {
-                for (int otherToken : uniqueTokens) {
-                    coDocFreq[token][otherToken]++;
-                }
-            }
-        }
+        this.index = CoDocumentIndex.get(corpus, vocabSize);
     }
 
     public double getCoherenceScore(int[] topic) {
@@ -49,7 +39,8 @@ public class MimnoTopicCoherence {
             int tokenM = topic[m];
             for (int l = 0; l < m; l++) {
                 int tokenL = topic[l];
-                score += Math.log(coDocFreq[tokenM][tokenL] + 1) - Math.log(coDocFreq[tokenL][tokenL]);
+                score += Math.log(index.getCoDocumentFrequency(tokenM, tokenL) + 1)
+                        - Math.log(index.getDocumentFrequency(tokenL));
             }
         }
         return score;
@@ -90,8 +81,12 @@ public class MimnoTopicCoherence {
 
         MimnoTopicCoherence tc = new MimnoTopicCoherence(obs, V, 5);
         tc.prepare();
-        for (int i = 0; i < tc.coDocFreq.length; i++) {
-            System.out.println(MiscUtils.arrayToString(tc.coDocFreq[i]));
+        for (int i = 0; i < V; i++) {
+            int[] coDocFreqs = new int[V];
+            for (int j = 0; j < V; j++) {
+                coDocFreqs[j] = tc.index.getCoDocumentFrequency(i, j);
+            }
+            System.out.println(MiscUtils.arrayToString(coDocFreqs));
         }
     }
 }
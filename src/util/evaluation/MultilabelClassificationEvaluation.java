@@ -1,5 +1,6 @@
 package util.evaluation;
 
+import core.AbstractSampler;
 import java.util.ArrayList;
 import java.util.Collections;
 import mulan.classifier.MultiLabelOutput;
@@ -140,6 +141,56 @@ public class MultilabelClassificationEvaluation {
         this.measurements.add(new Measurement("Macro-F1@" + k, macroF1));
     }
 
+    /**
+     * Compute the AUC-ROC and AUC-PR of ranking the documents by their scores
+     * for each label, and average them over the labels for which they are
+     * defined (i.e., labels with both positive and negative documents). This
+     * is not part of the default measurements since it sorts the documents
+     * once per label. The labels are evaluated in parallel, each task copying
+     * only the column of its label. Nothing is added if no label is valid.
+     */
+    public void computeLabelAUCs() {
+        final int D = trueLabels.length;
+        final double[] labelROCs = new double[numLabels];
+        final double[] labelPRs = new double[numLabels];
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (int ll = 0; ll < numLabels; ll++) {
+            final int label = ll;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    double[] scores = new double[D];
+                    boolean[] truths = new boolean[D];
+                    for (int dd = 0; dd < D; dd++) {
+                        scores[dd] = predictedScores[dd][label];
+                        truths[dd] = trueLabels[dd][label];
+                    }
+                    AUCCalculator auc = new AUCCalculator(scores, truths);
+                    labelROCs[label] = auc.getAUCROC();
+                    labelPRs[label] = auc.getAUCPR();
+                }
+            });
+        }
+        AbstractSampler.runTasks(tasks);
+
+        double sumROC = 0.0;
+        double sumPR = 0.0;
+        int numValidLabels = 0;
+        for (int ll = 0; ll < numLabels; ll++) {
+            if (Double.isNaN(labelROCs[ll])) {
+                continue;
+            }
+            sumROC += labelROCs[ll];
+            sumPR += labelPRs[ll];
+            numValidLabels++;
+        }
+        if (numValidLabels == 0) {
+            return;
+        }
+        this.measurements.add(new Measurement("Macro-AUC-ROC", sumROC / numValidLabels));
+        this.measurements.add(new Measurement("Macro-AUC-PR", sumPR / numValidLabels));
+    }
+
     public void computeMeanAveragePrecision() {
         MeanAveragePrecision measure = new MeanAveragePrecision(numLabels);
         for (int dd = 0; dd < trueLabels.length; dd++) {
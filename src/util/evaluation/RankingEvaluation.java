@@ -1,15 +1,8 @@
 package util.evaluation;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Set;
-import util.IOUtils;
 import util.RankingItem;
 
 /**
@@ -18,13 +11,11 @@ import util.RankingItem;
  */
 public class RankingEvaluation {
 
-    public static final String AUCCalculatorPath = "lib/auc.jar";
     private final double[] scores;
     private final Set<Integer> relevants;
     // internal
     private final ArrayList<Measurement> measurements;
     private final ArrayList<RankingItem<Integer>> ranking;
-    private String aucListFile;
 
     public RankingEvaluation(double[] scores, Set<Integer> relevants) {
         this.scores = scores;
@@ -37,10 +28,6 @@ public class RankingEvaluation {
         Collections.sort(this.ranking);
     }
 
-    public void setAUCListFile(String auc) {
-        this.aucListFile = auc;
-    }
-
     public ArrayList<Measurement> getMeasurements() {
         return this.measurements;
     }
@@ -80,62 +67,8 @@ public class RankingEvaluation {
     }
 
     public void computeAUCs() {
-        try {
-            File aucFile = new File(AUCCalculatorPath);
-            if (!aucFile.exists()) {
-                throw new RuntimeException(AUCCalculatorPath + " not found.");
-            }
-
-            // create a temp folder
-            File tempFolder = new File("temp");
-            if (aucListFile == null) {
-                IOUtils.createFolder(tempFolder);
-                this.aucListFile = new File(tempFolder, "auc-list").getAbsolutePath();
-            }
-            // output temporary results
-            BufferedWriter writer = IOUtils.getBufferedWriter(aucListFile);
-            for (RankingItem<Integer> rankingItem : this.ranking) {
-                int item = rankingItem.getObject();
-                double value = rankingItem.getPrimaryValue();
-                int cls;
-                if (this.relevants.contains(item)) {
-                    cls = 1;
-                } else {
-                    cls = 0;
-                }
-                writer.write(value + " " + cls + "\n");
-            }
-            writer.close();
-
-            // compute 
-            String cmd = "java -jar " + AUCCalculatorPath + " " + aucListFile + " list";
-
-            Process proc = Runtime.getRuntime().exec(cmd);
-            InputStream istr = proc.getInputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(istr));
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.contains("Area Under the Curve for Precision - Recall is")) {
-                    String[] sline = line.split(" ");
-                    double aucPR = Double.parseDouble(sline[sline.length - 1]);
-                    this.measurements.add(new Measurement("AUC-PRC", aucPR));
-                } else if (line.contains("Area Under the Curve for ROC is")) {
-                    String[] sline = line.split(" ");
-                    double aucROC = Double.parseDouble(sline[sline.length - 1]);
-                    this.measurements.add(new Measurement("AUC-ROC", aucROC));
-                }
-            }
-            in.close();
-
-            // delete the temp folder
-            if (tempFolder.exists()) {
-                IOUtils.deleteFolderContent(tempFolder.getAbsolutePath());
-                tempFolder.delete();
-            }
-        } catch (IOException | RuntimeException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Exception while computing AUCs");
-        }
+        AUCCalculator auc = new AUCCalculator(scores, relevants);
+        this.measurements.add(new Measurement("AUC-PRC", auc.getAUCPR()));
+        this.measurements.add(new Measurement("AUC-ROC", auc.getAUCROC()));
     }
 }
@@ -20,7 +20,6 @@ import util.RankingItemList;
  */
 public class RankingPerformance<A> {
 
-    public static final String AUCCalculatorPath = "lib/auc.jar";
     public static final String AUCListFile = "AUCList.txt";
     public static final String AUCFile = "AUC.txt";
     public static final String PRF1File = "PRF1.txt";
@@ -357,32 +356,17 @@ public class RankingPerformance<A> {
     }
 
     public void computeAUC() {
-        try {
-            File aucFile = new File(AUCCalculatorPath);
-            if (!aucFile.exists()) {
-                throw new RuntimeException(AUCCalculatorPath + " not found.");
-            }
-
-            String cmd = "java -jar " + AUCCalculatorPath + " " + new File(performanceFolder, AUCListFile + " list");
-            Process proc = Runtime.getRuntime().exec(cmd);
-            InputStream istr = proc.getInputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(istr));
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.contains("Area Under the Curve for Precision - Recall is")) {
-                    String[] sline = line.split(" ");
-                    this.aucPR = Double.parseDouble(sline[sline.length - 1]);
-                } else if (line.contains("Area Under the Curve for ROC is")) {
-                    String[] sline = line.split(" ");
-                    this.aucROC = Double.parseDouble(sline[sline.length - 1]);
-                }
-            }
-            in.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(0);
+        int numItems = this.rankingItemLists.size();
+        double[] scores = new double[numItems];
+        boolean[] labels = new boolean[numItems];
+        for (int i = 0; i < numItems; i++) {
+            RankingItem<A> rankingItem = this.rankingItemLists.getRankingItem(i);
+            scores[i] = rankingItem.getPrimaryValue();
+            labels[i] = this.groundtruthSet.contains(rankingItem.getObject());
         }
+        AUCCalculator auc = new AUCCalculator(scores, labels);
+        this.aucROC = auc.getAUCROC();
+        this.aucPR = auc.getAUCPR();
     }
 
     public void outputAUC() {